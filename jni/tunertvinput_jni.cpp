@@ -27,7 +27,7 @@
 
 #define TS_PACKET_SIZE 188
 #define TS_PAYLOAD_SIZE (TS_PACKET_SIZE * 7) // Fit Ethernet MTU (1500)
-#define READ_TIMEOUT_MS 100
+#define READ_TIMEOUT_MS 100 // Same as TunerHal.READ_TS_STREAM_TIMEOUT_MS
 
 static int sTotalBytesFetched = 0;
 static std::map<jlong, DvbManager *> sDvbManagers;
@@ -142,6 +142,42 @@ Java_com_android_tv_tuner_TunerHal_nativeWriteInBuffer
     return dataSize;
 }
 
+/*
+ * Class:     com_android_tv_tuner_TunerHal
+ * Method:    nativeReadTsStream
+ * Signature: (JLjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_android_tv_tuner_TunerHal_nativeReadTsStream
+(JNIEnv *env, jobject thiz, jlong deviceId, jobject javaBuffer, jint offset, jint size) {
+    std::map<jlong, DvbManager *>::iterator it = sDvbManagers.find(deviceId);
+    if (it == sDvbManagers.end()) {
+        return -1;
+    }
+    DvbManager *dvbManager = it->second;
+
+    uint8_t *tsBuffer = (uint8_t *) env->GetDirectBufferAddress(javaBuffer);
+    jlong capacity = env->GetDirectBufferCapacity(javaBuffer);
+    if (tsBuffer == NULL || offset < 0 || size < 0 || offset + size > capacity) {
+        ALOGE("Invalid direct buffer to read DVR");
+        return -1;
+    }
+
+    // Always read multiple of TS_PACKET_SIZE. Unlike nativeWriteInBuffer, the DVR device is read
+    // directly into the Java buffer, so the size is not limited by an intermediate buffer.
+    size = (size / TS_PACKET_SIZE) * TS_PACKET_SIZE;
+    int dataSize = dvbManager->readTsStream(env, thiz, tsBuffer + offset, size, READ_TIMEOUT_MS);
+    if (dataSize == 0) {
+        ALOGD("No data to read DVR");
+        return 0;
+    } else if (dataSize < 0) {
+        return -1;
+    }
+
+    sTotalBytesFetched += dataSize;
+    return dataSize;
+}
+
 /*
  * Class:     com_android_tv_tuner_TunerHal
  * Method:    nativeSetHasPendingTune
@@ -38,6 +38,7 @@ import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.Log;
 import android.util.Range;
+import android.util.SparseArray;
 
 import com.android.tv.TvApplication;
 import com.android.tv.common.SoftPreconditions;
@@ -67,6 +68,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * DVR Data manager to handle recordings and schedules.
@@ -85,6 +87,15 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
     private final HashMap<Long, ScheduledRecording> mProgramId2ScheduledRecordings =
             new HashMap<>();
     private final HashMap<String, SeriesRecording> mSeriesId2SeriesRecordings = new HashMap<>();
+    // Secondary indexes of mScheduledRecordings and mRecordedPrograms. The inner maps are keyed
+    // by ID.
+    private final HashMap<Long, HashMap<Long, ScheduledRecording>>
+            mSeriesRecordingId2ScheduledRecordings = new HashMap<>();
+    private final HashMap<String, HashMap<Long, ScheduledRecording>>
+            mInputId2ScheduledRecordings = new HashMap<>();
+    private final SparseArray<TimeIndex> mState2ScheduledRecordings = new SparseArray<>();
+    private final HashMap<String, HashMap<Long, RecordedProgram>> mSeriesId2RecordedPrograms =
+            new HashMap<>();
 
     private final HashMap<Long, ScheduledRecording> mScheduledRecordingsForRemovedInput =
             new HashMap<>();
@@ -227,6 +238,7 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
                         getDeletedScheduleMap().put(r.getProgramId(), r);
                     } else {
                         mScheduledRecordings.put(r.getId(), r);
+                        addToIndexes(r);
                         if (r.getProgramId() != ScheduledRecording.ID_NOT_SET) {
                             mProgramId2ScheduledRecordings.put(r.getProgramId(), r);
                         }
@@ -312,6 +324,7 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
                 for (RecordedProgram recorded : recordedPrograms) {
                     if (isInputAvailable(recorded.getInputId())) {
                         mRecordedPrograms.put(recorded.getId(), recorded);
+                        addToIndexes(recorded);
                     } else {
                         mRecordedProgramsForRemovedInput.put(recorded.getId(), recorded);
                     }
@@ -322,18 +335,21 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
                 List<RecordedProgram> oldRecordedPrograms =
                         new ArrayList<>(mRecordedPrograms.values());
                 mRecordedPrograms.clear();
+                mSeriesId2RecordedPrograms.clear();
                 mRecordedProgramsForRemovedInput.clear();
                 notifyRecordedProgramsRemoved(RecordedProgram.toArray(oldRecordedPrograms));
             } else {
                 HashMap<Long, RecordedProgram> oldRecordedPrograms
                         = new HashMap<>(mRecordedPrograms);
                 mRecordedPrograms.clear();
+                mSeriesId2RecordedPrograms.clear();
                 mRecordedProgramsForRemovedInput.clear();
                 List<RecordedProgram> addedRecordedPrograms = new ArrayList<>();
                 List<RecordedProgram> changedRecordedPrograms = new ArrayList<>();
                 for (RecordedProgram recorded : recordedPrograms) {
                     if (isInputAvailable(recorded.getInputId())) {
                         mRecordedPrograms.put(recorded.getId(), recorded);
+                        addToIndexes(recorded);
                         if (oldRecordedPrograms.remove(recorded.getId()) == null) {
                             addedRecordedPrograms.add(recorded);
                         } else {
@@ -367,12 +383,17 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
                 mRecordedProgramsForRemovedInput.remove(id);
                 RecordedProgram old = mRecordedPrograms.remove(id);
                 if (old != null) {
+                    removeFromIndexes(old);
                     notifyRecordedProgramsRemoved(old);
                 }
             } else {
                 RecordedProgram recordedProgram = recordedPrograms.get(0);
                 if (isInputAvailable(recordedProgram.getInputId())) {
                     RecordedProgram old = mRecordedPrograms.put(id, recordedProgram);
+                    if (old != null) {
+                        removeFromIndexes(old);
+                    }
+                    addToIndexes(recordedProgram);
                     if (old == null) {
                         notifyRecordedProgramsAdded(recordedProgram);
                     } else {
@@ -424,7 +445,10 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
         if (!mRecordedProgramLoadFinished || seriesRecording == null) {
             return Collections.emptyList();
         }
-        return super.getRecordedPrograms(seriesRecordingId);
+        HashMap<Long, RecordedProgram> recordedPrograms =
+                mSeriesId2RecordedPrograms.get(seriesRecording.getSeriesId());
+        return recordedPrograms == null ? new ArrayList<>()
+                : new ArrayList<>(recordedPrograms.values());
     }
 
     @Override
@@ -435,17 +459,27 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
     @Override
     protected List<ScheduledRecording> getRecordingsWithState(@RecordingState int... states) {
         List<ScheduledRecording> result = new ArrayList<>();
-        for (ScheduledRecording r : mScheduledRecordings.values()) {
-            for (int state : states) {
-                if (r.getState() == state) {
-                    result.add(r);
-                    break;
+        for (int i = 0; i < states.length; ++i) {
+            if (!contains(states, i, states[i])) {
+                TimeIndex index = mState2ScheduledRecordings.get(states[i]);
+                if (index != null) {
+                    index.getAll(result);
                 }
             }
         }
         return result;
     }
 
+    // Returns whether the value is in the first {@code length} elements of the array.
+    private static boolean contains(int[] array, int length, int value) {
+        for (int i = 0; i < length; ++i) {
+            if (array[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public List<SeriesRecording> getSeriesRecordings() {
         if (!mDvrLoadFinished) {
@@ -490,34 +524,24 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
     public List<ScheduledRecording> getScheduledRecordings(Range<Long> period,
             @RecordingState int state) {
         List<ScheduledRecording> result = new ArrayList<>();
-        for (ScheduledRecording r : mScheduledRecordings.values()) {
-            if (r.isOverLapping(period) && r.getState() == state) {
-                result.add(r);
-            }
+        TimeIndex index = mState2ScheduledRecordings.get(state);
+        if (index != null) {
+            index.getOverlapping(period, result);
         }
         return result;
     }
 
     @Override
     public List<ScheduledRecording> getScheduledRecordings(long seriesRecordingId) {
-        List<ScheduledRecording> result = new ArrayList<>();
-        for (ScheduledRecording r : mScheduledRecordings.values()) {
-            if (r.getSeriesRecordingId() == seriesRecordingId) {
-                result.add(r);
-            }
-        }
-        return result;
+        HashMap<Long, ScheduledRecording> schedules =
+                mSeriesRecordingId2ScheduledRecordings.get(seriesRecordingId);
+        return schedules == null ? new ArrayList<>() : new ArrayList<>(schedules.values());
     }
 
     @Override
     public List<ScheduledRecording> getScheduledRecordings(String inputId) {
-        List<ScheduledRecording> result = new ArrayList<>();
-        for (ScheduledRecording r : mScheduledRecordings.values()) {
-            if (TextUtils.equals(r.getInputId(), inputId)) {
-                result.add(r);
-            }
-        }
-        return result;
+        HashMap<Long, ScheduledRecording> schedules = mInputId2ScheduledRecordings.get(inputId);
+        return schedules == null ? new ArrayList<>() : new ArrayList<>(schedules.values());
     }
 
     @Nullable
@@ -556,7 +580,11 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
             if (r.getId() == ScheduledRecording.ID_NOT_SET) {
                 r.setId(IdGenerator.SCHEDULED_RECORDING.newId());
             }
-            mScheduledRecordings.put(r.getId(), r);
+            ScheduledRecording old = mScheduledRecordings.put(r.getId(), r);
+            if (old != null) {
+                removeFromIndexes(old);
+            }
+            addToIndexes(r);
             if (r.getProgramId() != ScheduledRecording.ID_NOT_SET) {
                 mProgramId2ScheduledRecordings.put(r.getProgramId(), r);
             }
@@ -593,7 +621,10 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
         List<ScheduledRecording> schedulesToDelete = new ArrayList<>();
         List<ScheduledRecording> schedulesNotToDelete = new ArrayList<>();
         for (ScheduledRecording r : schedules) {
-            mScheduledRecordings.remove(r.getId());
+            ScheduledRecording old = mScheduledRecordings.remove(r.getId());
+            if (old != null) {
+                removeFromIndexes(old);
+            }
             getDeletedScheduleMap().remove(r.getId());
             mProgramId2ScheduledRecordings.remove(r.getProgramId());
             boolean isScheduleForRemovedInput =
@@ -637,8 +668,8 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
         // Reset series recording ID of the scheduled recording.
         List<ScheduledRecording> toUpdate = new ArrayList<>();
         List<ScheduledRecording> toDelete = new ArrayList<>();
-        for (ScheduledRecording r : mScheduledRecordings.values()) {
-            if (ids.contains(r.getSeriesRecordingId())) {
+        for (long id : ids) {
+            for (ScheduledRecording r : getScheduledRecordings(id)) {
                 if (r.getState() == ScheduledRecording.STATE_RECORDING_NOT_STARTED) {
                     toDelete.add(r);
                 } else {
@@ -676,6 +707,8 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
             }
             toUpdate.add(r);
             ScheduledRecording oldScheduledRecording = mScheduledRecordings.put(r.getId(), r);
+            removeFromIndexes(oldScheduledRecording);
+            addToIndexes(r);
             // The channel ID should not be changed.
             SoftPreconditions.checkState(r.getChannelId() == oldScheduledRecording.getChannelId());
             long programId = r.getProgramId();
@@ -719,6 +752,61 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
         new AsyncUpdateSeriesRecordingTask(mContext).executeOnDbThread(seriesRecordings);
     }
 
+    private void addToIndexes(ScheduledRecording r) {
+        if (r.getSeriesRecordingId() != SeriesRecording.ID_NOT_SET) {
+            addToIndex(mSeriesRecordingId2ScheduledRecordings, r.getSeriesRecordingId(),
+                    r.getId(), r);
+        }
+        addToIndex(mInputId2ScheduledRecordings, r.getInputId(), r.getId(), r);
+        TimeIndex index = mState2ScheduledRecordings.get(r.getState());
+        if (index == null) {
+            index = new TimeIndex();
+            mState2ScheduledRecordings.put(r.getState(), index);
+        }
+        index.add(r);
+    }
+
+    private void removeFromIndexes(ScheduledRecording r) {
+        removeFromIndex(mSeriesRecordingId2ScheduledRecordings, r.getSeriesRecordingId(),
+                r.getId());
+        removeFromIndex(mInputId2ScheduledRecordings, r.getInputId(), r.getId());
+        TimeIndex index = mState2ScheduledRecordings.get(r.getState());
+        if (index != null) {
+            index.remove(r);
+        }
+    }
+
+    private void addToIndexes(RecordedProgram r) {
+        if (r.getSeriesId() != null) {
+            addToIndex(mSeriesId2RecordedPrograms, r.getSeriesId(), r.getId(), r);
+        }
+    }
+
+    private void removeFromIndexes(RecordedProgram r) {
+        removeFromIndex(mSeriesId2RecordedPrograms, r.getSeriesId(), r.getId());
+    }
+
+    private static <K, T> void addToIndex(HashMap<K, HashMap<Long, T>> index, K key, long id,
+            T value) {
+        HashMap<Long, T> values = index.get(key);
+        if (values == null) {
+            values = new HashMap<>();
+            index.put(key, values);
+        }
+        values.put(id, value);
+    }
+
+    private static <K, T> void removeFromIndex(HashMap<K, HashMap<Long, T>> index, K key,
+            long id) {
+        HashMap<Long, T> values = index.get(key);
+        if (values != null) {
+            values.remove(id);
+            if (values.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
     private boolean isInputAvailable(String inputId) {
         return mInputManager.hasTvInputInfo(inputId)
                 && (!Utils.isBundledInput(inputId) || mStorageStatusManager.isStorageMounted());
@@ -788,6 +876,7 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
         if (!movedSchedules.isEmpty()) {
             for (ScheduledRecording schedule : movedSchedules) {
                 mProgramId2ScheduledRecordings.put(schedule.getProgramId(), schedule);
+                addToIndexes(schedule);
             }
         }
         if (!movedSeriesRecordings.isEmpty()) {
@@ -795,6 +884,9 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
                 mSeriesId2SeriesRecordings.put(seriesRecording.getSeriesId(), seriesRecording);
             }
         }
+        for (RecordedProgram recordedProgram : movedRecordedPrograms) {
+            addToIndexes(recordedProgram);
+        }
         // Notify after all the data are moved.
         if (!movedSchedules.isEmpty()) {
             notifyScheduledRecordingAdded(ScheduledRecording.toArray(movedSchedules));
@@ -836,6 +928,7 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
         if (!movedSchedules.isEmpty()) {
             for (ScheduledRecording schedule : movedSchedules) {
                 mProgramId2ScheduledRecordings.remove(schedule.getProgramId());
+                removeFromIndexes(schedule);
             }
         }
         if (!movedSeriesRecordings.isEmpty()) {
@@ -843,6 +936,9 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
                 mSeriesId2SeriesRecordings.remove(seriesRecording.getSeriesId());
             }
         }
+        for (RecordedProgram recordedProgram : movedRecordedPrograms) {
+            removeFromIndexes(recordedProgram);
+        }
         // Notify after all the data are moved.
         if (!movedSchedules.isEmpty()) {
             notifyScheduledRecordingRemoved(ScheduledRecording.toArray(movedSchedules));
@@ -901,6 +997,68 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
         }.executeOnDbThread();
     }
 
+    /**
+     * Schedules in the order of the start time. The schedules overlapping a period are looked up
+     * among the ones which start within the longest duration of the schedules before the period,
+     * rather than all the schedules which start before the period.
+     */
+    @VisibleForTesting
+    static class TimeIndex {
+        private final TreeMap<Long, HashMap<Long, ScheduledRecording>> mStartTimeMap =
+                new TreeMap<>();
+        // The number of the schedules by the duration, to find the longest one.
+        private final TreeMap<Long, Integer> mDurationCounts = new TreeMap<>();
+
+        void add(ScheduledRecording r) {
+            addToIndex(mStartTimeMap, r.getStartTimeMs(), r.getId(), r);
+            long duration = getDuration(r);
+            Integer count = mDurationCounts.get(duration);
+            mDurationCounts.put(duration, count == null ? 1 : count + 1);
+        }
+
+        void remove(ScheduledRecording r) {
+            HashMap<Long, ScheduledRecording> schedules = mStartTimeMap.get(r.getStartTimeMs());
+            if (schedules == null || schedules.remove(r.getId()) == null) {
+                return;
+            }
+            if (schedules.isEmpty()) {
+                mStartTimeMap.remove(r.getStartTimeMs());
+            }
+            long duration = getDuration(r);
+            int count = mDurationCounts.get(duration);
+            if (count == 1) {
+                mDurationCounts.remove(duration);
+            } else {
+                mDurationCounts.put(duration, count - 1);
+            }
+        }
+
+        void getAll(List<ScheduledRecording> result) {
+            for (HashMap<Long, ScheduledRecording> schedules : mStartTimeMap.values()) {
+                result.addAll(schedules.values());
+            }
+        }
+
+        void getOverlapping(Range<Long> period, List<ScheduledRecording> result) {
+            if (mStartTimeMap.isEmpty()) {
+                return;
+            }
+            long lower = period.getLower() - mDurationCounts.lastKey();
+            for (HashMap<Long, ScheduledRecording> schedules : mStartTimeMap.subMap(
+                    lower, false, period.getUpper(), false).values()) {
+                for (ScheduledRecording r : schedules.values()) {
+                    if (r.isOverLapping(period)) {
+                        result.add(r);
+                    }
+                }
+            }
+        }
+
+        private static long getDuration(ScheduledRecording r) {
+            return Math.max(0, r.getEndTimeMs() - r.getStartTimeMs());
+        }
+    }
+
     private final class RecordedProgramsQueryTask extends AsyncRecordedProgramQueryTask {
         private final Uri mUri;
 
@@ -34,14 +34,16 @@ import com.android.tv.TvApplication;
 import com.android.tv.data.ChannelDataManager;
 import com.android.tv.data.Program;
 import com.android.tv.dvr.DvrDataManager.ScheduledRecordingListener;
-import com.android.tv.util.AsyncDbTask.AsyncQueryProgramTask;
+import com.android.tv.util.AsyncDbTask.AsyncProgramQueryTask;
 import com.android.tv.util.TvProviderUriMatcher;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
@@ -51,9 +53,10 @@ import java.util.Set;
  *
  * <p>The current implementation of AsyncDbTask allows only one task to run at a time, and all the
  * other tasks are blocked until the current one finishes. As this class performs the low priority
- * jobs which take long time, it should not block others if possible. For this reason, only one
- * program is queried at a time and others are queued and will be executed on the other
+ * jobs which take long time, it should not block others if possible. For this reason, only a
+ * batch of programs is queried at a time and others are queued and will be executed on the other
  * AsyncDbTask's after the current one finishes to minimize the execution time of one AsyncDbTask.
+ * The schedules of a batch are updated at once.
  */
 @MainThread
 @TargetApi(Build.VERSION_CODES.N)
@@ -61,11 +64,15 @@ class DvrDbSync {
     private static final String TAG = "DvrDbSync";
     private static final boolean DEBUG = false;
 
+    // The maximum number of the programs queried by a task. It should be far less than the limit
+    // of the number of the SQL variables, 999.
+    static final int MAX_PROGRAM_QUERY_BATCH_SIZE = 100;
+
     private final Context mContext;
     private final DvrDataManagerImpl mDataManager;
     private final ChannelDataManager mChannelDataManager;
     private final Queue<Long> mProgramIdQueue = new LinkedList<>();
-    private QueryProgramTask mQueryProgramTask;
+    private QueryProgramsTask mQueryProgramTask;
     private final SeriesRecordingScheduler mSeriesRecordingScheduler;
     private final ContentObserver mContentObserver = new ContentObserver(new Handler(
             Looper.getMainLooper())) {
@@ -234,23 +241,58 @@ class DvrDbSync {
             return;
         }
         if (!mProgramIdQueue.isEmpty()) {
-            if (DEBUG) Log.d(TAG, "Program ID dequeued: " + mProgramIdQueue.peek());
-            mQueryProgramTask = new QueryProgramTask(mProgramIdQueue.poll());
+            List<Long> programIds = new ArrayList<>();
+            while (!mProgramIdQueue.isEmpty()
+                    && programIds.size() < MAX_PROGRAM_QUERY_BATCH_SIZE) {
+                programIds.add(mProgramIdQueue.poll());
+            }
+            if (DEBUG) Log.d(TAG, "Program IDs dequeued: " + programIds);
+            mQueryProgramTask = new QueryProgramsTask(programIds);
             mQueryProgramTask.executeOnDbThread();
         } else {
             mSeriesRecordingScheduler.resumeUpdate();
         }
     }
 
+    /**
+     * Updates the schedules of the programs with the queried programs. The programs which are not
+     * in {@code programs} are regarded as removed.
+     */
     @VisibleForTesting
-    void handleUpdateProgram(Program program, long programId) {
+    void handleUpdatePrograms(List<Long> programIds, List<Program> programs) {
+        Map<Long, Program> programMap = new HashMap<>();
+        for (Program program : programs) {
+            programMap.put(program.getId(), program);
+        }
+        List<ScheduledRecording> schedulesToRemove = new ArrayList<>();
+        List<ScheduledRecording> schedulesToUpdate = new ArrayList<>();
         Set<SeriesRecording> seriesRecordingsToUpdate = new HashSet<>();
+        for (long programId : programIds) {
+            handleUpdateProgram(programMap.get(programId), programId, schedulesToRemove,
+                    schedulesToUpdate, seriesRecordingsToUpdate);
+        }
+        if (!schedulesToRemove.isEmpty()) {
+            mDataManager.removeScheduledRecording(ScheduledRecording.toArray(schedulesToRemove));
+        }
+        if (!schedulesToUpdate.isEmpty()) {
+            mDataManager.updateScheduledRecording(ScheduledRecording.toArray(schedulesToUpdate));
+        }
+        if (!seriesRecordingsToUpdate.isEmpty()) {
+            // The series recordings will be updated after it's resumed.
+            mSeriesRecordingScheduler.updateSchedules(seriesRecordingsToUpdate);
+        }
+    }
+
+    private void handleUpdateProgram(Program program, long programId,
+            List<ScheduledRecording> schedulesToRemove,
+            List<ScheduledRecording> schedulesToUpdate,
+            Set<SeriesRecording> seriesRecordingsToUpdate) {
         ScheduledRecording schedule = mDataManager.getScheduledRecordingForProgramId(programId);
         if (schedule != null
                 && (schedule.getState() == ScheduledRecording.STATE_RECORDING_NOT_STARTED
                 || schedule.getState() == ScheduledRecording.STATE_RECORDING_IN_PROGRESS)) {
             if (program == null) {
-                mDataManager.removeScheduledRecording(schedule);
+                schedulesToRemove.add(schedule);
                 if (schedule.getSeriesRecordingId() != SeriesRecording.ID_NOT_SET) {
                     SeriesRecording seriesRecording =
                             mDataManager.getSeriesRecording(schedule.getSeriesRecordingId());
@@ -325,26 +367,23 @@ class DvrDbSync {
                         program.getPosterArtUri())
                         || !Objects.equals(schedule.getProgramThumbnailUri(),
                         program.getThumbnailUri())) {
-                    mDataManager.updateScheduledRecording(builder.build());
-                }
-                if (!seriesRecordingsToUpdate.isEmpty()) {
-                    // The series recordings will be updated after it's resumed.
-                    mSeriesRecordingScheduler.updateSchedules(seriesRecordingsToUpdate);
+                    schedulesToUpdate.add(builder.build());
                 }
             }
         }
     }
 
-    private class QueryProgramTask extends AsyncQueryProgramTask {
-        private final long mProgramId;
+    private class QueryProgramsTask extends AsyncProgramQueryTask {
+        private final List<Long> mProgramIds;
 
-        QueryProgramTask(long programId) {
-            super(mContext.getContentResolver(), programId);
-            mProgramId = programId;
+        QueryProgramsTask(List<Long> programIds) {
+            super(mContext.getContentResolver(), Programs.CONTENT_URI,
+                    buildIdSelection(programIds.size()), toSelectionArgs(programIds), null, null);
+            mProgramIds = programIds;
         }
 
         @Override
-        protected void onCancelled(Program program) {
+        protected void onCancelled(List<Program> programs) {
             if (mQueryProgramTask == this) {
                 mQueryProgramTask = null;
             }
@@ -352,12 +391,33 @@ class DvrDbSync {
         }
 
         @Override
-        protected void onPostExecute(Program program) {
+        protected void onPostExecute(List<Program> programs) {
             if (mQueryProgramTask == this) {
                 mQueryProgramTask = null;
             }
-            handleUpdateProgram(program, mProgramId);
+            if (programs == null) {
+                // The query failed. Keeps the schedules as they are.
+                Log.w(TAG, "Failed to query the programs: " + mProgramIds);
+            } else {
+                handleUpdatePrograms(mProgramIds, programs);
+            }
             startNextUpdateIfNeeded();
         }
     }
+
+    static String buildIdSelection(int count) {
+        StringBuilder sb = new StringBuilder(Programs._ID).append(" IN (");
+        for (int i = 0; i < count; ++i) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.append(')').toString();
+    }
+
+    static String[] toSelectionArgs(List<Long> ids) {
+        String[] args = new String[ids.size()];
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = String.valueOf(ids.get(i));
+        }
+        return args;
+    }
 }
@@ -45,6 +45,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -66,6 +67,7 @@ public class DvrScheduleManager {
     public static final long DEFAULT_SERIES_PRIORITY = DEFAULT_PRIORITY >> 1;
     // The new priority will have the offset from the existing one.
     private static final long PRIORITY_OFFSET = 1024;
+    private static final int INITIAL_QUEUE_CAPACITY = 16;
 
     private static final Comparator<ScheduledRecording> RESULT_COMPARATOR =
             new CompositeComparator<>(
@@ -124,6 +126,7 @@ public class DvrScheduleManager {
                 if (!mInitialized) {
                     return;
                 }
+                Map<String, List<Range<Long>>> changedPeriods = new HashMap<>();
                 for (ScheduledRecording schedule : scheduledRecordings) {
                     if (!schedule.isNotStarted() && !schedule.isInProgress()) {
                         continue;
@@ -143,9 +146,10 @@ public class DvrScheduleManager {
                         schedules = new ArrayList<>();
                         mInputScheduleMap.put(inputId, schedules);
                     }
-                    schedules.add(schedule);
+                    addSchedule(schedules, schedule);
+                    addChangedPeriod(changedPeriods, inputId, schedule);
                 }
-                onSchedulesChanged();
+                onSchedulesChanged(changedPeriods);
                 notifyScheduledRecordingAdded(scheduledRecordings);
             }
 
@@ -154,6 +158,7 @@ public class DvrScheduleManager {
                 if (!mInitialized) {
                     return;
                 }
+                Map<String, List<Range<Long>>> changedPeriods = new HashMap<>();
                 for (ScheduledRecording schedule : scheduledRecordings) {
                     TvInputInfo input = Utils
                             .getTvInputInfoForInputId(mContext, schedule.getInputId());
@@ -179,8 +184,9 @@ public class DvrScheduleManager {
                             mInputConflictInfoMap.remove(inputId);
                         }
                     }
+                    addChangedPeriod(changedPeriods, inputId, schedule);
                 }
-                onSchedulesChanged();
+                onSchedulesChanged(changedPeriods);
                 notifyScheduledRecordingRemoved(scheduledRecordings);
             }
 
@@ -190,6 +196,7 @@ public class DvrScheduleManager {
                 if (!mInitialized) {
                     return;
                 }
+                Map<String, List<Range<Long>>> changedPeriods = new HashMap<>();
                 for (ScheduledRecording schedule : scheduledRecordings) {
                     TvInputInfo input = Utils
                             .getTvInputInfoForInputId(mContext, schedule.getInputId());
@@ -209,14 +216,17 @@ public class DvrScheduleManager {
                     // Compare ID because ScheduledRecording.equals() doesn't work if the state
                     // is changed.
                     for (Iterator<ScheduledRecording> i = schedules.iterator(); i.hasNext(); ) {
-                        if (i.next().getId() == schedule.getId()) {
+                        ScheduledRecording oldSchedule = i.next();
+                        if (oldSchedule.getId() == schedule.getId()) {
                             i.remove();
+                            addChangedPeriod(changedPeriods, inputId, oldSchedule);
                             break;
                         }
                     }
                     if (schedule.isNotStarted() || schedule.isInProgress()) {
-                        schedules.add(schedule);
+                        addSchedule(schedules, schedule);
                     }
+                    addChangedPeriod(changedPeriods, inputId, schedule);
                     if (schedules.isEmpty()) {
                         mInputScheduleMap.remove(inputId);
                     }
@@ -239,7 +249,7 @@ public class DvrScheduleManager {
                         }
                     }
                 }
-                onSchedulesChanged();
+                onSchedulesChanged(changedPeriods);
                 notifyScheduledRecordingStatusChanged(scheduledRecordings);
             }
         };
@@ -304,6 +314,9 @@ public class DvrScheduleManager {
                 schedules.add(schedule);
             }
         }
+        for (List<ScheduledRecording> schedules : mInputScheduleMap.values()) {
+            Collections.sort(schedules, ScheduledRecording.START_TIME_COMPARATOR);
+        }
         if (!mInitialized) {
             mInitialized = true;
             notifyInitialize();
@@ -312,29 +325,67 @@ public class DvrScheduleManager {
     }
 
     private void onSchedulesChanged() {
+        Map<String, List<Range<Long>>> changedPeriods = new HashMap<>();
+        for (String inputId : mInputScheduleMap.keySet()) {
+            // null for all the periods.
+            changedPeriods.put(inputId, null);
+        }
+        onSchedulesChanged(changedPeriods);
+    }
+
+    /**
+     * Recomputes the conflicts around the changed periods and notifies the change of the conflict
+     * state.
+     * <p>
+     * A schedule can affect only the schedules which are connected to it by overlapping periods,
+     * so the conflicts are computed only for the groups of the overlapping schedules which the
+     * changed periods touch.
+     *
+     * @param changedPeriods the periods of the added, removed or changed schedules by input ID.
+     *            All the schedules of an input are checked if the periods are {@code null}.
+     */
+    private void onSchedulesChanged(Map<String, List<Range<Long>>> changedPeriods) {
         // TODO: notify conflict state change when some conflicting recording becomes partially
         //       conflicting, vice versa.
         List<ScheduledRecording> addedConflicts = new ArrayList<>();
         List<ScheduledRecording> removedConflicts = new ArrayList<>();
-        for (String inputId : mInputScheduleMap.keySet()) {
-            Map<ScheduledRecording, Boolean> oldConflictsInfo = mInputConflictInfoMap.get(inputId);
+        for (Map.Entry<String, List<Range<Long>>> entry : changedPeriods.entrySet()) {
+            String inputId = entry.getKey();
+            List<Range<Long>> periods = entry.getValue();
+            List<ScheduledRecording> schedules = mInputScheduleMap.get(inputId);
+            if (schedules == null) {
+                schedules = Collections.emptyList();
+            }
+            List<Range<Long>> checkedPeriods = null;
+            if (periods != null) {
+                checkedPeriods = new ArrayList<>(periods);
+                schedules = getOverlappingGroups(schedules, periods, checkedPeriods);
+            }
+            Map<ScheduledRecording, Boolean> conflictInfo = mInputConflictInfoMap.get(inputId);
+            if (conflictInfo == null) {
+                conflictInfo = new HashMap<>();
+            }
             Map<Long, ScheduledRecording> oldConflictMap = new HashMap<>();
-            if (oldConflictsInfo != null) {
-                for (ScheduledRecording r : oldConflictsInfo.keySet()) {
+            for (Iterator<ScheduledRecording> iter = conflictInfo.keySet().iterator();
+                    iter.hasNext(); ) {
+                ScheduledRecording r = iter.next();
+                if (checkedPeriods == null || isInPeriods(r, checkedPeriods)) {
                     oldConflictMap.put(r.getId(), r);
+                    iter.remove();
                 }
             }
-            Map<ScheduledRecording, Boolean> conflictInfo = getConflictingSchedulesInfo(inputId);
+            Map<ScheduledRecording, Boolean> newConflictInfo =
+                    getConflictingSchedulesInfo(inputId, schedules);
+            for (ScheduledRecording r : newConflictInfo.keySet()) {
+                if (oldConflictMap.remove(r.getId()) == null) {
+                    addedConflicts.add(r);
+                }
+            }
+            conflictInfo.putAll(newConflictInfo);
             if (conflictInfo.isEmpty()) {
                 mInputConflictInfoMap.remove(inputId);
             } else {
                 mInputConflictInfoMap.put(inputId, conflictInfo);
-                List<ScheduledRecording> conflicts = new ArrayList<>(conflictInfo.keySet());
-                for (ScheduledRecording r : conflicts) {
-                    if (oldConflictMap.remove(r.getId()) == null) {
-                        addedConflicts.add(r);
-                    }
-                }
             }
             removedConflicts.addAll(oldConflictMap.values());
         }
@@ -346,6 +397,70 @@ public class DvrScheduleManager {
         }
     }
 
+    // Keeps the schedules of an input sorted by the start time.
+    private static void addSchedule(List<ScheduledRecording> schedules,
+            ScheduledRecording schedule) {
+        int index = Collections.binarySearch(schedules, schedule,
+                ScheduledRecording.START_TIME_COMPARATOR);
+        schedules.add(index >= 0 ? index : -index - 1, schedule);
+    }
+
+    private static void addChangedPeriod(Map<String, List<Range<Long>>> changedPeriods,
+            String inputId, ScheduledRecording schedule) {
+        List<Range<Long>> periods = changedPeriods.get(inputId);
+        if (periods == null) {
+            periods = new ArrayList<>();
+            changedPeriods.put(inputId, periods);
+        }
+        periods.add(new Range<>(schedule.getStartTimeMs(), schedule.getEndTimeMs()));
+    }
+
+    /**
+     * Returns the schedules in the groups of the overlapping schedules which touch the periods.
+     * The periods of the groups are added to {@code outGroupPeriods}.
+     * <p>
+     * The schedules which just touch each other are grouped together as well, which doesn't
+     * change the conflicts of a group.
+     *
+     * @param schedules the schedules sorted by the start time
+     */
+    @VisibleForTesting
+    static List<ScheduledRecording> getOverlappingGroups(List<ScheduledRecording> schedules,
+            List<Range<Long>> periods, List<Range<Long>> outGroupPeriods) {
+        List<ScheduledRecording> result = new ArrayList<>();
+        int size = schedules.size();
+        int groupStart = 0;
+        while (groupStart < size) {
+            long startTimeMs = schedules.get(groupStart).getStartTimeMs();
+            long endTimeMs = schedules.get(groupStart).getEndTimeMs();
+            int groupEnd = groupStart + 1;
+            while (groupEnd < size && schedules.get(groupEnd).getStartTimeMs() <= endTimeMs) {
+                endTimeMs = Math.max(endTimeMs, schedules.get(groupEnd).getEndTimeMs());
+                ++groupEnd;
+            }
+            Range<Long> group = new Range<>(startTimeMs, endTimeMs);
+            for (Range<Long> period : periods) {
+                if (period.getLower() <= endTimeMs && startTimeMs <= period.getUpper()) {
+                    result.addAll(schedules.subList(groupStart, groupEnd));
+                    outGroupPeriods.add(group);
+                    break;
+                }
+            }
+            groupStart = groupEnd;
+        }
+        return result;
+    }
+
+    private static boolean isInPeriods(ScheduledRecording schedule, List<Range<Long>> periods) {
+        for (Range<Long> period : periods) {
+            if (period.getLower() <= schedule.getEndTimeMs()
+                    && schedule.getStartTimeMs() <= period.getUpper()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Returns {@code true} if this class has been initialized.
      */
@@ -613,19 +728,19 @@ public class DvrScheduleManager {
     }
 
     /**
-     * Returns all the scheduled recordings that conflicts and will not be recorded or clipped for
-     * the given input.
+     * Returns all the scheduled recordings that conflicts and will not be recorded or clipped
+     * among the given schedules of the input.
      */
     @NonNull
-    private Map<ScheduledRecording, Boolean> getConflictingSchedulesInfo(String inputId) {
+    private Map<ScheduledRecording, Boolean> getConflictingSchedulesInfo(String inputId,
+            List<ScheduledRecording> schedules) {
         SoftPreconditions.checkState(mInitialized, TAG, "Not initialized yet");
         TvInputInfo input = Utils.getTvInputInfoForInputId(mContext, inputId);
         SoftPreconditions.checkState(input != null, TAG, "Can't find input for : " + inputId);
         if (!mInitialized || input == null) {
             return Collections.emptyMap();
         }
-        List<ScheduledRecording> schedules = mInputScheduleMap.get(input.getId());
-        if (schedules == null || schedules.isEmpty()) {
+        if (schedules.isEmpty()) {
             return Collections.emptyMap();
         }
         return getConflictingSchedulesInfo(schedules, input.getTunerCount());
@@ -838,16 +953,30 @@ public class DvrScheduleManager {
      */
     private static Map<ScheduledRecording, Boolean> getConflictingSchedulesInfo(
             List<ScheduledRecording> schedules, int tunerCount, List<Range<Long>> periods) {
-        List<ScheduledRecording> schedulesToCheck = new ArrayList<>(schedules);
+        Comparator<ScheduledRecording> recordingOrder =
+                InputTaskScheduler.getRecordingOrderComparator();
         // Sort by the same order as that in InputTaskScheduler.
-        Collections.sort(schedulesToCheck, InputTaskScheduler.getRecordingOrderComparator());
-        List<ScheduledRecording> recordings = new ArrayList<>();
+        List<ScheduledRecording> sortedSchedules = new ArrayList<>(schedules);
+        Collections.sort(sortedSchedules, recordingOrder);
+        // The schedules which are clipped to start when a recording finishes. They are merged
+        // with the sorted schedules by the same order.
+        PriorityQueue<ScheduledRecording> clippedSchedules =
+                new PriorityQueue<>(INITIAL_QUEUE_CAPACITY, recordingOrder);
+        ActiveRecordings recordings = new ActiveRecordings();
         Map<ScheduledRecording, Boolean> conflicts = new HashMap<>();
         Map<ScheduledRecording, ScheduledRecording> modified2OriginalSchedules = new HashMap<>();
+        int index = 0;
         // Simulate InputTaskScheduler.
-        while (!schedulesToCheck.isEmpty()) {
-            ScheduledRecording schedule = schedulesToCheck.remove(0);
-            removeFinishedRecordings(recordings, schedule.getStartTimeMs());
+        while (index < sortedSchedules.size() || !clippedSchedules.isEmpty()) {
+            ScheduledRecording schedule;
+            if (index == sortedSchedules.size() || (!clippedSchedules.isEmpty()
+                    && recordingOrder.compare(clippedSchedules.peek(),
+                            sortedSchedules.get(index)) <= 0)) {
+                schedule = clippedSchedules.poll();
+            } else {
+                schedule = sortedSchedules.get(index++);
+            }
+            recordings.removeFinished(schedule.getStartTimeMs());
             if (recordings.size() < tunerCount) {
                 recordings.add(schedule);
                 if (modified2OriginalSchedules.containsKey(schedule)) {
@@ -856,12 +985,11 @@ public class DvrScheduleManager {
                     conflicts.put(modified2OriginalSchedules.get(schedule), true);
                 }
             } else {
-                ScheduledRecording candidate = findReplaceableRecording(recordings, schedule);
+                ScheduledRecording candidate = recordings.removeReplaceable(schedule);
                 if (candidate != null) {
                     if (!modified2OriginalSchedules.containsKey(candidate)) {
                         conflicts.put(candidate, true);
                     }
-                    recordings.remove(candidate);
                     recordings.add(schedule);
                     if (modified2OriginalSchedules.containsKey(schedule)) {
                         // Schedule has been modified, which means it's already conflicted.
@@ -874,7 +1002,7 @@ public class DvrScheduleManager {
                         // No need to add it again.
                         conflicts.put(schedule, false);
                     }
-                    long earliestEndTime = getEarliestEndTime(recordings);
+                    long earliestEndTime = recordings.getEarliestEndTime();
                     if (earliestEndTime < schedule.getEndTimeMs()) {
                         // The schedule can starts when other recording ends even though it's
                         // clipped.
@@ -883,14 +1011,7 @@ public class DvrScheduleManager {
                         ScheduledRecording originalSchedule =
                                 modified2OriginalSchedules.getOrDefault(schedule, schedule);
                         modified2OriginalSchedules.put(modifiedSchedule, originalSchedule);
-                        int insertPosition = Collections.binarySearch(schedulesToCheck,
-                                modifiedSchedule,
-                                ScheduledRecording.START_TIME_THEN_PRIORITY_THEN_ID_COMPARATOR);
-                        if (insertPosition >= 0) {
-                            schedulesToCheck.add(insertPosition, modifiedSchedule);
-                        } else {
-                            schedulesToCheck.add(-insertPosition - 1, modifiedSchedule);
-                        }
+                        clippedSchedules.add(modifiedSchedule);
                     }
                 }
             }
@@ -915,43 +1036,101 @@ public class DvrScheduleManager {
         return conflicts;
     }
 
-    private static void removeFinishedRecordings(List<ScheduledRecording> recordings,
-            long currentTimeMs) {
-        for (Iterator<ScheduledRecording> iter = recordings.iterator(); iter.hasNext(); ) {
-            if (iter.next().getEndTimeMs() <= currentTimeMs) {
-                iter.remove();
+    /**
+     * The recordings in progress during the simulation of {@link InputTaskScheduler}.
+     * <p>
+     * They are kept in two heaps, one in the replacement order and the other in the order of the
+     * end time. A recording which is removed from one heap is only marked and is dropped from the
+     * other heap when it comes to the top.
+     */
+    private static class ActiveRecordings {
+        private static class Entry {
+            private final ScheduledRecording mSchedule;
+            // The order of addition, which picks the earlier one among the equal candidates.
+            private final long mOrder;
+            private boolean mRemoved;
+
+            private Entry(ScheduledRecording schedule, long order) {
+                mSchedule = schedule;
+                mOrder = order;
             }
         }
-    }
 
-    /**
-     * @see InputTaskScheduler#getReplacableTask
-     */
-    private static ScheduledRecording findReplaceableRecording(List<ScheduledRecording> recordings,
-            ScheduledRecording schedule) {
-        // Returns the recording with the following priority.
-        // 1. The recording with the lowest priority is returned.
-        // 2. If the priorities are the same, the recording which finishes early is returned.
-        // 3. If 1) and 2) are the same, the early created schedule is returned.
-        ScheduledRecording candidate = null;
-        for (ScheduledRecording recording : recordings) {
-            if (schedule.getPriority() > recording.getPriority()) {
-                if (candidate == null || CANDIDATE_COMPARATOR.compare(candidate, recording) > 0) {
-                    candidate = recording;
-                }
+        private final PriorityQueue<Entry> mCandidates = new PriorityQueue<>(
+                INITIAL_QUEUE_CAPACITY, new Comparator<Entry>() {
+                    @Override
+                    public int compare(Entry lhs, Entry rhs) {
+                        int result = CANDIDATE_COMPARATOR.compare(lhs.mSchedule, rhs.mSchedule);
+                        return result != 0 ? result : Long.compare(lhs.mOrder, rhs.mOrder);
+                    }
+                });
+        private final PriorityQueue<Entry> mEndings = new PriorityQueue<>(
+                INITIAL_QUEUE_CAPACITY, new Comparator<Entry>() {
+                    @Override
+                    public int compare(Entry lhs, Entry rhs) {
+                        return Long.compare(lhs.mSchedule.getEndTimeMs(),
+                                rhs.mSchedule.getEndTimeMs());
+                    }
+                });
+        private int mSize;
+        private long mNextOrder;
+
+        private int size() {
+            return mSize;
+        }
+
+        private void add(ScheduledRecording schedule) {
+            Entry entry = new Entry(schedule, mNextOrder++);
+            mCandidates.add(entry);
+            mEndings.add(entry);
+            ++mSize;
+        }
+
+        private void removeFinished(long currentTimeMs) {
+            while (!mEndings.isEmpty()
+                    && mEndings.peek().mSchedule.getEndTimeMs() <= currentTimeMs) {
+                remove(mEndings.poll());
+            }
+        }
+
+        /**
+         * Removes and returns the recording which can be replaced by the schedule, or returns
+         * {@code null} if there's none.
+         *
+         * @see InputTaskScheduler#getReplacableTask
+         */
+        private ScheduledRecording removeReplaceable(ScheduledRecording schedule) {
+            // Returns the recording with the following priority.
+            // 1. The recording with the lowest priority is returned.
+            // 2. If the priorities are the same, the recording which finishes early is returned.
+            // 3. If 1) and 2) are the same, the early created schedule is returned.
+            Entry candidate = peek(mCandidates);
+            if (candidate == null
+                    || schedule.getPriority() <= candidate.mSchedule.getPriority()) {
+                return null;
+            }
+            remove(candidate);
+            return candidate.mSchedule;
+        }
+
+        private long getEarliestEndTime() {
+            Entry earliest = peek(mEndings);
+            return earliest == null ? Long.MAX_VALUE : earliest.mSchedule.getEndTimeMs();
+        }
+
+        private void remove(Entry entry) {
+            if (!entry.mRemoved) {
+                entry.mRemoved = true;
+                --mSize;
             }
         }
-        return candidate;
-    }
 
-    private static long getEarliestEndTime(List<ScheduledRecording> recordings) {
-        long earliest = Long.MAX_VALUE;
-        for (ScheduledRecording recording : recordings) {
-            if (earliest > recording.getEndTimeMs()) {
-                earliest = recording.getEndTimeMs();
+        private static Entry peek(PriorityQueue<Entry> queue) {
+            while (!queue.isEmpty() && queue.peek().mRemoved) {
+                queue.poll();
             }
+            return queue.peek();
         }
-        return earliest;
     }
 
     /**
@@ -23,6 +23,8 @@ import android.media.tv.TvContract;
 import android.media.tv.TvContract.Programs;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
@@ -38,8 +40,10 @@ import com.android.tv.util.PermissionUtils;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
@@ -78,6 +82,10 @@ abstract public class EpisodicProgramLoadTask {
     private boolean mIgnoreChannelOption;
     private final ArrayList<SeriesRecording> mSeriesRecordings = new ArrayList<>();
     private AsyncProgramQueryTask mProgramQueryTask;
+    private UpcomingProgramIndex mProgramIndex;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Delivers the programs looked up in mProgramIndex.
+    private Runnable mIndexLookupRunnable;
 
     /**
      *
@@ -155,18 +163,33 @@ abstract public class EpisodicProgramLoadTask {
         return this;
     }
 
+    /**
+     * Sets the index of the upcoming programs. While the index is up to date, the programs are
+     * looked up in it instead of querying TvProvider, unless the current programs are loaded.
+     */
+    EpisodicProgramLoadTask setProgramIndex(UpcomingProgramIndex programIndex) {
+        SoftPreconditions.checkState(mProgramQueryTask == null, TAG,
+                "Can't change setting after execution.");
+        mProgramIndex = programIndex;
+        return this;
+    }
+
     /**
      * Executes the task.
      *
      * @see com.android.tv.util.AsyncDbTask#executeOnDbThread
      */
     public void execute() {
-        if (SoftPreconditions.checkState(mProgramQueryTask == null, TAG,
-                "Can't execute task: the task is already running.")) {
+        if (SoftPreconditions.checkState(mProgramQueryTask == null && mIndexLookupRunnable == null,
+                TAG, "Can't execute task: the task is already running.")) {
             mQueryAllChannels = mSeriesRecordings.size() > 1
                     || mSeriesRecordings.get(0).getChannelOption()
                             == SeriesRecording.OPTION_CHANNEL_ALL
                     || mIgnoreChannelOption;
+            if (mProgramIndex != null && mProgramIndex.isUpToDate() && !mLoadCurrentProgram) {
+                executeWithIndex();
+                return;
+            }
             mProgramQueryTask = createTask();
             mProgramQueryTask.executeOnDbThread();
         }
@@ -181,6 +204,16 @@ abstract public class EpisodicProgramLoadTask {
         if (mProgramQueryTask != null) {
             mProgramQueryTask.cancel(mayInterruptIfRunning);
         }
+        if (mIndexLookupRunnable != null) {
+            mHandler.removeCallbacks(mIndexLookupRunnable);
+            mIndexLookupRunnable = null;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onCancelled(null);
+                }
+            });
+        }
     }
 
     /**
@@ -211,6 +244,33 @@ abstract public class EpisodicProgramLoadTask {
         };
     }
 
+    // Matches the programs in the index in the same way as the query does, and delivers them
+    // asynchronously as the query task does.
+    private void executeWithIndex() {
+        Set<String> seriesIds = new HashSet<>();
+        for (SeriesRecording seriesRecording : mSeriesRecordings) {
+            seriesIds.add(seriesRecording.getSeriesId());
+        }
+        String title = mSeriesRecordings.size() == 1 ? mSeriesRecordings.get(0).getTitle() : null;
+        SeriesRecordingCursorFilter filter = new SeriesRecordingCursorFilter(mSeriesRecordings);
+        final List<Program> programs = new ArrayList<>();
+        for (Program program : mProgramIndex.getUpcomingPrograms(seriesIds)) {
+            // The query of a single series recording matches the title too.
+            if ((title == null || title.equals(program.getTitle())) && filter.filter(program)) {
+                programs.add(program);
+            }
+        }
+        Collections.sort(programs);
+        mIndexLookupRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mIndexLookupRunnable = null;
+                onPostExecute(programs);
+            }
+        };
+        mHandler.post(mIndexLookupRunnable);
+    }
+
     private SqlParams createSqlParams() {
         SqlParams sqlParams = new SqlParams();
         if (PermissionUtils.hasAccessAllEpg(mContext)) {
@@ -264,25 +324,36 @@ abstract public class EpisodicProgramLoadTask {
     /**
      * Filter the programs which match the series recording. The episodes which the schedules are
      * already created for are filtered out too.
+     * <p>
+     * The series recordings are indexed by the series ID, so that a program is matched only with
+     * the series recordings of its series.
      */
     private class SeriesRecordingCursorFilter implements CursorFilter {
         private final Set<Long> mDisallowedProgramIds = new HashSet<>();
         private final Set<ScheduledEpisode> mScheduledEpisodes = new HashSet<>();
+        private final Map<String, List<SeriesRecording>> mSeriesId2SeriesRecordings =
+                new HashMap<>();
 
         SeriesRecordingCursorFilter(List<SeriesRecording> seriesRecordings) {
             if (!mLoadDisallowedProgram) {
                 mDisallowedProgramIds.addAll(mDataManager.getDisallowedProgramIds());
             }
-            if (!mLoadScheduledEpisode) {
-                Set<Long> seriesRecordingIds = new HashSet<>();
-                for (SeriesRecording r : seriesRecordings) {
-                    seriesRecordingIds.add(r.getId());
+            for (SeriesRecording seriesRecording : seriesRecordings) {
+                List<SeriesRecording> seriesRecordingsForSeries =
+                        mSeriesId2SeriesRecordings.get(seriesRecording.getSeriesId());
+                if (seriesRecordingsForSeries == null) {
+                    seriesRecordingsForSeries = new ArrayList<>();
+                    mSeriesId2SeriesRecordings.put(seriesRecording.getSeriesId(),
+                            seriesRecordingsForSeries);
                 }
-                for (ScheduledRecording r : mDataManager.getAllScheduledRecordings()) {
-                    if (seriesRecordingIds.contains(r.getSeriesRecordingId())
-                            && r.getState() != ScheduledRecording.STATE_RECORDING_FAILED
-                            && r.getState() != ScheduledRecording.STATE_RECORDING_CLIPPED) {
-                        mScheduledEpisodes.add(new ScheduledEpisode(r));
+                seriesRecordingsForSeries.add(seriesRecording);
+                if (!mLoadScheduledEpisode) {
+                    for (ScheduledRecording r
+                            : mDataManager.getScheduledRecordings(seriesRecording.getId())) {
+                        if (r.getState() != ScheduledRecording.STATE_RECORDING_FAILED
+                                && r.getState() != ScheduledRecording.STATE_RECORDING_CLIPPED) {
+                            mScheduledEpisodes.add(new ScheduledEpisode(r));
+                        }
                     }
                 }
             }
@@ -295,8 +366,22 @@ abstract public class EpisodicProgramLoadTask {
                     && mDisallowedProgramIds.contains(c.getLong(PROGRAM_ID_INDEX))) {
                 return false;
             }
-            Program program = Program.fromCursor(c);
-            for (SeriesRecording seriesRecording : mSeriesRecordings) {
+            return filter(Program.fromCursor(c));
+        }
+
+        /**
+         * Same as {@link #filter(Cursor)}, for a program which is already made.
+         */
+        boolean filter(Program program) {
+            if (!mLoadDisallowedProgram && mDisallowedProgramIds.contains(program.getId())) {
+                return false;
+            }
+            List<SeriesRecording> seriesRecordings =
+                    mSeriesId2SeriesRecordings.get(program.getSeriesId());
+            if (seriesRecordings == null) {
+                return false;
+            }
+            for (SeriesRecording seriesRecording : seriesRecordings) {
                 boolean programMatches;
                 if (mIgnoreChannelOption) {
                     programMatches = seriesRecording.matchProgram(program,
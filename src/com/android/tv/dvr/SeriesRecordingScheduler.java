@@ -88,6 +88,7 @@ public class SeriesRecordingScheduler {
     private final List<FetchSeriesInfoTask> mFetchSeriesInfoTasks = new ArrayList<>();
     private final Set<String> mFetchedSeriesIds = new ArraySet<>();
     private final SharedPreferences mSharedPreferences;
+    private final UpcomingProgramIndex mProgramIndex;
     private boolean mStarted;
     private boolean mPaused;
     private final Set<Long> mPendingSeriesRecordings = new ArraySet<>();
@@ -98,6 +99,7 @@ public class SeriesRecordingScheduler {
     private final SeriesRecordingListener mSeriesRecordingListener = new SeriesRecordingListener() {
         @Override
         public void onSeriesRecordingAdded(SeriesRecording... seriesRecordings) {
+            updateProgramIndexState();
             for (SeriesRecording seriesRecording : seriesRecordings) {
                 executeFetchSeriesInfoTask(seriesRecording);
             }
@@ -115,6 +117,7 @@ public class SeriesRecordingScheduler {
                     iter.remove();
                 }
             }
+            updateProgramIndexState();
         }
 
         @Override
@@ -200,6 +203,7 @@ public class SeriesRecordingScheduler {
                 SharedPreferencesUtils.SHARED_PREF_SERIES_RECORDINGS, Context.MODE_PRIVATE);
         mFetchedSeriesIds.addAll(mSharedPreferences.getStringSet(KEY_FETCHED_SERIES_IDS,
                 Collections.emptySet()));
+        mProgramIndex = new UpcomingProgramIndex(mContext);
     }
 
     /**
@@ -215,6 +219,7 @@ public class SeriesRecordingScheduler {
         mStarted = true;
         mDataManager.addSeriesRecordingListener(mSeriesRecordingListener);
         mDataManager.addScheduledRecordingListener(mScheduledRecordingListener);
+        updateProgramIndexState();
         startFetchingSeriesInfo();
         updateSchedules(mDataManager.getSeriesRecordings());
     }
@@ -234,10 +239,21 @@ public class SeriesRecordingScheduler {
             task.cancel(true);
         }
         mScheduleTasks.clear();
+        mProgramIndex.stop();
         mDataManager.removeScheduledRecordingListener(mScheduledRecordingListener);
         mDataManager.removeSeriesRecordingListener(mSeriesRecordingListener);
     }
 
+    // The index keeps the upcoming episodic programs of all the channels, so it runs only while
+    // there is a series recording to match them with.
+    private void updateProgramIndexState() {
+        if (mStarted && !mDataManager.getSeriesRecordings().isEmpty()) {
+            mProgramIndex.start();
+        } else {
+            mProgramIndex.stop();
+        }
+    }
+
     private void startFetchingSeriesInfo() {
         for (SeriesRecording seriesRecording : mDataManager.getSeriesRecordings()) {
             if (!mFetchedSeriesIds.contains(seriesRecording.getSeriesId())) {
@@ -416,6 +432,9 @@ public class SeriesRecordingScheduler {
         }
         // Group programs by the episode.
         Map<ScheduledEpisode, List<Program>> programsForEpisodeMap = new HashMap<>();
+        // The programs which have been scheduled, looked up once per program rather than on every
+        // comparison below.
+        Set<Long> scheduledProgramIds = new HashSet<>();
         for (Program program : programs) {
             long seriesRecordingId = seriesRecordingIds.get(program.getSeriesId());
             if (TextUtils.isEmpty(program.getSeasonNumber())
@@ -424,6 +443,9 @@ public class SeriesRecordingScheduler {
                 result.get(seriesRecordingId).add(program);
                 continue;
             }
+            if (isProgramScheduled(dataManager, program)) {
+                scheduledProgramIds.add(program.getId());
+            }
             ScheduledEpisode episode = new ScheduledEpisode(seriesRecordingId,
                     program.getSeasonNumber(), program.getEpisodeNumber());
             List<Program> programsForEpisode = programsForEpisodeMap.get(episode);
@@ -440,8 +462,8 @@ public class SeriesRecordingScheduler {
                 @Override
                 public int compare(Program lhs, Program rhs) {
                     // Place the existing schedule first.
-                    boolean lhsScheduled = isProgramScheduled(dataManager, lhs);
-                    boolean rhsScheduled = isProgramScheduled(dataManager, rhs);
+                    boolean lhsScheduled = scheduledProgramIds.contains(lhs.getId());
+                    boolean rhsScheduled = scheduledProgramIds.contains(rhs.getId());
                     if (lhsScheduled && !rhsScheduled) {
                         return -1;
                     }
@@ -456,7 +478,7 @@ public class SeriesRecordingScheduler {
             // Add all the scheduled programs
             List<Program> programsForSeries = result.get(entry.getKey().seriesRecordingId);
             for (Program program : programsForEpisode) {
-                if (isProgramScheduled(dataManager, program)) {
+                if (scheduledProgramIds.contains(program.getId())) {
                     programsForSeries.add(program);
                     added = true;
                 } else if (!added) {
@@ -482,10 +504,14 @@ public class SeriesRecordingScheduler {
     /**
      * This works only for the existing series recordings. Do not use this task for the
      * "adding series recording" UI.
+     * <p>
+     * The programs are looked up in {@link UpcomingProgramIndex} while it's up to date, so that
+     * an update doesn't read the programs of all the channels from TvProvider.
      */
     private class SeriesRecordingUpdateTask extends EpisodicProgramLoadTask {
         SeriesRecordingUpdateTask(List<SeriesRecording> seriesRecordings) {
             super(mContext, seriesRecordings);
+            setProgramIndex(mProgramIndex);
         }
 
         @Override
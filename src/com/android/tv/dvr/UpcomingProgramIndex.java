@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.dvr;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.media.tv.TvContract.Programs;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.android.tv.data.Program;
+import com.android.tv.util.AsyncDbTask.AsyncQueryTask;
+import com.android.tv.util.PermissionUtils;
+import com.android.tv.util.TvProviderUriMatcher;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory index of the upcoming episodic programs in TvProvider by series ID, so that
+ * {@link SeriesRecordingScheduler} matches the programs of the series recordings without querying
+ * TvProvider on every update.
+ *
+ * <p>The upcoming programs which have series IDs are loaded once when the index starts. After
+ * that, the programs which TvProvider notifies of are queried again in batches and replaced in
+ * the index. The whole index is loaded again only when TvProvider notifies of a change of the
+ * program table without a program ID. The index is not up to date while it's being loaded or
+ * updated, and the callers should query TvProvider then.
+ */
+@MainThread
+@TargetApi(Build.VERSION_CODES.N)
+class UpcomingProgramIndex {
+    private static final String TAG = "UpcomingProgramIndex";
+    private static final boolean DEBUG = false;
+
+    private static final String PROGRAM_PREDICATE =
+            Programs.COLUMN_START_TIME_UTC_MILLIS + ">? AND "
+                    + Programs.COLUMN_RECORDING_PROHIBITED + "=0";
+
+    private final Context mContext;
+    private final Map<Long, Program> mPrograms = new HashMap<>();
+    private final Map<String, Set<Long>> mSeriesId2ProgramIds = new HashMap<>();
+    private final Set<Long> mProgramIdQueue = new LinkedHashSet<>();
+    private QueryProgramsTask mLoadTask;
+    private QueryProgramsTask mQueryProgramTask;
+    private boolean mStarted;
+    private boolean mLoaded;
+    private final ContentObserver mContentObserver = new ContentObserver(new Handler(
+            Looper.getMainLooper())) {
+        @SuppressLint("SwitchIntDef")
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            switch (TvProviderUriMatcher.match(uri)) {
+                case TvProviderUriMatcher.MATCH_PROGRAM:
+                    if (DEBUG) Log.d(TAG, "onProgramsUpdated");
+                    load();
+                    break;
+                case TvProviderUriMatcher.MATCH_PROGRAM_ID:
+                    if (DEBUG) {
+                        Log.d(TAG, "onProgramUpdated: programId=" + ContentUris.parseId(uri));
+                    }
+                    mProgramIdQueue.add(ContentUris.parseId(uri));
+                    startNextUpdateIfNeeded();
+                    break;
+            }
+        }
+    };
+
+    UpcomingProgramIndex(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Starts loading and updating the index. Without the permission to read all the programs, the
+     * index is never up to date.
+     */
+    void start() {
+        if (mStarted || !PermissionUtils.hasAccessAllEpg(mContext)) {
+            return;
+        }
+        mStarted = true;
+        mContext.getContentResolver().registerContentObserver(Programs.CONTENT_URI, true,
+                mContentObserver);
+        load();
+    }
+
+    /**
+     * Stops updating the index and clears it.
+     */
+    void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mContext.getContentResolver().unregisterContentObserver(mContentObserver);
+        cancelTasks();
+        clear();
+        mLoaded = false;
+    }
+
+    /**
+     * Returns whether the index has all the upcoming episodic programs in TvProvider.
+     */
+    boolean isUpToDate() {
+        return mLoaded && mLoadTask == null && mQueryProgramTask == null
+                && mProgramIdQueue.isEmpty();
+    }
+
+    /**
+     * Returns the programs of the series which start after the current time. The programs whose
+     * recording is prohibited are not included.
+     */
+    List<Program> getUpcomingPrograms(Collection<String> seriesIds) {
+        return getUpcomingPrograms(seriesIds, System.currentTimeMillis());
+    }
+
+    @VisibleForTesting
+    List<Program> getUpcomingPrograms(Collection<String> seriesIds, long currentTimeMs) {
+        List<Program> result = new ArrayList<>();
+        for (String seriesId : seriesIds) {
+            Set<Long> programIds = mSeriesId2ProgramIds.get(seriesId);
+            if (programIds == null) {
+                continue;
+            }
+            for (Iterator<Long> iter = programIds.iterator(); iter.hasNext(); ) {
+                Program program = mPrograms.get(iter.next());
+                if (program.getStartTimeUtcMillis() > currentTimeMs) {
+                    result.add(program);
+                } else {
+                    // The program has started. Drops it from the index.
+                    iter.remove();
+                    mPrograms.remove(program.getId());
+                }
+            }
+            if (programIds.isEmpty()) {
+                mSeriesId2ProgramIds.remove(seriesId);
+            }
+        }
+        return result;
+    }
+
+    private void load() {
+        cancelTasks();
+        // The programs in the queue are loaded too.
+        mProgramIdQueue.clear();
+        mLoadTask = new QueryProgramsTask(null);
+        mLoadTask.executeOnDbThread();
+    }
+
+    private void cancelTasks() {
+        if (mLoadTask != null) {
+            mLoadTask.cancel(true);
+            mLoadTask = null;
+        }
+        if (mQueryProgramTask != null) {
+            mQueryProgramTask.cancel(true);
+            mQueryProgramTask = null;
+        }
+    }
+
+    private void startNextUpdateIfNeeded() {
+        if (!mStarted || mLoadTask != null || mQueryProgramTask != null
+                || mProgramIdQueue.isEmpty()) {
+            return;
+        }
+        List<Long> programIds = new ArrayList<>();
+        for (Iterator<Long> iter = mProgramIdQueue.iterator();
+                iter.hasNext() && programIds.size() < DvrDbSync.MAX_PROGRAM_QUERY_BATCH_SIZE; ) {
+            programIds.add(iter.next());
+            iter.remove();
+        }
+        if (DEBUG) Log.d(TAG, "Program IDs dequeued: " + programIds);
+        mQueryProgramTask = new QueryProgramsTask(programIds);
+        mQueryProgramTask.executeOnDbThread();
+    }
+
+    /**
+     * Replaces the index with the loaded programs.
+     */
+    @VisibleForTesting
+    void handleProgramsLoaded(List<Program> programs) {
+        clear();
+        for (Program program : programs) {
+            addProgram(program);
+        }
+        mLoaded = true;
+    }
+
+    /**
+     * Replaces the programs of the IDs in the index with the queried programs. The programs which
+     * are not in {@code programs} are regarded as removed.
+     */
+    @VisibleForTesting
+    void handleProgramsUpdated(List<Long> programIds, List<Program> programs) {
+        for (long programId : programIds) {
+            removeProgram(programId);
+        }
+        long currentTimeMs = System.currentTimeMillis();
+        for (Program program : programs) {
+            if (program.getSeriesId() != null && !program.isRecordingProhibited()
+                    && program.getStartTimeUtcMillis() > currentTimeMs) {
+                addProgram(program);
+            }
+        }
+    }
+
+    private void addProgram(Program program) {
+        mPrograms.put(program.getId(), program);
+        Set<Long> programIds = mSeriesId2ProgramIds.get(program.getSeriesId());
+        if (programIds == null) {
+            programIds = new HashSet<>();
+            mSeriesId2ProgramIds.put(program.getSeriesId(), programIds);
+        }
+        programIds.add(program.getId());
+    }
+
+    private void removeProgram(long programId) {
+        Program program = mPrograms.remove(programId);
+        if (program == null) {
+            return;
+        }
+        Set<Long> programIds = mSeriesId2ProgramIds.get(program.getSeriesId());
+        programIds.remove(programId);
+        if (programIds.isEmpty()) {
+            mSeriesId2ProgramIds.remove(program.getSeriesId());
+        }
+    }
+
+    private void clear() {
+        mPrograms.clear();
+        mSeriesId2ProgramIds.clear();
+    }
+
+    /**
+     * Queries the upcoming episodic programs, or the programs of the IDs if they are given. Only
+     * the episodic programs are made from the cursor.
+     */
+    private class QueryProgramsTask extends AsyncQueryTask<List<Program>> {
+        private final List<Long> mProgramIds;
+
+        QueryProgramsTask(List<Long> programIds) {
+            super(mContext.getContentResolver(), Programs.CONTENT_URI, Program.PROJECTION,
+                    programIds == null ? PROGRAM_PREDICATE
+                            : DvrDbSync.buildIdSelection(programIds.size()),
+                    programIds == null ? new String[] {String.valueOf(System.currentTimeMillis())}
+                            : DvrDbSync.toSelectionArgs(programIds), null);
+            mProgramIds = programIds;
+        }
+
+        @Override
+        protected List<Program> onQuery(Cursor c) {
+            List<Program> programs = new ArrayList<>();
+            while (c.moveToNext()) {
+                if (isCancelled()) {
+                    return null;
+                }
+                Program program = Program.fromCursor(c);
+                if (program.getSeriesId() != null) {
+                    programs.add(program);
+                }
+            }
+            return programs;
+        }
+
+        @Override
+        protected void onCancelled(List<Program> programs) {
+            if (mLoadTask == this) {
+                mLoadTask = null;
+            }
+            if (mQueryProgramTask == this) {
+                mQueryProgramTask = null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(List<Program> programs) {
+            if (mProgramIds == null) {
+                if (mLoadTask == this) {
+                    mLoadTask = null;
+                }
+                if (programs == null) {
+                    Log.w(TAG, "Failed to load the programs");
+                    clear();
+                    mLoaded = false;
+                } else {
+                    handleProgramsLoaded(programs);
+                }
+            } else {
+                if (mQueryProgramTask == this) {
+                    mQueryProgramTask = null;
+                }
+                if (programs == null) {
+                    // The index misses the update. Loads it again.
+                    Log.w(TAG, "Failed to query the programs: " + mProgramIds);
+                    load();
+                    return;
+                }
+                handleProgramsUpdated(mProgramIds, programs);
+            }
+            startNextUpdateIfNeeded();
+        }
+    }
+}
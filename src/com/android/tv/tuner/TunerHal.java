@@ -23,6 +23,7 @@ import android.util.Log;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /**
@@ -54,14 +55,13 @@ public abstract class TunerHal implements AutoCloseable {
     protected static final int DEFAULT_VSB_TUNE_TIMEOUT_MS = 2000;
     protected static final int DEFAULT_QAM_TUNE_TIMEOUT_MS = 4000; // Some device takes time for
                                                                    // QAM256 tuning.
+    // The time that a read of TS frames blocks for at most while no frame arrives. It is the
+    // timeout of the poll of the DVR device in the native code.
+    public static final int READ_TS_STREAM_TIMEOUT_MS = 100;
     private boolean mIsStreaming;
     private int mFrequency;
     private String mModulation;
 
-    static {
-        System.loadLibrary("tunertvinput_jni");
-    }
-
     /**
      * Creates a TunerHal instance.
      * @param context context for creating the TunerHal instance
@@ -233,6 +233,35 @@ public abstract class TunerHal implements AutoCloseable {
 
     protected native int nativeWriteInBuffer(long deviceId, byte[] javaBuffer, int javaBufferSize);
 
+    /**
+     * Same as {@link #readTsStream(byte[], int)}, but the native code reads the frames directly
+     * in the given buffer without copying them through a Java array. It blocks until new frames
+     * arrive, for {@link #READ_TS_STREAM_TIMEOUT_MS} at most.
+     *
+     * @param buffer a direct buffer to write the frames in from its position up to its limit. Its
+     *            position is advanced by the amount of bytes written.
+     * @return the amount of bytes written in the buffer, or a negative value on an error, e.g. when
+     *         the device is not open. Note that this value could be 0 if no new frames have been
+     *         obtained until the timeout.
+     */
+    public synchronized int readTsStream(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("The buffer should be direct");
+        }
+        if (!isDeviceOpen()) {
+            return -1;
+        }
+        int bytesWritten = nativeReadTsStream(getDeviceId(), buffer, buffer.position(),
+                buffer.remaining());
+        if (bytesWritten > 0) {
+            buffer.position(buffer.position() + bytesWritten);
+        }
+        return bytesWritten;
+    }
+
+    protected native int nativeReadTsStream(long deviceId, ByteBuffer buffer, int offset,
+            int size);
+
     /**
      * Opens Linux DVB frontend device. This method is called from native JNI and used only for
      * UsbTunerHal.
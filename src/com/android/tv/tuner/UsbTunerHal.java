@@ -37,6 +37,12 @@ public class UsbTunerHal extends TunerHal {
     private final DvbDeviceAccessor mDvbDeviceAccessor;
     private DvbDeviceInfoWrapper mDvbDeviceInfo;
 
+    // The native methods of TunerHal are implemented by this library. It's loaded by the device
+    // backed subclass, so that a TunerHal which doesn't use them can run without it.
+    static {
+        System.loadLibrary("tunertvinput_jni");
+    }
+
     protected UsbTunerHal(Context context) {
         super(context);
         mDvbDeviceAccessor = new DvbDeviceAccessor(context);
@@ -558,6 +558,26 @@ public class PsipData {
             return mDescription;
         }
 
+        /**
+         * Returns a copy of this item with the given description, so that an item which may be
+         * in use by another thread is not modified.
+         */
+        public EitItem withDescription(String description) {
+            return copy(description, mHasCaptionTrack);
+        }
+
+        /**
+         * Returns a copy of this item with the given description and the given caption track
+         * mark, so that an item which may be in use by another thread is not modified.
+         */
+        public EitItem copy(String description, boolean hasCaptionTrack) {
+            EitItem item = new EitItem(mProgramId, mEventId, mTitleText, mStartTime,
+                    mLengthInSecond, mContentRating, mAudioTracks, mCaptionTracks,
+                    mBroadcastGenre, mCanonicalGenre, description);
+            item.mHasCaptionTrack = hasCaptionTrack;
+            return item;
+        }
+
         public long getStartTime() {
             return mStartTime;
         }
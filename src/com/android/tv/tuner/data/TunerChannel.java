@@ -235,6 +235,14 @@ public class TunerChannel implements Comparable<TunerChannel>, PsipData.TvTracks
         return mProto.pcrPid;
     }
 
+    public int getPmtPid() {
+        return mProto.pmtPid;
+    }
+
+    public void setPmtPid(int pmtPid) {
+        mProto.pmtPid = pmtPid;
+    }
+
     public int getType() {
         return mProto.type;
     }
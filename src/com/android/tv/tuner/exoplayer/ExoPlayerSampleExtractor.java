@@ -22,7 +22,6 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.os.SystemClock;
 
 import com.google.android.exoplayer.C;
 import com.google.android.exoplayer.MediaFormat;
@@ -99,7 +98,7 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
             mSampleBuffer = new RecordingSampleBuffer(bufferManager, bufferListener, false,
                     RecordingSampleBuffer.BUFFER_REASON_RECORDING);
         } else {
-            if (bufferManager == null || bufferManager.isDisabled()) {
+            if (bufferManager == null) {
                 mSampleBuffer = new SimpleSampleBuffer(bufferListener);
             } else {
                 mSampleBuffer = new RecordingSampleBuffer(bufferManager, bufferListener, true,
@@ -123,6 +122,9 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
         private final SampleSource mSampleSource;
         private SampleSource.SampleSourceReader mSampleSourceReader;
         private boolean[] mTrackMetEos;
+        // The samples which are read into next for each track.
+        private SampleHolder[] mSamples;
+        private int[] mLastSampleSizes;
         private boolean mMetEos = false;
         private long mCurrentPosition;
 
@@ -144,13 +146,11 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                     return true;
                 case MSG_FETCH_SAMPLES:
                     boolean didSomething = false;
-                    SampleHolder sample = new SampleHolder(
-                            SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
                     ConditionVariable conditionVariable = new ConditionVariable();
                     int trackCount = mSampleSourceReader.getTrackCount();
                     for (int i = 0; i < trackCount; ++i) {
                         if (!mTrackMetEos[i] && SampleSource.NOTHING_READ
-                                != fetchSample(i, sample, conditionVariable)) {
+                                != fetchSample(i, conditionVariable)) {
                             if (mMetEos) {
                                 // If mMetEos was on during fetchSample() due to an error,
                                 // fetching from other tracks is not necessary.
@@ -200,6 +200,8 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
             if (mTrackFormats == null) {
                 int trackCount = mSampleSourceReader.getTrackCount();
                 mTrackMetEos = new boolean[trackCount];
+                mSamples = new SampleHolder[trackCount];
+                mLastSampleSizes = new int[trackCount];
                 List<MediaFormat> trackFormats = new ArrayList<>();
                 for (int i = 0; i < trackCount; i++) {
                     trackFormats.add(mSampleSourceReader.getFormat(i));
@@ -224,14 +226,21 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
             return true;
         }
 
-        private int fetchSample(int track, SampleHolder sample,
-                ConditionVariable conditionVariable) {
+        private int fetchSample(int track, ConditionVariable conditionVariable) {
             mSampleSourceReader.continueBuffering(track, mCurrentPosition);
 
             MediaFormatHolder formatHolder = new MediaFormatHolder();
+            SampleHolder sample = mSamples[track];
+            if (sample == null) {
+                sample = mSampleBuffer.acquireSample(mLastSampleSizes[track]);
+                mSamples[track] = sample;
+            }
             sample.clearData();
             int ret = mSampleSourceReader.readData(track, mCurrentPosition, formatHolder, sample);
             if (ret == SampleSource.SAMPLE_READ) {
+                // The sample is handed over to the buffer without a copy.
+                mSamples[track] = null;
+                mLastSampleSizes[track] = sample.size;
                 if (mCurrentPosition < sample.timeUs) {
                     mCurrentPosition = sample.timeUs;
                 }
@@ -268,14 +277,7 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
 
     private void queueSample(int index, SampleHolder sample, ConditionVariable conditionVariable)
             throws IOException {
-        long writeStartTimeNs = SystemClock.elapsedRealtimeNanos();
         mSampleBuffer.writeSample(index, sample, conditionVariable);
-
-        // Checks whether the storage has enough bandwidth for recording samples.
-        if (mSampleBuffer.isWriteSpeedSlow(sample.size,
-                SystemClock.elapsedRealtimeNanos() - writeStartTimeNs)) {
-            mSampleBuffer.handleWriteSpeedSlow();
-        }
     }
 
     @Override
@@ -337,6 +339,11 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
         mSampleBuffer.seekTo(positionUs);
     }
 
+    @Override
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        mSampleBuffer.setKeyFrameOnly(keyFrameOnly);
+    }
+
     @Override
     public int readSample(int track, SampleHolder sampleHolder) {
         return mSampleBuffer.readSample(track, sampleHolder);
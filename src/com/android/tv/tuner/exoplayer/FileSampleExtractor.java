@@ -125,6 +125,11 @@ public class FileSampleExtractor implements SampleExtractor{
         mSampleBuffer.seekTo(positionUs);
     }
 
+    @Override
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        mSampleBuffer.setKeyFrameOnly(keyFrameOnly);
+    }
+
     @Override
     public int readSample(int track, SampleHolder sampleHolder) {
         return mSampleBuffer.readSample(track, sampleHolder);
@@ -120,6 +120,7 @@ public class MpegTsPlayer implements ExoPlayer.Listener, MediaCodecVideoTrackRen
 
     private static final float MAX_SMOOTH_TRICKPLAY_SPEED = 9.0f;
     private static final float MIN_SMOOTH_TRICKPLAY_SPEED = 0.1f;
+    private static final float MIN_KEY_FRAME_ONLY_TRICKPLAY_SPEED = 4.0f;
 
     private final RendererBuilder mRendererBuilder;
     private final ExoPlayer mPlayer;
@@ -297,6 +298,24 @@ public class MpegTsPlayer implements ExoPlayer.Listener, MediaCodecVideoTrackRen
                 && playbackSpeed < MAX_SMOOTH_TRICKPLAY_SPEED;
     }
 
+    /**
+     * Returns true, if the trickplay by seek can read key frames only at the speed.
+     */
+    public boolean supportKeyFrameOnlyTrickplay(float playbackSpeed) {
+        return Math.abs(playbackSpeed) >= MIN_KEY_FRAME_ONLY_TRICKPLAY_SPEED;
+    }
+
+    /**
+     * Sets whether only key frames of the video track are read. Audio is not read at all while
+     * it is set, so it should be used only for the trickplay by seek.
+     */
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        if (mVideoRenderer instanceof MpegTsVideoTrackRenderer) {
+            mPlayer.sendMessage(mVideoRenderer, MpegTsVideoTrackRenderer.MSG_SET_KEY_FRAME_ONLY,
+                    keyFrameOnly);
+        }
+    }
+
     /**
      * Starts trickplay. It'll be reset, if {@link #seekTo} or {@link #setPlayWhenReady} is called.
      */
@@ -167,6 +167,11 @@ public final class MpegTsSampleExtractor implements SampleExtractor {
         mPendingCcSamples.clear();
     }
 
+    @Override
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        mSampleExtractor.setKeyFrameOnly(keyFrameOnly);
+    }
+
     @Override
     public void getTrackMediaFormat(int track, MediaFormatHolder outMediaFormatHolder) {
         if (track != mCea708TextTrackIndex) {
@@ -165,6 +165,13 @@ public final class MpegTsSampleSource implements SampleSource, SampleSourceReade
         seekToUsInternal(positionUs, false);
     }
 
+    /**
+     * Sets whether only key frames of the video track are read, for the high-speed trickplay.
+     */
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        mSampleExtractor.setKeyFrameOnly(keyFrameOnly);
+    }
+
     @Override
     public long getBufferedPositionUs() {
         Assertions.checkState(mPrepared);
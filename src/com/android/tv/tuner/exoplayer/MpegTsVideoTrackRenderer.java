@@ -23,6 +23,8 @@ import java.lang.reflect.Field;
 public class MpegTsVideoTrackRenderer extends MediaCodecVideoTrackRenderer {
     private static final String TAG = "MpegTsVideoTrackRender";
 
+    public static final int MSG_SET_KEY_FRAME_ONLY = 10000;
+
     private static final int VIDEO_PLAYBACK_DEADLINE_IN_MS = 5000;
     // If DROPPED_FRAMES_NOTIFICATION_THRESHOLD frames are consecutively dropped, it'll be notified.
     private static final int DROPPED_FRAMES_NOTIFICATION_THRESHOLD = 10;
@@ -31,6 +33,7 @@ public class MpegTsVideoTrackRenderer extends MediaCodecVideoTrackRenderer {
     private static Field sRenderedFirstFrameField;
 
     private final boolean mIsSwCodecEnabled;
+    private final MpegTsSampleSource mSampleSource;
     private boolean mCodecIsSwPreferred;
     private boolean mSetRenderedFirstFrame;
 
@@ -51,6 +54,7 @@ public class MpegTsVideoTrackRenderer extends MediaCodecVideoTrackRenderer {
                 MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, VIDEO_PLAYBACK_DEADLINE_IN_MS, handler,
                 listener, DROPPED_FRAMES_NOTIFICATION_THRESHOLD);
         mIsSwCodecEnabled = CommonFeatures.USE_SW_CODEC_FOR_SD.isEnabled(context);
+        mSampleSource = source instanceof MpegTsSampleSource ? (MpegTsSampleSource) source : null;
     }
 
     @Override
@@ -88,6 +92,17 @@ public class MpegTsVideoTrackRenderer extends MediaCodecVideoTrackRenderer {
         }
     }
 
+    @Override
+    public void handleMessage(int messageType, Object message) throws ExoPlaybackException {
+        if (messageType == MSG_SET_KEY_FRAME_ONLY) {
+            if (mSampleSource != null) {
+                mSampleSource.setKeyFrameOnly((Boolean) message);
+            }
+        } else {
+            super.handleMessage(messageType, message);
+        }
+    }
+
     private void setRenderedFirstFrame(boolean renderedFirstFrame) {
         if (sRenderedFirstFrameField != null) {
             try {
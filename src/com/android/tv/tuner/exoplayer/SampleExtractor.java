@@ -85,6 +85,14 @@ public interface SampleExtractor {
     */
     void seekTo(long positionUs);
 
+    /**
+    * Sets whether only key frames of the video track are read. This makes the seeks of the
+    * high-speed trickplay cheap, since the samples which will not be rendered are not read.
+    *
+    * @param keyFrameOnly {@code true} to read key frames only
+    */
+    void setKeyFrameOnly(boolean keyFrameOnly);
+
     /** Stores the {@link MediaFormat} of {@code track}. */
     void getTrackMediaFormat(int track, MediaFormatHolder outMediaFormatHolder);
 
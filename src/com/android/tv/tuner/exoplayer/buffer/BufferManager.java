@@ -32,35 +32,45 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.PriorityQueue;
 
 /**
  * Manages {@link SampleChunk} objects.
  * <p>
- * The buffer manager can be disabled, while running, if the write throughput to the associated
- * external storage is detected to be lower than a threshold {@code MINIMUM_DISK_WRITE_SPEED_MBPS}".
- * This leads to restarting playback flow.
+ * The write throughput to the associated external storage is tracked by
+ * {@link WriteThroughputGovernor}, which is shared with the other buffer managers on the same
+ * storage device. When it gets low, the buffer manager degrades gracefully by creating coarser
+ * chunks and by shrinking the timeshift window, instead of being disabled.
  */
 public class BufferManager {
     private static final String TAG = "BufferManager";
     private static final boolean DEBUG = false;
 
-    // Constants for the disk write speed checking
-    private static final long MINIMUM_WRITE_SIZE_FOR_SPEED_CHECK =
-            10L * 1024 * 1024;  // Checks for every 10M disk write
-    private static final int MINIMUM_SAMPLE_SIZE_FOR_SPEED_CHECK = 15 * 1024;
-    private static final int MAXIMUM_SPEED_CHECK_COUNT = 5;  // Checks only 5 times
-    private static final int MINIMUM_DISK_WRITE_SPEED_MBPS = 3;  // 3 Megabytes per second
+    // Chunks are longer by this ratio under write pressure to reduce the file creations.
+    private static final int COARSE_CHUNK_DURATION_RATIO = 4;
+    // The timeshift window is shrunk by this ratio under high write pressure.
+    private static final int HIGH_PRESSURE_BUFFER_SHRINK_RATIO = 4;
 
     private final SampleChunk.SampleChunkCreator mSampleChunkCreator;
     // Maps from track name to a map which maps from starting position to {@link SampleChunk}.
-    private final Map<String, SortedMap<Long, SampleChunk>> mChunkMap = new ArrayMap<>();
+    private final Map<String, ChunkIndex> mChunkMap = new ArrayMap<>();
+    // The tracks which have chunks, ordered by the creation time of the earliest chunk of each.
+    private final PriorityQueue<ChunkIndex> mEvictionQueue = new PriorityQueue<>(4,
+            new Comparator<ChunkIndex>() {
+                @Override
+                public int compare(ChunkIndex lhs, ChunkIndex rhs) {
+                    return Long.compare(lhs.getFirst().getCreatedTimeMs(),
+                            rhs.getFirst().getCreatedTimeMs());
+                }
+            });
     private final Map<String, Long> mStartPositionMap = new ArrayMap<>();
+    // Maps from track name to the index of key frames of the track.
+    private final Map<String, KeyFrameIndex> mKeyFrameIndexMap = new ArrayMap<>();
     private final Map<String, ChunkEvictedListener> mEvictListeners = new ArrayMap<>();
     private final StorageManager mStorageManager;
     private long mBufferSize = 0;
@@ -78,15 +88,17 @@ public class BufferManager {
     };
 
     private volatile boolean mClosed = false;
-    private int mMinSampleSizeForSpeedCheck = MINIMUM_SAMPLE_SIZE_FOR_SPEED_CHECK;
-    private long mTotalWriteSize;
-    private long mTotalWriteTimeNs;
-    private float mWriteBandwidth = 0.0f;
-    private volatile int mSpeedCheckCount;
-    private boolean mDisabled = false;
+    private final WriteThroughputGovernor mWriteGovernor;
 
     public interface ChunkEvictedListener {
-        void onChunkEvicted(String id, long createdTimeMs);
+        /**
+         * Called when the earliest chunk of a track is evicted.
+         *
+         * @param id the track of the evicted chunk
+         * @param createdTimeMs the time when the evicted chunk was created
+         * @param durationUs the duration which the evicted chunk covered
+         */
+        void onChunkEvicted(String id, long createdTimeMs, long durationUs);
     }
     /**
      * Handles I/O
@@ -116,26 +128,24 @@ public class BufferManager {
         void deselectTrack(int index);
 
         /**
-         * Writes sample to storage.
+         * Acquires an empty sample which is filled by the caller and written by
+         * {@link #writeSample}.
          *
-         * @param index track index
-         * @param sample sample to write at storage
-         * @param conditionVariable notifies the completion of writing sample.
-         * @throws IOException
+         * @param size expected size of the sample data. The sample can grow larger than this.
          */
-        void writeSample(int index, SampleHolder sample, ConditionVariable conditionVariable)
-                throws IOException;
-
-        /**
-         * Checks whether storage write speed is slow.
-         */
-        boolean isWriteSpeedSlow(int sampleSize, long writeDurationNs);
+        SampleHolder acquireSample(int size);
 
         /**
-         * Handles when write speed is slow.
+         * Writes sample to storage. The buffer takes over the sample and recycles it once it is
+         * written, so the caller should not use the sample after this call.
+         *
+         * @param index track index
+         * @param sample sample to write at storage, which is acquired by {@link #acquireSample}
+         * @param conditionVariable notifies when the next sample can be written.
          * @throws IOException
          */
-        void handleWriteSpeedSlow() throws IOException;
+        void writeSample(int index, SampleHolder sample, ConditionVariable conditionVariable)
+                throws IOException;
 
         /**
          * Sets the flag when EoS was reached.
@@ -161,6 +171,11 @@ public class BufferManager {
          */
         long getBufferedPositionUs();
 
+        /**
+         * Sets whether only key frames of video tracks are read for the high-speed trickplay.
+         */
+        void setKeyFrameOnly(boolean keyFrameOnly);
+
         /**
          * Returns whether there is buffered data.
          */
@@ -252,8 +267,26 @@ public class BufferManager {
          * @param index {@link SampleChunk} container
          * @throws IOException
          */
-        void writeIndexFile(String trackName, SortedMap<Long, SampleChunk> index)
+        void writeIndexFile(String trackName, ChunkIndex index)
                 throws IOException;
+
+        /**
+         * Reads key frame indexes of the specified track from storage.
+         *
+         * @param trackId track name
+         * @return key frame indexes of the track, which is empty if there are none stored
+         * @throws IOException
+         */
+        KeyFrameIndex readKeyFrameIndexFile(String trackId) throws IOException;
+
+        /**
+         * Writes key frame index file to storage.
+         *
+         * @param trackName track name
+         * @param index key frame indexes of the track
+         * @throws IOException
+         */
+        void writeKeyFrameIndexFile(String trackName, KeyFrameIndex index) throws IOException;
     }
 
     private static class EvictChunkQueueMap {
@@ -307,6 +340,7 @@ public class BufferManager {
             SampleChunk.SampleChunkCreator sampleChunkCreator) {
         mStorageManager = storageManager;
         mSampleChunkCreator = sampleChunkCreator;
+        mWriteGovernor = WriteThroughputGovernor.forStorage(storageManager.getBufferDir());
         clearBuffer(true);
     }
 
@@ -320,6 +354,8 @@ public class BufferManager {
 
     private void clearBuffer(boolean deleteFiles) {
         mChunkMap.clear();
+        mEvictionQueue.clear();
+        mKeyFrameIndexMap.clear();
         if (deleteFiles) {
             mStorageManager.clearStorage();
         }
@@ -344,17 +380,17 @@ public class BufferManager {
         if (!maybeEvictChunk()) {
             throw new IOException("Not enough storage space");
         }
-        SortedMap<Long, SampleChunk> map = mChunkMap.get(id);
-        if (map == null) {
-            map = new TreeMap<>();
-            mChunkMap.put(id, map);
+        ChunkIndex chunks = mChunkMap.get(id);
+        if (chunks == null) {
+            chunks = new ChunkIndex(id);
+            mChunkMap.put(id, chunks);
             mStartPositionMap.put(id, positionUs);
             mPendingDelete.init(id);
         }
         File file = new File(mStorageManager.getBufferDir(), getFileName(id, positionUs));
         SampleChunk sampleChunk = mSampleChunkCreator.createSampleChunk(samplePool, file,
                 positionUs, mChunkCallback);
-        map.put(positionUs, sampleChunk);
+        addChunk(chunks, sampleChunk);
         return sampleChunk;
     }
 
@@ -369,10 +405,10 @@ public class BufferManager {
         ArrayList<Long> keyPositions = mStorageManager.readIndexFile(trackId);
         long startPositionUs = keyPositions.size() > 0 ? keyPositions.get(0) : 0;
 
-        SortedMap<Long, SampleChunk> map = mChunkMap.get(trackId);
-        if (map == null) {
-            map = new TreeMap<>();
-            mChunkMap.put(trackId, map);
+        ChunkIndex chunks = mChunkMap.get(trackId);
+        if (chunks == null) {
+            chunks = new ChunkIndex(trackId);
+            mChunkMap.put(trackId, chunks);
             mStartPositionMap.put(trackId, startPositionUs);
             mPendingDelete.init(trackId);
         }
@@ -381,8 +417,9 @@ public class BufferManager {
             chunk = mSampleChunkCreator.loadSampleChunkFromFile(samplePool,
                     mStorageManager.getBufferDir(), getFileName(trackId, positionUs), positionUs,
                     mChunkCallback, chunk);
-            map.put(positionUs, chunk);
+            addChunk(chunks, chunk);
         }
+        mKeyFrameIndexMap.put(trackId, mStorageManager.readKeyFrameIndexFile(trackId));
     }
 
     /**
@@ -393,18 +430,58 @@ public class BufferManager {
      * @return returns the found {@link SampleChunk}.
      */
     public SampleChunk getReadFile(String id, long positionUs) {
-        SortedMap<Long, SampleChunk> map = mChunkMap.get(id);
-        if (map == null) {
+        ChunkIndex chunks = mChunkMap.get(id);
+        if (chunks == null) {
             return null;
         }
-        SampleChunk sampleChunk;
-        SortedMap<Long, SampleChunk> headMap = map.headMap(positionUs + 1);
-        if (!headMap.isEmpty()) {
-            sampleChunk = headMap.get(headMap.lastKey());
-        } else {
-            sampleChunk = map.get(map.firstKey());
+        return chunks.floor(positionUs);
+    }
+
+    /**
+     * Adds a key frame of the specified track to the key frame index.
+     *
+     * @param id the name of the track
+     * @param timeUs the presentation time of the key frame
+     * @param chunkPositionUs the start position of the {@link SampleChunk} of the key frame
+     * @param offset the offset of the key frame in the {@link SampleChunk}
+     */
+    public void addKeyFrame(String id, long timeUs, long chunkPositionUs, long offset) {
+        KeyFrameIndex index = mKeyFrameIndexMap.get(id);
+        if (index == null) {
+            index = new KeyFrameIndex();
+            mKeyFrameIndexMap.put(id, index);
+        }
+        index.add(timeUs, chunkPositionUs, offset);
+    }
+
+    /**
+     * Returns the offset of the last key frame which is not later than the specified position
+     * in the {@link SampleChunk}. Returns {@code 0}, which is the start of the chunk,
+     * if there is no such key frame in the chunk.
+     *
+     * @param id the name of the track
+     * @param chunk the {@link SampleChunk} which is found by {@link #getReadFile}
+     * @param positionUs the position
+     */
+    public long getKeyFrameOffset(String id, SampleChunk chunk, long positionUs) {
+        KeyFrameIndex index = mKeyFrameIndexMap.get(id);
+        if (index == null) {
+            return 0;
         }
-        return sampleChunk;
+        int keyFrame = index.findKeyFrame(positionUs);
+        if (keyFrame < 0 || index.getChunkPositionUs(keyFrame) != chunk.getStartPositionUs()) {
+            return 0;
+        }
+        return index.getOffset(keyFrame);
+    }
+
+    /**
+     * Returns the key frame index of the specified track, or {@code null} if there is none.
+     *
+     * @param id the name of the track
+     */
+    public KeyFrameIndex getKeyFrameIndex(String id) {
+        return mKeyFrameIndexMap.get(id);
     }
 
     /**
@@ -433,33 +510,31 @@ public class BufferManager {
 
     private boolean maybeEvictChunk() {
         long pendingDelete = mPendingDelete.getSize();
-        while (mStorageManager.reachedStorageMax(mBufferSize, pendingDelete)
+        while (reachedStorageMax(pendingDelete)
                 || !mStorageManager.hasEnoughBuffer(pendingDelete)) {
             if (mStorageManager.isPersistent()) {
                 // Since chunks are persistent, we cannot evict chunks.
                 return false;
             }
-            SortedMap<Long, SampleChunk> earliestChunkMap = null;
-            SampleChunk earliestChunk = null;
-            String earliestChunkId = null;
-            for (Map.Entry<String, SortedMap<Long, SampleChunk>> entry : mChunkMap.entrySet()) {
-                SortedMap<Long, SampleChunk> map = entry.getValue();
-                if (map.isEmpty()) {
-                    continue;
-                }
-                SampleChunk chunk = map.get(map.firstKey());
-                if (earliestChunk == null
-                        || chunk.getCreatedTimeMs() < earliestChunk.getCreatedTimeMs()) {
-                    earliestChunkMap = map;
-                    earliestChunk = chunk;
-                    earliestChunkId = entry.getKey();
-                }
-            }
-            if (earliestChunk == null) {
+            ChunkIndex earliestChunks = mEvictionQueue.poll();
+            if (earliestChunks == null) {
                 break;
             }
+            SampleChunk earliestChunk = earliestChunks.removeFirst();
+            String earliestChunkId = earliestChunks.getTrackId();
+            // The governor can have made the chunk coarser than the default duration.
+            long earliestChunkDurationUs = getChunkDurationUs();
+            if (!earliestChunks.isEmpty()) {
+                earliestChunkDurationUs = earliestChunks.getStartPositionUs(0)
+                        - earliestChunk.getStartPositionUs();
+                mEvictionQueue.offer(earliestChunks);
+                mStartPositionMap.put(earliestChunkId, earliestChunks.getStartPositionUs(0));
+                KeyFrameIndex index = mKeyFrameIndexMap.get(earliestChunkId);
+                if (index != null) {
+                    index.trimBefore(earliestChunks.getStartPositionUs(0));
+                }
+            }
             mPendingDelete.add(earliestChunkId, earliestChunk);
-            earliestChunkMap.remove(earliestChunk.getStartPositionUs());
             if (DEBUG) {
                 Log.d(TAG, String.format("bufferSize = %d; pendingDelete = %b; "
                                 + "earliestChunk size = %d; %s@%d (%s)",
@@ -469,20 +544,38 @@ public class BufferManager {
             }
             ChunkEvictedListener listener = mEvictListeners.get(earliestChunkId);
             if (listener != null) {
-                listener.onChunkEvicted(earliestChunkId, earliestChunk.getCreatedTimeMs());
+                listener.onChunkEvicted(earliestChunkId, earliestChunk.getCreatedTimeMs(),
+                        earliestChunkDurationUs);
             }
             pendingDelete = mPendingDelete.getSize();
         }
-        for (Map.Entry<String, SortedMap<Long, SampleChunk>> entry : mChunkMap.entrySet()) {
-            SortedMap<Long, SampleChunk> map = entry.getValue();
-            if (map.isEmpty()) {
-                continue;
-            }
-            mStartPositionMap.put(entry.getKey(), map.firstKey());
-        }
         return true;
     }
 
+    private void addChunk(ChunkIndex chunks, SampleChunk chunk) {
+        SampleChunk first = chunks.getFirst();
+        chunks.add(chunk);
+        if (first == null) {
+            mEvictionQueue.offer(chunks);
+        } else if (chunks.getFirst() != first) {
+            // The order of the track in the queue can be changed.
+            mEvictionQueue.remove(chunks);
+            mEvictionQueue.offer(chunks);
+        }
+    }
+
+    private boolean reachedStorageMax(long pendingDelete) {
+        if (!mStorageManager.isPersistent()
+                && mWriteGovernor.getWritePressure()
+                        == WriteThroughputGovernor.WRITE_PRESSURE_HIGH) {
+            // Scaling up the usage makes the max size smaller relatively.
+            return mStorageManager.reachedStorageMax(
+                    mBufferSize * HIGH_PRESSURE_BUFFER_SHRINK_RATIO,
+                    pendingDelete * HIGH_PRESSURE_BUFFER_SHRINK_RATIO);
+        }
+        return mStorageManager.reachedStorageMax(mBufferSize, pendingDelete);
+    }
+
     /**
      * Reads track information which includes {@link MediaFormat}.
      *
@@ -516,19 +609,23 @@ public class BufferManager {
             throws IOException {
         if (audio != null) {
             mStorageManager.writeTrackInfoFile(audio.first, audio.second, true);
-            SortedMap<Long, SampleChunk> map = mChunkMap.get(audio.first);
-            if (map == null) {
+            ChunkIndex chunks = mChunkMap.get(audio.first);
+            if (chunks == null) {
                 throw new IOException("Audio track index missing");
             }
-            mStorageManager.writeIndexFile(audio.first, map);
+            mStorageManager.writeIndexFile(audio.first, chunks);
         }
         if (video != null) {
             mStorageManager.writeTrackInfoFile(video.first, video.second, false);
-            SortedMap<Long, SampleChunk> map = mChunkMap.get(video.first);
-            if (map == null) {
+            ChunkIndex chunks = mChunkMap.get(video.first);
+            if (chunks == null) {
                 throw new IOException("Video track index missing");
             }
-            mStorageManager.writeIndexFile(video.first, map);
+            mStorageManager.writeIndexFile(video.first, chunks);
+            KeyFrameIndex index = mKeyFrameIndexMap.get(video.first);
+            if (index != null) {
+                mStorageManager.writeKeyFrameIndexFile(video.first, index);
+            }
         }
     }
 
@@ -545,100 +642,58 @@ public class BufferManager {
      */
     public void release() {
         mPendingDelete.release();
-        for (Map.Entry<String, SortedMap<Long, SampleChunk>> entry : mChunkMap.entrySet()) {
-            for (SampleChunk chunk : entry.getValue().values()) {
-                SampleChunk.IoState.release(chunk, !mStorageManager.isPersistent());
+        for (ChunkIndex chunks : mChunkMap.values()) {
+            for (int i = 0; i < chunks.size(); ++i) {
+                SampleChunk.IoState.release(chunks.get(i), !mStorageManager.isPersistent());
             }
         }
         mChunkMap.clear();
+        mEvictionQueue.clear();
+        mKeyFrameIndexMap.clear();
         if (mClosed) {
             clearBuffer(!mStorageManager.isPersistent());
         }
     }
 
-    private void resetWriteStat(float writeBandwidth) {
-        mWriteBandwidth = writeBandwidth;
-        mTotalWriteSize = 0;
-        mTotalWriteTimeNs = 0;
-    }
-
     /**
-     * Adds a disk write sample size to calculate the average disk write bandwidth.
+     * Adds a disk write to calculate the average disk write bandwidth.
      */
     public void addWriteStat(long size, long timeNs) {
-        if (size >= mMinSampleSizeForSpeedCheck) {
-            mTotalWriteSize += size;
-            mTotalWriteTimeNs += timeNs;
-        }
+        mWriteGovernor.addWrite(size, timeNs);
     }
 
     /**
-     * Returns if the average disk write bandwidth is slower than
-     * threshold {@code MINIMUM_DISK_WRITE_SPEED_MBPS}.
+     * Returns the current write pressure of the storage.
      */
-    public boolean isWriteSlow() {
-        if (mTotalWriteSize < MINIMUM_WRITE_SIZE_FOR_SPEED_CHECK) {
-            return false;
-        }
-
-        // Checks write speed for only MAXIMUM_SPEED_CHECK_COUNT times to ignore outliers
-        // by temporary system overloading during the playback.
-        if (mSpeedCheckCount > MAXIMUM_SPEED_CHECK_COUNT) {
-            return false;
-        }
-        mSpeedCheckCount++;
-        float megabytePerSecond = calculateWriteBandwidth();
-        resetWriteStat(megabytePerSecond);
-        if (DEBUG) {
-            Log.d(TAG, "Measured disk write performance: " + megabytePerSecond + "MBps");
-        }
-        return megabytePerSecond < MINIMUM_DISK_WRITE_SPEED_MBPS;
-    }
-
-    /**
-     * Returns recent write bandwidth in MBps. If recent bandwidth is not available,
-     * returns {float -1.0f}.
-     */
-    public float getWriteBandwidth() {
-        return mWriteBandwidth == 0.0f ? -1.0f : mWriteBandwidth;
-    }
-
-    private float calculateWriteBandwidth() {
-        if (mTotalWriteTimeNs == 0) {
-            return -1;
-        }
-        return ((float) mTotalWriteSize * 1000 / mTotalWriteTimeNs);
+    public @WriteThroughputGovernor.WritePressure int getWritePressure() {
+        return mWriteGovernor.getWritePressure();
     }
 
     /**
-     * Marks {@link BufferManager} object disabled to prevent it from the future use.
+     * Returns the duration of a {@link SampleChunk} to be created, which gets longer under
+     * write pressure.
      */
-    public void disable() {
-        mDisabled = true;
+    public long getChunkDurationUs() {
+        return mWriteGovernor.getWritePressure() == WriteThroughputGovernor.WRITE_PRESSURE_NONE
+                ? RecordingSampleBuffer.CHUNK_DURATION_US
+                : RecordingSampleBuffer.CHUNK_DURATION_US * COARSE_CHUNK_DURATION_RATIO;
     }
 
     /**
-     * Returns if {@link BufferManager} object is disabled.
-     */
-    public boolean isDisabled() {
-        return mDisabled;
-    }
-
-    /**
-     * Returns if {@link BufferManager} has checked the write speed,
-     * which is suitable for Trickplay.
+     * Returns recent write bandwidth in MBps. If recent bandwidth is not available,
+     * returns {float -1.0f}.
      */
-    @VisibleForTesting
-    public boolean hasSpeedCheckDone() {
-        return mSpeedCheckCount > 0;
+    public float getWriteBandwidth() {
+        return mWriteGovernor.getAverageMbps();
     }
 
     /**
-     * Sets minimum sample size for write speed check.
-     * @param sampleSize minimum sample size for write speed check.
+     * Sets minimum write size for write speed check. It applies to all the buffer managers on the
+     * same storage device.
+     * @param sampleSize minimum write size for write speed check.
      */
     @VisibleForTesting
     public void setMinimumSampleSizeForSpeedCheck(int sampleSize) {
-        mMinSampleSizeForSpeedCheck = sampleSize;
+        mWriteGovernor.setMinimumWriteSizeForSpeedCheck(sampleSize);
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import java.util.Arrays;
+
+/**
+ * {@link SampleChunk}s of a track in the order of the start position.
+ * <p>
+ * Chunks are kept in a ring of parallel arrays, so that the start positions are searched without
+ * boxing and the earliest chunk is removed in constant time.
+ */
+public class ChunkIndex {
+    private static final int INITIAL_CAPACITY = 64;  // Should be a power of two.
+
+    private final String mTrackId;
+    private long[] mStartPositionsUs = new long[INITIAL_CAPACITY];
+    private SampleChunk[] mChunks = new SampleChunk[INITIAL_CAPACITY];
+    private int mHead;
+    private int mSize;
+
+    /**
+     * Creates an empty index of the chunks of a track.
+     *
+     * @param trackId the name of the track
+     */
+    public ChunkIndex(String trackId) {
+        mTrackId = trackId;
+    }
+
+    /**
+     * Returns the name of the track.
+     */
+    public String getTrackId() {
+        return mTrackId;
+    }
+
+    /**
+     * Returns the number of the chunks.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns whether there is no chunk.
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Returns the chunk at the index, where the earliest chunk is at {@code 0}.
+     */
+    public SampleChunk get(int index) {
+        return mChunks[toRingIndex(index)];
+    }
+
+    /**
+     * Returns the start position of the chunk at the index.
+     */
+    public long getStartPositionUs(int index) {
+        return mStartPositionsUs[toRingIndex(index)];
+    }
+
+    /**
+     * Returns the earliest chunk, or {@code null} if there is no chunk.
+     */
+    public SampleChunk getFirst() {
+        return mSize == 0 ? null : mChunks[mHead];
+    }
+
+    /**
+     * Adds a chunk. A chunk which has the same start position as an existing one replaces it.
+     * Adding a chunk which is later than all the others, which is the usual case, takes constant
+     * time.
+     */
+    public void add(SampleChunk chunk) {
+        long positionUs = chunk.getStartPositionUs();
+        int index = mSize;
+        if (mSize > 0 && positionUs <= getStartPositionUs(mSize - 1)) {
+            index = search(positionUs);
+            if (index >= 0) {
+                mChunks[toRingIndex(index)] = chunk;
+                return;
+            }
+            index = -index - 1;
+        }
+        if (mSize == mChunks.length) {
+            grow();
+        }
+        for (int i = mSize; i > index; --i) {
+            int to = toRingIndex(i);
+            int from = toRingIndex(i - 1);
+            mStartPositionsUs[to] = mStartPositionsUs[from];
+            mChunks[to] = mChunks[from];
+        }
+        mStartPositionsUs[toRingIndex(index)] = positionUs;
+        mChunks[toRingIndex(index)] = chunk;
+        ++mSize;
+    }
+
+    /**
+     * Removes the earliest chunk and returns it, or returns {@code null} if there is no chunk.
+     */
+    public SampleChunk removeFirst() {
+        if (mSize == 0) {
+            return null;
+        }
+        SampleChunk chunk = mChunks[mHead];
+        mChunks[mHead] = null;
+        mHead = (mHead + 1) & (mChunks.length - 1);
+        --mSize;
+        return chunk;
+    }
+
+    /**
+     * Returns the last chunk which starts not later than the specified position. If there is no
+     * such chunk, returns the earliest chunk. Returns {@code null} if there is no chunk.
+     */
+    public SampleChunk floor(long positionUs) {
+        if (mSize == 0) {
+            return null;
+        }
+        int index = search(positionUs);
+        if (index < 0) {
+            index = Math.max(-index - 2, 0);
+        }
+        return get(index);
+    }
+
+    /**
+     * Removes all the chunks.
+     */
+    public void clear() {
+        Arrays.fill(mChunks, null);
+        mHead = 0;
+        mSize = 0;
+    }
+
+    // Binary search over the ring, with the same return value as Arrays#binarySearch.
+    private int search(long positionUs) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midPositionUs = getStartPositionUs(mid);
+            if (midPositionUs < positionUs) {
+                low = mid + 1;
+            } else if (midPositionUs > positionUs) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private int toRingIndex(int index) {
+        return (mHead + index) & (mChunks.length - 1);
+    }
+
+    private void grow() {
+        int capacity = mChunks.length * 2;
+        long[] startPositionsUs = new long[capacity];
+        SampleChunk[] chunks = new SampleChunk[capacity];
+        for (int i = 0; i < mSize; ++i) {
+            startPositionsUs[i] = getStartPositionUs(i);
+            chunks[i] = get(i);
+        }
+        mStartPositionsUs = startPositionsUs;
+        mChunks = chunks;
+        mHead = 0;
+    }
+}
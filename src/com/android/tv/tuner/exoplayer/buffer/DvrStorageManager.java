@@ -19,16 +19,18 @@ package com.android.tv.tuner.exoplayer.buffer;
 import android.media.MediaFormat;
 import android.util.Pair;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.SortedMap;
 
 /**
  * Manages DVR storage.
@@ -40,6 +42,7 @@ public class DvrStorageManager implements BufferManager.StorageManager {
             "com.google.android.videos.pixelWidthHeightRatio";
     private static final String META_FILE_SUFFIX = ".meta";
     private static final String IDX_FILE_SUFFIX = ".idx";
+    private static final String KEY_FRAME_IDX_FILE_SUFFIX = ".kidx";
 
     // Size of minimum reserved storage buffer which will be used to save meta files
     // and index files after actual recording finished.
@@ -188,6 +191,25 @@ public class DvrStorageManager implements BufferManager.StorageManager {
         }
     }
 
+    @Override
+    public KeyFrameIndex readKeyFrameIndexFile(String trackId) throws IOException {
+        KeyFrameIndex index = new KeyFrameIndex();
+        File file = new File(getBufferDir(), trackId + KEY_FRAME_IDX_FILE_SUFFIX);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                long timeUs = in.readLong();
+                long chunkPositionUs = in.readLong();
+                long offset = in.readLong();
+                index.add(timeUs, chunkPositionUs, offset);
+            }
+        } catch (FileNotFoundException e) {
+            // Recordings made before key frame indexes were introduced do not have the file.
+        }
+        return index;
+    }
+
     private void writeFormatInt(DataOutputStream out, MediaFormat format, String key)
             throws IOException {
         if (format.containsKey(key)) {
@@ -274,13 +296,29 @@ public class DvrStorageManager implements BufferManager.StorageManager {
     }
 
     @Override
-    public void writeIndexFile(String trackName, SortedMap<Long, SampleChunk> index)
+    public void writeIndexFile(String trackName, ChunkIndex index)
             throws IOException {
         File indexFile  = new File(getBufferDir(), trackName + IDX_FILE_SUFFIX);
-        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile))) {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(indexFile)))) {
             out.writeLong(index.size());
-            for (Long key : index.keySet()) {
-                out.writeLong(key);
+            for (int i = 0; i < index.size(); ++i) {
+                out.writeLong(index.getStartPositionUs(i));
+            }
+        }
+    }
+
+    @Override
+    public void writeKeyFrameIndexFile(String trackName, KeyFrameIndex index)
+            throws IOException {
+        File indexFile = new File(getBufferDir(), trackName + KEY_FRAME_IDX_FILE_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+            out.writeInt(index.size());
+            for (int i = 0; i < index.size(); ++i) {
+                out.writeLong(index.getTimeUs(i));
+                out.writeLong(index.getChunkPositionUs(i));
+                out.writeLong(index.getOffset(i));
             }
         }
     }
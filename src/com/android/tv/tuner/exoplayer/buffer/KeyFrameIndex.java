@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import java.util.Arrays;
+
+/**
+ * Index of key frames of a track. Each entry has the presentation time of a key frame, the start
+ * position of the {@link SampleChunk} which contains it, and its byte offset in the chunk.
+ * Entries are kept in the order of the presentation time.
+ */
+public class KeyFrameIndex {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private long[] mTimesUs = new long[INITIAL_CAPACITY];
+    private long[] mChunkPositionsUs = new long[INITIAL_CAPACITY];
+    private long[] mOffsets = new long[INITIAL_CAPACITY];
+    private int mStart;
+    private int mEnd;
+
+    /**
+     * Adds a key frame. A key frame which is not later than the last one is ignored.
+     *
+     * @param timeUs the presentation time of the key frame
+     * @param chunkPositionUs the start position of the {@link SampleChunk} of the key frame
+     * @param offset the byte offset of the key frame in the {@link SampleChunk}
+     */
+    public void add(long timeUs, long chunkPositionUs, long offset) {
+        if (mEnd > mStart && timeUs <= mTimesUs[mEnd - 1]) {
+            return;
+        }
+        if (mEnd == mTimesUs.length) {
+            int size = size();
+            if (size * 2 <= mTimesUs.length) {
+                // Reuses the space of the trimmed entries.
+                System.arraycopy(mTimesUs, mStart, mTimesUs, 0, size);
+                System.arraycopy(mChunkPositionsUs, mStart, mChunkPositionsUs, 0, size);
+                System.arraycopy(mOffsets, mStart, mOffsets, 0, size);
+            } else {
+                int capacity = mTimesUs.length * 2;
+                mTimesUs = Arrays.copyOfRange(mTimesUs, mStart, mStart + capacity);
+                mChunkPositionsUs = Arrays.copyOfRange(mChunkPositionsUs, mStart,
+                        mStart + capacity);
+                mOffsets = Arrays.copyOfRange(mOffsets, mStart, mStart + capacity);
+            }
+            mStart = 0;
+            mEnd = size;
+        }
+        mTimesUs[mEnd] = timeUs;
+        mChunkPositionsUs[mEnd] = chunkPositionUs;
+        mOffsets[mEnd] = offset;
+        ++mEnd;
+    }
+
+    /**
+     * Removes the key frames whose {@link SampleChunk} starts earlier than the specified position.
+     */
+    public void trimBefore(long chunkPositionUs) {
+        while (mStart < mEnd && mChunkPositionsUs[mStart] < chunkPositionUs) {
+            ++mStart;
+        }
+    }
+
+    /**
+     * Returns the number of the key frames.
+     */
+    public int size() {
+        return mEnd - mStart;
+    }
+
+    /**
+     * Returns the index of the last key frame which is not later than the specified position,
+     * or {@code -1} if there is no such key frame.
+     */
+    public int findKeyFrame(long positionUs) {
+        int index = Arrays.binarySearch(mTimesUs, mStart, mEnd, positionUs);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return index < mStart ? -1 : index - mStart;
+    }
+
+    /**
+     * Returns the presentation time of the key frame at the index.
+     */
+    public long getTimeUs(int index) {
+        return mTimesUs[mStart + index];
+    }
+
+    /**
+     * Returns the start position of the {@link SampleChunk} of the key frame at the index.
+     */
+    public long getChunkPositionUs(int index) {
+        return mChunkPositionsUs[mStart + index];
+    }
+
+    /**
+     * Returns the byte offset in the {@link SampleChunk} of the key frame at the index.
+     */
+    public long getOffset(int index) {
+        return mOffsets[mStart + index];
+    }
+}
@@ -26,6 +26,7 @@ import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.SampleHolder;
 import com.google.android.exoplayer.SampleSource;
 import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.MimeTypes;
 import com.android.tv.tuner.exoplayer.MpegTsPlayer;
 import com.android.tv.tuner.tvinput.PlaybackBufferListener;
 import com.android.tv.tuner.exoplayer.SampleExtractor;
@@ -78,12 +79,18 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
     private final @BufferReason int mBufferReason;
 
     private int mTrackCount;
-    private boolean[] mTrackSelected;
+    // Also read by the writer thread under high write pressure. It's replaced instead of being
+    // modified, so that the writer sees a newly selected track right away.
+    private volatile boolean[] mTrackSelected;
+    private boolean[] mIsVideo;
+    private boolean mKeyFrameOnly;
     private List<String> mIds;
     private List<SampleQueue> mReadSampleQueues;
     private final SamplePool mSamplePool = new SamplePool();
     private long mLastBufferedPositionUs = C.UNKNOWN_TIME_US;
     private long mCurrentPlaybackPositionUs = 0;
+    private @WriteThroughputGovernor.WritePressure int mWritePressure =
+            WriteThroughputGovernor.WRITE_PRESSURE_NONE;
 
     // An error in I/O thread of {@link SampleChunkIoHelper} will be notified.
     private volatile boolean mError;
@@ -132,6 +139,10 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
         }
         mIds = ids;
         mTrackSelected = new boolean[mTrackCount];
+        mIsVideo = new boolean[mTrackCount];
+        for (int i = 0; i < mTrackCount; ++i) {
+            mIsVideo[i] = MimeTypes.isVideo(mediaFormats.get(i).mimeType);
+        }
         mReadSampleQueues = new ArrayList<>();
         mSampleChunkIoHelper = new SampleChunkIoHelper(ids, mediaFormats, mBufferReason,
                 mBufferManager, mSamplePool, mIoCallback);
@@ -144,7 +155,7 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
     @Override
     public void selectTrack(int index) {
         if (!mTrackSelected[index]) {
-            mTrackSelected[index] = true;
+            setTrackSelected(index, true);
             mReadSampleQueues.get(index).clear();
             mBufferManager.registerChunkEvictedListener(mIds.get(index),
                     RecordingSampleBuffer.this);
@@ -155,15 +166,52 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
     @Override
     public void deselectTrack(int index) {
         if (mTrackSelected[index]) {
-            mTrackSelected[index] = false;
+            setTrackSelected(index, false);
             mReadSampleQueues.get(index).clear();
             mBufferManager.unregisterChunkEvictedListener(mIds.get(index));
         }
     }
 
+    private void setTrackSelected(int index, boolean selected) {
+        boolean[] trackSelected = mTrackSelected.clone();
+        trackSelected[index] = selected;
+        mTrackSelected = trackSelected;
+    }
+
+    @Override
+    public SampleHolder acquireSample(int size) {
+        return mSamplePool.acquireSample(size);
+    }
+
     @Override
     public void writeSample(int index, SampleHolder sample, ConditionVariable conditionVariable)
             throws IOException {
+        int writePressure = mBufferManager.getWritePressure();
+        if (writePressure != mWritePressure) {
+            boolean pressureRaised = writePressure > mWritePressure;
+            mWritePressure = writePressure;
+            if (mBufferReason == BUFFER_REASON_RECORDING && pressureRaised) {
+                // Recording does not need to stop because I/O speed is slow temporarily.
+                // If fixed size buffer of TsStreamer overflows, TsDataSource will reach EoS.
+                // Reaching EoS will stop recording eventually.
+                Log.w(TAG, "Disk I/O speed is slow for recording temporarily: "
+                        + mBufferManager.getWriteBandwidth() + "MBps");
+            }
+            if (mBufferListener != null) {
+                mBufferListener.onWritePressureChanged(writePressure);
+            }
+        }
+        if (mBufferReason == BUFFER_REASON_LIVE_PLAYBACK
+                && writePressure == WriteThroughputGovernor.WRITE_PRESSURE_HIGH
+                && !mTrackSelected[index]) {
+            // Tracks which are not played are not buffered under high write pressure, so that
+            // the disk keeps up with the played tracks. The trade-off is that the buffer has
+            // permanent gaps in those tracks: when the user selects one of them later and seeks
+            // back into the period, the track has no samples there, e.g. no sound or captions,
+            // until playback reaches the samples written after the pressure went down.
+            mSamplePool.releaseSample(sample);
+            return;
+        }
         mSampleChunkIoHelper.writeSample(index, sample, conditionVariable);
 
         if (!conditionVariable.block(BUFFER_WRITE_TIMEOUT_MS)) {
@@ -172,31 +220,6 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
         }
     }
 
-    @Override
-    public boolean isWriteSpeedSlow(int sampleSize, long writeDurationNs) {
-        if (mBufferReason == BUFFER_REASON_RECORDED_PLAYBACK) {
-            return false;
-        }
-        mBufferManager.addWriteStat(sampleSize, writeDurationNs);
-        return mBufferManager.isWriteSlow();
-    }
-
-    @Override
-    public void handleWriteSpeedSlow() throws IOException{
-        if (mBufferReason == BUFFER_REASON_RECORDING) {
-            // Recording does not need to stop because I/O speed is slow temporarily.
-            // If fixed size buffer of TsStreamer overflows, TsDataSource will reach EoS.
-            // Reaching EoS will stop recording eventually.
-            Log.w(TAG, "Disk I/O speed is slow for recording temporarily: "
-                    + mBufferManager.getWriteBandwidth() + "MBps");
-            return;
-        }
-        // Disables buffering samples afterwards, and notifies the disk speed is slow.
-        Log.w(TAG, "Disk is too slow for trickplay");
-        mBufferManager.disable();
-        mBufferListener.onDiskTooSlow();
-    }
-
     @Override
     public void setEos() {
         mSampleChunkIoHelper.closeWrite();
@@ -224,6 +247,9 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
     @Override
     public int readSample(int track, SampleHolder outSample) {
         Assertions.checkState(mTrackSelected[track]);
+        if (mKeyFrameOnly && !mIsVideo[track]) {
+            return mError ? SampleSource.END_OF_STREAM : SampleSource.NOTHING_READ;
+        }
         maybeReadSample(mReadSampleQueues.get(track), track);
         int result = mReadSampleQueues.get(track).dequeueSample(outSample);
         if ((result != SampleSource.SAMPLE_READ && mEos) || mError) {
@@ -243,11 +269,32 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
         mLastBufferedPositionUs = positionUs;
     }
 
+    @Override
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        if (mKeyFrameOnly == keyFrameOnly) {
+            return;
+        }
+        mKeyFrameOnly = keyFrameOnly;
+        mSampleChunkIoHelper.setKeyFrameOnly(keyFrameOnly);
+        if (keyFrameOnly) {
+            // Samples of non-video tracks will not be played until the next seek.
+            for (int i = 0; i < mTrackCount; ++i) {
+                if (!mIsVideo[i]) {
+                    mReadSampleQueues.get(i).clear();
+                }
+            }
+        }
+    }
+
+    private boolean isTrackReadable(int index) {
+        return mTrackSelected[index] && (!mKeyFrameOnly || mIsVideo[index]);
+    }
+
     @Override
     public long getBufferedPositionUs() {
         Long result = null;
         for (int i = 0; i < mTrackCount; ++i) {
-            if (!mTrackSelected[i]) {
+            if (!isTrackReadable(i)) {
                 continue;
             }
             Long lastQueuedSamplePositionUs =
@@ -271,7 +318,7 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
     public boolean continueBuffering(long positionUs) {
         mCurrentPlaybackPositionUs = positionUs;
         for (int i = 0; i < mTrackCount; ++i) {
-            if (!mTrackSelected[i]) {
+            if (!isTrackReadable(i)) {
                 continue;
             }
             SampleQueue queue = mReadSampleQueues.get(i);
@@ -297,10 +344,10 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
 
     // onChunkEvictedListener
     @Override
-    public void onChunkEvicted(String id, long createdTimeMs) {
+    public void onChunkEvicted(String id, long createdTimeMs, long durationUs) {
         if (mBufferListener != null) {
             mBufferListener.onBufferStartTimeChanged(
-                    createdTimeMs + TimeUnit.MICROSECONDS.toMillis(CHUNK_DURATION_US));
+                    createdTimeMs + TimeUnit.MICROSECONDS.toMillis(durationUs));
         }
     }
 }
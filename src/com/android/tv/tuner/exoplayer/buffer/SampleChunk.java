@@ -25,7 +25,10 @@ import com.google.android.exoplayer.SampleHolder;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * {@link SampleChunk} stores samples into file and makes them available for read.
@@ -125,6 +128,11 @@ public class SampleChunk {
      * Maintains current SampleChunk and the current offset for next I/O operation.
      */
     static class IoState {
+        // Reused for every sample header in order to avoid a syscall per header field.
+        private final ByteBuffer mHeaderBuffer = ByteBuffer.allocateDirect(SAMPLE_HEADER_LENGTH);
+        // Reused for the headers and the data of the samples which are written at once.
+        private ByteBuffer[] mWriteHeaderBuffers = new ByteBuffer[0];
+        private ByteBuffer[] mWriteBuffers = new ByteBuffer[0];
         private SampleChunk mChunk;
         private long mCurrentOffset;
 
@@ -139,6 +147,13 @@ public class SampleChunk {
             return mChunk == null;
         }
 
+        /**
+         * Returns the offset in the current SampleChunk for the next I/O operation.
+         */
+        long getCurrentOffset() {
+            return mCurrentOffset;
+        }
+
         /**
          * Returns the start position of the current SampleChunk
          */
@@ -158,11 +173,28 @@ public class SampleChunk {
          * @throws IOException
          */
         void openRead(SampleChunk chunk) throws IOException {
+            openRead(chunk, 0);
+        }
+
+        /**
+         * Prepares for read I/O operation from the specified offset of a new SampleChunk.
+         *
+         * @param chunk the new SampleChunk to read from
+         * @param offset the offset of a sample in the SampleChunk to read first
+         * @throws IOException
+         */
+        void openRead(SampleChunk chunk, long offset) throws IOException {
+            if (chunk == mChunk) {
+                // Jumps within the chunk which is already opened, e.g. to the next key frame.
+                mCurrentOffset = offset;
+                return;
+            }
             if (mChunk != null) {
                 mChunk.closeRead();
             }
             chunk.openRead();
             reset(chunk);
+            mCurrentOffset = offset;
         }
 
         /**
@@ -208,14 +240,15 @@ public class SampleChunk {
         }
 
         /**
-         * Writes a sample.
+         * Writes samples consecutively by a single gathering write.
          *
-         * @param sample to write
+         * @param samples to write
          * @param nextChunk if this is {@code null} writes at the current SampleChunk,
          *             otherwise close current SampleChunk and writes at this
+         * @return the offset in the current SampleChunk where the first sample is written
          * @throws IOException
          */
-        void write(SampleHolder sample, SampleChunk nextChunk)
+        long write(List<SampleHolder> samples, SampleChunk nextChunk)
                 throws IOException {
             if (nextChunk != null) {
                 if (mChunk == null || mChunk.mNextChunk != null) {
@@ -226,7 +259,21 @@ public class SampleChunk {
                 nextChunk.openWrite();
                 reset(nextChunk);
             }
-            mChunk.write(sample, this);
+            long offset = mCurrentOffset;
+            mChunk.write(samples, this);
+            return offset;
+        }
+
+        private void ensureWriteBuffers(int sampleCount) {
+            if (mWriteHeaderBuffers.length >= sampleCount) {
+                return;
+            }
+            ByteBuffer[] headers = Arrays.copyOf(mWriteHeaderBuffers, sampleCount);
+            for (int i = mWriteHeaderBuffers.length; i < sampleCount; ++i) {
+                headers[i] = ByteBuffer.allocateDirect(SAMPLE_HEADER_LENGTH);
+            }
+            mWriteHeaderBuffers = headers;
+            mWriteBuffers = new ByteBuffer[sampleCount * 2];
         }
 
         /**
@@ -349,37 +396,80 @@ public class SampleChunk {
                 return null;
             }
         }
-        mAccessFile.seek(offset);
-        int size = mAccessFile.readInt();
+        FileChannel channel = mAccessFile.getChannel();
+        ByteBuffer header = state.mHeaderBuffer;
+        header.clear();
+        readFully(channel, header, offset);
+        header.flip();
+        int size = header.getInt();
         SampleHolder sample = mSamplePool.acquireSample(size);
         sample.size = size;
-        sample.flags = mAccessFile.readInt();
-        sample.timeUs = mAccessFile.readLong();
+        sample.flags = header.getInt();
+        sample.timeUs = header.getLong();
         sample.clearData();
-        sample.data.put(mAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
-                offset + SAMPLE_HEADER_LENGTH, sample.size));
+        sample.data.limit(size);
+        readFully(channel, sample.data, offset + SAMPLE_HEADER_LENGTH);
         offset += sample.size + SAMPLE_HEADER_LENGTH;
         state.mCurrentOffset = offset;
         return sample;
     }
 
     @VisibleForTesting
-    protected void write(SampleHolder sample, IoState state)
+    protected void write(List<SampleHolder> samples, IoState state)
             throws IOException {
         if (mAccessFile == null || mNextChunk != null || !state.equals(this, mWriteOffset)) {
             throw new IllegalStateException("Requested write for wrong SampleChunk");
         }
+        int sampleCount = samples.size();
+        state.ensureWriteBuffers(sampleCount);
+        ByteBuffer[] buffers = state.mWriteBuffers;
+        long length = 0;
+        for (int i = 0; i < sampleCount; ++i) {
+            SampleHolder sample = samples.get(i);
+            ByteBuffer header = state.mWriteHeaderBuffers[i];
+            header.clear();
+            header.putInt(sample.size);
+            header.putInt(sample.flags);
+            header.putLong(sample.timeUs);
+            header.flip();
+            sample.data.position(0).limit(sample.size);
+            buffers[i * 2] = header;
+            buffers[i * 2 + 1] = sample.data;
+            length += getStoredLength(sample);
+        }
 
-        mAccessFile.seek(mWriteOffset);
-        mAccessFile.writeInt(sample.size);
-        mAccessFile.writeInt(sample.flags);
-        mAccessFile.writeLong(sample.timeUs);
-        sample.data.position(0).limit(sample.size);
-        mAccessFile.getChannel().position(mWriteOffset + SAMPLE_HEADER_LENGTH).write(sample.data);
-        mWriteOffset += sample.size + SAMPLE_HEADER_LENGTH;
+        // Writes the headers and the data of all the samples at once by a gathering write.
+        FileChannel channel = mAccessFile.getChannel().position(mWriteOffset);
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                remaining -= channel.write(buffers, 0, sampleCount * 2);
+            }
+        } finally {
+            Arrays.fill(buffers, null);
+        }
+        mWriteOffset += length;
         state.mCurrentOffset = mWriteOffset;
     }
 
+    /**
+     * Returns the number of bytes which a sample occupies in a SampleChunk.
+     */
+    static long getStoredLength(SampleHolder sample) {
+        return SAMPLE_HEADER_LENGTH + sample.size;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected EOS at " + position);
+            }
+            position += read;
+        }
+    }
+
     private void release(boolean delete) {
         mWriteFinished = true;
         mIsReading = mIsWriting = false;
@@ -21,6 +21,7 @@ import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 
@@ -31,6 +32,8 @@ import com.android.tv.common.SoftPreconditions;
 import com.android.tv.tuner.exoplayer.buffer.RecordingSampleBuffer.BufferReason;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -43,6 +46,10 @@ public class SampleChunkIoHelper implements Handler.Callback {
 
     private static final int MAX_READ_BUFFER_SAMPLES = 3;
     private static final int READ_RESCHEDULING_DELAY_MS = 10;
+    // The writer is blocked when this many samples of a track are waiting to be written.
+    private static final int MAX_PENDING_WRITE_SAMPLES = 32;
+    // Samples of a track which are written by a single gathering write at most.
+    private static final int MAX_WRITE_BATCH_SAMPLES = 16;
 
     private static final int MSG_OPEN_READ = 1;
     private static final int MSG_OPEN_WRITE = 2;
@@ -63,12 +70,21 @@ public class SampleChunkIoHelper implements Handler.Callback {
     private final ConcurrentLinkedQueue<SampleHolder> mReadSampleBuffers[];
     private final ConcurrentLinkedQueue<SampleHolder> mHandlerReadSampleBuffers[];
     private final long[] mWriteEndPositionUs;
+    private final boolean[] mIsVideo;
     private final SampleChunk.IoState[] mReadIoStates;
     private final SampleChunk.IoState[] mWriteIoStates;
+    // Samples which are waiting to be written. The queues, the blocked writers of them and
+    // mWriteScheduled are guarded by mPendingWriteSamples.
+    private final ArrayDeque<SampleHolder>[] mPendingWriteSamples;
+    private final ConditionVariable[] mBlockedWriteConditionVariables;
+    private boolean mWriteScheduled;
+    private final List<SampleHolder> mWriteBatch = new ArrayList<>();
+    private final List<SampleHolder> mWriteRun = new ArrayList<>();
     private long mBufferDurationUs = 0;
     private boolean mWriteEnded;
     private boolean mErrorNotified;
     private boolean mFinished;
+    private volatile boolean mKeyFrameOnly;
 
     /**
      * A Callback for I/O events.
@@ -91,17 +107,12 @@ public class SampleChunkIoHelper implements Handler.Callback {
     private class IoParams {
         private final int index;
         private final long positionUs;
-        private final SampleHolder sample;
-        private final ConditionVariable conditionVariable;
         private final ConcurrentLinkedQueue<SampleHolder> readSampleBuffer;
 
-        private IoParams(int index, long positionUs, SampleHolder sample,
-                ConditionVariable conditionVariable,
+        private IoParams(int index, long positionUs,
                 ConcurrentLinkedQueue<SampleHolder> readSampleBuffer) {
             this.index = index;
             this.positionUs = positionUs;
-            this.sample = sample;
-            this.conditionVariable = conditionVariable;
             this.readSampleBuffer = readSampleBuffer;
         }
     }
@@ -130,10 +141,15 @@ public class SampleChunkIoHelper implements Handler.Callback {
         mReadSampleBuffers = new ConcurrentLinkedQueue[mTrackCount];
         mHandlerReadSampleBuffers = new ConcurrentLinkedQueue[mTrackCount];
         mWriteEndPositionUs = new long[mTrackCount];
+        mIsVideo = new boolean[mTrackCount];
         mReadIoStates = new SampleChunk.IoState[mTrackCount];
         mWriteIoStates = new SampleChunk.IoState[mTrackCount];
+        mPendingWriteSamples = new ArrayDeque[mTrackCount];
+        mBlockedWriteConditionVariables = new ConditionVariable[mTrackCount];
         for (int i = 0; i < mTrackCount; ++i) {
+            mPendingWriteSamples[i] = new ArrayDeque<>();
             mWriteEndPositionUs[i] = RecordingSampleBuffer.CHUNK_DURATION_US;
+            mIsVideo[i] = MimeTypes.isVideo(mediaFormats.get(i).mimeType);
             mReadIoStates[i] = new SampleChunk.IoState();
             mWriteIoStates[i] = new SampleChunk.IoState();
         }
@@ -173,21 +189,35 @@ public class SampleChunkIoHelper implements Handler.Callback {
     }
 
     /**
-     * Writes a sample.
+     * Writes a sample behind. The samples are written by the I/O thread in batches, and released
+     * to the {@link SamplePool} after written. So the sample should not be used by the caller
+     * after this call.
      *
      * @param index track index
      * @param sample to write
-     * @param conditionVariable which will be wait until the write is finished
+     * @param conditionVariable which will be closed until the writer can queue more samples,
+     *         when too many samples of the track are waiting to be written
      * @throws IOException
      */
     public void writeSample(int index, SampleHolder sample,
             ConditionVariable conditionVariable) throws IOException {
         if (mErrorNotified) {
+            mSamplePool.releaseSample(sample);
             throw new IOException("Storage I/O error happened");
         }
-        conditionVariable.close();
-        IoParams params = new IoParams(index, 0, sample, conditionVariable, null);
-        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_WRITE, params));
+        synchronized (mPendingWriteSamples) {
+            mPendingWriteSamples[index].add(sample);
+            if (mPendingWriteSamples[index].size() >= MAX_PENDING_WRITE_SAMPLES) {
+                conditionVariable.close();
+                mBlockedWriteConditionVariables[index] = conditionVariable;
+            } else {
+                conditionVariable.open();
+            }
+            if (!mWriteScheduled) {
+                mWriteScheduled = true;
+                mIoHandler.sendEmptyMessage(MSG_WRITE);
+            }
+        }
     }
 
     /**
@@ -199,10 +229,20 @@ public class SampleChunkIoHelper implements Handler.Callback {
     public void openRead(int index, long positionUs) {
         // Old mReadSampleBuffers may have a pending read.
         mReadSampleBuffers[index] = new ConcurrentLinkedQueue<>();
-        IoParams params = new IoParams(index, positionUs, null, null, mReadSampleBuffers[index]);
+        IoParams params = new IoParams(index, positionUs, mReadSampleBuffers[index]);
         mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_OPEN_READ, params));
     }
 
+    /**
+     * Sets whether only key frames of video tracks are read. While it is set, samples between
+     * key frames are skipped by using {@link KeyFrameIndex} and non-video tracks are not read.
+     *
+     * @param keyFrameOnly {@code true} to read key frames only
+     */
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        mKeyFrameOnly = keyFrameOnly;
+    }
+
     /**
      * Notifies writes are finished.
      */
@@ -272,7 +312,7 @@ public class SampleChunkIoHelper implements Handler.Callback {
                     doRead((int) message.obj);
                     return true;
                 case MSG_WRITE:
-                    doWrite((IoParams) message.obj);
+                    doWrite();
                     // Since only write will increase storage, eviction will be handled here.
                     return true;
                 case MSG_RELEASE:
@@ -283,6 +323,8 @@ public class SampleChunkIoHelper implements Handler.Callback {
             mIoCallback.onIoError();
             mErrorNotified = true;
             Log.e(TAG, "IoException happened", e);
+            // Writers should not wait for the writes which will never happen.
+            unblockWriters(true);
             return true;
         }
         return false;
@@ -298,7 +340,8 @@ public class SampleChunkIoHelper implements Handler.Callback {
             SoftPreconditions.checkNotNull(chunk, TAG, errorMessage);
             throw new IOException(errorMessage);
         }
-        mReadIoStates[index].openRead(chunk);
+        mReadIoStates[index].openRead(chunk,
+                mBufferManager.getKeyFrameOffset(mIds.get(index), chunk, params.positionUs));
         if (mHandlerReadSampleBuffers[index] != null) {
             SampleHolder sample;
             while ((sample = mHandlerReadSampleBuffers[index].poll()) != null) {
@@ -316,6 +359,10 @@ public class SampleChunkIoHelper implements Handler.Callback {
 
     private void doRead(int index) throws IOException {
         mIoHandler.removeMessages(MSG_READ, index);
+        boolean keyFrameOnly = mKeyFrameOnly;
+        if (keyFrameOnly && !mIsVideo[index]) {
+            return;
+        }
         if (mHandlerReadSampleBuffers[index].size() >= MAX_READ_BUFFER_SAMPLES) {
             // If enough samples are buffered, try again few moments later hoping that
             // buffered samples are consumed.
@@ -324,7 +371,7 @@ public class SampleChunkIoHelper implements Handler.Callback {
         } else {
             if (mReadIoStates[index].isReadFinished()) {
                 for (int i = 0; i < mTrackCount; ++i) {
-                    if (!mReadIoStates[i].isReadFinished()) {
+                    if (!mReadIoStates[i].isReadFinished() && (!keyFrameOnly || mIsVideo[i])) {
                         return;
                     }
                 }
@@ -333,6 +380,15 @@ public class SampleChunkIoHelper implements Handler.Callback {
             }
             SampleHolder sample = mReadIoStates[index].read();
             if (sample != null) {
+                if (keyFrameOnly) {
+                    if ((sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                        // The next key frame could not be jumped to, e.g. it is not indexed yet.
+                        mSamplePool.releaseSample(sample);
+                        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_READ, index));
+                        return;
+                    }
+                    skipToNextKeyFrame(index, sample.timeUs);
+                }
                 mHandlerReadSampleBuffers[index].offer(sample);
             } else {
                 // Read reached write but write is not finished yet --- wait a few moments to
@@ -344,31 +400,141 @@ public class SampleChunkIoHelper implements Handler.Callback {
         }
     }
 
-    private void doWrite(IoParams params) throws IOException {
-        try {
-            if (mWriteEnded) {
-                SoftPreconditions.checkState(false);
-                return;
+    private void skipToNextKeyFrame(int index, long timeUs) throws IOException {
+        KeyFrameIndex keyFrameIndex = mBufferManager.getKeyFrameIndex(mIds.get(index));
+        if (keyFrameIndex == null) {
+            return;
+        }
+        int next = keyFrameIndex.findKeyFrame(timeUs) + 1;
+        if (next <= 0 || next >= keyFrameIndex.size()) {
+            // The next key frame is not written yet. Reads sequentially until it is found.
+            return;
+        }
+        long chunkPositionUs = keyFrameIndex.getChunkPositionUs(next);
+        SampleChunk chunk = mBufferManager.getReadFile(mIds.get(index), chunkPositionUs);
+        if (chunk == null || chunk.getStartPositionUs() != chunkPositionUs) {
+            return;
+        }
+        mReadIoStates[index].openRead(chunk, keyFrameIndex.getOffset(next));
+    }
+
+    private void doWrite() throws IOException {
+        for (int i = 0; i < mTrackCount; ++i) {
+            synchronized (mPendingWriteSamples) {
+                SampleHolder sample;
+                while (mWriteBatch.size() < MAX_WRITE_BATCH_SAMPLES
+                        && (sample = mPendingWriteSamples[i].poll()) != null) {
+                    mWriteBatch.add(sample);
+                }
+            }
+            if (mWriteBatch.isEmpty()) {
+                continue;
+            }
+            try {
+                writeSamples(i, mWriteBatch);
+            } finally {
+                for (SampleHolder sample : mWriteBatch) {
+                    mSamplePool.releaseSample(sample);
+                }
+                mWriteBatch.clear();
+            }
+        }
+        synchronized (mPendingWriteSamples) {
+            // Samples may have been queued while the batches were written, without scheduling
+            // a write since mWriteScheduled was set.
+            boolean hasMore = false;
+            for (int i = 0; i < mTrackCount; ++i) {
+                hasMore = hasMore || !mPendingWriteSamples[i].isEmpty();
             }
-            int index = params.index;
-            SampleHolder sample = params.sample;
-            SampleChunk nextChunk = null;
+            if (hasMore) {
+                // Gives other messages like reads a chance to be handled between the batches.
+                mIoHandler.sendEmptyMessage(MSG_WRITE);
+            } else {
+                mWriteScheduled = false;
+            }
+        }
+        unblockWriters(false);
+    }
+
+    private void writeSamples(int index, List<SampleHolder> samples) throws IOException {
+        if (mWriteEnded) {
+            SoftPreconditions.checkState(false);
+            return;
+        }
+        SampleChunk runChunk = null;
+        for (SampleHolder sample : samples) {
             if ((sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
                 if (sample.timeUs > mBufferDurationUs) {
                     mBufferDurationUs = sample.timeUs;
                 }
 
                 if (sample.timeUs >= mWriteEndPositionUs[index]) {
-                    nextChunk = mBufferManager.createNewWriteFile(mIds.get(index),
+                    // Samples before this key frame belong to the current chunk.
+                    writeRun(index, runChunk);
+                    runChunk = mBufferManager.createNewWriteFile(mIds.get(index),
                             mWriteEndPositionUs[index], mSamplePool);
+                    long chunkDurationUs = mBufferManager.getChunkDurationUs();
                     mWriteEndPositionUs[index] =
-                            ((sample.timeUs / RecordingSampleBuffer.CHUNK_DURATION_US) + 1) *
-                                    RecordingSampleBuffer.CHUNK_DURATION_US;
+                            ((sample.timeUs / chunkDurationUs) + 1) * chunkDurationUs;
+                }
+            }
+            mWriteRun.add(sample);
+        }
+        writeRun(index, runChunk);
+    }
+
+    private void writeRun(int index, SampleChunk nextChunk) throws IOException {
+        if (mWriteRun.isEmpty()) {
+            return;
+        }
+        try {
+            long writeStartTimeNs = SystemClock.elapsedRealtimeNanos();
+            long offset = mWriteIoStates[index].write(mWriteRun, nextChunk);
+            long writeDurationNs = SystemClock.elapsedRealtimeNanos() - writeStartTimeNs;
+            // Checks whether the storage has enough bandwidth for writing samples.
+            mBufferManager.addWriteStat(
+                    mWriteIoStates[index].getCurrentOffset() - offset, writeDurationNs);
+            if (mIsVideo[index]) {
+                // Indexes key frames of video tracks only, since all audio samples are key
+                // frames.
+                long chunkPositionUs = mWriteIoStates[index].getStartPositionUs();
+                for (SampleHolder sample : mWriteRun) {
+                    if ((sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                        mBufferManager.addKeyFrame(mIds.get(index), sample.timeUs,
+                                chunkPositionUs, offset);
+                    }
+                    offset += SampleChunk.getStoredLength(sample);
                 }
             }
-            mWriteIoStates[params.index].write(params.sample, nextChunk);
         } finally {
-            params.conditionVariable.open();
+            mWriteRun.clear();
+        }
+    }
+
+    private void flushPendingWrites() throws IOException {
+        while (true) {
+            synchronized (mPendingWriteSamples) {
+                boolean empty = true;
+                for (int i = 0; i < mTrackCount; ++i) {
+                    empty = empty && mPendingWriteSamples[i].isEmpty();
+                }
+                if (empty) {
+                    return;
+                }
+            }
+            doWrite();
+        }
+    }
+
+    private void unblockWriters(boolean all) {
+        synchronized (mPendingWriteSamples) {
+            for (int i = 0; i < mTrackCount; ++i) {
+                if (mBlockedWriteConditionVariables[i] != null
+                        && (all || mPendingWriteSamples[i].size() < MAX_PENDING_WRITE_SAMPLES)) {
+                    mBlockedWriteConditionVariables[i].open();
+                    mBlockedWriteConditionVariables[i] = null;
+                }
+            }
         }
     }
 
@@ -376,6 +542,8 @@ public class SampleChunkIoHelper implements Handler.Callback {
         if (mWriteEnded) {
             return;
         }
+        // Samples which are queued before closing should be written first.
+        flushPendingWrites();
         mWriteEnded = true;
         boolean readFinished = true;
         for (int i = 0; i < mTrackCount; ++i) {
@@ -388,8 +556,16 @@ public class SampleChunkIoHelper implements Handler.Callback {
     }
 
     private void doRelease(ConditionVariable conditionVariable) {
+        if (!mWriteEnded && !mErrorNotified) {
+            try {
+                flushPendingWrites();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write pending samples", e);
+            }
+        }
         mIoHandler.removeCallbacksAndMessages(null);
         mFinished = true;
+        unblockWriters(true);
         conditionVariable.open();
     }
 
@@ -16,56 +16,192 @@
 
 package com.android.tv.tuner.exoplayer.buffer;
 
+import android.content.ComponentCallbacks2;
+import android.support.annotation.VisibleForTesting;
+
 import com.google.android.exoplayer.SampleHolder;
+import com.android.tv.common.MemoryManageable;
 
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Pool of samples to recycle ByteBuffers as much as possible.
+ *
+ * <p>Samples are bucketed by power-of-two size classes. A sample whose buffer capacity is
+ * {@code 2^n} or larger belongs to the size class {@code n}. An acquire looks at the smallest
+ * size class which can serve it and a couple of larger ones. Each bucket is a lock-free stack,
+ * and the total capacity of the samples retained by a pool is bounded.
  */
-public class SamplePool {
-    private final LinkedList<SampleHolder> mSamplePool = new LinkedList<>();
+public class SamplePool implements MemoryManageable {
+    private static final int SIZE_CLASS_COUNT = 31;
+    // The number of larger size classes which an acquire looks at before allocating a sample.
+    private static final int MAX_LARGER_SIZE_CLASS_LOOKUPS = 2;
+    // The number of samples which a size class can retain at most.
+    @VisibleForTesting
+    static final int MAX_RETAINED_SAMPLES_PER_SIZE_CLASS = 256;
+    // The total capacity of the samples which a pool can retain at most.
+    @VisibleForTesting
+    static final long MAX_RETAINED_BYTES = 16 * 1024 * 1024;
+    // The size classes from this one are trimmed first on memory pressure. (64 Kilobytes)
+    @VisibleForTesting
+    static final int LARGE_SIZE_CLASS = 16;
 
-    /**
-     * Acquires a sample with a buffer larger than size from the pool. Allocate new one or resize
-     * an existing buffer if necessary.
-     */
-    public synchronized SampleHolder acquireSample(int size) {
-        if (mSamplePool.isEmpty()) {
-            SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
-            sample.ensureSpaceForWrite(size);
+    // WeakContainer of all the pools in order to trim them on memory pressure.
+    private static final Set<SamplePool> sSamplePools =
+            Collections.newSetFromMap(new WeakHashMap<>());
+
+    private final SizeClass[] mSizeClasses = new SizeClass[SIZE_CLASS_COUNT];
+    private final AtomicLong mRetainedBytes = new AtomicLong();
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mAllocatedBytes = new AtomicLong();
+
+    private class SizeClass {
+        private final ConcurrentLinkedDeque<SampleHolder> mSamples =
+                new ConcurrentLinkedDeque<>();
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        private SampleHolder pop() {
+            SampleHolder sample = mSamples.pollFirst();
+            if (sample != null) {
+                mCount.decrementAndGet();
+                mRetainedBytes.addAndGet(-sample.data.capacity());
+            }
             return sample;
         }
-        SampleHolder smallestSufficientSample = null;
-        SampleHolder maxSample = mSamplePool.getFirst();
-        for (SampleHolder sample : mSamplePool) {
-            // Grab the smallest sufficient sample.
-            if (sample.data.capacity() >= size && (smallestSufficientSample == null
-                    || smallestSufficientSample.data.capacity() > sample.data.capacity())) {
-                smallestSufficientSample = sample;
-            }
 
-            // Grab the max size sample.
-            if (maxSample.data.capacity() < sample.data.capacity()) {
-                maxSample = sample;
+        private boolean push(SampleHolder sample) {
+            int capacity = sample.data.capacity();
+            if (mRetainedBytes.addAndGet(capacity) > MAX_RETAINED_BYTES) {
+                mRetainedBytes.addAndGet(-capacity);
+                return false;
             }
+            if (mCount.incrementAndGet() > MAX_RETAINED_SAMPLES_PER_SIZE_CLASS) {
+                mCount.decrementAndGet();
+                mRetainedBytes.addAndGet(-capacity);
+                return false;
+            }
+            mSamples.offerFirst(sample);
+            return true;
         }
-        SampleHolder sampleFromPool = smallestSufficientSample;
 
-        // If there's no sufficient sample, grab the maximum sample and resize it to size.
-        if (sampleFromPool == null) {
-            sampleFromPool = maxSample;
-            sampleFromPool.ensureSpaceForWrite(size);
+        private void clear() {
+            while (pop() != null) { }
+        }
+    }
+
+    public SamplePool() {
+        for (int i = 0; i < SIZE_CLASS_COUNT; ++i) {
+            mSizeClasses[i] = new SizeClass();
+        }
+        synchronized (sSamplePools) {
+            sSamplePools.add(this);
         }
-        mSamplePool.remove(sampleFromPool);
-        return sampleFromPool;
+    }
+
+    /**
+     * Acquires a sample with a buffer larger than size from the pool. Allocate new one if
+     * necessary.
+     */
+    public SampleHolder acquireSample(int size) {
+        int sizeClass = getSizeClassForAcquire(size);
+        int lastSizeClass = Math.min(SIZE_CLASS_COUNT - 1,
+                sizeClass + MAX_LARGER_SIZE_CLASS_LOOKUPS);
+        for (int i = sizeClass; i <= lastSizeClass; ++i) {
+            SampleHolder sample = mSizeClasses[i].pop();
+            if (sample != null) {
+                mHitCount.incrementAndGet();
+                return sample;
+            }
+        }
+        mMissCount.incrementAndGet();
+        int capacity = Math.max(1 << sizeClass, size);
+        SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        sample.ensureSpaceForWrite(capacity);
+        mAllocatedBytes.addAndGet(capacity);
+        return sample;
     }
 
     /**
      * Releases the sample back to the pool.
      */
-    public synchronized void releaseSample(SampleHolder sample) {
+    public void releaseSample(SampleHolder sample) {
+        if (sample.data == null || sample.data.capacity() == 0) {
+            return;
+        }
         sample.clearData();
-        mSamplePool.offerLast(sample);
+        mSizeClasses[getSizeClassForRelease(sample.data.capacity())].push(sample);
+    }
+
+    /**
+     * Returns the number of acquires which were served from the pool.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Returns the number of acquires which needed a new allocation.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Returns the total size of the buffers allocated by this pool in bytes.
+     */
+    public long getAllocatedBytes() {
+        return mAllocatedBytes.get();
+    }
+
+    /**
+     * Returns the total capacity of the samples which are retained by the pool in bytes.
+     */
+    public long getRetainedBytes() {
+        return mRetainedBytes.get();
+    }
+
+    /**
+     * Releases the large samples on moderate memory pressure, and all the samples on critical
+     * memory pressure.
+     */
+    @Override
+    public void performTrimMemory(int level) {
+        boolean critical = level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE;
+        for (int i = critical ? 0 : LARGE_SIZE_CLASS; i < SIZE_CLASS_COUNT; ++i) {
+            mSizeClasses[i].clear();
+        }
+    }
+
+    /**
+     * Trims all the pools which are currently alive.
+     */
+    public static void trimAllPools(int level) {
+        SamplePool[] pools;
+        synchronized (sSamplePools) {
+            pools = sSamplePools.toArray(new SamplePool[sSamplePools.size()]);
+        }
+        for (SamplePool pool : pools) {
+            pool.performTrimMemory(level);
+        }
+    }
+
+    // Returns the smallest size class whose samples can hold the given size.
+    private static int getSizeClassForAcquire(int size) {
+        if (size <= 1) {
+            return 0;
+        }
+        return Math.min(SIZE_CLASS_COUNT - 1, 32 - Integer.numberOfLeadingZeros(size - 1));
+    }
+
+    // Returns the largest size class which the given capacity can serve.
+    private static int getSizeClassForRelease(int capacity) {
+        return Math.min(SIZE_CLASS_COUNT - 1, 31 - Integer.numberOfLeadingZeros(capacity));
     }
 }
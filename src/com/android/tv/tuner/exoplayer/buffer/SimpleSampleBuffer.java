@@ -123,34 +123,21 @@ public class SimpleSampleBuffer implements BufferManager.SampleBuffer {
         return result;
     }
 
+    @Override
+    public SampleHolder acquireSample(int size) {
+        return mSamplePool.acquireSample(size);
+    }
+
     @Override
     public void writeSample(int index, SampleHolder sample,
             ConditionVariable conditionVariable) throws IOException {
-        sample.data.position(0).limit(sample.size);
-        SampleHolder sampleToQueue = mSamplePool.acquireSample(sample.size);
-        sampleToQueue.size = sample.size;
-        sampleToQueue.clearData();
-        sampleToQueue.data.put(sample.data);
-        sampleToQueue.timeUs = sample.timeUs;
-        sampleToQueue.flags = sample.flags;
-
         synchronized (this) {
             if (mPlayingSampleQueues[index] != null) {
-                mPlayingSampleQueues[index].queueSample(sampleToQueue);
+                mPlayingSampleQueues[index].queueSample(sample);
+                return;
             }
         }
-    }
-
-    @Override
-    public boolean isWriteSpeedSlow(int sampleSize, long durationNs) {
-        // Since SimpleSampleBuffer write samples only to memory (not to physical storage),
-        // write speed is always fine.
-        return false;
-    }
-
-    @Override
-    public void handleWriteSpeedSlow() {
-        // no-op
+        mSamplePool.releaseSample(sample);
     }
 
     @Override
@@ -173,6 +160,11 @@ public class SimpleSampleBuffer implements BufferManager.SampleBuffer {
         // Not used.
     }
 
+    @Override
+    public void setKeyFrameOnly(boolean keyFrameOnly) {
+        // Not used.
+    }
+
     @Override
     public void release() {
         // Not used.
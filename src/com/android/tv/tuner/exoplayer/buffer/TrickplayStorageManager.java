@@ -25,7 +25,6 @@ import android.util.Pair;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.SortedMap;
 
 /**
  * Manages Trickplay storage.
@@ -122,7 +121,16 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
     }
 
     @Override
-    public void writeIndexFile(String trackName, SortedMap<Long, SampleChunk> index) {
+    public void writeIndexFile(String trackName, ChunkIndex index) {
+    }
+
+    @Override
+    public KeyFrameIndex readKeyFrameIndexFile(String trackId) {
+        return new KeyFrameIndex();
+    }
+
+    @Override
+    public void writeKeyFrameIndexFile(String trackName, KeyFrameIndex index) {
     }
 
 }
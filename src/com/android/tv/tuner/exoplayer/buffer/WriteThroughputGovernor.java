@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.VisibleForTesting;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.io.File;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Map;
+
+/**
+ * Tracks the write throughput of a storage device continuously, and decides how much the writes
+ * to the device should be reduced.
+ * <p>
+ * The throughput is an exponentially weighted moving average of the bandwidth which is measured
+ * for every {@code MINIMUM_WRITE_SIZE_PER_UPDATE} bytes of writes. The pressure goes up when the
+ * average goes under a threshold, and goes down only when the average gets well over the
+ * threshold in order not to flip between the pressures.
+ * <p>
+ * A governor is shared by all the writers to the same storage device, which can be obtained by
+ * {@link #forStorage}, since they compete for the bandwidth of the device.
+ */
+public class WriteThroughputGovernor {
+    private static final String TAG = "WriteThroughputGovernor";
+    private static final boolean DEBUG = false;
+
+    @IntDef({WRITE_PRESSURE_NONE, WRITE_PRESSURE_MODERATE, WRITE_PRESSURE_HIGH})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface WritePressure {}
+
+    /**
+     * The storage is fast enough for all the writes.
+     */
+    public static final int WRITE_PRESSURE_NONE = 0;
+
+    /**
+     * The storage is getting slow. Chunks are created less often.
+     */
+    public static final int WRITE_PRESSURE_MODERATE = 1;
+
+    /**
+     * The storage is too slow for all the writes. The timeshift window is shrunk and the tracks
+     * which are not played are not buffered.
+     */
+    public static final int WRITE_PRESSURE_HIGH = 2;
+
+    private static final long MINIMUM_WRITE_SIZE_PER_UPDATE = 1024 * 1024;  // 1 Megabyte
+    private static final int MINIMUM_WRITE_SIZE_FOR_SPEED_CHECK = 15 * 1024;
+    private static final float EWMA_WEIGHT = 0.25f;
+    private static final float MODERATE_PRESSURE_SPEED_MBPS = 6.0f;
+    private static final float HIGH_PRESSURE_SPEED_MBPS = 3.0f;
+    // The pressure is relieved when the speed gets over the threshold by this ratio.
+    private static final float PRESSURE_RELIEF_RATIO = 1.5f;
+
+    // Maps from the ID of a storage device to the governor of the device.
+    // @GuardedBy("sGovernors")
+    private static final Map<Long, WriteThroughputGovernor> sGovernors = new ArrayMap<>();
+
+    private int mMinWriteSizeForSpeedCheck = MINIMUM_WRITE_SIZE_FOR_SPEED_CHECK;
+    private long mWriteSize;
+    private long mWriteTimeNs;
+    private float mAverageMbps;
+    private volatile @WritePressure int mWritePressure = WRITE_PRESSURE_NONE;
+
+    /**
+     * Returns the governor of the storage device which the directory belongs to.
+     *
+     * @param dir a directory of the storage device. It doesn't need to exist yet.
+     */
+    public static WriteThroughputGovernor forStorage(File dir) {
+        Long deviceId = getDeviceId(dir);
+        if (deviceId == null) {
+            return new WriteThroughputGovernor();
+        }
+        synchronized (sGovernors) {
+            WriteThroughputGovernor governor = sGovernors.get(deviceId);
+            if (governor == null) {
+                governor = new WriteThroughputGovernor();
+                sGovernors.put(deviceId, governor);
+            }
+            return governor;
+        }
+    }
+
+    // Returns the ID of the device containing the file or its nearest existing ancestor, or null
+    // if it cannot be known.
+    private static Long getDeviceId(File file) {
+        File existingFile = file.getAbsoluteFile();
+        while (existingFile != null && !existingFile.exists()) {
+            existingFile = existingFile.getParentFile();
+        }
+        if (existingFile == null) {
+            return null;
+        }
+        try {
+            return Os.stat(existingFile.getPath()).st_dev;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Failed to get the storage device of " + existingFile, e);
+            return null;
+        }
+    }
+
+    @VisibleForTesting
+    WriteThroughputGovernor() {
+    }
+
+    /**
+     * Adds a disk write to the statistics.
+     *
+     * @param size the number of bytes which are written
+     * @param timeNs the time which the write took in nano seconds
+     */
+    public synchronized void addWrite(long size, long timeNs) {
+        if (size < mMinWriteSizeForSpeedCheck) {
+            // Small writes are dominated by the overhead of a system call.
+            return;
+        }
+        mWriteSize += size;
+        mWriteTimeNs += timeNs;
+        if (mWriteSize < MINIMUM_WRITE_SIZE_PER_UPDATE || mWriteTimeNs <= 0) {
+            return;
+        }
+        float mbps = (float) mWriteSize * 1000 / mWriteTimeNs;
+        mWriteSize = 0;
+        mWriteTimeNs = 0;
+        mAverageMbps = mAverageMbps == 0.0f ? mbps
+                : EWMA_WEIGHT * mbps + (1 - EWMA_WEIGHT) * mAverageMbps;
+        int pressure = calculatePressure(mWritePressure, mAverageMbps);
+        if (pressure != mWritePressure) {
+            Log.w(TAG, "Write pressure changed: " + mWritePressure + " -> " + pressure + " at "
+                    + mAverageMbps + "MBps");
+            mWritePressure = pressure;
+        } else if (DEBUG) {
+            Log.d(TAG, "Measured disk write performance: " + mAverageMbps + "MBps");
+        }
+    }
+
+    private static int calculatePressure(@WritePressure int pressure, float mbps) {
+        if (mbps < HIGH_PRESSURE_SPEED_MBPS) {
+            return WRITE_PRESSURE_HIGH;
+        }
+        if (mbps < MODERATE_PRESSURE_SPEED_MBPS) {
+            if (pressure == WRITE_PRESSURE_HIGH
+                    && mbps < HIGH_PRESSURE_SPEED_MBPS * PRESSURE_RELIEF_RATIO) {
+                return WRITE_PRESSURE_HIGH;
+            }
+            return WRITE_PRESSURE_MODERATE;
+        }
+        if (pressure != WRITE_PRESSURE_NONE
+                && mbps < MODERATE_PRESSURE_SPEED_MBPS * PRESSURE_RELIEF_RATIO) {
+            return WRITE_PRESSURE_MODERATE;
+        }
+        return WRITE_PRESSURE_NONE;
+    }
+
+    /**
+     * Returns the current write pressure.
+     */
+    public @WritePressure int getWritePressure() {
+        return mWritePressure;
+    }
+
+    /**
+     * Returns the average write bandwidth in MBps. If it is not available yet,
+     * returns {@code -1.0f}.
+     */
+    public synchronized float getAverageMbps() {
+        return mAverageMbps == 0.0f ? -1.0f : mAverageMbps;
+    }
+
+    /**
+     * Sets minimum write size for write speed check.
+     */
+    public synchronized void setMinimumWriteSizeForSpeedCheck(int size) {
+        mMinWriteSizeForSpeedCheck = size;
+    }
+}
@@ -24,6 +24,7 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.ConditionVariable;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -47,6 +48,7 @@ import com.android.tv.tuner.data.PsipData;
 import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.source.FileTsStreamer;
 import com.android.tv.tuner.source.TsDataSource;
+import com.android.tv.tuner.source.TsDataSourceManager;
 import com.android.tv.tuner.source.TsStreamer;
 import com.android.tv.tuner.source.TunerTsStreamer;
 import com.android.tv.tuner.tvinput.ChannelDataManager;
@@ -58,8 +60,11 @@ import junit.framework.Assert;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A fragment for scanning channels.
@@ -81,8 +86,17 @@ public class ScanFragment extends SetupFragment {
 
     private static final long CHANNEL_SCAN_SHOW_DELAY_MS = 10000;
     private static final long CHANNEL_SCAN_PERIOD_MS = 4000;
+    // PAT is repeated at least every 100ms. If no PAT arrives during this period after the signal
+    // is locked, the frequency has no channel.
+    private static final long PAT_WAIT_PERIOD_MS = 500;
+    // TVCT and CVCT are repeated at least every 400ms. If VCT doesn't complete during this period
+    // after all the PMTs arrive, the frequency has no VCT.
+    private static final long VCT_WAIT_PERIOD_MS = 1000;
     private static final long SHOW_PROGRESS_DIALOG_DELAY_MS = 300;
 
+    // The number of the file streamers which scan the locally stored TS streams in parallel.
+    private static final int FILE_SCAN_WORKER_COUNT = 2;
+
     // Build channels out of the locally stored TS streams.
     private static final boolean SCAN_LOCAL_STREAMS = true;
 
@@ -234,34 +248,47 @@ public class ScanFragment extends SetupFragment {
     }
 
     private class ChannelScanTask extends AsyncTask<Void, Integer, Void>
-            implements EventDetector.EventListener, ChannelDataManager.ChannelScanListener {
+            implements ChannelDataManager.ChannelScanListener {
         private static final int MAX_PROGRESS = 100;
 
         private final Activity mActivity;
         private final int mChannelMapId;
-        private final TsStreamer mScanTsStreamer;
-        private final TsStreamer mFileTsStreamer;
+        private final List<TunerHal> mTunerHals = new ArrayList<>();
+        private final List<ScanWorker> mScanWorkers = new ArrayList<>();
         private final ConditionVariable mConditionStopped;
 
         private final List<ChannelScanFileParser.ScanChannel> mScanChannelList = new ArrayList<>();
+        private final Queue<ChannelScanFileParser.ScanChannel> mTunerScanChannels =
+                new ConcurrentLinkedQueue<>();
+        private final Queue<ChannelScanFileParser.ScanChannel> mFileScanChannels =
+                new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mScannedChannelCount = new AtomicInteger();
+        private final ScanTimingStats mScanTimingStats = new ScanTimingStats();
         private boolean mIsCanceled;
         private boolean mIsFinished;
         private ProgressDialog mFinishingProgressDialog;
-        private CountDownLatch mLatch;
+        private long mStartMs;
 
         public ChannelScanTask(int channelMapId) {
             mActivity = getActivity();
             mChannelMapId = channelMapId;
-            if (FAKE_MODE) {
-                mScanTsStreamer = new FakeTsStreamer(this);
-            } else {
-                TunerHal hal = TunerHal.createInstance(mActivity.getApplicationContext());
-                if (hal == null) {
+            if (!FAKE_MODE) {
+                // The tuner kept tuned for a prefetch of the playback is needed for the scan.
+                TsDataSourceManager.releaseStandbyTuner();
+                // Opens as many tuners as possible, so that frequencies are scanned in parallel.
+                Context context = mActivity.getApplicationContext();
+                int tunerCount = Math.max(TunerHal.getTunerCount(context), 1);
+                for (int i = 0; i < tunerCount; ++i) {
+                    TunerHal hal = TunerHal.createInstance(context);
+                    if (hal == null) {
+                        break;
+                    }
+                    mTunerHals.add(hal);
+                }
+                if (mTunerHals.isEmpty()) {
                     throw new RuntimeException("Failed to open a DVB device");
                 }
-                mScanTsStreamer = new TunerTsStreamer(hal, this);
             }
-            mFileTsStreamer = SCAN_LOCAL_STREAMS ? new FileTsStreamer(this) : null;
             mConditionStopped = new ConditionVariable();
             mChannelDataManager.setChannelScanListener(this, new Handler());
         }
@@ -332,40 +359,35 @@ public class ScanFragment extends SetupFragment {
             if (DEBUG) Log.i(TAG, "Channel scan starting");
             mChannelDataManager.notifyScanStarted();
 
-            long startMs = System.currentTimeMillis();
-            int i = 1;
+            mStartMs = System.currentTimeMillis();
+            mTunerScanChannels.clear();
+            mFileScanChannels.clear();
             for (ChannelScanFileParser.ScanChannel scanChannel : mScanChannelList) {
-                int frequency = scanChannel.frequency;
-                String modulation = scanChannel.modulation;
-                Log.i(TAG, "Tuning to " + frequency + " " + modulation);
-
-                TsStreamer streamer = getStreamer(scanChannel.type);
-                Assert.assertNotNull(streamer);
-                if (streamer.startStream(scanChannel)) {
-                    mLatch = new CountDownLatch(1);
-                    try {
-                        mLatch.await(CHANNEL_SCAN_PERIOD_MS, TimeUnit.MILLISECONDS);
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "The current thread is interrupted during scanChannels(). " +
-                                "The TS stream is stopped earlier than expected.", e);
-                    }
-                    streamer.stopStream();
-
-                    addChannelsWithoutVct(scanChannel);
-                    if (System.currentTimeMillis() > startMs + CHANNEL_SCAN_SHOW_DELAY_MS
-                            && !mChannelListVisible) {
-                        maybeSetChannelListVisible();
-                    }
-                }
-                if (mConditionStopped.block(-1)) {
-                    break;
+                Queue<ChannelScanFileParser.ScanChannel> queue = getScanQueue(scanChannel.type);
+                Assert.assertNotNull(queue);
+                queue.add(scanChannel);
+            }
+            createScanWorkers();
+            // Each worker takes the next frequency from the queue of its type whenever it gets
+            // idle, so a slow frequency does not hold the others back.
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < mScanWorkers.size(); ++i) {
+                Thread thread = new Thread(mScanWorkers.get(i), "ChannelScanWorker-" + i);
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "The current thread is interrupted during scanChannels().", e);
+                    stopScan();
                 }
-                onProgressUpdate(MAX_PROGRESS * i++ / mScanChannelList.size());
             }
-            if (mScanTsStreamer instanceof TunerTsStreamer) {
-                AutoCloseableUtils.closeQuietly(
-                        ((TunerTsStreamer) mScanTsStreamer).getTunerHal());
+            for (ScanWorker worker : mScanWorkers) {
+                worker.release();
             }
+            mScanTimingStats.log();
             mChannelDataManager.notifyScanCompleted();
             if (!mConditionStopped.block(-1)) {
                 publishProgress(MAX_PROGRESS);
@@ -373,14 +395,56 @@ public class ScanFragment extends SetupFragment {
             if (DEBUG) Log.i(TAG, "Channel scan ended");
         }
 
+        // Each streamer has its own ring buffer, so a worker is created only for a frequency to
+        // scan. The tuners which are not needed are closed.
+        private void createScanWorkers() {
+            int tunerWorkerCount = mTunerScanChannels.size();
+            if (FAKE_MODE && tunerWorkerCount > 0) {
+                mScanWorkers.add(new ScanWorker(Channel.TYPE_TUNER, null));
+            }
+            for (TunerHal hal : mTunerHals) {
+                if (mScanWorkers.size() < tunerWorkerCount) {
+                    mScanWorkers.add(new ScanWorker(Channel.TYPE_TUNER, hal));
+                } else {
+                    AutoCloseableUtils.closeQuietly(hal);
+                }
+            }
+            mTunerHals.clear();
+            int fileWorkerCount = Math.min(FILE_SCAN_WORKER_COUNT, mFileScanChannels.size());
+            for (int i = 0; i < fileWorkerCount; ++i) {
+                mScanWorkers.add(new ScanWorker(Channel.TYPE_FILE, null));
+            }
+        }
 
-        private void addChannelsWithoutVct(ChannelScanFileParser.ScanChannel scanChannel) {
+        private Queue<ChannelScanFileParser.ScanChannel> getScanQueue(int type) {
+            switch (type) {
+                case Channel.TYPE_TUNER:
+                    return mTunerScanChannels;
+                case Channel.TYPE_FILE:
+                    return mFileScanChannels;
+                default:
+                    return null;
+            }
+        }
+
+        private void onChannelScanned() {
+            int scanned = mScannedChannelCount.incrementAndGet();
+            if (!mConditionStopped.block(-1)) {
+                publishProgress(MAX_PROGRESS * scanned / mScanChannelList.size());
+            }
+            if (!mChannelListVisible
+                    && System.currentTimeMillis() > mStartMs + CHANNEL_SCAN_SHOW_DELAY_MS) {
+                maybeSetChannelListVisible();
+            }
+        }
+
+        private void addChannelsWithoutVct(TsStreamer streamer,
+                ChannelScanFileParser.ScanChannel scanChannel) {
             if (scanChannel.radioFrequencyNumber == null
-                    || !(mScanTsStreamer instanceof TunerTsStreamer)) {
+                    || !(streamer instanceof TunerTsStreamer)) {
                 return;
             }
-            for (TunerChannel tunerChannel
-                    : ((TunerTsStreamer) mScanTsStreamer).getMalFormedChannels()) {
+            for (TunerChannel tunerChannel : ((TunerTsStreamer) streamer).getMalFormedChannels()) {
                 if ((tunerChannel.getVideoPid() != TunerChannel.INVALID_PID)
                         && (tunerChannel.getAudioPid() != TunerChannel.INVALID_PID)) {
                     tunerChannel.setFrequency(scanChannel.frequency);
@@ -395,31 +459,11 @@ public class ScanFragment extends SetupFragment {
             }
         }
 
-        private TsStreamer getStreamer(int type) {
-            switch (type) {
-                case Channel.TYPE_TUNER:
-                    return mScanTsStreamer;
-                case Channel.TYPE_FILE:
-                    return mFileTsStreamer;
-                default:
-                    return null;
-            }
-        }
-
-        @Override
-        public void onEventDetected(TunerChannel channel, List<PsipData.EitItem> items) {
+        private void onEventDetected(TunerChannel channel, List<PsipData.EitItem> items) {
             mChannelDataManager.notifyEventDetected(channel, items);
         }
 
-        @Override
-        public void onChannelScanDone() {
-            if (mLatch != null) {
-                mLatch.countDown();
-            }
-        }
-
-        @Override
-        public void onChannelDetected(TunerChannel channel, boolean channelArrivedAtFirstTime) {
+        private void onChannelDetected(TunerChannel channel, boolean channelArrivedAtFirstTime) {
             if (channelArrivedAtFirstTime) {
                 Log.i(TAG, "Found channel " + channel);
             }
@@ -457,6 +501,150 @@ public class ScanFragment extends SetupFragment {
             onActionClick(ACTION_CATEGORY, mIsCanceled ? ACTION_CANCEL : ACTION_FINISH);
             mChannelScanTask = null;
         }
+
+        /**
+         * Scans the frequencies of a type one by one with its own {@link TsStreamer}.
+         */
+        private class ScanWorker implements Runnable, EventDetector.EventListener,
+                EventDetector.ScanStageListener {
+            private final int mType;
+            private final TsStreamer mStreamer;
+            private volatile CountDownLatch mPatLatch;
+            private volatile CountDownLatch mScanDoneLatch;
+            // Counted down when either all the PMTs are parsed or the scan is done.
+            private volatile CountDownLatch mPmtOrScanDoneLatch;
+
+            ScanWorker(int type, TunerHal hal) {
+                mType = type;
+                if (type == Channel.TYPE_FILE) {
+                    mStreamer = new FileTsStreamer(this);
+                } else if (FAKE_MODE) {
+                    mStreamer = new FakeTsStreamer(this);
+                } else {
+                    TunerTsStreamer streamer = new TunerTsStreamer(hal, this);
+                    streamer.setScanStageListener(this);
+                    mStreamer = streamer;
+                }
+            }
+
+            @Override
+            public void run() {
+                Queue<ChannelScanFileParser.ScanChannel> queue = getScanQueue(mType);
+                ChannelScanFileParser.ScanChannel scanChannel;
+                while (!mConditionStopped.block(-1) && (scanChannel = queue.poll()) != null) {
+                    scan(scanChannel);
+                    onChannelScanned();
+                }
+            }
+
+            /**
+             * Scans a frequency in the stages of tune, PAT and PSIP. A frequency without signal or
+             * PAT is given up as soon as it is known, and the scan of a frequency is done as soon
+             * as all the channel information arrives. Once all the PMTs arrive, VCT is waited for
+             * only shortly, so that a stream without VCT doesn't take the whole scan period.
+             */
+            private void scan(ChannelScanFileParser.ScanChannel scanChannel) {
+                Log.i(TAG, "Tuning to " + scanChannel.frequency + " " + scanChannel.modulation);
+                // The latches are created before the stream starts not to miss early events.
+                mPatLatch = new CountDownLatch(1);
+                mScanDoneLatch = new CountDownLatch(1);
+                mPmtOrScanDoneLatch = new CountDownLatch(1);
+                long stageStartMs = SystemClock.elapsedRealtime();
+                boolean started = mStreamer.startStream(scanChannel);
+                long lockedMs = SystemClock.elapsedRealtime();
+                // Only the tuner reports the intermediate stages.
+                boolean hasStages = mStreamer instanceof TunerTsStreamer;
+                if (hasStages) {
+                    mScanTimingStats.addStageTime(ScanTimingStats.STAGE_TUNE,
+                            lockedMs - stageStartMs);
+                }
+                if (!started) {
+                    if (hasStages) {
+                        mScanTimingStats.addResult(ScanTimingStats.RESULT_NO_SIGNAL);
+                    }
+                    return;
+                }
+                try {
+                    if (!hasStages) {
+                        mScanDoneLatch.await(CHANNEL_SCAN_PERIOD_MS, TimeUnit.MILLISECONDS);
+                    } else if (!mPatLatch.await(PAT_WAIT_PERIOD_MS, TimeUnit.MILLISECONDS)) {
+                        mScanTimingStats.addResult(ScanTimingStats.RESULT_NO_PAT);
+                    } else {
+                        stageStartMs = SystemClock.elapsedRealtime();
+                        mScanTimingStats.addStageTime(ScanTimingStats.STAGE_PAT,
+                                stageStartMs - lockedMs);
+                        long deadlineMs = lockedMs + CHANNEL_SCAN_PERIOD_MS;
+                        if (!mPmtOrScanDoneLatch.await(deadlineMs - stageStartMs,
+                                TimeUnit.MILLISECONDS)) {
+                            mScanTimingStats.addResult(ScanTimingStats.RESULT_TIMED_OUT);
+                        } else if (mScanDoneLatch.await(Math.min(VCT_WAIT_PERIOD_MS,
+                                deadlineMs - SystemClock.elapsedRealtime()),
+                                TimeUnit.MILLISECONDS)) {
+                            mScanTimingStats.addStageTime(ScanTimingStats.STAGE_PSIP,
+                                    SystemClock.elapsedRealtime() - stageStartMs);
+                            mScanTimingStats.addResult(ScanTimingStats.RESULT_COMPLETED);
+                        } else {
+                            // All the PMTs arrived, but VCT didn't. The channels without VCT
+                            // are added below.
+                            mScanTimingStats.addResult(
+                                    SystemClock.elapsedRealtime() < deadlineMs
+                                            ? ScanTimingStats.RESULT_NO_VCT
+                                            : ScanTimingStats.RESULT_TIMED_OUT);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "The current thread is interrupted during scan(). " +
+                            "The TS stream is stopped earlier than expected.", e);
+                }
+                mStreamer.stopStream();
+                addChannelsWithoutVct(mStreamer, scanChannel);
+            }
+
+            private void release() {
+                if (mStreamer instanceof TunerTsStreamer) {
+                    AutoCloseableUtils.closeQuietly(((TunerTsStreamer) mStreamer).getTunerHal());
+                }
+            }
+
+            @Override
+            public void onEventDetected(TunerChannel channel, List<PsipData.EitItem> items) {
+                ChannelScanTask.this.onEventDetected(channel, items);
+            }
+
+            @Override
+            public void onChannelScanDone() {
+                CountDownLatch latch = mScanDoneLatch;
+                if (latch != null) {
+                    latch.countDown();
+                }
+                latch = mPmtOrScanDoneLatch;
+                if (latch != null) {
+                    latch.countDown();
+                }
+            }
+
+            @Override
+            public void onPatDetected() {
+                CountDownLatch latch = mPatLatch;
+                if (latch != null) {
+                    latch.countDown();
+                }
+            }
+
+            @Override
+            public void onAllPmtItemsParsed() {
+                CountDownLatch latch = mPmtOrScanDoneLatch;
+                if (latch != null) {
+                    latch.countDown();
+                }
+            }
+
+            @Override
+            public void onChannelDetected(TunerChannel channel,
+                    boolean channelArrivedAtFirstTime) {
+                ChannelScanTask.this.onChannelDetected(channel, channelArrivedAtFirstTime);
+            }
+        }
     }
 
     private static class FakeTsStreamer implements TsStreamer {
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.setup;
+
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Collects the time spent in each stage of scanning a frequency as histograms, and the results
+ * of the frequencies.
+ */
+public class ScanTimingStats {
+    private static final String TAG = "ScanTimingStats";
+
+    @IntDef({STAGE_TUNE, STAGE_PAT, STAGE_PSIP})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface ScanStage {}
+
+    /**
+     * From a tune request to the lock of the signal, or to the failure of the lock.
+     */
+    public static final int STAGE_TUNE = 0;
+
+    /**
+     * From the lock of the signal to the arrival of PAT.
+     */
+    public static final int STAGE_PAT = 1;
+
+    /**
+     * From the arrival of PAT to the arrival of all the PMTs and VCT sections.
+     */
+    public static final int STAGE_PSIP = 2;
+
+    private static final String[] STAGE_NAMES = {"tune", "PAT", "PSIP"};
+
+    @IntDef({RESULT_COMPLETED, RESULT_NO_SIGNAL, RESULT_NO_PAT, RESULT_TIMED_OUT,
+            RESULT_NO_VCT})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface ScanResult {}
+
+    /**
+     * All the channel information of a frequency arrived.
+     */
+    public static final int RESULT_COMPLETED = 0;
+
+    /**
+     * The tuner could not lock the signal of a frequency.
+     */
+    public static final int RESULT_NO_SIGNAL = 1;
+
+    /**
+     * The signal was locked, but no PAT arrived in time.
+     */
+    public static final int RESULT_NO_PAT = 2;
+
+    /**
+     * The scan period of a frequency was over before all the channel information arrived.
+     */
+    public static final int RESULT_TIMED_OUT = 3;
+
+    /**
+     * PAT and all the PMTs arrived, but no complete VCT arrived shortly after them. The channels
+     * are made from the PMTs.
+     */
+    public static final int RESULT_NO_VCT = 4;
+
+    private static final String[] RESULT_NAMES =
+            {"completed", "no signal", "no PAT", "timed out", "no VCT"};
+
+    // The upper bounds of the histogram buckets. The last bucket has no upper bound.
+    private static final long[] BUCKET_UPPER_BOUNDS_MS = {100, 200, 400, 800, 1600, 3200, 6400};
+
+    private final int[][] mHistograms =
+            new int[STAGE_NAMES.length][BUCKET_UPPER_BOUNDS_MS.length + 1];
+    private final long[] mTotalTimesMs = new long[STAGE_NAMES.length];
+    private final int[] mResultCounts = new int[RESULT_NAMES.length];
+
+    /**
+     * Adds the time which a stage took.
+     */
+    public synchronized void addStageTime(@ScanStage int stage, long timeMs) {
+        int bucket = 0;
+        while (bucket < BUCKET_UPPER_BOUNDS_MS.length && timeMs >= BUCKET_UPPER_BOUNDS_MS[bucket]) {
+            ++bucket;
+        }
+        ++mHistograms[stage][bucket];
+        mTotalTimesMs[stage] += timeMs;
+    }
+
+    /**
+     * Adds the result of scanning a frequency.
+     */
+    public synchronized void addResult(@ScanResult int result) {
+        ++mResultCounts[result];
+    }
+
+    /**
+     * Logs the histograms and the results collected so far.
+     */
+    public synchronized void log() {
+        StringBuilder sb = new StringBuilder("Scan results:");
+        for (int i = 0; i < RESULT_NAMES.length; ++i) {
+            sb.append(' ').append(RESULT_NAMES[i]).append('=').append(mResultCounts[i]);
+        }
+        Log.i(TAG, sb.toString());
+        for (int stage = 0; stage < STAGE_NAMES.length; ++stage) {
+            sb.setLength(0);
+            sb.append("Stage ").append(STAGE_NAMES[stage]).append(": total=")
+                    .append(mTotalTimesMs[stage]).append("ms");
+            for (int bucket = 0; bucket < mHistograms[stage].length; ++bucket) {
+                sb.append(bucket < BUCKET_UPPER_BOUNDS_MS.length
+                        ? " <" + BUCKET_UPPER_BOUNDS_MS[bucket] + "ms="
+                        : " >=" + BUCKET_UPPER_BOUNDS_MS[bucket - 1] + "ms=");
+                sb.append(mHistograms[stage][bucket]);
+            }
+            Log.i(TAG, sb.toString());
+        }
+    }
+}
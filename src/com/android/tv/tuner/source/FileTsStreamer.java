@@ -17,8 +17,8 @@
 package com.android.tv.tuner.source;
 
 import android.os.Environment;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
-import android.util.SparseBooleanArray;
 
 import com.google.android.exoplayer.C;
 import com.google.android.exoplayer.upstream.DataSpec;
@@ -28,11 +28,14 @@ import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.ts.TsParser;
 import com.android.tv.tuner.tvinput.EventDetector;
 import com.android.tv.tuner.tvinput.FileSourceEventDetector;
+import com.android.tv.util.Clock;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -57,13 +60,12 @@ public class FileTsStreamer implements TsStreamer {
     // Virtual frequency base used for file-based source
     public static final int FREQ_BASE = 100;
 
-    private final Object mCircularBufferMonitor = new Object();
-    private final byte[] mCircularBuffer = new byte[CIRCULAR_BUFFER_SIZE];
+    private final Object mStreamingStateLock = new Object();
+    private final TsRingBuffer mCircularBuffer = new TsRingBuffer(CIRCULAR_BUFFER_SIZE, true);
     private final FileSourceEventDetector mEventDetector;
+    private final boolean mPacedByPcr;
 
-    private long mBytesFetched;
-    private long mLastReadPosition;
-    private boolean mStreaming;
+    private volatile boolean mStreaming;
 
     private Thread mStreamingThread;
     private StreamProvider mSource;
@@ -121,24 +123,36 @@ public class FileTsStreamer implements TsStreamer {
      * @param eventListener the listener for channel & program information
      */
     public FileTsStreamer(EventDetector.EventListener eventListener) {
+        this(eventListener, false);
+    }
+
+    /**
+     * Creates {@link TsStreamer} for scanning & playing MPEG-2 TS file.
+     * @param eventListener the listener for channel & program information
+     * @param pacedByPcr {@code true} to provide the stream at the rate of the broadcast according
+     *            to PCR, {@code false} to provide it as fast as it's consumed
+     */
+    public FileTsStreamer(EventDetector.EventListener eventListener, boolean pacedByPcr) {
         mEventDetector = new FileSourceEventDetector(eventListener);
+        mPacedByPcr = pacedByPcr;
     }
 
     @Override
     public boolean startStream(ScanChannel channel) {
         String filepath = new File(FILE_DIR, channel.filename).getAbsolutePath();
-        mSource = new StreamProvider(filepath);
+        mSource = new StreamProvider(filepath, mPacedByPcr, Clock.SYSTEM);
         if (!mSource.isReady()) {
             return false;
         }
         mEventDetector.start(mSource, FileSourceEventDetector.ALL_PROGRAM_NUMBERS);
         mSource.addPidFilter(TsParser.ATSC_SI_BASE_PID);
         mSource.addPidFilter(TsParser.PAT_PID);
-        synchronized (mCircularBufferMonitor) {
+        synchronized (mStreamingStateLock) {
             if (mStreaming) {
                 return true;
             }
             mStreaming = true;
+            mCircularBuffer.reset();
         }
 
         mStreamingThread = new StreamingThread();
@@ -150,7 +164,7 @@ public class FileTsStreamer implements TsStreamer {
     @Override
     public boolean startStream(TunerChannel channel) {
         Log.i(TAG, "tuneToChannel with: " + channel.getFilepath());
-        mSource = new StreamProvider(channel.getFilepath());
+        mSource = new StreamProvider(channel.getFilepath(), mPacedByPcr, Clock.SYSTEM);
         if (!mSource.isReady()) {
             return false;
         }
@@ -162,11 +176,12 @@ public class FileTsStreamer implements TsStreamer {
         mSource.addPidFilter(channel.getPcrPid());
         mSource.addPidFilter(TsParser.ATSC_SI_BASE_PID);
         mSource.addPidFilter(TsParser.PAT_PID);
-        synchronized (mCircularBufferMonitor) {
+        synchronized (mStreamingStateLock) {
             if (mStreaming) {
                 return true;
             }
             mStreaming = true;
+            mCircularBuffer.reset();
         }
 
         mStreamingThread = new StreamingThread();
@@ -181,9 +196,9 @@ public class FileTsStreamer implements TsStreamer {
      */
     @Override
     public void stopStream() {
-        synchronized (mCircularBufferMonitor) {
+        synchronized (mStreamingStateLock) {
             mStreaming = false;
-            mCircularBufferMonitor.notify();
+            mCircularBuffer.close();
         }
 
         try {
@@ -205,37 +220,73 @@ public class FileTsStreamer implements TsStreamer {
      * @return the current buffered position
      */
     public long getBufferedPosition() {
-        synchronized (mCircularBufferMonitor) {
-            return mBytesFetched;
-        }
+        return mCircularBuffer.getWritePosition();
     }
 
     /**
      * Provides MPEG-2 transport stream from a local file. Stream can be filtered by PID.
+     * <p>
+     * The file is read in windows to a direct buffer which is reused, and the packets which pass
+     * the filter are copied from the window to the output directly. At the end of the file, it
+     * continues from the beginning. Optionally the output is paced by PCR as the broadcast would
+     * be.
      */
     public static class StreamProvider {
-        private final String mFilepath;
-        private final SparseBooleanArray mPids = new SparseBooleanArray();
-        private final byte[] mPreBuffer = new byte[READ_BUFFER_SIZE];
+        // A multiple of TS packet size, so that the windows start at packet boundaries.
+        private static final int WINDOW_SIZE = TS_PACKET_SIZE * 1024; // ~188KB
+        private static final int PCR_HZ = 90000;
+        // PCR base is a 33 bits counter which wraps around.
+        private static final long PCR_BASE_MASK = (1L << 33) - 1;
+        // A PCR jump larger than this is regarded as a discontinuity.
+        private static final long MAX_PCR_GAP = PCR_HZ;
 
-        private BufferedInputStream mInputStream;
-
-        private StreamProvider(String filepath) {
+        private final String mFilepath;
+        private final boolean mPacedByPcr;
+        private final Clock mClock;
+        private final boolean[] mPids = new boolean[0x2000];
+        private final ByteBuffer mWindow = ByteBuffer.allocateDirect(WINDOW_SIZE);
+        private int mPidCount;
+
+        private FileChannel mChannel;
+        private long mFileSize;
+        // The position of the window in the file.
+        private long mWindowStart;
+        // The number of bytes passed over since a packet was output last time. When it exceeds
+        // the file size, the file has no packet to output.
+        private long mSkippedBytes;
+
+        // The PID of the PCR which paces the output, and the wall clock time matched to a PCR.
+        private int mPcrPid = -1;
+        private long mLastPcr = -1;
+        private long mPcrSinceBase;
+        private long mBaseTimeMs;
+
+        @VisibleForTesting
+        StreamProvider(String filepath, boolean pacedByPcr, Clock clock) {
             mFilepath = filepath;
+            mPacedByPcr = pacedByPcr;
+            mClock = clock;
+            mWindow.limit(0);
             open(filepath);
         }
 
         private void open(String filepath) {
             try {
-                mInputStream = new BufferedInputStream(new FileInputStream(filepath));
+                mChannel = new FileInputStream(filepath).getChannel();
+                mFileSize = mChannel.size();
+                if (mFileSize < TS_PACKET_SIZE) {
+                    Log.e(TAG, "Too short stream file: " + filepath);
+                    close();
+                }
             } catch (IOException e) {
                 Log.e(TAG, "Error opening input stream", e);
-                mInputStream = null;
+                mChannel = null;
             }
         }
 
-        private boolean isReady() {
-            return mInputStream != null;
+        @VisibleForTesting
+        boolean isReady() {
+            return mChannel != null;
         }
 
         /**
@@ -249,21 +300,25 @@ public class FileTsStreamer implements TsStreamer {
          * Adds a pid for filtering from the MPEG-2 TS file.
          */
         public void addPidFilter(int pid) {
-            mPids.put(pid, true);
+            if (pid >= 0 && pid < mPids.length && !mPids[pid]) {
+                mPids[pid] = true;
+                ++mPidCount;
+            }
         }
 
         /**
          * Returns whether the current pid filter is empty or not.
          */
         public boolean isFilterEmpty() {
-            return mPids.size() > 0;
+            return mPidCount > 0;
         }
 
         /**
          * Clears the current pid filter.
          */
         public void clearPidFilter() {
-            mPids.clear();
+            Arrays.fill(mPids, false);
+            mPidCount = 0;
         }
 
         /**
@@ -271,63 +326,147 @@ public class FileTsStreamer implements TsStreamer {
          * @param pid the pid to check
          */
         public boolean isInFilter(int pid) {
-            return mPids.get(pid);
+            return pid >= 0 && pid < mPids.length && mPids[pid];
         }
 
         /**
-         * Reads from the MPEG-2 TS file to buffer.
+         * Reads the packets in the filter from the MPEG-2 TS file to the buffer.
          *
-         * @param inputBuffer to read
-         * @return the number of read bytes
+         * @param output the buffer to read to, from its position. The position is advanced.
+         * @return the number of read bytes, which can be {@code 0} when the output is paced, or
+         *         {@code -1} if the file can't be read or a whole pass over the file finds no
+         *         packet to output
          */
-        private int read(byte[] inputBuffer) {
-            int readSize = readInternal();
-            if (readSize <= 0) {
-                // Reached the end of stream. Restart from the beginning.
-                close();
-                open(mFilepath);
-                if (mInputStream == null) {
-                    return -1;
+        @VisibleForTesting
+        int read(ByteBuffer output) {
+            int startPosition = output.position();
+            while (output.remaining() >= TS_PACKET_SIZE) {
+                if (mSkippedBytes >= mFileSize) {
+                    Log.e(TAG, "No packet to output in " + mFilepath);
+                    int bytesRead = output.position() - startPosition;
+                    return bytesRead > 0 ? bytesRead : -1;
                 }
-                readSize = readInternal();
-            }
-
-            if (mPreBuffer[0] != TS_SYNC_BYTE) {
-                Log.e(TAG, "Error reading input stream - no TS sync found");
-                return -1;
-            }
-            int filteredSize = 0;
-            for (int i = 0, destPos = 0; i < readSize; i += TS_PACKET_SIZE) {
-                if (mPreBuffer[i] == TS_SYNC_BYTE) {
-                    int pid = ((mPreBuffer[i + 1] & 0x1f) << 8) + (mPreBuffer[i + 2] & 0xff);
-                    if (mPids.get(pid)) {
-                        System.arraycopy(mPreBuffer, i, inputBuffer, destPos, TS_PACKET_SIZE);
-                        destPos += TS_PACKET_SIZE;
-                        filteredSize += TS_PACKET_SIZE;
+                if (mWindow.remaining() < TS_PACKET_SIZE) {
+                    if (!readNextWindow()) {
+                        return -1;
                     }
+                    continue;
+                }
+                int pos = mWindow.position();
+                if (mWindow.get(pos) != TS_SYNC_BYTE) {
+                    // Finds the next packet.
+                    mWindow.position(pos + 1);
+                    ++mSkippedBytes;
+                    continue;
+                }
+                if (mPacedByPcr && !isDue(pos)) {
+                    break;
+                }
+                // Copies the consecutive packets in the filter at once.
+                int end = pos;
+                int maxEnd = pos + Math.min(mWindow.remaining(), output.remaining())
+                        / TS_PACKET_SIZE * TS_PACKET_SIZE;
+                while (end < maxEnd && mWindow.get(end) == TS_SYNC_BYTE
+                        && mPids[getPid(end)] && (end == pos || !hasPcr(end))) {
+                    end += TS_PACKET_SIZE;
+                }
+                if (end == pos) {
+                    mWindow.position(pos + TS_PACKET_SIZE);
+                    mSkippedBytes += TS_PACKET_SIZE;
+                    continue;
                 }
+                mSkippedBytes = 0;
+                int limit = mWindow.limit();
+                mWindow.limit(end);
+                output.put(mWindow);
+                mWindow.limit(limit);
             }
-            return filteredSize;
+            return output.position() - startPosition;
         }
 
-        private int readInternal() {
-            int readSize;
+        // Reads the window from the first byte which is not passed over yet. The remaining bytes
+        // of the previous window, which are less than a packet, are read again.
+        private boolean readNextWindow() {
+            long start = mWindowStart + mWindow.position();
+            if (start + TS_PACKET_SIZE > mFileSize) {
+                // Reached the end of stream. Restart from the beginning.
+                mSkippedBytes += mFileSize - start;
+                start = 0;
+                mLastPcr = -1;
+            }
+            mWindow.clear();
+            mWindow.limit((int) Math.min(WINDOW_SIZE, mFileSize - start));
             try {
-                readSize = mInputStream.read(mPreBuffer, 0, mPreBuffer.length);
+                while (mWindow.hasRemaining()) {
+                    if (mChannel.read(mWindow, start + mWindow.position()) < 0) {
+                        break;
+                    }
+                }
             } catch (IOException e) {
                 Log.e(TAG, "Error reading input stream", e);
-                return -1;
+                mWindow.limit(0);
+                return false;
+            }
+            mWindow.flip();
+            mWindowStart = start;
+            return mWindow.remaining() >= TS_PACKET_SIZE;
+        }
+
+        private int getPid(int pos) {
+            return ((mWindow.get(pos + 1) & 0x1f) << 8) | (mWindow.get(pos + 2) & 0xff);
+        }
+
+        private boolean hasPcr(int pos) {
+            // adaptation_field_control, adaptation_field_length and PCR_flag
+            return (mWindow.get(pos + 3) & 0x20) != 0 && (mWindow.get(pos + 4) & 0xff) > 0
+                    && (mWindow.get(pos + 5) & 0x10) != 0;
+        }
+
+        // Returns whether the packet at the position can be output now, according to its PCR.
+        private boolean isDue(int pos) {
+            if (!hasPcr(pos)) {
+                return true;
+            }
+            int pid = getPid(pos);
+            if (mPcrPid == -1) {
+                mPcrPid = pid;
+            } else if (pid != mPcrPid) {
+                return true;
+            }
+            // The 33 bits PCR base in 90kHz.
+            long pcr = ((mWindow.get(pos + 6) & 0xffL) << 25) | ((mWindow.get(pos + 7) & 0xff) << 17)
+                    | ((mWindow.get(pos + 8) & 0xff) << 9) | ((mWindow.get(pos + 9) & 0xff) << 1)
+                    | ((mWindow.get(pos + 10) & 0xff) >> 7);
+            long nowMs = mClock.elapsedRealtime();
+            if (mLastPcr < 0 || ((pcr - mLastPcr) & PCR_BASE_MASK) > MAX_PCR_GAP) {
+                // At the start, after a loop or at a discontinuity.
+                mLastPcr = pcr;
+                mPcrSinceBase = 0;
+                mBaseTimeMs = nowMs;
+                return true;
+            }
+            // The difference is taken in 33 bits so that the wraparound of PCR is continuous.
+            long pcrSinceBase = mPcrSinceBase + ((pcr - mLastPcr) & PCR_BASE_MASK);
+            if (mBaseTimeMs + pcrSinceBase * 1000 / PCR_HZ > nowMs) {
+                return false;
             }
-            return readSize;
+            mLastPcr = pcr;
+            mPcrSinceBase = pcrSinceBase;
+            return true;
         }
 
-        private void close() {
+        @VisibleForTesting
+        void close() {
+            mWindow.limit(0);
+            if (mChannel == null) {
+                return;
+            }
             try {
-                mInputStream.close();
+                mChannel.close();
             } catch (IOException e) {
                 Log.e(TAG, "Error closing input stream:", e);
             }
-            mInputStream = null;
+            mChannel = null;
         }
     }
 
@@ -341,45 +480,22 @@ public class FileTsStreamer implements TsStreamer {
      * @throws IOException
      */
     public int readAt(long pos, byte[] buffer, int offset, int amount) throws IOException {
-        synchronized (mCircularBufferMonitor) {
-            long initialBytesFetched = mBytesFetched;
-            while (mBytesFetched < pos + amount && mStreaming) {
-                try {
-                    mCircularBufferMonitor.wait(READ_TIMEOUT_MS);
-                } catch (InterruptedException e) {
-                    // Wait again.
-                    Thread.currentThread().interrupt();
-                }
-                if (initialBytesFetched == mBytesFetched) {
-                    Log.w(TAG, "No data update for " + READ_TIMEOUT_MS + "ms. returning -1.");
+        int ret = mCircularBuffer.read(pos, buffer, offset, amount, READ_TIMEOUT_MS);
+        switch (ret) {
+            case TsRingBuffer.READ_TIMED_OUT:
+                Log.w(TAG, "No data update for " + READ_TIMEOUT_MS + "ms. returning -1.");
 
-                    // Returning -1 will make demux report EOS so that the input service can retry
-                    // the playback.
-                    return -1;
-                }
-            }
-            if (!mStreaming) {
+                // Returning -1 will make demux report EOS so that the input service can retry
+                // the playback.
+                return -1;
+            case TsRingBuffer.READ_CLOSED:
                 Log.w(TAG, "Stream is already stopped.");
                 return -1;
-            }
-            if (mBytesFetched - CIRCULAR_BUFFER_SIZE > pos) {
+            case TsRingBuffer.READ_OVERWRITTEN:
                 Log.e(TAG, "Demux is requesting the data which is already overwritten.");
                 return -1;
-            }
-            int posInBuffer = (int) (pos % CIRCULAR_BUFFER_SIZE);
-            int bytesToCopyInFirstPass = amount;
-            if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-            }
-            System.arraycopy(mCircularBuffer, posInBuffer, buffer, offset, bytesToCopyInFirstPass);
-            if (bytesToCopyInFirstPass < amount) {
-                System.arraycopy(mCircularBuffer, 0, buffer, offset + bytesToCopyInFirstPass,
-                        amount - bytesToCopyInFirstPass);
-            }
-            mLastReadPosition = pos + amount;
-            mCircularBufferMonitor.notify();
-            return amount;
         }
+        return ret;
     }
 
     /**
@@ -409,31 +525,17 @@ public class FileTsStreamer implements TsStreamer {
     private class StreamingThread extends Thread {
         @Override
         public void run() {
-            byte[] dataBuffer = new byte[READ_BUFFER_SIZE];
-
-            synchronized (mCircularBufferMonitor) {
-                mBytesFetched = 0;
-                mLastReadPosition = 0;
-            }
-
-            while (true) {
-                synchronized (mCircularBufferMonitor) {
-                    while ((mBytesFetched - mLastReadPosition + PADDING_SIZE) > CIRCULAR_BUFFER_SIZE
-                            && mStreaming) {
-                        try {
-                            mCircularBufferMonitor.wait();
-                        } catch (InterruptedException e) {
-                            // Wait again.
-                            Thread.currentThread().interrupt();
-                        }
-                    }
-                    if (!mStreaming) {
-                        break;
-                    }
+            while (mCircularBuffer.waitForSpace(PADDING_SIZE)) {
+                // The packets in the filter are copied from the window of the file which is read
+                // by the source to a slot of the internal buffer.
+                ByteBuffer slot = mCircularBuffer.obtainWriteSlot(READ_BUFFER_SIZE);
+                int bytesWritten = mSource.read(slot);
+                if (bytesWritten < 0) {
+                    // The readers get the end of stream after the buffered data.
+                    Log.e(TAG, "Failed to read the stream file");
+                    break;
                 }
-
-                int bytesWritten = mSource.read(dataBuffer);
-                if (bytesWritten <= 0) {
+                if (bytesWritten == 0) {
                     try {
                         // When buffer is underrun, we sleep for short time to prevent
                         // unnecessary CPU draining.
@@ -444,23 +546,11 @@ public class FileTsStreamer implements TsStreamer {
                     continue;
                 }
 
-                mEventDetector.feedTSStream(dataBuffer, 0, bytesWritten);
+                mCircularBuffer.commitWrite(bytesWritten);
 
-                synchronized (mCircularBufferMonitor) {
-                    int posInBuffer = (int) (mBytesFetched % CIRCULAR_BUFFER_SIZE);
-                    int bytesToCopyInFirstPass = bytesWritten;
-                    if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                        bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-                    }
-                    System.arraycopy(dataBuffer, 0, mCircularBuffer, posInBuffer,
-                            bytesToCopyInFirstPass);
-                    if (bytesToCopyInFirstPass < bytesWritten) {
-                        System.arraycopy(dataBuffer, bytesToCopyInFirstPass, mCircularBuffer, 0,
-                                bytesWritten - bytesToCopyInFirstPass);
-                    }
-                    mBytesFetched += bytesWritten;
-                    mCircularBufferMonitor.notify();
-                }
+                // The slot is not overwritten until the next write.
+                slot.flip();
+                mEventDetector.feedTSStream(slot);
             }
 
             Log.i(TAG, "Streaming stopped");
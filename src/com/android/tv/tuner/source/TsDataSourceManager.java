@@ -60,6 +60,15 @@ public class TsDataSourceManager {
         return new TsDataSourceManager(id, isRecording);
     }
 
+    /**
+     * Gives up the tuner which is kept tuned for the prefetch of any session, so that the tuner
+     * can be opened directly by {@link com.android.tv.tuner.TunerHal#createInstance}, for example
+     * for a channel scan. This blocks until the tuner is closed.
+     */
+    public static void releaseStandbyTuner() {
+        TunerTsStreamerManager.getInstance().releaseStandbyStreamer();
+    }
+
     private TsDataSourceManager(int id, boolean isRecording) {
         mId = id;
         mIsRecording = isRecording;
@@ -80,7 +89,8 @@ public class TsDataSourceManager {
             if (mIsRecording) {
                 return null;
             }
-            FileTsStreamer streamer = new FileTsStreamer(eventListener);
+            // The file is played at the rate of the broadcast as a tuner would provide it.
+            FileTsStreamer streamer = new FileTsStreamer(eventListener, true);
             if (streamer.startStream(channel)) {
                 TsDataSource source = streamer.createDataSource();
                 sTsStreamers.put(source, streamer);
@@ -92,6 +102,21 @@ public class TsDataSourceManager {
                 mId, !mIsRecording && mKeepTuneStatus);
     }
 
+    /**
+     * Keeps an idle tuner tuned to the channel which is likely to be played next, so that
+     * {@link #createDataSource} for the channel returns instantly. This returns immediately.
+     * @param context a {@link Context} instance
+     * @param channel the channel which is predicted to be played next
+     * @param eventListener for program information which will be scanned from MPEG2-TS stream
+     */
+    public void prefetch(Context context, TunerChannel channel,
+            EventDetector.EventListener eventListener) {
+        if (mIsRecording || channel.getType() != Channel.TYPE_TUNER) {
+            return;
+        }
+        mTunerStreamerManager.prefetch(context, channel, eventListener, mId);
+    }
+
     /**
      * Releases the specified {@link TsDataSource} and underlying {@link TunerHal}.
      * @param source to release
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A circular buffer of MPEG-2 TS stream which is written by a single streaming thread and read by
+ * multiple {@link TsDataSource}s.
+ *
+ * <p>The writer reserves the region to write by advancing a reserved end under a lock before it
+ * puts data there, and publishes data by advancing a volatile write position afterwards. Readers
+ * copy data below the write position under the same lock after checking that the region is not
+ * reserved, so the writer doesn't overwrite the data during the copy while it puts data without
+ * holding the lock. Waiting threads are parked and unparked instead of polling.
+ *
+ * <p>When the buffer is direct, the writer can let a device read data into the buffer in place
+ * via {@link #obtainWriteSlot} and {@link #commitWrite} instead of copying it from an array.
+ */
+public class TsRingBuffer {
+    /** Returned by {@link #read} when the buffer is closed. */
+    public static final int READ_CLOSED = -1;
+    /** Returned by {@link #read} when the requested data was already overwritten. */
+    public static final int READ_OVERWRITTEN = -2;
+    /** Returned by {@link #read} when the requested data was not written before the timeout. */
+    public static final int READ_TIMED_OUT = -3;
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    private final ConcurrentLinkedQueue<Thread> mWaitingReaders = new ConcurrentLinkedQueue<>();
+    private final Object mReserveLock = new Object();
+
+    // Only the writer thread modifies mWritePosition and mReservedEnd.
+    private volatile long mWritePosition;
+    // The end of the region which the writer may be overwriting, not less than mWritePosition.
+    // Guarded by mReserveLock.
+    private long mReservedEnd;
+    private volatile long mLastReadPosition;
+    private volatile boolean mClosed;
+    private volatile Thread mWaitingWriter;
+
+    /**
+     * Creates a ring buffer.
+     *
+     * @param capacity the size of the buffer in bytes
+     */
+    public TsRingBuffer(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * Creates a ring buffer.
+     *
+     * @param capacity the size of the buffer in bytes. When write slots are used, this should be
+     *            a multiple of the TS packet size so that no packet wraps around the buffer.
+     * @param direct whether the buffer is allocated outside of the Java heap, so that native code
+     *            can write data in it directly
+     */
+    public TsRingBuffer(int capacity, boolean direct) {
+        mCapacity = capacity;
+        mBuffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Resets the positions and reopens the buffer. Should be called while there is no writer.
+     */
+    public void reset() {
+        synchronized (mReserveLock) {
+            mReservedEnd = 0;
+        }
+        mWritePosition = 0;
+        mLastReadPosition = 0;
+        mClosed = false;
+    }
+
+    /**
+     * Closes the buffer and wakes up all the waiting threads.
+     */
+    public void close() {
+        mClosed = true;
+        for (Thread reader : mWaitingReaders) {
+            LockSupport.unpark(reader);
+        }
+        Thread writer = mWaitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Returns whether the buffer is closed.
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public long getWritePosition() {
+        return mWritePosition;
+    }
+
+    /**
+     * Returns the end position of the last successful read.
+     */
+    public long getLastReadPosition() {
+        return mLastReadPosition;
+    }
+
+    /**
+     * Writes data to the buffer. Should be called from the single writer thread.
+     *
+     * @param data the data to write
+     * @param offset the start offset in the data
+     * @param length the number of bytes to write, which should not be larger than the capacity
+     */
+    public void write(byte[] data, int offset, int length) {
+        reserve(length);
+        ByteBuffer buffer = mBuffer.duplicate();
+        int posInBuffer = (int) (mWritePosition % mCapacity);
+        int bytesToCopyInFirstPass = Math.min(length, mCapacity - posInBuffer);
+        buffer.position(posInBuffer);
+        buffer.put(data, offset, bytesToCopyInFirstPass);
+        if (bytesToCopyInFirstPass < length) {
+            buffer.position(0);
+            buffer.put(data, offset + bytesToCopyInFirstPass, length - bytesToCopyInFirstPass);
+        }
+        commitWrite(length);
+    }
+
+    /**
+     * Returns the contiguous free space at the write position, where the writer can put data in
+     * place. The data is published by {@link #commitWrite}. Should be called from the single
+     * writer thread. The whole slot is regarded as being overwritten until the next slot is
+     * obtained, so readers fail rather than copy partially written data.
+     *
+     * @param maxLength the maximum size of the slot
+     * @return a buffer whose position is {@code 0} and whose limit is the size of the slot
+     */
+    public ByteBuffer obtainWriteSlot(int maxLength) {
+        int posInBuffer = (int) (mWritePosition % mCapacity);
+        int length = Math.min(maxLength, mCapacity - posInBuffer);
+        reserve(length);
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.limit(posInBuffer + length);
+        buffer.position(posInBuffer);
+        return buffer.slice();
+    }
+
+    /**
+     * Publishes the data which was put in the slot from {@link #obtainWriteSlot}.
+     *
+     * @param length the number of bytes which were put at the start of the slot
+     */
+    public void commitWrite(int length) {
+        mWritePosition += length;
+        for (Thread reader : mWaitingReaders) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    // Publishes that the writer is going to overwrite the next length bytes from the write
+    // position, before it actually does. Waits for the readers which are copying data.
+    private void reserve(int length) {
+        synchronized (mReserveLock) {
+            mReservedEnd = Math.max(mReservedEnd, mWritePosition + length);
+        }
+    }
+
+    /**
+     * Blocks the writer thread until the data which are not read yet and the specified padding
+     * fit in the buffer.
+     *
+     * @param paddingSize the number of bytes to be reserved
+     * @return {@code false} if the buffer is closed, {@code true} otherwise
+     */
+    public boolean waitForSpace(int paddingSize) {
+        while (!mClosed && mWritePosition - mLastReadPosition + paddingSize > mCapacity) {
+            mWaitingWriter = Thread.currentThread();
+            // Checks again after registration not to miss a wakeup.
+            if (!mClosed && mWritePosition - mLastReadPosition + paddingSize > mCapacity) {
+                LockSupport.park(this);
+            }
+            mWaitingWriter = null;
+        }
+        return !mClosed;
+    }
+
+    /**
+     * Reads data from the buffer. Blocks until the requested data is written.
+     *
+     * @param pos the position to read from
+     * @param buffer to read
+     * @param offset start position of the read buffer
+     * @param amount number of bytes to read
+     * @param timeoutMs the maximum time to wait for the data
+     * @return {@code amount} when successful, otherwise {@link #READ_CLOSED},
+     *         {@link #READ_OVERWRITTEN} or {@link #READ_TIMED_OUT}
+     */
+    public int read(long pos, byte[] buffer, int offset, int amount, long timeoutMs) {
+        long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (mWritePosition < pos + amount) {
+            if (mClosed) {
+                return READ_CLOSED;
+            }
+            long remainingNs = deadlineNs - System.nanoTime();
+            if (remainingNs <= 0) {
+                return READ_TIMED_OUT;
+            }
+            Thread current = Thread.currentThread();
+            mWaitingReaders.add(current);
+            try {
+                // Checks again after registration not to miss a wakeup.
+                if (mWritePosition < pos + amount && !mClosed) {
+                    LockSupport.parkNanos(this, remainingNs);
+                }
+            } finally {
+                mWaitingReaders.remove(current);
+            }
+        }
+        if (mClosed) {
+            return READ_CLOSED;
+        }
+        // The writer puts data only in the reserved region, and it can't reserve more while the
+        // lock is held. So the data is not overwritten during the copy once it's checked here.
+        synchronized (mReserveLock) {
+            if (mReservedEnd - mCapacity > pos) {
+                return READ_OVERWRITTEN;
+            }
+            ByteBuffer source = mBuffer.duplicate();
+            int posInBuffer = (int) (pos % mCapacity);
+            int bytesToCopyInFirstPass = Math.min(amount, mCapacity - posInBuffer);
+            source.position(posInBuffer);
+            source.get(buffer, offset, bytesToCopyInFirstPass);
+            if (bytesToCopyInFirstPass < amount) {
+                source.position(0);
+                source.get(buffer, offset + bytesToCopyInFirstPass,
+                        amount - bytesToCopyInFirstPass);
+            }
+        }
+        mLastReadPosition = pos + amount;
+        Thread writer = mWaitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+        return amount;
+    }
+}
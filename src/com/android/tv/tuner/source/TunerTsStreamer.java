@@ -17,6 +17,7 @@
 package com.android.tv.tuner.source;
 
 import android.content.Context;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.android.exoplayer.C;
@@ -25,13 +26,20 @@ import com.android.tv.common.SoftPreconditions;
 import com.android.tv.tuner.ChannelScanFileParser;
 import com.android.tv.tuner.TunerHal;
 import com.android.tv.tuner.TunerPreferences;
+import com.android.tv.tuner.data.Channel;
+import com.android.tv.tuner.data.PsipData;
 import com.android.tv.tuner.data.TunerChannel;
+import com.android.tv.tuner.ts.TsParser;
 import com.android.tv.tuner.tvinput.EventDetector;
 import com.android.tv.tuner.tvinput.EventDetector.EventListener;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Provides MPEG-2 TS stream sources for channel playing from an underlying tuner device.
@@ -39,24 +47,57 @@ import java.util.concurrent.atomic.AtomicLong;
 public class TunerTsStreamer implements TsStreamer {
     private static final String TAG = "TunerTsStreamer";
 
-    private static final int MIN_READ_UNIT = 1500;
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int TS_PACKET_SYNC_BYTE = 0x47;
+    // The sizes are multiples of TS packet size, since the tuner reads data in place.
+    private static final int MIN_READ_UNIT = TS_PACKET_SIZE * 8;
     private static final int READ_BUFFER_SIZE = MIN_READ_UNIT * 10; // ~15KB
     private static final int CIRCULAR_BUFFER_SIZE = MIN_READ_UNIT * 20000;  // ~ 30MB
 
     private static final int READ_TIMEOUT_MS = 5000; // 5 secs.
-    private static final int BUFFER_UNDERRUN_SLEEP_MS = 10;
 
-    private final Object mCircularBufferMonitor = new Object();
-    private final byte[] mCircularBuffer = new byte[CIRCULAR_BUFFER_SIZE];
-    private long mBytesFetched;
-    private final AtomicLong mLastReadPosition = new AtomicLong();
-    private boolean mEndOfStreamSent;
-    private boolean mStreaming;
+    private final Object mStreamingStateLock = new Object();
+    private final TsRingBuffer mCircularBuffer = new TsRingBuffer(CIRCULAR_BUFFER_SIZE, true);
+    private volatile boolean mEndOfStreamSent;
+    private volatile boolean mStreaming;
+    // Whether the stream carries the programs of several sessions, so that the sources need to
+    // filter the packets of their own program.
+    private volatile boolean mSharedByPrograms;
+    // The video PID of the channel given to startStream, or -1.
+    private volatile int mVideoPid = -1;
+    // The buffered positions of the last PAT, and of the last PAT which was followed by a key
+    // frame of the video. A source can start there to play the buffered data instantly.
+    private volatile long mLastPatPosition = -1;
+    private volatile long mKeyFramePatPosition = -1;
 
     private final TunerHal mTunerHal;
     private TunerChannel mChannel;
     private Thread mStreamingThread;
     private final EventDetector mEventDetector;
+    // The listeners of the sessions sharing the stream. EventDetector reports to all of them.
+    private final List<EventListener> mEventListeners = new CopyOnWriteArrayList<>();
+    private final EventListener mEventListenerDispatcher = new EventListener() {
+        @Override
+        public void onChannelDetected(TunerChannel channel, boolean channelArrivedAtFirstTime) {
+            for (EventListener listener : mEventListeners) {
+                listener.onChannelDetected(channel, channelArrivedAtFirstTime);
+            }
+        }
+
+        @Override
+        public void onEventDetected(TunerChannel channel, List<PsipData.EitItem> items) {
+            for (EventListener listener : mEventListeners) {
+                listener.onEventDetected(channel, items);
+            }
+        }
+
+        @Override
+        public void onChannelScanDone() {
+            for (EventListener listener : mEventListeners) {
+                listener.onChannelScanDone();
+            }
+        }
+    };
 
     private final TsStreamWriter mTsStreamWriter;
 
@@ -64,10 +105,16 @@ public class TunerTsStreamer implements TsStreamer {
         private final TunerTsStreamer mTsStreamer;
         private final AtomicLong mLastReadPosition = new AtomicLong(0);
         private long mStartBufferedPosition;
+        private final TunerChannel mChannel;
+        // Created once the stream is shared by another program. Until then, the data is read
+        // as it is.
+        private ProgramFilter mProgramFilter;
 
-        private TunerDataSource(TunerTsStreamer tsStreamer) {
+        private TunerDataSource(TunerTsStreamer tsStreamer, TunerChannel channel,
+                long startBufferedPosition) {
             mTsStreamer = tsStreamer;
-            mStartBufferedPosition = tsStreamer.getBufferedPosition();
+            mStartBufferedPosition = startBufferedPosition;
+            mChannel = channel;
         }
 
         @Override
@@ -99,6 +146,23 @@ public class TunerTsStreamer implements TsStreamer {
 
         @Override
         public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if (mProgramFilter == null && mChannel != null && mTsStreamer.mSharedByPrograms) {
+                int packetReadLength = (int) (mLastReadPosition.get() % TS_PACKET_SIZE);
+                if (packetReadLength != 0) {
+                    // Finishes the packet which is partially read before filtering the packets.
+                    return readFromStreamer(buffer, offset,
+                            Math.min(readLength, TS_PACKET_SIZE - packetReadLength));
+                }
+                mProgramFilter = new ProgramFilter(mTsStreamer, mChannel);
+            }
+            if (mProgramFilter != null) {
+                return mProgramFilter.read(this, buffer, offset, readLength);
+            }
+            return readFromStreamer(buffer, offset, readLength);
+        }
+
+        private int readFromStreamer(byte[] buffer, int offset, int readLength)
+                throws IOException {
             int ret = mTsStreamer.readAt(mStartBufferedPosition + mLastReadPosition.get(), buffer,
                     offset, readLength);
             if (ret > 0) {
@@ -107,6 +171,111 @@ public class TunerTsStreamer implements TsStreamer {
             return ret;
         }
     }
+
+    /**
+     * Passes only the TS packets of a program, when the stream of a frequency is shared by the
+     * sessions of several programs. The extractor would otherwise pick up the tracks of the other
+     * programs. Since this costs a copy and a PID lookup per packet, it's used only after
+     * {@link #addProgram} adds another program to the stream.
+     */
+    private static class ProgramFilter {
+        private final TunerTsStreamer mTsStreamer;
+        private final int mProgramNumber;
+        private final boolean[] mAllowedPids = new boolean[0x2000];
+        private final byte[] mReadBuffer = new byte[READ_BUFFER_SIZE];
+        private int mReadBufferPosition;
+        private int mReadBufferLength;
+        // The number of bytes of the current packet which were already read, when a packet is
+        // split across the reads.
+        private int mPacketReadLength;
+        private boolean mPmtPidFound;
+        private final int mStoredPmtPid;
+
+        private ProgramFilter(TunerTsStreamer tsStreamer, TunerChannel channel) {
+            mTsStreamer = tsStreamer;
+            mProgramNumber = channel.getProgramNumber();
+            allowPid(TsParser.PAT_PID);
+            if (channel.hasVideo()) {
+                allowPid(channel.getVideoPid());
+            }
+            for (Integer audioPid : channel.getAudioPids()) {
+                allowPid(audioPid);
+            }
+            allowPid(channel.getPcrPid());
+            // The PMT PID from the last tune is passed until PAT tells the current one.
+            mStoredPmtPid = channel.getPmtPid();
+            allowPid(mStoredPmtPid);
+        }
+
+        private void allowPid(int pid) {
+            if (pid >= 0 && pid < mAllowedPids.length) {
+                mAllowedPids[pid] = true;
+            }
+        }
+
+        private int read(TunerDataSource source, byte[] buffer, int offset, int readLength)
+                throws IOException {
+            int bytesCopied = 0;
+            while (bytesCopied < readLength) {
+                if (mReadBufferLength - mReadBufferPosition < TS_PACKET_SIZE) {
+                    if (bytesCopied > 0) {
+                        break;
+                    }
+                    int remaining = mReadBufferLength - mReadBufferPosition;
+                    System.arraycopy(mReadBuffer, mReadBufferPosition, mReadBuffer, 0, remaining);
+                    mReadBufferPosition = 0;
+                    mReadBufferLength = remaining;
+                    int ret = source.readFromStreamer(mReadBuffer, remaining,
+                            mReadBuffer.length - remaining);
+                    if (ret <= 0) {
+                        return ret;
+                    }
+                    mReadBufferLength += ret;
+                    continue;
+                }
+                if (mPacketReadLength == 0) {
+                    if ((mReadBuffer[mReadBufferPosition] & 0xff) != TS_PACKET_SYNC_BYTE) {
+                        // Finds the next packet.
+                        ++mReadBufferPosition;
+                        continue;
+                    }
+                    int pid = ((mReadBuffer[mReadBufferPosition + 1] & 0x1f) << 8)
+                            | (mReadBuffer[mReadBufferPosition + 2] & 0xff);
+                    if (!isAllowedPid(pid)) {
+                        mReadBufferPosition += TS_PACKET_SIZE;
+                        continue;
+                    }
+                }
+                int length = Math.min(TS_PACKET_SIZE - mPacketReadLength,
+                        readLength - bytesCopied);
+                System.arraycopy(mReadBuffer, mReadBufferPosition + mPacketReadLength, buffer,
+                        offset + bytesCopied, length);
+                bytesCopied += length;
+                mPacketReadLength += length;
+                if (mPacketReadLength == TS_PACKET_SIZE) {
+                    mPacketReadLength = 0;
+                    mReadBufferPosition += TS_PACKET_SIZE;
+                }
+            }
+            return bytesCopied;
+        }
+
+        private boolean isAllowedPid(int pid) {
+            if (!mPmtPidFound) {
+                int pmtPid = mTsStreamer.mEventDetector.getPmtPid(mProgramNumber);
+                if (pmtPid >= 0) {
+                    if (pmtPid != mStoredPmtPid && mStoredPmtPid >= 0
+                            && mStoredPmtPid < mAllowedPids.length) {
+                        mAllowedPids[mStoredPmtPid] = false;
+                    }
+                    allowPid(pmtPid);
+                    mPmtPidFound = true;
+                }
+            }
+            return mAllowedPids[pid];
+        }
+    }
+
     /**
      * Creates {@link TsStreamer} for playing or recording the specified channel.
      * @param tunerHal the HAL for tuner device
@@ -114,7 +283,8 @@ public class TunerTsStreamer implements TsStreamer {
      */
     public TunerTsStreamer(TunerHal tunerHal, EventListener eventListener, Context context) {
         mTunerHal = tunerHal;
-        mEventDetector = new EventDetector(mTunerHal, eventListener);
+        addEventListener(eventListener);
+        mEventDetector = new EventDetector(mTunerHal, mEventListenerDispatcher);
         mTsStreamWriter = context != null && TunerPreferences.getStoreTsStream(context) ?
                 new TsStreamWriter(context) : null;
     }
@@ -126,37 +296,26 @@ public class TunerTsStreamer implements TsStreamer {
     @Override
     public boolean startStream(TunerChannel channel) {
         if (mTunerHal.tune(channel.getFrequency(), channel.getModulation())) {
-            if (channel.hasVideo()) {
-                mTunerHal.addPidFilter(channel.getVideoPid(),
-                        TunerHal.FILTER_TYPE_VIDEO);
-            }
-            boolean audioFilterSet = false;
-            for (Integer audioPid : channel.getAudioPids()) {
-                if (!audioFilterSet) {
-                    mTunerHal.addPidFilter(audioPid, TunerHal.FILTER_TYPE_AUDIO);
-                    audioFilterSet = true;
-                } else {
-                    // FILTER_TYPE_AUDIO overrides the previous filter for audio. We use
-                    // FILTER_TYPE_OTHER from the secondary one to get the all audio tracks.
-                    mTunerHal.addPidFilter(audioPid, TunerHal.FILTER_TYPE_OTHER);
-                }
-            }
-            mTunerHal.addPidFilter(channel.getPcrPid(),
-                    TunerHal.FILTER_TYPE_PCR);
+            mVideoPid = channel.hasVideo() ? channel.getVideoPid() : -1;
+            addPidFilters(channel, false);
             if (mEventDetector != null) {
                 mEventDetector.startDetecting(channel.getFrequency(), channel.getModulation(),
                         channel.getProgramNumber());
+                // Parses the PMT before PAT arrives, with the PID known from the last tune.
+                mEventDetector.startDetectingPmt(channel.getPmtPid());
             }
             mChannel = channel;
-            synchronized (mCircularBufferMonitor) {
+            synchronized (mStreamingStateLock) {
                 if (mStreaming) {
                     Log.w(TAG, "Streaming should be stopped before start streaming");
                     return true;
                 }
                 mStreaming = true;
-                mBytesFetched = 0;
-                mLastReadPosition.set(0L);
+                mCircularBuffer.reset();
                 mEndOfStreamSent = false;
+                mSharedByPrograms = false;
+                mLastPatPosition = -1;
+                mKeyFramePatPosition = -1;
             }
             if (mTsStreamWriter != null) {
                 mTsStreamWriter.setChannel(mChannel);
@@ -170,20 +329,97 @@ public class TunerTsStreamer implements TsStreamer {
         return false;
     }
 
+    /**
+     * Adds another program in the same frequency to the stream, so that the stream serves the
+     * sessions of several programs with a single tuner.
+     *
+     * @param channel the channel of the program to be added
+     * @return {@code true} if the program is added or already streamed, {@code false} if the
+     *         channel is in another frequency or the stream is not started
+     */
+    public boolean addProgram(TunerChannel channel) {
+        TunerChannel streamingChannel = mChannel;
+        if (streamingChannel == null || !isSameMultiplex(streamingChannel, channel)) {
+            return false;
+        }
+        if (streamingChannel.getProgramNumber() != channel.getProgramNumber()) {
+            addPidFilters(channel, true);
+            mEventDetector.addProgramNumber(channel.getProgramNumber());
+            mSharedByPrograms = true;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a listener for channel & program information, for a session which shares the stream.
+     *
+     * @param eventListener the listener, or {@code null} to do nothing
+     */
+    public void addEventListener(EventListener eventListener) {
+        if (eventListener != null) {
+            mEventListeners.add(eventListener);
+        }
+    }
+
+    /**
+     * Removes a listener which was added by {@link #addEventListener} or given to the
+     * constructor.
+     */
+    public void removeEventListener(EventListener eventListener) {
+        if (eventListener != null) {
+            mEventListeners.remove(eventListener);
+        }
+    }
+
+    /**
+     * Returns whether two channels are carried by the same multiplex, so that one stream can
+     * serve both of them.
+     */
+    public static boolean isSameMultiplex(TunerChannel channel, TunerChannel another) {
+        return channel.getType() == Channel.TYPE_TUNER && another.getType() == Channel.TYPE_TUNER
+                && channel.getFrequency() == another.getFrequency()
+                && TextUtils.equals(channel.getModulation(), another.getModulation());
+    }
+
+    private void addPidFilters(TunerChannel channel, boolean additionalProgram) {
+        // The filter types other than FILTER_TYPE_OTHER can be set for a single PID each, so
+        // the programs added later use FILTER_TYPE_OTHER only.
+        if (channel.hasVideo()) {
+            mTunerHal.addPidFilter(channel.getVideoPid(), additionalProgram
+                    ? TunerHal.FILTER_TYPE_OTHER : TunerHal.FILTER_TYPE_VIDEO);
+        }
+        boolean audioFilterSet = additionalProgram;
+        for (Integer audioPid : channel.getAudioPids()) {
+            if (!audioFilterSet) {
+                mTunerHal.addPidFilter(audioPid, TunerHal.FILTER_TYPE_AUDIO);
+                audioFilterSet = true;
+            } else {
+                // FILTER_TYPE_AUDIO overrides the previous filter for audio. We use
+                // FILTER_TYPE_OTHER from the secondary one to get the all audio tracks.
+                mTunerHal.addPidFilter(audioPid, TunerHal.FILTER_TYPE_OTHER);
+            }
+        }
+        mTunerHal.addPidFilter(channel.getPcrPid(), additionalProgram
+                ? TunerHal.FILTER_TYPE_OTHER : TunerHal.FILTER_TYPE_PCR);
+    }
+
     @Override
     public boolean startStream(ChannelScanFileParser.ScanChannel channel) {
         if (mTunerHal.tune(channel.frequency, channel.modulation)) {
+            mVideoPid = -1;
             mEventDetector.startDetecting(
                     channel.frequency, channel.modulation, EventDetector.ALL_PROGRAM_NUMBERS);
-            synchronized (mCircularBufferMonitor) {
+            synchronized (mStreamingStateLock) {
                 if (mStreaming) {
                     Log.w(TAG, "Streaming should be stopped before start streaming");
                     return true;
                 }
                 mStreaming = true;
-                mBytesFetched = 0;
-                mLastReadPosition.set(0L);
+                mCircularBuffer.reset();
                 mEndOfStreamSent = false;
+                mSharedByPrograms = false;
+                mLastPatPosition = -1;
+                mKeyFramePatPosition = -1;
             }
             mStreamingThread = new StreamingThread();
             mStreamingThread.start();
@@ -200,13 +436,14 @@ public class TunerTsStreamer implements TsStreamer {
     @Override
     public void stopStream() {
         mChannel = null;
-        synchronized (mCircularBufferMonitor) {
+        synchronized (mStreamingStateLock) {
             mStreaming = false;
-            mCircularBufferMonitor.notifyAll();
+            mCircularBuffer.close();
         }
 
         try {
             if (mStreamingThread != null) {
+                LockSupport.unpark(mStreamingThread);
                 mStreamingThread.join();
             }
         } catch (InterruptedException e) {
@@ -220,7 +457,47 @@ public class TunerTsStreamer implements TsStreamer {
 
     @Override
     public TsDataSource createDataSource() {
-        return new TunerDataSource(this);
+        return new TunerDataSource(this, null, getBufferedPosition());
+    }
+
+    /**
+     * Creates {@link TsDataSource} which provides only the packets of the specified program, once
+     * the stream is shared by several programs. While the stream has a single program, the
+     * source provides the stream as it is.
+     *
+     * @param channel the channel of the program, which is added by {@link #addProgram} or
+     *            given to {@link #startStream(TunerChannel)}
+     */
+    public TsDataSource createDataSource(TunerChannel channel) {
+        return new TunerDataSource(this, channel, getBufferedPosition());
+    }
+
+    /**
+     * Same as {@link #createDataSource(TunerChannel)}, but the source starts from the data
+     * which is already buffered, so that the player gets PAT, PMT and a key frame without
+     * waiting for the next ones. The source starts at the last PAT followed by a key frame of
+     * the video, or at the last PAT if no key frame was found. It starts at the current position
+     * if no PAT is in the buffer.
+     *
+     * @param channel the channel of the program, which is added by {@link #addProgram} or
+     *            given to {@link #startStream(TunerChannel)}
+     */
+    public TsDataSource createBufferedDataSource(TunerChannel channel) {
+        long writePosition = getBufferedPosition();
+        TunerChannel streamingChannel = mChannel;
+        // The key frames are found only for the video of the channel given to startStream.
+        long startPosition = streamingChannel != null
+                && streamingChannel.getProgramNumber() == channel.getProgramNumber()
+                ? mKeyFramePatPosition : -1;
+        if (startPosition < 0) {
+            startPosition = mLastPatPosition;
+        }
+        // Keeps a margin for the slot which the tuner is writing in.
+        if (startPosition < 0
+                || writePosition - startPosition > CIRCULAR_BUFFER_SIZE - READ_BUFFER_SIZE * 2) {
+            startPosition = writePosition;
+        }
+        return new TunerDataSource(this, channel, startPosition);
     }
 
     /**
@@ -232,6 +509,14 @@ public class TunerTsStreamer implements TsStreamer {
         return mEventDetector.getMalFormedChannels();
     }
 
+    /**
+     * Sets the listener for the intermediate stages of detecting channels while scanning.
+     * @param listener {@link EventDetector.ScanStageListener}, or {@code null} to remove it
+     */
+    public void setScanStageListener(EventDetector.ScanStageListener listener) {
+        mEventDetector.setScanStageListener(listener);
+    }
+
     /**
      * Returns the current {@link TunerHal} which provides MPEG-TS stream for TunerTsStreamer.
      * @return {@link TunerHal}
@@ -253,61 +538,76 @@ public class TunerTsStreamer implements TsStreamer {
      * @return the current buffered position
      */
     public long getBufferedPosition() {
-        synchronized (mCircularBufferMonitor) {
-            return mBytesFetched;
-        }
+        return mCircularBuffer.getWritePosition();
     }
 
     private class StreamingThread extends Thread {
         @Override
         public void run() {
-            // Buffers for streaming data from the tuner and the internal buffer.
-            byte[] dataBuffer = new byte[READ_BUFFER_SIZE];
-
-            while (true) {
-                synchronized (mCircularBufferMonitor) {
-                    if (!mStreaming) {
-                        break;
-                    }
+            while (mStreaming) {
+                // The tuner writes the data directly in the internal buffer. The slot is reserved
+                // when it's obtained, so the readers of the data being overwritten during the
+                // blocking read get TsRingBuffer#READ_OVERWRITTEN instead of corrupted data.
+                ByteBuffer slot = mCircularBuffer.obtainWriteSlot(READ_BUFFER_SIZE);
+                // The read blocks in the tuner until new packets arrive, so an underrun doesn't
+                // spin here.
+                int bytesWritten = mTunerHal.readTsStream(slot);
+                if (bytesWritten == 0) {
+                    continue;
                 }
-
-                int bytesWritten = mTunerHal.readTsStream(dataBuffer, dataBuffer.length);
-                if (bytesWritten <= 0) {
-                    try {
-                        // When buffer is underrun, we sleep for short time to prevent
-                        // unnecessary CPU draining.
-                        sleep(BUFFER_UNDERRUN_SLEEP_MS);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
+                if (bytesWritten < 0) {
+                    // The tuner may fail without blocking, e.g. when it is closed. Waits as long
+                    // as a read would block, unless the streaming is stopped in the meantime.
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(
+                            TunerHal.READ_TS_STREAM_TIMEOUT_MS));
                     continue;
                 }
 
+                long slotPosition = mCircularBuffer.getWritePosition();
+                mCircularBuffer.commitWrite(bytesWritten);
+
+                // The slot is not overwritten until the next write.
+                slot.flip();
+                findStartPositions(slot, slotPosition);
                 if (mTsStreamWriter != null) {
-                    mTsStreamWriter.writeToFile(dataBuffer, bytesWritten);
+                    mTsStreamWriter.writeToFile(slot);
                 }
-
                 if (mEventDetector != null) {
-                    mEventDetector.feedTSStream(dataBuffer, 0, bytesWritten);
+                    mEventDetector.feedTSStream(slot);
                 }
-                synchronized (mCircularBufferMonitor) {
-                    int posInBuffer = (int) (mBytesFetched % CIRCULAR_BUFFER_SIZE);
-                    int bytesToCopyInFirstPass = bytesWritten;
-                    if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                        bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-                    }
-                    System.arraycopy(dataBuffer, 0, mCircularBuffer, posInBuffer,
-                            bytesToCopyInFirstPass);
-                    if (bytesToCopyInFirstPass < bytesWritten) {
-                        System.arraycopy(dataBuffer, bytesToCopyInFirstPass, mCircularBuffer, 0,
-                                bytesWritten - bytesToCopyInFirstPass);
+            }
+
+            Log.i(TAG, "Streaming stopped");
+        }
+
+        // Finds the PATs and the key frames in the packets which were written at the position.
+        private void findStartPositions(ByteBuffer slot, long slotPosition) {
+            int videoPid = mVideoPid;
+            for (int pos = 0; pos + TS_PACKET_SIZE <= slot.limit(); pos += TS_PACKET_SIZE) {
+                if ((slot.get(pos) & 0xff) != TS_PACKET_SYNC_BYTE) {
+                    // The tuner provides whole packets, so this is a broken packet.
+                    continue;
+                }
+                boolean payloadUnitStart = (slot.get(pos + 1) & 0x40) != 0;
+                int pid = ((slot.get(pos + 1) & 0x1f) << 8) | (slot.get(pos + 2) & 0xff);
+                if (pid == TsParser.PAT_PID) {
+                    if (payloadUnitStart) {
+                        mLastPatPosition = slotPosition + pos;
                     }
-                    mBytesFetched += bytesWritten;
-                    mCircularBufferMonitor.notifyAll();
+                } else if (pid == videoPid && mLastPatPosition >= 0
+                        && mLastPatPosition > mKeyFramePatPosition && isRandomAccessPoint(slot,
+                        pos)) {
+                    mKeyFramePatPosition = mLastPatPosition;
                 }
             }
+        }
 
-            Log.i(TAG, "Streaming stopped");
+        // Returns whether random_access_indicator of the adaptation field of the packet is set,
+        // which marks the start of a key frame in the video.
+        private boolean isRandomAccessPoint(ByteBuffer slot, int pos) {
+            boolean hasAdaptationField = (slot.get(pos + 3) & 0x20) != 0;
+            return hasAdaptationField && (slot.get(pos + 4) & 0xff) > 0
+                    && (slot.get(pos + 5) & 0x40) != 0;
         }
     }
 
@@ -321,43 +621,22 @@ public class TunerTsStreamer implements TsStreamer {
      * @throws IOException
      */
     public int readAt(long pos, byte[] buffer, int offset, int amount) throws IOException {
-        long readStartTime = System.currentTimeMillis();
-        while (true) {
-            synchronized (mCircularBufferMonitor) {
-                if (mEndOfStreamSent || !mStreaming) {
-                    return -1;
-                }
-                if (mBytesFetched - CIRCULAR_BUFFER_SIZE > pos) {
-                    Log.e(TAG, "Demux is requesting the data which is already overwritten.");
-                    return -1;
-                }
-                if (System.currentTimeMillis() - readStartTime > READ_TIMEOUT_MS) {
-                    // Nothing was received during READ_TIMEOUT_MS before.
-                    mEndOfStreamSent = true;
-                    mCircularBufferMonitor.notifyAll();
-                    return -1;
-                }
-                if (mBytesFetched < pos + amount) {
-                    try {
-                        mCircularBufferMonitor.wait(READ_TIMEOUT_MS);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                    // Try again to prevent starvation.
-                    // Give chances to read from other threads.
-                    continue;
-                }
-                int startPos = (int) (pos % CIRCULAR_BUFFER_SIZE);
-                int endPos = (int) ((pos + amount) % CIRCULAR_BUFFER_SIZE);
-                int firstLength = (startPos > endPos ? CIRCULAR_BUFFER_SIZE : endPos) - startPos;
-                System.arraycopy(mCircularBuffer, startPos, buffer, offset, firstLength);
-                if (firstLength < amount) {
-                    System.arraycopy(mCircularBuffer, 0, buffer, offset + firstLength,
-                            amount - firstLength);
-                }
-                mCircularBufferMonitor.notifyAll();
-                return amount;
-            }
+        if (mEndOfStreamSent || !mStreaming) {
+            return -1;
+        }
+        int ret = mCircularBuffer.read(pos, buffer, offset, amount, READ_TIMEOUT_MS);
+        switch (ret) {
+            case TsRingBuffer.READ_OVERWRITTEN:
+                Log.e(TAG, "Demux is requesting the data which is already overwritten.");
+                return -1;
+            case TsRingBuffer.READ_TIMED_OUT:
+                // Nothing was received during READ_TIMEOUT_MS before.
+                mEndOfStreamSent = true;
+                mCircularBuffer.close();
+                return -1;
+            case TsRingBuffer.READ_CLOSED:
+                return -1;
         }
+        return ret;
     }
 }
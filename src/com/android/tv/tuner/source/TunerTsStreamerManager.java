@@ -17,18 +17,18 @@
 package com.android.tv.tuner.source;
 
 import android.content.Context;
+import android.util.Pair;
 
 import com.android.tv.common.AutoCloseableUtils;
-import com.android.tv.common.SoftPreconditions;
 import com.android.tv.tuner.TunerHal;
 import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.tvinput.EventDetector;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * Manages {@link TunerTsStreamer} for playback and recording.
@@ -43,7 +43,25 @@ class TunerTsStreamerManager {
     private final StreamerFinder mStreamerFinder = new StreamerFinder();
     private final Map<Integer, TsStreamerCreator> mCreators = new HashMap<>();
     private final Map<TsDataSource, TunerTsStreamer> mSourceToStreamerMap = new HashMap<>();
+    // The listener of the session of each source, which is registered to the shared streamer.
+    private final Map<TsDataSource, EventDetector.EventListener> mSourceToListenerMap =
+            new HashMap<>();
     private final TunerHalManager mTunerHalManager = new TunerHalManager();
+    private final Executor mStandbyExecutor = Executors.newSingleThreadExecutor();
+    // The streamer which keeps an idle tuner tuned to the channel likely to be tuned next. It's
+    // in mStreamerFinder, so that the tune shares it instantly.
+    // @GuardedBy("mCancelLock")
+    private TunerTsStreamer mStandbyStreamer;
+    // @GuardedBy("mCancelLock")
+    private int mStandbySessionId;
+    // @GuardedBy("mCancelLock")
+    private EventDetector.EventListener mStandbyEventListener;
+    // The tuner which is being tuned for the standby streamer, and whether a tune request
+    // cancelled it.
+    // @GuardedBy("mCancelLock")
+    private TunerHal mStandbyTuningHal;
+    // @GuardedBy("mCancelLock")
+    private boolean mStandbyTuningCancelled;
     private static TunerTsStreamerManager sInstance;
 
     /**
@@ -64,11 +82,28 @@ class TunerTsStreamerManager {
             int sessionId, boolean reuse) {
         TsStreamerCreator creator;
         synchronized (mCancelLock) {
-            if (mStreamerFinder.containsLocked(channel)) {
-                mStreamerFinder.appendSessionLocked(channel, sessionId);
-                TunerTsStreamer streamer =  mStreamerFinder.getStreamerLocked(channel);
-                TsDataSource source = streamer.createDataSource();
-                mSourceToStreamerMap.put(source, streamer);
+            // A tune has a priority over the standby streamer being started, which may hold the
+            // tuner to be used.
+            cancelStandbyTuningAndWaitLocked();
+            // A streamer of the same frequency is shared by adding the program to it, since a
+            // tuner streams any number of programs in its frequency.
+            TunerTsStreamer sharedStreamer = mStreamerFinder.getStreamerLocked(channel);
+            if (sharedStreamer != null && sharedStreamer.addProgram(channel)) {
+                TsDataSource source;
+                if (sharedStreamer == mStandbyStreamer) {
+                    // The prediction was right. The tuner is not given up anymore, and the
+                    // session of the source gets the events instead of the prefetching session.
+                    mStandbyStreamer = null;
+                    sharedStreamer.removeEventListener(mStandbyEventListener);
+                    mStandbyEventListener = null;
+                    // The source plays the prefetched data from the last PAT and key frame.
+                    source = sharedStreamer.createBufferedDataSource(channel);
+                } else {
+                    source = sharedStreamer.createDataSource(channel);
+                }
+                sharedStreamer.addEventListener(listener);
+                mSourceToStreamerMap.put(source, sharedStreamer);
+                mSourceToListenerMap.put(source, listener);
                 return source;
             }
             creator = new TsStreamerCreator(context, channel, listener);
@@ -81,9 +116,10 @@ class TunerTsStreamerManager {
                 return null;
             }
             if (!creator.isCancelledLocked()) {
-                mStreamerFinder.putLocked(channel, sessionId, streamer);
-                TsDataSource source = streamer.createDataSource();
+                mStreamerFinder.putLocked(channel, streamer);
+                TsDataSource source = streamer.createDataSource(channel);
                 mSourceToStreamerMap.put(source, streamer);
+                mSourceToListenerMap.put(source, listener);
                 return source;
             }
         }
@@ -99,17 +135,17 @@ class TunerTsStreamerManager {
             boolean reuse) {
         TunerTsStreamer streamer;
         synchronized (mCancelLock) {
-            streamer = mSourceToStreamerMap.get(source);
-            mSourceToStreamerMap.remove(source);
+            streamer = mSourceToStreamerMap.remove(source);
+            EventDetector.EventListener listener = mSourceToListenerMap.remove(source);
             if (streamer == null) {
                 return;
             }
-            TunerChannel channel = streamer.getChannel();
-            SoftPreconditions.checkState(channel != null);
-            mStreamerFinder.removeSessionLocked(channel, sessionId);
-            if (mStreamerFinder.containsLocked(channel)) {
+            if (mSourceToStreamerMap.containsValue(streamer)) {
+                // The streamer is still used by the other sources.
+                streamer.removeEventListener(listener);
                 return;
             }
+            mStreamerFinder.removeLocked(streamer);
         }
         streamer.stopStream();
         TunerHal hal = streamer.getTunerHal();
@@ -122,50 +158,193 @@ class TunerTsStreamerManager {
            if (mCreators.containsKey(sessionId)) {
                mCreators.get(sessionId).cancelLocked();
            }
+           // A tune request has a priority over the standby streamer being started.
+           cancelStandbyTuningLocked();
         }
     }
 
     synchronized void release(int sessionId) {
         mTunerHalManager.releaseCachedHal(sessionId);
+        TunerTsStreamer standbyStreamer;
+        synchronized (mCancelLock) {
+            cancelStandbyTuningAndWaitLocked();
+            if (mStandbyStreamer == null || mStandbySessionId != sessionId) {
+                return;
+            }
+            standbyStreamer = takeStandbyStreamerLocked();
+        }
+        standbyStreamer.stopStream();
+        AutoCloseableUtils.closeQuietly(standbyStreamer.getTunerHal());
     }
 
-    private class StreamerFinder {
-        private final Map<TunerChannel, Set<Integer>> mSessions = new HashMap<>();
-        private final Map<TunerChannel, TunerTsStreamer> mStreamers = new HashMap<>();
+    /**
+     * Stops the standby streamer of any session and closes its tuner, so that the tuner can be
+     * opened outside this class, for example by a channel scan.
+     */
+    synchronized void releaseStandbyStreamer() {
+        TunerTsStreamer standbyStreamer;
+        synchronized (mCancelLock) {
+            cancelStandbyTuningAndWaitLocked();
+            standbyStreamer = takeStandbyStreamerLocked();
+        }
+        if (standbyStreamer != null) {
+            standbyStreamer.stopStream();
+            AutoCloseableUtils.closeQuietly(standbyStreamer.getTunerHal());
+        }
+    }
 
-        // @GuardedBy("mCancelLock")
-        private void putLocked(TunerChannel channel, int sessionId, TunerTsStreamer streamer) {
-            Set<Integer> sessions = new HashSet<>();
-            sessions.add(sessionId);
-            mSessions.put(channel, sessions);
-            mStreamers.put(channel, streamer);
+    /**
+     * Keeps an idle tuner tuned to the channel which is likely to be tuned next, with its
+     * {@link EventDetector} running, so that the tune shares the stream instantly. This is done
+     * only when there are two or more tuners, and the tuner is given up whenever a tune needs it.
+     * The tuning is done in background.
+     */
+    void prefetch(final Context context, final TunerChannel channel,
+            final EventDetector.EventListener listener, final int sessionId) {
+        if (TunerHal.getTunerCount(context) < 2) {
+            return;
         }
+        mStandbyExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                startStandbyStreamer(context, channel, listener, sessionId);
+            }
+        });
+    }
 
-        // @GuardedBy("mCancelLock")
-        private void appendSessionLocked(TunerChannel channel, int sessionId) {
-            if (mSessions.containsKey(channel)) {
-                mSessions.get(channel).add(sessionId);
+    private void startStandbyStreamer(Context context, TunerChannel channel,
+            EventDetector.EventListener listener, int sessionId) {
+        TunerHal hal;
+        synchronized (this) {
+            TunerTsStreamer oldStandbyStreamer;
+            synchronized (mCancelLock) {
+                if (mStreamerFinder.getStreamerLocked(channel) != null) {
+                    // The frequency is already streamed.
+                    return;
+                }
+                oldStandbyStreamer = takeStandbyStreamerLocked();
+            }
+            if (oldStandbyStreamer != null) {
+                // The prediction was wrong. Re-uses the tuner for the new prediction.
+                oldStandbyStreamer.stopStream();
+                hal = oldStandbyStreamer.getTunerHal();
+            } else {
+                hal = mTunerHalManager.getOrCreateTunerHal(context, sessionId);
+                if (hal == null) {
+                    // No idle tuner.
+                    return;
+                }
+            }
+            synchronized (mCancelLock) {
+                mStandbyTuningHal = hal;
+                mStandbyTuningCancelled = false;
+            }
+        }
+        // Tunes without holding the monitor, not to block the other requests. They cancel the
+        // tune instead of waiting for it.
+        TunerTsStreamer streamer = new TunerTsStreamer(hal, listener, context);
+        boolean started = streamer.startStream(channel);
+        synchronized (mCancelLock) {
+            if (started && !mStandbyTuningCancelled
+                    && mStreamerFinder.getStreamerLocked(channel) == null) {
+                mStandbyStreamer = streamer;
+                mStandbySessionId = sessionId;
+                mStandbyEventListener = listener;
+                mStreamerFinder.putLocked(channel, streamer);
+                finishStandbyTuningLocked();
+                return;
             }
         }
+        if (started) {
+            streamer.stopStream();
+        }
+        hal.setHasPendingTune(false);
+        AutoCloseableUtils.closeQuietly(hal);
+        // The tuner is closed before the waiting tune proceeds, so that it can open the tuner.
+        synchronized (mCancelLock) {
+            finishStandbyTuningLocked();
+        }
+    }
 
-        // @GuardedBy("mCancelLock")
-        private void removeSessionLocked(TunerChannel channel, int sessionId) {
-            Set<Integer> sessions = mSessions.get(channel);
-            sessions.remove(sessionId);
-            if (sessions.size() == 0) {
-                mSessions.remove(channel);
-                mStreamers.remove(channel);
+    // @GuardedBy("mCancelLock")
+    private void cancelStandbyTuningLocked() {
+        if (mStandbyTuningHal != null && !mStandbyTuningCancelled) {
+            mStandbyTuningCancelled = true;
+            mStandbyTuningHal.setHasPendingTune(true);
+        }
+    }
+
+    // Cancels the standby tune in progress, and waits until it gives up the tuner.
+    // @GuardedBy("mCancelLock")
+    private void cancelStandbyTuningAndWaitLocked() {
+        cancelStandbyTuningLocked();
+        boolean interrupted = false;
+        while (mStandbyTuningHal != null) {
+            try {
+                mCancelLock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // @GuardedBy("mCancelLock")
+    private void finishStandbyTuningLocked() {
+        mStandbyTuningHal = null;
+        mCancelLock.notifyAll();
+    }
+
+    // Gives up the tuner of the standby streamer for a tune, which has a priority.
+    private TunerHal reclaimStandbyTunerHal() {
+        TunerTsStreamer standbyStreamer;
+        synchronized (mCancelLock) {
+            standbyStreamer = takeStandbyStreamerLocked();
+        }
+        if (standbyStreamer == null) {
+            return null;
+        }
+        standbyStreamer.stopStream();
+        return standbyStreamer.getTunerHal();
+    }
+
+    // @GuardedBy("mCancelLock")
+    private TunerTsStreamer takeStandbyStreamerLocked() {
+        TunerTsStreamer standbyStreamer = mStandbyStreamer;
+        if (standbyStreamer != null) {
+            mStandbyStreamer = null;
+            mStandbyEventListener = null;
+            mStreamerFinder.removeLocked(standbyStreamer);
+        }
+        return standbyStreamer;
+    }
+
+    /**
+     * Finds {@link TunerTsStreamer} by the frequency and the modulation of a channel, so that
+     * the channels in the same frequency share the streamer.
+     */
+    private class StreamerFinder {
+        private final Map<Pair<Integer, String>, TunerTsStreamer> mStreamers = new HashMap<>();
+
+        // @GuardedBy("mCancelLock")
+        private void putLocked(TunerChannel channel, TunerTsStreamer streamer) {
+            mStreamers.put(getMultiplexKey(channel), streamer);
+        }
 
         // @GuardedBy("mCancelLock")
-        private boolean containsLocked(TunerChannel channel) {
-            return mSessions.containsKey(channel);
+        private void removeLocked(TunerTsStreamer streamer) {
+            mStreamers.values().remove(streamer);
         }
 
         // @GuardedBy("mCancelLock")
         private TunerTsStreamer getStreamerLocked(TunerChannel channel) {
-            return mStreamers.containsKey(channel) ? mStreamers.get(channel) : null;
+            return mStreamers.get(getMultiplexKey(channel));
+        }
+
+        private Pair<Integer, String> getMultiplexKey(TunerChannel channel) {
+            return new Pair<>(channel.getFrequency(), channel.getModulation());
         }
     }
 
@@ -191,6 +370,9 @@ class TunerTsStreamerManager {
 
         private TunerTsStreamer create(int sessionId, boolean reuse) {
             TunerHal hal = mTunerHalManager.getOrCreateTunerHal(mContext, sessionId);
+            if (hal == null) {
+                hal = reclaimStandbyTunerHal();
+            }
             if (hal == null) {
                 return null;
             }
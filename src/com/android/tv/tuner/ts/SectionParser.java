@@ -18,9 +18,11 @@ package com.android.tv.tuner.ts;
 
 import android.media.tv.TvContentRating;
 import android.media.tv.TvContract.Programs.Genres;
+import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.android.tv.tuner.data.Channel;
 import com.android.tv.tuner.data.PsiData.PatItem;
@@ -34,7 +36,6 @@ import com.android.tv.tuner.data.PsipData.ExtendedChannelNameDescriptor;
 import com.android.tv.tuner.data.PsipData.GenreDescriptor;
 import com.android.tv.tuner.data.PsipData.Iso639LanguageDescriptor;
 import com.android.tv.tuner.data.PsipData.MgtItem;
-import com.android.tv.tuner.data.PsipData.PsipSection;
 import com.android.tv.tuner.data.PsipData.RatingRegion;
 import com.android.tv.tuner.data.PsipData.RegionalRating;
 import com.android.tv.tuner.data.PsipData.TsDescriptor;
@@ -171,6 +172,21 @@ public class SectionParser {
         0xbcb4666d, 0xb8757bda, 0xb5365d03, 0xb1f740b4
     };
 
+    // Tables for the slice-by-8 CRC computation, derived from CRC_TABLE.
+    // CRC_SLICE_TABLES[k][i] is the CRC of the byte i followed by k zero bytes.
+    private static final int[][] CRC_SLICE_TABLES = new int[8][];
+    static {
+        CRC_SLICE_TABLES[0] = CRC_TABLE;
+        for (int k = 1; k < CRC_SLICE_TABLES.length; ++k) {
+            int[] prev = CRC_SLICE_TABLES[k - 1];
+            int[] table = new int[256];
+            for (int i = 0; i < 256; ++i) {
+                table[i] = (prev[i] << 8) ^ CRC_TABLE[prev[i] >>> 24];
+            }
+            CRC_SLICE_TABLES[k] = table;
+        }
+    }
+
     // A table which maps ATSC genres to TIF genres.
     // See ATSC/65 Table 6.20.
     private static final String[] CANONICAL_GENRES_TABLE = {
@@ -319,8 +335,12 @@ public class SectionParser {
         ISO_LANGUAGE_CODE_MAP.put("esl", "spa"); // Special entry for channel 9-1 KQED in bay area.
     }
 
-    // Containers to store the last version numbers of the PSIP sections.
-    private final HashMap<PsipSection, Integer> mSectionVersionMap = new HashMap<>();
+    // Containers to store the last version numbers of the PSIP sections. A section is keyed by
+    // its table id, table id extension and section number packed into an int, in order not to
+    // allocate a key object for every section.
+    private final SparseIntArray mSectionVersionMap = new SparseIntArray();
+    // Containers to store the CRC of the last parsed PSIP sections with the same keys.
+    private final SparseIntArray mSectionCrcMap = new SparseIntArray();
     private final SparseArray<List<EttItem>> mParsedEttItems = new SparseArray<>();
 
     public interface OutputListener {
@@ -354,7 +374,7 @@ public class SectionParser {
             if (DEBUG) {
                 Log.d(TAG, "parseSections 0x" + Integer.toHexString(data.byteAt(pos) & 0xff));
             }
-            parseSection(Arrays.copyOfRange(data.buffer(), pos, pos + sectionLength));
+            parseSection(data.buffer(), pos, sectionLength);
             pos += sectionLength;
         }
         if (mListener != null) {
@@ -367,28 +387,36 @@ public class SectionParser {
         mParsedEttItems.clear();
     }
 
-    private void parseSection(byte[] data) {
-        if (!checkSanity(data)) {
+    @VisibleForTesting
+    void parseSection(byte[] buffer, int offset, int length) {
+        if (isKnownSection(buffer, offset, length)) {
+            // The same section was already parsed. Skips it without verifying CRC.
+            return;
+        }
+        if (!checkSanity(buffer, offset, length)) {
             Log.d(TAG, "Bad CRC!");
             return;
         }
-        PsipSection section = PsipSection.create(data);
-        if (section == null) {
+        if (length < 9) {
             return;
         }
 
         // The currentNextIndicator indicates that the section sent is currently applicable.
-        if (!section.getCurrentNextIndicator()) {
+        if ((buffer[offset + 5] & 0x01) == 0) {
             return;
         }
-        int versionNumber = (data[5] & 0x3e) >> 1;
-        Integer oldVersionNumber = mSectionVersionMap.get(section);
+        int sectionKey = getSectionKey(buffer, offset);
+        int versionNumber = (buffer[offset + 5] & 0x3e) >> 1;
+        int oldVersionNumber = mSectionVersionMap.get(sectionKey, -1);
 
         // The versionNumber shall be incremented when a change in the information carried within
         // the section occurs.
-        if (oldVersionNumber != null && versionNumber == oldVersionNumber) {
+        if (versionNumber == oldVersionNumber) {
             return;
         }
+
+        // Only a new or changed section is copied for parsing.
+        byte[] data = Arrays.copyOfRange(buffer, offset, offset + length);
         boolean result = false;
         switch (data[0]) {
             case TABLE_ID_PAT:
@@ -414,8 +442,45 @@ public class SectionParser {
                 break;
         }
         if (result) {
-            mSectionVersionMap.put(section, versionNumber);
+            mSectionVersionMap.put(sectionKey, versionNumber);
+            if (hasCrc(buffer, offset)) {
+                mSectionCrcMap.put(sectionKey, getCrc(buffer, offset, length));
+            } else {
+                mSectionCrcMap.delete(sectionKey);
+            }
+        }
+    }
+
+    // Returns whether the section has the same key, version and CRC with the last parsed section.
+    // Since a repeated section is very likely to be identical, this is checked before CRC.
+    private boolean isKnownSection(byte[] buffer, int offset, int length) {
+        if (length < 9 || !hasCrc(buffer, offset)) {
+            return false;
         }
+        int sectionKey = getSectionKey(buffer, offset);
+        int index = mSectionCrcMap.indexOfKey(sectionKey);
+        if (index < 0 || mSectionCrcMap.valueAt(index) != getCrc(buffer, offset, length)) {
+            return false;
+        }
+        int versionNumber = (buffer[offset + 5] & 0x3e) >> 1;
+        return mSectionVersionMap.get(sectionKey, -1) == versionNumber;
+    }
+
+    private static boolean hasCrc(byte[] buffer, int offset) {
+        return (buffer[offset + 1] & 0x80) != 0; // section_syntax_indicator
+    }
+
+    // Returns CRC_32 field which is located at the last 4 bytes of a section.
+    private static int getCrc(byte[] buffer, int offset, int length) {
+        int pos = offset + length - 4;
+        return (buffer[pos] & 0xff) << 24 | (buffer[pos + 1] & 0xff) << 16
+                | (buffer[pos + 2] & 0xff) << 8 | (buffer[pos + 3] & 0xff);
+    }
+
+    // Packs table_id, table_id_extension and section_number of a section into an int.
+    private static int getSectionKey(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 3] & 0xff) << 16
+                | (buffer[offset + 4] & 0xff) << 8 | (buffer[offset + 6] & 0xff);
     }
 
     private boolean parsePAT(byte[] data) {
@@ -1244,21 +1309,41 @@ public class SectionParser {
         return null;
     }
 
-    private static boolean checkSanity(byte[] data) {
-        if (data.length <= 1) {
+    private static boolean checkSanity(byte[] data, int offset, int length) {
+        if (length <= 1) {
             return false;
         }
-        boolean hasCRC = (data[1] & 0x80) != 0; // section_syntax_indicator
-        if (hasCRC) {
-            int crc = 0xffffffff;
-            for(byte b : data) {
-                int index = ((crc >> 24) ^ (b & 0xff)) & 0xff;
-                crc = CRC_TABLE[index] ^ (crc << 8);
-            }
-            if(crc != 0){
-                return false;
-            }
+        if (hasCrc(data, offset)) {
+            return computeCrc(data, offset, length) == 0;
         }
         return true;
     }
+
+    // Computes CRC-32/MPEG-2 by the slice-by-8 algorithm. For a section with its CRC_32 field,
+    // the result is 0 if the section is not corrupted.
+    private static int computeCrc(byte[] data, int offset, int length) {
+        int[] t0 = CRC_SLICE_TABLES[0];
+        int[] t1 = CRC_SLICE_TABLES[1];
+        int[] t2 = CRC_SLICE_TABLES[2];
+        int[] t3 = CRC_SLICE_TABLES[3];
+        int[] t4 = CRC_SLICE_TABLES[4];
+        int[] t5 = CRC_SLICE_TABLES[5];
+        int[] t6 = CRC_SLICE_TABLES[6];
+        int[] t7 = CRC_SLICE_TABLES[7];
+        int crc = 0xffffffff;
+        int pos = offset;
+        int end = offset + length;
+        for (; pos + 8 <= end; pos += 8) {
+            crc ^= (data[pos] & 0xff) << 24 | (data[pos + 1] & 0xff) << 16
+                    | (data[pos + 2] & 0xff) << 8 | (data[pos + 3] & 0xff);
+            crc = t7[crc >>> 24] ^ t6[(crc >>> 16) & 0xff] ^ t5[(crc >>> 8) & 0xff]
+                    ^ t4[crc & 0xff] ^ t3[data[pos + 4] & 0xff] ^ t2[data[pos + 5] & 0xff]
+                    ^ t1[data[pos + 6] & 0xff] ^ t0[data[pos + 7] & 0xff];
+        }
+        for (; pos < end; ++pos) {
+            int index = ((crc >> 24) ^ (data[pos] & 0xff)) & 0xff;
+            crc = t0[index] ^ (crc << 8);
+        }
+        return crc;
+    }
 }
@@ -16,22 +16,26 @@
 
 package com.android.tv.tuner.ts;
 
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
+import com.google.protobuf.nano.MessageNano;
 import com.android.tv.tuner.data.PsiData.PatItem;
 import com.android.tv.tuner.data.PsiData.PmtItem;
 import com.android.tv.tuner.data.PsipData.EitItem;
 import com.android.tv.tuner.data.PsipData.EttItem;
 import com.android.tv.tuner.data.PsipData.MgtItem;
 import com.android.tv.tuner.data.PsipData.VctItem;
+import com.android.tv.tuner.data.Track.AtscCaptionTrack;
 import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.ts.SectionParser.OutputListener;
 import com.android.tv.tuner.util.ByteArrayBuffer;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -63,27 +67,36 @@ public class TsParser {
     private final Map<Integer, String> mSourceIdToVctItemDescriptionMap = new HashMap<>();
     private final Map<Integer, VctItem> mProgramNumberToVctItemMap = new HashMap<>();
     private final Map<Integer, List<PmtItem>> mProgramNumberToPMTMap = new HashMap<>();
-    private final Map<Integer, List<EitItem>> mSourceIdToEitMap = new HashMap<>();
-    private final Map<EventSourceEntry, List<EitItem>> mEitMap = new HashMap<>();
-    private final Map<EventSourceEntry, List<EttItem>> mETTMap = new HashMap<>();
+    private final SparseArray<EventStore> mSourceIdToEventStoreMap = new SparseArray<>();
     private final TreeSet<Integer> mEITPids = new TreeSet<>();
     private final TreeSet<Integer> mETTPids = new TreeSet<>();
     private final SparseBooleanArray mProgramNumberHandledStatus = new SparseBooleanArray();
     private final SparseBooleanArray mVctItemHandledStatus = new SparseBooleanArray();
+    // The PMT arrival status of the programs in PAT.
+    private final SparseBooleanArray mPatProgramPmtStatus = new SparseBooleanArray();
     private final TsOutputListener mListener;
+    // A packet of an interesting PID is copied here when the data is fed by ByteBuffer.
+    private final byte[] mPacketBuffer = new byte[TS_PACKET_SIZE];
 
     private int mVctItemCount;
     private int mHandledVctItemCount;
     private int mVctSectionParsedCount;
     private boolean[] mVctSectionParsed;
+    private boolean mPatParsed;
+    private int mPatProgramPmtParsedCount;
 
     public interface TsOutputListener {
         void onPatDetected(List<PatItem> items);
         void onEitPidDetected(int pid);
         void onVctItemParsed(VctItem channel, List<PmtItem> pmtItems);
-        void onEitItemParsed(VctItem channel, List<EitItem> items);
+        // items are all the current events of the channel, and changedItems are the events which
+        // are added or changed since the last call. Removed events are just missing in items.
+        // The events are kept by the parser, so they must not be modified. Once any event of the
+        // channel has had caption tracks, all the events are marked by hasCaptionTrack().
+        void onEitItemParsed(VctItem channel, List<EitItem> items, List<EitItem> changedItems);
         void onEttPidDetected(int pid);
         void onAllVctItemsParsed();
+        void onAllPmtItemsParsed();
     }
 
     private abstract class Stream {
@@ -93,15 +106,17 @@ public class TsParser {
         protected int mContinuityCounter = INVALID_CONTINUITY_COUNTER;
         protected final ByteArrayBuffer mPacket = new ByteArrayBuffer(TS_PACKET_SIZE);
 
-        public void feedData(byte[] data, int continuityCounter, boolean startIndicator) {
+        public void feedData(byte[] data, int offset, int length, int continuityCounter,
+                boolean startIndicator) {
             if ((mContinuityCounter + 1) % NUM_CONTINUITY_COUNTER != continuityCounter) {
                 mPacket.setLength(0);
             }
             mContinuityCounter = continuityCounter;
-            handleData(data, startIndicator);
+            handleData(data, offset, length, startIndicator);
         }
 
-        protected abstract void handleData(byte[] data, boolean startIndicator);
+        protected abstract void handleData(byte[] data, int offset, int length,
+                boolean startIndicator);
     }
 
     private class SectionStream extends Stream {
@@ -114,11 +129,11 @@ public class TsParser {
         }
 
         @Override
-        protected void handleData(byte[] data, boolean startIndicator) {
+        protected void handleData(byte[] data, int offset, int length, boolean startIndicator) {
             int startPos = 0;
             if (mPacket.length() == 0) {
                 if (startIndicator) {
-                    startPos = (data[0] & 0xff) + 1;
+                    startPos = (data[offset] & 0xff) + 1;
                 } else {
                     // Don't know where the section starts yet. Wait until start indicator is on.
                     return;
@@ -130,11 +145,11 @@ public class TsParser {
             }
 
             // When a broken packet is encountered, parsing will stop and return right away.
-            if (startPos >= data.length) {
+            if (startPos >= length) {
                 mPacket.setLength(0);
                 return;
             }
-            mPacket.append(data, startPos, data.length - startPos);
+            mPacket.append(data, offset + startPos, length - startPos);
             mSectionParser.parseSections(mPacket);
         }
 
@@ -147,6 +162,25 @@ public class TsParser {
                 if (mListener != null) {
                     mListener.onPatDetected(items);
                 }
+                if (!mPatParsed) {
+                    mPatParsed = true;
+                    for (PatItem i : items) {
+                        // Program number 0 is for the network PID, which has no PMT.
+                        if (i.getProgramNo() != 0) {
+                            // A PMT may arrive earlier than PAT when its PID was known before.
+                            boolean pmtParsed =
+                                    mProgramNumberToPMTMap.containsKey(i.getProgramNo());
+                            mPatProgramPmtStatus.put(i.getProgramNo(), pmtParsed);
+                            if (pmtParsed) {
+                                mPatProgramPmtParsedCount++;
+                            }
+                        }
+                    }
+                    if (mPatProgramPmtParsedCount >= mPatProgramPmtStatus.size()
+                            && mListener != null) {
+                        mListener.onAllPmtItemsParsed();
+                    }
+                }
             }
 
             @Override
@@ -156,6 +190,15 @@ public class TsParser {
                     Log.d(TAG, "onPMTParsed, programNo " + programNumber + " handledStatus is "
                             + mProgramNumberHandledStatus.get(programNumber, false));
                 }
+                int pmtStatusIndex = mPatProgramPmtStatus.indexOfKey(programNumber);
+                if (pmtStatusIndex >= 0 && !mPatProgramPmtStatus.valueAt(pmtStatusIndex)) {
+                    mPatProgramPmtStatus.setValueAt(pmtStatusIndex, true);
+                    mPatProgramPmtParsedCount++;
+                    if (mPatProgramPmtParsedCount >= mPatProgramPmtStatus.size()
+                            && mListener != null) {
+                        mListener.onAllPmtItemsParsed();
+                    }
+                }
                 int statusIndex = mProgramNumberHandledStatus.indexOfKey(programNumber);
                 if (statusIndex < 0) {
                     mProgramNumberHandledStatus.put(programNumber, false);
@@ -244,9 +287,10 @@ public class TsParser {
             @Override
             public void onEitParsed(int sourceId, List<EitItem> items) {
                 if (DEBUG) Log.d(TAG, "onEITParsed " + sourceId);
-                EventSourceEntry entry = new EventSourceEntry(mPid, sourceId);
-                mEitMap.put(entry, items);
-                handleEvents(sourceId);
+                List<EitItem> changedItems = new ArrayList<>();
+                if (getEventStore(sourceId).applyEit(mPid, items, changedItems)) {
+                    handleEvents(sourceId, changedItems);
+                }
             }
 
             @Override
@@ -272,38 +316,170 @@ public class TsParser {
                 }
 
                 // Event Information description
-                EventSourceEntry entry = new EventSourceEntry(mPid, sourceId);
-                mETTMap.put(entry, descriptions);
-                handleEvents(sourceId);
+                List<EitItem> changedItems = new ArrayList<>();
+                if (getEventStore(sourceId).applyEtt(descriptions, changedItems)) {
+                    handleEvents(sourceId, changedItems);
+                }
             }
         };
     }
 
-    private static class EventSourceEntry {
-        public final int pid;
-        public final int sourceId;
+    // The events of a source merged from the EIT and ETT sections of all the PIDs, so that a
+    // section only touches the events it carries.
+    private static class EventStore {
+        private final SparseArray<EitItem> mEvents = new SparseArray<>();
+        // The PID of the EIT section which carried each event.
+        private final SparseIntArray mEventPids = new SparseIntArray();
+        // The descriptions by the event ID. A description is dropped with its event, since the
+        // event IDs are reused for the later events.
+        private final SparseArray<String> mDescriptions = new SparseArray<>();
+        private boolean mEitParsed;
+        // Whether any event of the source has had caption tracks. From then on, an event without
+        // caption tracks is regarded as having no captions rather than unknown, so all the
+        // events are marked by EitItem#hasCaptionTrack.
+        private boolean mCaptionTracksFound;
+        private List<EitItem> mItems;
+
+        // Replaces the events which the PID carried with the given ones. Returns whether any
+        // event was added, changed or removed. Unchanged events keep the existing instances.
+        // The stored events are handed over to the listener, so they are never modified but
+        // replaced with new instances, including the caption track marks.
+        public boolean applyEit(int pid, List<EitItem> items, List<EitItem> changedItems) {
+            boolean changed = !mEitParsed;
+            mEitParsed = true;
+            boolean captionTracksFound = false;
+            if (!mCaptionTracksFound) {
+                for (EitItem item : items) {
+                    List<AtscCaptionTrack> captionTracks = item.getCaptionTracks();
+                    if (captionTracks != null && !captionTracks.isEmpty()) {
+                        captionTracksFound = true;
+                        mCaptionTracksFound = true;
+                        break;
+                    }
+                }
+            }
+            SparseBooleanArray eventIds = new SparseBooleanArray(items.size());
+            for (EitItem item : items) {
+                eventIds.put(item.getEventId(), true);
+            }
+            for (int i = mEvents.size() - 1; i >= 0; --i) {
+                int eventId = mEvents.keyAt(i);
+                if (mEventPids.get(eventId) == pid && !eventIds.get(eventId)) {
+                    mEvents.removeAt(i);
+                    mEventPids.delete(eventId);
+                    mDescriptions.remove(eventId);
+                    changed = true;
+                }
+            }
+            for (EitItem item : items) {
+                int eventId = item.getEventId();
+                EitItem oldItem = mEvents.get(eventId);
+                if (oldItem != null && oldItem.getStartTime() != item.getStartTime()) {
+                    // The event ID is reused for another event.
+                    mDescriptions.remove(eventId);
+                }
+                String description = mDescriptions.get(eventId);
+                if (!TextUtils.equals(item.getDescription(), description)
+                        || item.hasCaptionTrack() != mCaptionTracksFound) {
+                    item = item.copy(description, mCaptionTracksFound);
+                }
+                mEventPids.put(eventId, pid);
+                if (oldItem != null && isSameEvent(oldItem, item)) {
+                    continue;
+                }
+                mEvents.put(eventId, item);
+                changedItems.add(item);
+                changed = true;
+            }
+            if (captionTracksFound) {
+                // The unchanged events should be marked also.
+                for (int i = 0; i < mEvents.size(); ++i) {
+                    EitItem item = mEvents.valueAt(i);
+                    if (!item.hasCaptionTrack()) {
+                        item = item.copy(item.getDescription(), true);
+                        mEvents.setValueAt(i, item);
+                        changedItems.add(item);
+                        changed = true;
+                    }
+                }
+            }
+            if (changed) {
+                mItems = null;
+            }
+            return changed;
+        }
 
-        public EventSourceEntry(int pid, int sourceId) {
-            this.pid = pid;
-            this.sourceId = sourceId;
+        // Applies the descriptions to the events. A description which arrives earlier than its
+        // event is kept for the event. Returns whether the description of any event was changed.
+        public boolean applyEtt(List<EttItem> descriptions, List<EitItem> changedItems) {
+            boolean changed = false;
+            for (EttItem ettItem : descriptions) {
+                if (ettItem.eventId == 0
+                        || TextUtils.equals(mDescriptions.get(ettItem.eventId), ettItem.text)) {
+                    continue;
+                }
+                mDescriptions.put(ettItem.eventId, ettItem.text);
+                EitItem item = mEvents.get(ettItem.eventId);
+                if (item != null) {
+                    item = item.withDescription(ettItem.text);
+                    mEvents.put(ettItem.eventId, item);
+                    changedItems.add(item);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                mItems = null;
+            }
+            return changed;
         }
 
-        @Override
-        public int hashCode() {
-            int result = 17;
-            result = 31 * result + pid;
-            result = 31 * result + sourceId;
-            return result;
+        public boolean isEitParsed() {
+            return mEitParsed;
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof EventSourceEntry) {
-                EventSourceEntry another = (EventSourceEntry) obj;
-                return pid == another.pid && sourceId == another.sourceId;
+        // Returns all the events. A new list is made after a change, since the previous one may
+        // be in use by the listener.
+        public List<EitItem> getItems() {
+            if (mItems == null) {
+                mItems = new ArrayList<>(mEvents.size());
+                for (int i = 0; i < mEvents.size(); ++i) {
+                    mItems.add(mEvents.valueAt(i));
+                }
             }
-            return false;
+            return mItems;
+        }
+
+        private static boolean isSameEvent(EitItem item, EitItem another) {
+            // compareTo() doesn't compare the tracks.
+            return item.compareTo(another) == 0
+                    && isSameTracks(item.getAudioTracks(), another.getAudioTracks())
+                    && isSameTracks(item.getCaptionTracks(), another.getCaptionTracks());
+        }
+
+        private static boolean isSameTracks(List<? extends MessageNano> tracks,
+                List<? extends MessageNano> anotherTracks) {
+            if (tracks == null || anotherTracks == null) {
+                return tracks == anotherTracks;
+            }
+            if (tracks.size() != anotherTracks.size()) {
+                return false;
+            }
+            for (int i = 0; i < tracks.size(); ++i) {
+                if (!MessageNano.messageNanoEquals(tracks.get(i), anotherTracks.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private EventStore getEventStore(int sourceId) {
+        EventStore store = mSourceIdToEventStoreMap.get(sourceId);
+        if (store == null) {
+            store = new EventStore();
+            mSourceIdToEventStoreMap.put(sourceId, store);
         }
+        return store;
     }
 
     private void handleVctItem(VctItem channel, List<PmtItem> pmtItems) {
@@ -320,51 +496,29 @@ public class TsParser {
             return;
         }
         if (!mVctItemHandledStatus.valueAt(statusIndex)) {
-            List<EitItem> eitItems = mSourceIdToEitMap.get(sourceId);
-            if (eitItems != null) {
+            EventStore store = mSourceIdToEventStoreMap.get(sourceId);
+            if (store != null && store.isEitParsed()) {
                 // When VCT is parsed later than EIT.
                 mVctItemHandledStatus.put(sourceId, true);
-                handleEitItems(channel, eitItems);
+                List<EitItem> eitItems = store.getItems();
+                handleEitItems(channel, eitItems, eitItems);
             }
         }
     }
 
-    private void handleEitItems(VctItem channel, List<EitItem> items) {
+    private void handleEitItems(VctItem channel, List<EitItem> items,
+            List<EitItem> changedItems) {
         if (mListener != null) {
-            mListener.onEitItemParsed(channel, items);
+            mListener.onEitItemParsed(channel, items, changedItems);
         }
     }
 
-    private void handleEvents(int sourceId) {
-        Map<Integer, EitItem> itemSet = new HashMap<>();
-        for (int pid : mEITPids) {
-            List<EitItem> eitItems = mEitMap.get(new EventSourceEntry(pid, sourceId));
-            if (eitItems != null) {
-                for (EitItem item : eitItems) {
-                    item.setDescription(null);
-                    itemSet.put(item.getEventId(), item);
-                }
-            }
-        }
-        for (int pid : mETTPids) {
-            List<EttItem> ettItems = mETTMap.get(new EventSourceEntry(pid, sourceId));
-            if (ettItems != null) {
-                for (EttItem ettItem : ettItems) {
-                    if (ettItem.eventId != 0) {
-                        EitItem item = itemSet.get(ettItem.eventId);
-                        if (item != null) {
-                            item.setDescription(ettItem.text);
-                        }
-                    }
-                }
-            }
-        }
-        List<EitItem> items = new ArrayList<>(itemSet.values());
-        mSourceIdToEitMap.put(sourceId, items);
+    private void handleEvents(int sourceId, List<EitItem> changedItems) {
         VctItem channel = mSourceIdToVctItemMap.get(sourceId);
         if (channel != null && mProgramNumberHandledStatus.get(channel.getProgramNumber())) {
             mVctItemHandledStatus.put(sourceId, true);
-            handleEitItems(channel, items);
+            handleEitItems(channel, mSourceIdToEventStoreMap.get(sourceId).getItems(),
+                    changedItems);
         } else {
             mVctItemHandledStatus.put(sourceId, false);
             Log.i(TAG, "onEITParsed, but VCT for sourceId " + sourceId + " is not found yet.");
@@ -385,6 +539,16 @@ public class TsParser {
         mStreamMap.put(pid, new SectionStream(pid));
     }
 
+    /**
+     * Starts parsing the PMT at the given PID before PAT arrives.
+     * @param pmtPid the PID of PMT which was known before
+     */
+    public void startListeningPmt(int pmtPid) {
+        if (mStreamMap.get(pmtPid) == null) {
+            startListening(pmtPid);
+        }
+    }
+
     private boolean feedTSPacket(byte[] tsData, int pos) {
         if (tsData.length < pos + TS_PACKET_SIZE) {
             if (DEBUG) Log.d(TAG, "Data should include a single TS packet.");
@@ -416,7 +580,7 @@ public class TsParser {
             if (DEBUG) Log.d(TAG, "Payload should be included in a single TS packet.");
             return false;
         }
-        stream.feedData(Arrays.copyOfRange(tsData, payloadPos, pos + TS_PACKET_SIZE),
+        stream.feedData(tsData, payloadPos, pos + TS_PACKET_SIZE - payloadPos,
                 continuityCounter, payloadStartIndicator);
         return true;
     }
@@ -433,6 +597,26 @@ public class TsParser {
         }
     }
 
+    /**
+     * Feeds MPEG-2 TS data to parse. Only the packets of the PIDs which are being parsed are
+     * copied from the buffer, so most of the audio and video packets are not touched.
+     * @param tsData buffer for ATSC TS stream. The data between its position and limit is parsed
+     *            and the position is not changed.
+     */
+    public void feedTSData(ByteBuffer tsData) {
+        ByteBuffer data = tsData.duplicate();
+        int limit = data.limit();
+        for (int pos = data.position(); pos <= limit - TS_PACKET_SIZE; pos += TS_PACKET_SIZE) {
+            int pid = ((data.get(pos + 1) & 0x1f) << 8) | (data.get(pos + 2) & 0xff);
+            if (mStreamMap.get(pid) == null) {
+                continue;
+            }
+            data.position(pos);
+            data.get(mPacketBuffer);
+            feedTSPacket(mPacketBuffer, 0);
+        }
+    }
+
     /**
      * Retrieves the channel information regardless of being well-formed.
      * @return {@link List} of {@link TunerChannel}
@@ -18,6 +18,7 @@ package com.android.tv.tuner.tvinput;
 
 import android.content.ComponentName;
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -30,6 +31,7 @@ import android.os.HandlerThread;
 import android.os.Message;
 import android.os.RemoteException;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.text.format.DateUtils;
 import android.util.Log;
 
@@ -42,6 +44,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -78,12 +82,19 @@ public class ChannelDataManager implements Handler.Callback {
     private static final int MSG_REQUEST_PROGRAMS = 4;
     private static final int MSG_CLEAR_CHANNELS = 6;
     private static final int MSG_CHECK_VERSION = 7;
+    private static final int MSG_FLUSH_EVENTS = 8;
 
     // Throttle the batch operations to avoid TransactionTooLargeException.
     private static final int BATCH_OPERATION_COUNT = 100;
     // At most 16 days of program information is delivered through an EIT,
     // according to the Chapter 6.4 of ATSC Recommended Practice A/69.
     private static final long PROGRAM_QUERY_DURATION = TimeUnit.DAYS.toMillis(16);
+    // EIT and ETT sections of many channels arrive in a short time. The arrived events are written
+    // together after this delay.
+    private static final long EVENT_COALESCING_DELAY_MS = TimeUnit.SECONDS.toMillis(2);
+    // The programs of a channel are queried again after this time, in case they are changed by
+    // others.
+    private static final long PROGRAM_INDEX_EXPIRATION_MS = TimeUnit.HOURS.toMillis(1);
 
     /**
      * A version number to enforce consistency of the channel data.
@@ -105,6 +116,10 @@ public class ChannelDataManager implements Handler.Callback {
     private final ConcurrentSkipListMap<TunerChannel, Long> mTunerChannelIdMap;
     private final Uri mChannelsUri;
 
+    // Used for handling events in the handler thread
+    private final Map<Long, ChannelProgramIndex> mProgramIndexes = new HashMap<>();
+    private final Map<Long, ChannelEvent> mPendingEvents = new LinkedHashMap<>();
+
     // Used for scanning
     private final ConcurrentSkipListSet<TunerChannel> mScannedChannels;
     private final ConcurrentSkipListSet<TunerChannel> mPreviousScannedChannels;
@@ -196,9 +211,18 @@ public class ChannelDataManager implements Handler.Callback {
     }
 
     public void releaseSafely() {
+        // Writes the pending events before quitting.
+        flushPendingEvents();
         mHandlerThread.quitSafely();
     }
 
+    /**
+     * Returns the channels loaded so far.
+     */
+    public List<TunerChannel> getChannels() {
+        return new ArrayList<>(mTunerChannelMap.values());
+    }
+
     public TunerChannel getChannel(long channelId) {
         TunerChannel channel = mTunerChannelMap.get(channelId);
         if (channel != null) {
@@ -232,6 +256,15 @@ public class ChannelDataManager implements Handler.Callback {
         mHandler.obtainMessage(MSG_HANDLE_EVENTS, new ChannelEvent(channel, items)).sendToTarget();
     }
 
+    /**
+     * Writes the events which have arrived so far without waiting for more events.
+     */
+    @VisibleForTesting
+    void flushPendingEvents() {
+        mHandler.removeMessages(MSG_FLUSH_EVENTS);
+        mHandler.sendEmptyMessage(MSG_FLUSH_EVENTS);
+    }
+
     public void notifyChannelDetected(TunerChannel channel, boolean channelArrivedAtFirstTime) {
         if (mIsScanning.get()) {
             // During scanning, channels should be handle first to improve scan time.
@@ -362,6 +395,10 @@ public class ChannelDataManager implements Handler.Callback {
                 checkVersion();
                 return true;
             }
+            case MSG_FLUSH_EVENTS: {
+                flushEvents();
+                return true;
+            }
         }
         return false;
     }
@@ -380,80 +417,100 @@ public class ChannelDataManager implements Handler.Callback {
             mListener.onProgramsArrived(channel, items);
         }
 
+        // The events of a channel always contain all the events known so far, so the latest one
+        // replaces the pending one.
+        mPendingEvents.put(channelId, new ChannelEvent(channel, items));
+        if (!mHandler.hasMessages(MSG_FLUSH_EVENTS)) {
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH_EVENTS, EVENT_COALESCING_DELAY_MS);
+        }
+    }
+
+    private void flushEvents() {
+        if (mPendingEvents.isEmpty()) {
+            return;
+        }
         long currentTime = System.currentTimeMillis();
-        List<EitItem> oldItems = getAllProgramsForChannel(channel, currentTime,
-                currentTime + PROGRAM_QUERY_DURATION);
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-        // TODO: Find a right way to check if the programs are added outside.
-        boolean addedOutside = false;
-        for (EitItem item : oldItems) {
-            if (item.getEventId() == 0) {
-                // The event has been added outside TV tuner.
-                addedOutside = true;
-                break;
-            }
-        }
-
-        // Inserting programs only when there is no overlapping with existing data assuming that:
-        // 1. external EPG is more accurate and rich and
-        // 2. the data we add here will be updated when we apply external EPG.
-        if (addedOutside) {
-            // oldItemCount cannot be 0 if addedOutside is true.
-            int oldItemCount = oldItems.size();
-            for (EitItem newItem : items) {
-                if (newItem.getEndTimeUtcMillis() < currentTime) {
+        ProgramBatch batch = new ProgramBatch();
+        for (ChannelEvent event : mPendingEvents.values()) {
+            long channelId = event.channel.getChannelId();
+            int itemsHash = hashEitItems(event.eitItems);
+            ChannelProgramIndex index = mProgramIndexes.get(channelId);
+            if (index != null && index.itemsHash == itemsHash
+                    && currentTime < index.expirationTimeMs) {
+                // Nothing changed since the last write.
+                continue;
+            }
+            if (index == null || currentTime >= index.expirationTimeMs) {
+                index = new ChannelProgramIndex(getAllProgramsForChannel(event.channel,
+                        currentTime, currentTime + PROGRAM_QUERY_DURATION),
+                        currentTime + PROGRAM_INDEX_EXPIRATION_MS);
+                mProgramIndexes.put(channelId, index);
+            }
+            index.itemsHash = itemsHash;
+            if (index.addedOutside) {
+                addEventsWithoutOverlap(event.channel, event.eitItems, index, currentTime, batch);
+            } else {
+                updateEvents(event.channel, event.eitItems, index, currentTime, batch);
+            }
+        }
+        mPendingEvents.clear();
+        batch.apply();
+    }
+
+    // Inserting programs only when there is no overlapping with existing data assuming that:
+    // 1. external EPG is more accurate and rich and
+    // 2. the data we add here will be updated when we apply external EPG.
+    private void addEventsWithoutOverlap(TunerChannel channel, List<EitItem> items,
+            ChannelProgramIndex index, long currentTime, ProgramBatch batch) {
+        index.removeEndedPrograms(currentTime);
+        List<EitItem> oldItems = index.getItemsSortedByStartTime();
+        int oldItemCount = oldItems.size();
+        for (EitItem newItem : items) {
+            if (newItem.getEndTimeUtcMillis() < currentTime) {
+                continue;
+            }
+            long newItemStartTime = newItem.getStartTimeUtcMillis();
+            long newItemEndTime = newItem.getEndTimeUtcMillis();
+            if (oldItemCount == 0) {
+                // All the old items have ended.
+            } else if (newItemStartTime < oldItems.get(0).getStartTimeUtcMillis()) {
+                // Start time smaller than that of any old items. Insert if no overlap.
+                if (newItemEndTime > oldItems.get(0).getStartTimeUtcMillis()) continue;
+            } else if (newItemStartTime
+                    > oldItems.get(oldItemCount - 1).getStartTimeUtcMillis()) {
+                // Start time larger than that of any old item. Insert if no overlap.
+                if (newItemStartTime
+                        < oldItems.get(oldItemCount - 1).getEndTimeUtcMillis()) continue;
+            } else {
+                int pos = Collections.binarySearch(oldItems, newItem, START_TIME_COMPARATOR);
+                if (pos >= 0) {
+                    // Same start Time found. Overlapped.
                     continue;
                 }
-                long newItemStartTime = newItem.getStartTimeUtcMillis();
-                long newItemEndTime = newItem.getEndTimeUtcMillis();
-                if (newItemStartTime < oldItems.get(0).getStartTimeUtcMillis()) {
-                    // Start time smaller than that of any old items. Insert if no overlap.
-                    if (newItemEndTime > oldItems.get(0).getStartTimeUtcMillis()) continue;
-                } else if (newItemStartTime
-                        > oldItems.get(oldItemCount - 1).getStartTimeUtcMillis()) {
-                    // Start time larger than that of any old item. Insert if no overlap.
-                    if (newItemStartTime
-                            < oldItems.get(oldItemCount - 1).getEndTimeUtcMillis()) continue;
-                } else {
-                    int pos = Collections.binarySearch(oldItems, newItem,
-                            new Comparator<EitItem>() {
-                                @Override
-                                public int compare(EitItem lhs, EitItem rhs) {
-                                    return Long.compare(lhs.getStartTimeUtcMillis(),
-                                            rhs.getStartTimeUtcMillis());
-                                }
-                            });
-                    if (pos >= 0) {
-                        // Same start Time found. Overlapped.
-                        continue;
-                    }
-                    int insertPoint = -1 - pos;
-                    // Check the two adjacent items.
-                    if (newItemStartTime < oldItems.get(insertPoint - 1).getEndTimeUtcMillis()
-                            || newItemEndTime > oldItems.get(insertPoint).getStartTimeUtcMillis()) {
-                        continue;
-                    }
-                }
-                ops.add(buildContentProviderOperation(ContentProviderOperation.newInsert(
-                        TvContract.Programs.CONTENT_URI), newItem, channel.getChannelId()));
-                if (ops.size() >= BATCH_OPERATION_COUNT) {
-                    applyBatch(channel.getName(), ops);
-                    ops.clear();
+                int insertPoint = -1 - pos;
+                // Check the two adjacent items.
+                if (newItemStartTime < oldItems.get(insertPoint - 1).getEndTimeUtcMillis()
+                        || newItemEndTime > oldItems.get(insertPoint).getStartTimeUtcMillis()) {
+                    continue;
                 }
             }
-            applyBatch(channel.getName(), ops);
-            return;
+            batch.insert(channel, index, newItem);
         }
+    }
 
-        List<EitItem> outdatedOldItems = new ArrayList<>();
+    private void updateEvents(TunerChannel channel, List<EitItem> items,
+            ChannelProgramIndex index, long currentTime, ProgramBatch batch) {
+        index.removeEndedPrograms(currentTime);
+        List<IndexedProgram> outdatedOldPrograms = new ArrayList<>();
         Map<Integer, EitItem> newEitItemMap = new HashMap<>();
         for (EitItem item : items) {
             newEitItemMap.put(item.getEventId(), item);
         }
-        for (EitItem oldItem : oldItems) {
+        for (IndexedProgram oldProgram : index.programs.values()) {
+            EitItem oldItem = oldProgram.item;
             EitItem item = newEitItemMap.get(oldItem.getEventId());
             if (item == null) {
-                outdatedOldItems.add(oldItem);
+                outdatedOldPrograms.add(oldProgram);
                 continue;
             }
 
@@ -466,35 +523,26 @@ public class ChannelDataManager implements Handler.Callback {
                     && Objects.equals(oldItem.getContentRating(), item.getContentRating())
                     && Objects.equals(oldItem.getBroadcastGenre(), item.getBroadcastGenre())
                     && Objects.equals(oldItem.getCanonicalGenre(), item.getCanonicalGenre())) {
-                item.setDescription(oldItem.getDescription());
-            }
-            if (item.compareTo(oldItem) != 0) {
-                ops.add(buildContentProviderOperation(ContentProviderOperation.newUpdate(
-                        TvContract.buildProgramUri(oldItem.getProgramId())), item, null));
-                if (ops.size() >= BATCH_OPERATION_COUNT) {
-                    applyBatch(channel.getName(), ops);
-                    ops.clear();
-                }
+                // The item is shared with the parser, so a copy takes the description.
+                item = item.withDescription(oldItem.getDescription());
+            }
+            if (oldProgram.contentHash != hashEitItem(item) || item.compareTo(oldItem) != 0) {
+                batch.update(channel, index, oldProgram, item);
             }
             newEitItemMap.remove(item.getEventId());
         }
-        for (EitItem unverifiedOldItems : outdatedOldItems) {
-            if (unverifiedOldItems.getStartTimeUtcMillis() > currentTime) {
+        for (IndexedProgram unverifiedOldProgram : outdatedOldPrograms) {
+            if (unverifiedOldProgram.item.getStartTimeUtcMillis() > currentTime) {
                 // The given new EIT item list covers partial time span of EPG. Here, we delete old
                 // item only when it has an overlapping with the new EIT item list.
-                long startTime = unverifiedOldItems.getStartTimeUtcMillis();
-                long endTime = unverifiedOldItems.getEndTimeUtcMillis();
+                long startTime = unverifiedOldProgram.item.getStartTimeUtcMillis();
+                long endTime = unverifiedOldProgram.item.getEndTimeUtcMillis();
                 for (EitItem item : newEitItemMap.values()) {
                     long newItemStartTime = item.getStartTimeUtcMillis();
                     long newItemEndTime = item.getEndTimeUtcMillis();
                     if ((startTime >= newItemStartTime && startTime < newItemEndTime)
                             || (endTime > newItemStartTime && endTime <= newItemEndTime)) {
-                        ops.add(ContentProviderOperation.newDelete(TvContract.buildProgramUri(
-                                unverifiedOldItems.getProgramId())).build());
-                        if (ops.size() >= BATCH_OPERATION_COUNT) {
-                            applyBatch(channel.getName(), ops);
-                            ops.clear();
-                        }
+                        batch.delete(channel, index, unverifiedOldProgram);
                         break;
                     }
                 }
@@ -504,15 +552,8 @@ public class ChannelDataManager implements Handler.Callback {
             if (item.getEndTimeUtcMillis() < currentTime) {
                 continue;
             }
-            ops.add(buildContentProviderOperation(ContentProviderOperation.newInsert(
-                    TvContract.Programs.CONTENT_URI), item, channel.getChannelId()));
-            if (ops.size() >= BATCH_OPERATION_COUNT) {
-                applyBatch(channel.getName(), ops);
-                ops.clear();
-            }
+            batch.insert(channel, index, item);
         }
-
-        applyBatch(channel.getName(), ops);
     }
 
     private ContentProviderOperation buildContentProviderOperation(
@@ -538,12 +579,14 @@ public class ChannelDataManager implements Handler.Callback {
         return builder.build();
     }
 
-    private void applyBatch(String channelName, ArrayList<ContentProviderOperation> operations) {
+    private ContentProviderResult[] applyBatch(String channelName,
+            ArrayList<ContentProviderOperation> operations) {
         try {
-            mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, operations);
+            return mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, operations);
         } catch (RemoteException | OperationApplicationException e) {
             Log.e(TAG, "Error updating EPG " + channelName, e);
         }
+        return null;
     }
 
     private void handleChannel(TunerChannel channel) {
@@ -587,6 +630,8 @@ public class ChannelDataManager implements Handler.Callback {
     }
 
     private void clearChannels() {
+        mProgramIndexes.clear();
+        mPendingEvents.clear();
         int count = mContext.getContentResolver().delete(mChannelsUri, null, null);
         if (count > 0) {
             // We have just deleted obsolete data. Now tell the user that he or she needs
@@ -694,6 +739,181 @@ public class ChannelDataManager implements Handler.Callback {
         }
     }
 
+    private static int hashEitItems(List<EitItem> items) {
+        int hash = 17;
+        for (EitItem item : items) {
+            hash = 31 * hash + hashEitItem(item);
+        }
+        return hash;
+    }
+
+    // Hashes the fields which are compared in EitItem#compareTo.
+    private static int hashEitItem(EitItem item) {
+        return Objects.hash(item.getEventId(), item.getTitleText(), item.getStartTime(),
+                item.getLengthInSecond(), item.getContentRating(), item.getBroadcastGenre(),
+                item.getCanonicalGenre(), item.getDescription());
+    }
+
+    private static final Comparator<EitItem> START_TIME_COMPARATOR = new Comparator<EitItem>() {
+        @Override
+        public int compare(EitItem lhs, EitItem rhs) {
+            return Long.compare(lhs.getStartTimeUtcMillis(), rhs.getStartTimeUtcMillis());
+        }
+    };
+
+    /**
+     * A program of a channel which is written in TvProvider. The item is a copy of the written one,
+     * which is not modified later.
+     */
+    private static class IndexedProgram {
+        public final long programId;
+        public final EitItem item;
+        public final int contentHash;
+
+        public IndexedProgram(long programId, EitItem item) {
+            this.programId = programId;
+            this.item = item;
+            this.contentHash = hashEitItem(item);
+        }
+    }
+
+    /**
+     * The programs of a channel in TvProvider indexed by the event id, which is kept up to date
+     * with the writes of this class so that the programs are not queried for every EIT.
+     */
+    private static class ChannelProgramIndex {
+        public final Map<Integer, IndexedProgram> programs = new HashMap<>();
+        // The programs which are not from EIT. They are not indexed by the event id.
+        public final List<EitItem> outsidePrograms = new ArrayList<>();
+        public final boolean addedOutside;
+        public long expirationTimeMs;
+        public int itemsHash;
+
+        public ChannelProgramIndex(List<EitItem> items, long expirationTimeMs) {
+            boolean addedOutside = false;
+            for (EitItem item : items) {
+                // TODO: Find a right way to check if the programs are added outside.
+                if (item.getEventId() == 0) {
+                    // The event has been added outside TV tuner.
+                    addedOutside = true;
+                    outsidePrograms.add(item);
+                } else {
+                    programs.put(item.getEventId(), new IndexedProgram(item.getProgramId(), item));
+                }
+            }
+            this.addedOutside = addedOutside;
+            this.expirationTimeMs = expirationTimeMs;
+        }
+
+        public void removeEndedPrograms(long currentTime) {
+            Iterator<IndexedProgram> iter = programs.values().iterator();
+            while (iter.hasNext()) {
+                if (iter.next().item.getEndTimeUtcMillis() < currentTime) {
+                    iter.remove();
+                }
+            }
+            Iterator<EitItem> outsideIter = outsidePrograms.iterator();
+            while (outsideIter.hasNext()) {
+                if (outsideIter.next().getEndTimeUtcMillis() < currentTime) {
+                    outsideIter.remove();
+                }
+            }
+        }
+
+        public List<EitItem> getItemsSortedByStartTime() {
+            List<EitItem> items = new ArrayList<>(outsidePrograms);
+            for (IndexedProgram program : programs.values()) {
+                items.add(program.item);
+            }
+            Collections.sort(items, START_TIME_COMPARATOR);
+            return items;
+        }
+    }
+
+    /**
+     * Program operations of many channels which are applied to TvProvider together. The indexes
+     * of the channels are updated according to the results.
+     */
+    private class ProgramBatch {
+        private final ArrayList<ContentProviderOperation> mOperations = new ArrayList<>();
+        // The index entries to be updated by the results of the operations with the same indices.
+        private final List<PendingIndexUpdate> mIndexUpdates = new ArrayList<>();
+
+        public void insert(TunerChannel channel, ChannelProgramIndex index, EitItem item) {
+            // Takes a copy, so that the operation and the index get the same content.
+            item = item.withDescription(item.getDescription());
+            add(buildContentProviderOperation(ContentProviderOperation.newInsert(
+                    TvContract.Programs.CONTENT_URI), item, channel.getChannelId()),
+                    new PendingIndexUpdate(channel, index, item, null));
+        }
+
+        public void update(TunerChannel channel, ChannelProgramIndex index,
+                IndexedProgram oldProgram, EitItem item) {
+            item = item.withDescription(item.getDescription());
+            add(buildContentProviderOperation(ContentProviderOperation.newUpdate(
+                    TvContract.buildProgramUri(oldProgram.programId)), item, null),
+                    new PendingIndexUpdate(channel, index, item, oldProgram));
+        }
+
+        public void delete(TunerChannel channel, ChannelProgramIndex index,
+                IndexedProgram oldProgram) {
+            add(ContentProviderOperation.newDelete(
+                    TvContract.buildProgramUri(oldProgram.programId)).build(),
+                    new PendingIndexUpdate(channel, index, null, oldProgram));
+        }
+
+        private void add(ContentProviderOperation operation, PendingIndexUpdate indexUpdate) {
+            mOperations.add(operation);
+            mIndexUpdates.add(indexUpdate);
+        }
+
+        public void apply() {
+            for (int start = 0; start < mOperations.size(); start += BATCH_OPERATION_COUNT) {
+                int end = Math.min(start + BATCH_OPERATION_COUNT, mOperations.size());
+                ContentProviderResult[] results = applyBatch(
+                        mIndexUpdates.get(start).channel.getName(),
+                        new ArrayList<>(mOperations.subList(start, end)));
+                for (int i = start; i < end; ++i) {
+                    mIndexUpdates.get(i).apply(results == null ? null : results[i - start]);
+                }
+            }
+            mOperations.clear();
+            mIndexUpdates.clear();
+        }
+    }
+
+    private class PendingIndexUpdate {
+        public final TunerChannel channel;
+        private final ChannelProgramIndex mIndex;
+        private final EitItem mItem;
+        private final IndexedProgram mOldProgram;
+
+        public PendingIndexUpdate(TunerChannel channel, ChannelProgramIndex index, EitItem item,
+                IndexedProgram oldProgram) {
+            this.channel = channel;
+            mIndex = index;
+            mItem = item;
+            mOldProgram = oldProgram;
+        }
+
+        public void apply(ContentProviderResult result) {
+            if (result == null) {
+                // The programs in TvProvider are unknown. Queries them again next time.
+                mProgramIndexes.remove(channel.getChannelId());
+                return;
+            }
+            if (mItem == null) {
+                mIndex.programs.remove(mOldProgram.item.getEventId());
+            } else if (mOldProgram != null) {
+                mIndex.programs.put(mItem.getEventId(),
+                        new IndexedProgram(mOldProgram.programId, mItem));
+            } else if (result.uri != null) {
+                mIndex.programs.put(mItem.getEventId(),
+                        new IndexedProgram(ContentUris.parseId(result.uri), mItem));
+            }
+        }
+    }
+
     private static class ChannelEvent {
         public final TunerChannel channel;
         public final List<EitItem> eitItems;
@@ -19,6 +19,7 @@ package com.android.tv.tuner.tvinput;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
 import com.android.tv.tuner.TunerHal;
 import com.android.tv.tuner.data.Track.AtscAudioTrack;
@@ -28,6 +29,7 @@ import com.android.tv.tuner.ts.TsParser;
 import com.android.tv.tuner.data.PsiData;
 import com.android.tv.tuner.data.PsipData;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -50,18 +52,42 @@ public class EventDetector {
     private final Set<Integer> mVctProgramNumberSet = new HashSet<>();
     private final SparseArray<TunerChannel> mChannelMap = new SparseArray<>();
     private final SparseBooleanArray mVctCaptionTracksFound = new SparseBooleanArray();
-    private final SparseBooleanArray mEitCaptionTracksFound = new SparseBooleanArray();
     private final EventListener mEventListener;
+    private volatile ScanStageListener mScanStageListener;
+    private boolean mPatDetected;
+    private boolean mAllPmtItemsParsed;
+    private boolean mAllVctItemsParsed;
     private int mFrequency;
     private String mModulation;
     private int mProgramNumber = ALL_PROGRAM_NUMBERS;
 
+    // Guards the PMT PIDs and the additional program numbers, which are accessed from both the
+    // streaming thread and the sessions sharing the stream.
+    private final Object mProgramLock = new Object();
+    // The PMT PIDs of the programs in the last PAT, keyed by program number.
+    private final SparseIntArray mPmtPids = new SparseIntArray();
+    // The programs whose PMTs are also detected, when a stream serves several programs.
+    private final SparseBooleanArray mAdditionalProgramNumbers = new SparseBooleanArray();
+
     private final TsParser.TsOutputListener mTsOutputListener = new TsParser.TsOutputListener() {
         @Override
         public void onPatDetected(List<PsiData.PatItem> items) {
-            for (PsiData.PatItem i : items) {
-                if (mProgramNumber == ALL_PROGRAM_NUMBERS || mProgramNumber == i.getProgramNo()) {
-                    mTunerHal.addPidFilter(i.getPmtPid(), TunerHal.FILTER_TYPE_OTHER);
+            synchronized (mProgramLock) {
+                mPmtPids.clear();
+                for (PsiData.PatItem i : items) {
+                    mPmtPids.put(i.getProgramNo(), i.getPmtPid());
+                    if (mProgramNumber == ALL_PROGRAM_NUMBERS
+                            || mProgramNumber == i.getProgramNo()
+                            || mAdditionalProgramNumbers.get(i.getProgramNo())) {
+                        mTunerHal.addPidFilter(i.getPmtPid(), TunerHal.FILTER_TYPE_OTHER);
+                    }
+                }
+            }
+            if (!mPatDetected) {
+                mPatDetected = true;
+                ScanStageListener listener = mScanStageListener;
+                if (listener != null) {
+                    listener.onPatDetected();
                 }
             }
         }
@@ -72,7 +98,8 @@ public class EventDetector {
         }
 
         @Override
-        public void onEitItemParsed(PsipData.VctItem channel, List<PsipData.EitItem> items) {
+        public void onEitItemParsed(PsipData.VctItem channel, List<PsipData.EitItem> items,
+                List<PsipData.EitItem> changedItems) {
             TunerChannel tunerChannel = mChannelMap.get(channel.getProgramNumber());
             if (DEBUG) {
                 Log.d(TAG, "onEitItemParsed tunerChannel:" + tunerChannel + " "
@@ -87,24 +114,6 @@ public class EventDetector {
                 return;
             }
 
-            // If at least a one caption track have been found in EIT items for the given channel,
-            // we starts to interpret the zero tracks as a clearance of the caption tracks.
-            boolean captionTracksFound = mEitCaptionTracksFound.get(channelSourceId);
-            for (PsipData.EitItem item : items) {
-                if (captionTracksFound) {
-                    break;
-                }
-                List<AtscCaptionTrack> captionTracks = item.getCaptionTracks();
-                if (captionTracks != null && !captionTracks.isEmpty()) {
-                    captionTracksFound = true;
-                }
-            }
-            mEitCaptionTracksFound.put(channelSourceId, captionTracksFound);
-            if (captionTracksFound) {
-                for (PsipData.EitItem item : items) {
-                    item.setHasCaptionTrack();
-                }
-            }
             if (tunerChannel != null && mEventListener != null) {
                 mEventListener.onEventDetected(tunerChannel, items);
             }
@@ -117,8 +126,24 @@ public class EventDetector {
 
         @Override
         public void onAllVctItemsParsed() {
-            if (mEventListener != null) {
-                mEventListener.onChannelScanDone();
+            if (!mAllVctItemsParsed) {
+                mAllVctItemsParsed = true;
+                // The PMTs of the programs in VCT were parsed too. The PMTs of the programs which
+                // are in PAT only are not waited for, since some of them are never carried.
+                if (mEventListener != null) {
+                    mEventListener.onChannelScanDone();
+                }
+            }
+        }
+
+        @Override
+        public void onAllPmtItemsParsed() {
+            if (!mAllPmtItemsParsed) {
+                mAllPmtItemsParsed = true;
+                ScanStageListener listener = mScanStageListener;
+                if (listener != null) {
+                    listener.onAllPmtItemsParsed();
+                }
             }
         }
 
@@ -156,6 +181,7 @@ public class EventDetector {
             tunerChannel.setCaptionTracks(captionTracks);
             tunerChannel.setFrequency(mFrequency);
             tunerChannel.setModulation(mModulation);
+            tunerChannel.setPmtPid(getPmtPid(channelProgramNumber));
             mChannelMap.put(tunerChannel.getProgramNumber(), tunerChannel);
             boolean found = mVctProgramNumberSet.contains(channelProgramNumber);
             if (!found) {
@@ -190,10 +216,28 @@ public class EventDetector {
 
         /**
          * Fired when information of all detectable ATSC TV channels in current frequency arrived.
+         * That is, all the VCT sections and the PMTs of all the programs in VCT are parsed.
          */
         void onChannelScanDone();
     }
 
+    /**
+     * Listener for the intermediate stages of detecting channels in a frequency. This is used to
+     * give up a frequency early while scanning channels.
+     */
+    public interface ScanStageListener {
+
+        /**
+         * Fired when PAT arrived at first time after {@link #startDetecting}.
+         */
+        void onPatDetected();
+
+        /**
+         * Fired when the PMTs of all the programs in PAT arrived.
+         */
+        void onAllPmtItemsParsed();
+    }
+
     /**
      * Creates a detector for ATSC TV channles and program information.
      * @param usbTunerInteface {@link TunerHal}
@@ -209,8 +253,23 @@ public class EventDetector {
         mPidSet.clear();
         mVctProgramNumberSet.clear();
         mVctCaptionTracksFound.clear();
-        mEitCaptionTracksFound.clear();
         mChannelMap.clear();
+        mPatDetected = false;
+        mAllPmtItemsParsed = false;
+        mAllVctItemsParsed = false;
+        synchronized (mProgramLock) {
+            mPmtPids.clear();
+            mAdditionalProgramNumbers.clear();
+        }
+    }
+
+    /**
+     * Sets the listener for the intermediate stages of detecting channels.
+     *
+     * @param listener the listener, or {@code null} to remove the listener
+     */
+    public void setScanStageListener(ScanStageListener listener) {
+        mScanStageListener = listener;
     }
 
     /**
@@ -228,6 +287,53 @@ public class EventDetector {
         mProgramNumber = programNumber;
     }
 
+    /**
+     * Starts parsing the PMT at the PID which the program had when it was tuned last time,
+     * without waiting for PAT. If PAT tells another PID, that one is parsed also.
+     * This should be called after {@link #startDetecting} and before feeding the stream.
+     *
+     * @param pmtPid the PMT PID which was known before, or {@link TunerChannel#INVALID_PID}
+     */
+    public void startDetectingPmt(int pmtPid) {
+        if (pmtPid <= TsParser.PAT_PID || pmtPid >= TsParser.ATSC_SI_BASE_PID) {
+            return;
+        }
+        mTunerHal.addPidFilter(pmtPid, TunerHal.FILTER_TYPE_OTHER);
+        mTsParser.startListeningPmt(pmtPid);
+    }
+
+    /**
+     * Detects the PMT of another program in addition to the one given to {@link #startDetecting},
+     * when the stream is shared by several programs in the same frequency.
+     *
+     * @param programNumber the program number to be added
+     */
+    public void addProgramNumber(int programNumber) {
+        synchronized (mProgramLock) {
+            if (mProgramNumber == ALL_PROGRAM_NUMBERS || mProgramNumber == programNumber
+                    || mAdditionalProgramNumbers.get(programNumber)) {
+                return;
+            }
+            mAdditionalProgramNumbers.put(programNumber, true);
+            int pmtPid = mPmtPids.get(programNumber, -1);
+            if (pmtPid >= 0) {
+                mTunerHal.addPidFilter(pmtPid, TunerHal.FILTER_TYPE_OTHER);
+            }
+        }
+    }
+
+    /**
+     * Returns the PMT PID of a program in the last PAT.
+     *
+     * @param programNumber the program number
+     * @return the PMT PID, or {@code -1} if PAT has not arrived or doesn't have the program
+     */
+    public int getPmtPid(int programNumber) {
+        synchronized (mProgramLock) {
+            return mPmtPids.get(programNumber, -1);
+        }
+    }
+
     private void startListening(int pid) {
         if (mPidSet.contains(pid)) {
             return;
@@ -251,6 +357,20 @@ public class EventDetector {
         }
     }
 
+    /**
+     * Feeds ATSC TS stream to detect channel and program information.
+     * @param data buffer for ATSC TS stream. The data between its position and limit is parsed
+     *            and the position is not changed.
+     */
+    public void feedTSStream(ByteBuffer data) {
+        if (mPidSet.isEmpty()) {
+            startListening(TsParser.ATSC_SI_BASE_PID);
+        }
+        if (mTsParser != null) {
+            mTsParser.feedTSData(data);
+        }
+    }
+
     /**
      * Retrieves the channel information regardless of being well-formed.
      * @return {@link List} of {@link TunerChannel}
@@ -31,6 +31,7 @@ import com.android.tv.tuner.source.FileTsStreamer;
 import com.android.tv.tuner.ts.TsParser;
 import com.android.tv.tuner.tvinput.EventDetector.EventListener;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -51,7 +52,6 @@ public class FileSourceEventDetector {
     private final Set<Integer> mVctProgramNumberSet = new HashSet<>();
     private final SparseArray<TunerChannel> mChannelMap = new SparseArray<>();
     private final SparseBooleanArray mVctCaptionTracksFound = new SparseBooleanArray();
-    private final SparseBooleanArray mEitCaptionTracksFound = new SparseBooleanArray();
     private final EventListener mEventListener;
     private FileTsStreamer.StreamProvider mStreamProvider;
     private int mProgramNumber = ALL_PROGRAM_NUMBERS;
@@ -78,7 +78,6 @@ public class FileSourceEventDetector {
         mStreamProvider.clearPidFilter();
         mVctProgramNumberSet.clear();
         mVctCaptionTracksFound.clear();
-        mEitCaptionTracksFound.clear();
         mChannelMap.clear();
     }
 
@@ -92,6 +91,19 @@ public class FileSourceEventDetector {
         }
     }
 
+    /**
+     * Feeds the data between the position and the limit of the buffer. The buffer isn't changed.
+     */
+    public void feedTSStream(ByteBuffer data) {
+        if (mStreamProvider.isFilterEmpty()) {
+            startListening(TsParser.ATSC_SI_BASE_PID);
+            startListening(TsParser.PAT_PID);
+        }
+        if (mTsParser != null) {
+            mTsParser.feedTSData(data);
+        }
+    }
+
     private void startListening(int pid) {
         if (mStreamProvider.isInFilter(pid)) {
             return;
@@ -115,7 +127,8 @@ public class FileSourceEventDetector {
         }
 
         @Override
-        public void onEitItemParsed(VctItem channel, List<EitItem> items) {
+        public void onEitItemParsed(VctItem channel, List<EitItem> items,
+                List<EitItem> changedItems) {
             TunerChannel tunerChannel = mChannelMap.get(channel.getProgramNumber());
             if (DEBUG) {
                 Log.d(TAG, "onEitItemParsed tunerChannel:" + tunerChannel + " "
@@ -130,24 +143,6 @@ public class FileSourceEventDetector {
                 return;
             }
 
-            // If at least a one caption track have been found in EIT items for the given channel,
-            // we starts to interpret the zero tracks as a clearance of the caption tracks.
-            boolean captionTracksFound = mEitCaptionTracksFound.get(channelSourceId);
-            for (EitItem item : items) {
-                if (captionTracksFound) {
-                    break;
-                }
-                List<AtscCaptionTrack> captionTracks = item.getCaptionTracks();
-                if (captionTracks != null && !captionTracks.isEmpty()) {
-                    captionTracksFound = true;
-                }
-            }
-            mEitCaptionTracksFound.put(channelSourceId, captionTracksFound);
-            if (captionTracksFound) {
-                for (EitItem item : items) {
-                    item.setHasCaptionTrack();
-                }
-            }
             if (tunerChannel != null && mEventListener != null) {
                 mEventListener.onEventDetected(tunerChannel, items);
             }
@@ -163,6 +158,11 @@ public class FileSourceEventDetector {
             // do nothing.
         }
 
+        @Override
+        public void onAllPmtItemsParsed() {
+            // do nothing.
+        }
+
         @Override
         public void onVctItemParsed(VctItem channel, List<PmtItem> pmtItems) {
             if (DEBUG) {
@@ -16,6 +16,8 @@
 
 package com.android.tv.tuner.tvinput;
 
+import com.android.tv.tuner.exoplayer.buffer.WriteThroughputGovernor;
+
 /**
  * The listener for buffer events occurred during playback.
  */
@@ -36,7 +38,10 @@ public interface PlaybackBufferListener {
     void onBufferStateChanged(boolean available);
 
     /**
-     * Invoked when the disk speed is too slow to write the buffers.
+     * Invoked when the write pressure of the storage for the buffers has been changed.
+     *
+     * @param writePressure the new write pressure, which is one of
+     *        {@link WriteThroughputGovernor.WritePressure}
      */
-    void onDiskTooSlow();
+    void onWritePressureChanged(@WriteThroughputGovernor.WritePressure int writePressure);
 }
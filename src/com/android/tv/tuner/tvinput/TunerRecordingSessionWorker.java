@@ -141,7 +141,7 @@ public class TunerRecordingSessionWorker implements PlaybackBufferListener,
     public void onBufferStateChanged(boolean available) { }
 
     @Override
-    public void onDiskTooSlow() { }
+    public void onWritePressureChanged(int writePressure) { }
 
     // EventDetector.EventListener
     @Override
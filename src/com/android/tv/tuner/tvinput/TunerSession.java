@@ -67,6 +67,7 @@ public class TunerSession extends TvInputService.Session implements Handler.Call
     public static final int MSG_UI_RESET_CAPTION_TRACK = 8;
     public static final int MSG_UI_SET_STATUS_TEXT = 9;
     public static final int MSG_UI_TOAST_RESCAN_NEEDED = 10;
+    public static final int MSG_UI_TOAST_DISK_TOO_SLOW = 11;
 
     private final Context mContext;
     private final Handler mUiHandler;
@@ -306,6 +307,10 @@ public class TunerSession extends TvInputService.Session implements Handler.Call
                 Toast.makeText(mContext, R.string.ut_rescan_needed, Toast.LENGTH_LONG).show();
                 return true;
             }
+            case MSG_UI_TOAST_DISK_TOO_SLOW: {
+                Toast.makeText(mContext, R.string.ut_disk_too_slow, Toast.LENGTH_LONG).show();
+                return true;
+            }
         }
         return false;
     }
@@ -56,6 +56,7 @@ import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.exoplayer.MpegTsRendererBuilder;
 import com.android.tv.tuner.exoplayer.buffer.BufferManager;
 import com.android.tv.tuner.exoplayer.buffer.DvrStorageManager;
+import com.android.tv.tuner.exoplayer.buffer.WriteThroughputGovernor;
 import com.android.tv.tuner.exoplayer.MpegTsPlayer;
 import com.android.tv.tuner.source.TsDataSource;
 import com.android.tv.tuner.source.TsDataSourceManager;
@@ -65,6 +66,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
@@ -115,6 +118,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     private static final int MSG_STOP_TUNE = 1023;
     private static final int MSG_SET_SURFACE = 1024;
     private static final int MSG_NOTIFY_AUDIO_TRACK_UPDATED = 1025;
+    private static final int MSG_PREFETCH_NEXT_CHANNEL = 1026;
 
     private static final int TS_PACKET_SIZE = 188;
     private static final int CHECK_NO_SIGNAL_INITIAL_DELAY_MS = 4000;
@@ -130,6 +134,26 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     private static final int PLAYBACK_RETRY_DELAY_MS = 5000;
     private static final int MAX_IMMEDIATE_RETRY_COUNT = 5;
     private static final long INVALID_TIME = -1;
+    // The next channel is prefetched after the playback of the current one settles, not to
+    // prefetch while the user is zapping quickly.
+    private static final int PREFETCH_NEXT_CHANNEL_DELAY_MS = 5000;
+
+    // The order of the channels for the channel up/down keys.
+    private static final Comparator<TunerChannel> DISPLAY_NUMBER_COMPARATOR =
+            new Comparator<TunerChannel>() {
+                @Override
+                public int compare(TunerChannel lhs, TunerChannel rhs) {
+                    int ret = lhs.getVirtualMajor() - rhs.getVirtualMajor();
+                    if (ret != 0) {
+                        return ret;
+                    }
+                    ret = lhs.getVirtualMinor() - rhs.getVirtualMinor();
+                    if (ret != 0) {
+                        return ret;
+                    }
+                    return lhs.getProgramNumber() - rhs.getProgramNumber();
+                }
+            };
 
     // Some examples of the track ids of the audio tracks, "a0", "a1", "a2".
     // The number after prefix is being used for indicating a index of the given audio track.
@@ -162,12 +186,16 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     private String mRecordingId;
     private final Handler mHandler;
     private int mRetryCount;
+    // Whether the last tune was to a channel with a larger display number, which is the
+    // direction of the channel to be prefetched.
+    private boolean mZappingUp = true;
     private final ArrayList<TvTrackInfo> mTvTracks;
     private final SparseArray<AtscAudioTrack> mAudioTrackMap;
     private final SparseArray<AtscCaptionTrack> mCaptionTrackMap;
     private AtscCaptionTrack mCaptionTrack;
     private PlaybackParams mPlaybackParams = new PlaybackParams();
     private boolean mPlayerStarted = false;
+    private boolean mKeyFrameOnlyTrickplay = false;
     private boolean mReportedDrawnToSurface = false;
     private boolean mReportedWeakSignal = false;
     private EitItem mProgram;
@@ -498,8 +526,11 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     }
 
     @Override
-    public void onDiskTooSlow() {
-        sendMessage(MSG_RETRY_PLAYBACK, mPlayer);
+    public void onWritePressureChanged(int writePressure) {
+        if (writePressure == WriteThroughputGovernor.WRITE_PRESSURE_HIGH) {
+            // The timeshift window is shrunk from now on. Lets the user know why.
+            mSession.sendUiMessage(TunerSession.MSG_UI_TOAST_DISK_TOO_SLOW);
+        }
     }
 
     // EventDetector.EventListener
@@ -619,6 +650,9 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                 mHandler.removeCallbacksAndMessages(null);
                 if (channel != null) {
                     mChannelDataManager.requestProgramsData(channel);
+                    if (mChannel != null) {
+                        mZappingUp = DISPLAY_NUMBER_COMPARATOR.compare(channel, mChannel) >= 0;
+                    }
                 }
                 prepareTune(channel, recording);
                 // TODO: Need to refactor. notifyContentAllowed() should not be called if parental
@@ -626,8 +660,17 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                 mSession.notifyContentAllowed();
                 resetPlayback();
                 resetTvTracks();
+                if (channel != null) {
+                    // Publishes the tracks stored at the last tune without waiting for PMT and
+                    // VCT. They are updated when the channel arrives from the stream.
+                    updateTvTracks(channel, true);
+                }
                 mHandler.sendEmptyMessageDelayed(MSG_RESCHEDULE_PROGRAMS,
                         RESCHEDULE_PROGRAMS_INITIAL_DELAY_MS);
+                if (channel != null) {
+                    mHandler.sendEmptyMessageDelayed(MSG_PREFETCH_NEXT_CHANNEL,
+                            PREFETCH_NEXT_CHANNEL_DELAY_MS);
+                }
                 return true;
             }
             case MSG_STOP_TUNE: {
@@ -984,6 +1027,13 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                 notifyAudioTracksUpdated();
                 return true;
             }
+            case MSG_PREFETCH_NEXT_CHANNEL: {
+                TunerChannel nextChannel = getNextChannel();
+                if (nextChannel != null) {
+                    mSourceManager.prefetch(mContext, nextChannel, this);
+                }
+                return true;
+            }
             default: {
                 Log.w(TAG, "Unhandled message code: " + msg.what);
                 return false;
@@ -1235,6 +1285,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
             mPlayerState = ExoPlayer.STATE_IDLE;
             mPlaybackParams.setSpeed(1.0f);
             mPlayerStarted = false;
+            mKeyFrameOnlyTrickplay = false;
             mReportedDrawnToSurface = false;
             mPreparingStartTimeMs = INVALID_TIME;
             mBufferingStartTimeMs = INVALID_TIME;
@@ -1343,6 +1394,25 @@ public class TunerSessionWorker implements PlaybackBufferListener,
         mHandler.sendEmptyMessage(MSG_PARENTAL_CONTROLS);
     }
 
+    // Returns the neighbor of the current channel in the direction of the last zapping.
+    private TunerChannel getNextChannel() {
+        if (mChannel == null) {
+            return null;
+        }
+        List<TunerChannel> channels = mChannelDataManager.getChannels();
+        if (channels.size() < 2) {
+            return null;
+        }
+        Collections.sort(channels, DISPLAY_NUMBER_COMPARATOR);
+        for (int i = 0; i < channels.size(); ++i) {
+            if (channels.get(i).getChannelId() == mChannel.getChannelId()) {
+                int size = channels.size();
+                return channels.get((i + (mZappingUp ? 1 : size - 1)) % size);
+            }
+        }
+        return null;
+    }
+
     private void doReschedulePrograms() {
         long currentPositionMs = getCurrentPosition();
         long forwardDifference = Math.abs(currentPositionMs - mLastPositionMs
@@ -1383,12 +1453,14 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                 // because of chuck evictions.
                 seekPositionMs = (int) (mBufferStartTimeMs - mRecordStartTimeMs);
             } else {
+                stopKeyFrameOnlyTrickplay(false);
                 mPlayer.seekTo(mBufferStartTimeMs - mRecordStartTimeMs);
                 mPlaybackParams.setSpeed(1.0f);
                 mPlayer.setAudioTrack(true);
                 return;
             }
         } else if (seekPositionMs > System.currentTimeMillis() - mRecordStartTimeMs) {
+            stopKeyFrameOnlyTrickplay(false);
             mPlayer.seekTo(System.currentTimeMillis() - mRecordStartTimeMs);
             mPlaybackParams.setSpeed(1.0f);
             mPlayer.setAudioTrack(true);
@@ -1406,9 +1478,33 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                 MSG_TRICKPLAY_BY_SEEK, seekPositionMs, 0), delayForNextSeek);
     }
 
+    private void startKeyFrameOnlyTrickplay() {
+        if (!mKeyFrameOnlyTrickplay) {
+            mKeyFrameOnlyTrickplay = true;
+            mPlayer.setKeyFrameOnly(true);
+        }
+    }
+
+    /**
+     * Stops reading key frames only. Since the samples of the other tracks are not read during
+     * that, the player should seek before it plays again.
+     *
+     * @param seekToCurrentPosition {@code true} if the caller will not seek by itself
+     */
+    private void stopKeyFrameOnlyTrickplay(boolean seekToCurrentPosition) {
+        if (mKeyFrameOnlyTrickplay) {
+            mKeyFrameOnlyTrickplay = false;
+            mPlayer.setKeyFrameOnly(false);
+            if (seekToCurrentPosition) {
+                mPlayer.seekTo(mPlayer.getCurrentPosition());
+            }
+        }
+    }
+
     private void doTimeShiftPause() {
         mHandler.removeMessages(MSG_SMOOTH_TRICKPLAY_MONITOR);
         mHandler.removeMessages(MSG_TRICKPLAY_BY_SEEK);
+        stopKeyFrameOnlyTrickplay(true);
         if (!hasEnoughBackwardBuffer()) {
             return;
         }
@@ -1420,6 +1516,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     private void doTimeShiftResume() {
         mHandler.removeMessages(MSG_SMOOTH_TRICKPLAY_MONITOR);
         mHandler.removeMessages(MSG_TRICKPLAY_BY_SEEK);
+        stopKeyFrameOnlyTrickplay(true);
         mPlaybackParams.setSpeed(1.0f);
         mPlayer.setPlayWhenReady(true);
         mPlayer.setAudioTrack(true);
@@ -1428,6 +1525,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     private void doTimeShiftSeekTo(long timeMs) {
         mHandler.removeMessages(MSG_SMOOTH_TRICKPLAY_MONITOR);
         mHandler.removeMessages(MSG_TRICKPLAY_BY_SEEK);
+        stopKeyFrameOnlyTrickplay(false);
         mPlayer.seekTo((int) (timeMs - mRecordStartTimeMs));
     }
 
@@ -1443,12 +1541,20 @@ public class TunerSessionWorker implements PlaybackBufferListener,
             doTimeShiftResume();
         } else if (mPlayer.supportSmoothTrickPlay(speed)) {
             mHandler.removeMessages(MSG_TRICKPLAY_BY_SEEK);
+            stopKeyFrameOnlyTrickplay(true);
             mPlayer.setAudioTrack(false);
             mPlayer.startSmoothTrickplay(mPlaybackParams);
             mHandler.sendEmptyMessageDelayed(MSG_SMOOTH_TRICKPLAY_MONITOR,
                     TRICKPLAY_MONITOR_INTERVAL_MS);
         } else {
             mHandler.removeMessages(MSG_SMOOTH_TRICKPLAY_MONITOR);
+            if (mPlayer.supportKeyFrameOnlyTrickplay(speed)) {
+                // Frames between key frames are never shown at this speed. Reading key frames
+                // only saves the I/O and the decoding of them for each seek.
+                startKeyFrameOnlyTrickplay();
+            } else {
+                stopKeyFrameOnlyTrickplay(false);
+            }
             if (!mHandler.hasMessages(MSG_TRICKPLAY_BY_SEEK)) {
                 mPlayer.setAudioTrack(false);
                 mPlayer.setPlayWhenReady(false);
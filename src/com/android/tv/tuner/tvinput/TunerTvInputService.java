@@ -29,6 +29,7 @@ import com.google.android.exoplayer.audio.AudioCapabilitiesReceiver;
 import com.android.tv.TvApplication;
 import com.android.tv.common.feature.CommonFeatures;
 import com.android.tv.tuner.exoplayer.buffer.BufferManager;
+import com.android.tv.tuner.exoplayer.buffer.SamplePool;
 import com.android.tv.tuner.exoplayer.buffer.TrickplayStorageManager;
 import com.android.tv.tuner.util.SystemPropertiesProxy;
 
@@ -97,6 +98,12 @@ public class TunerTvInputService extends TvInputService
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        SamplePool.trimAllPools(level);
+    }
+
     @Override
     public RecordingSession onCreateRecordingSession(String inputId) {
         return new TunerRecordingSession(this, inputId, mChannelDataManager);
@@ -17,13 +17,17 @@
 package com.android.tv.dvr;
 
 import android.support.test.filters.SmallTest;
+import android.test.MoreAsserts;
+import android.util.Range;
 
+import com.android.tv.testing.Utils;
 import com.android.tv.testing.dvr.RecordingTestUtils;
 
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Tests for {@link DvrDataManagerImpl}
@@ -63,6 +67,56 @@ public class DvrDataManagerImplTest extends TestCase {
         assertNextStartTime(scheduledRecordings, 10L, DvrDataManager.NEXT_START_TIME_NOT_FOUND);
     }
 
+    public void testTimeIndex_sameAsLinearScan() {
+        Random random = Utils.createTestRandom();
+        long id = 1;
+        for (int round = 0; round < 500; ++round) {
+            DvrDataManagerImpl.TimeIndex index = new DvrDataManagerImpl.TimeIndex();
+            List<ScheduledRecording> schedules = new ArrayList<>();
+            int operationCount = random.nextInt(60);
+            for (int i = 0; i < operationCount; ++i) {
+                int operation = random.nextInt(3);
+                if (operation == 0 || schedules.isEmpty()) {
+                    long startTimeMs = random.nextInt(100);
+                    ScheduledRecording r = RecordingTestUtils.createTestRecordingWithIdAndPeriod(
+                            id++, INPUT_ID, CHANNEL_ID, startTimeMs,
+                            startTimeMs + random.nextInt(30));
+                    index.add(r);
+                    schedules.add(r);
+                } else if (operation == 1) {
+                    index.remove(schedules.remove(random.nextInt(schedules.size())));
+                } else {
+                    // Updates the period, as DvrDataManagerImpl does.
+                    ScheduledRecording old = schedules.get(random.nextInt(schedules.size()));
+                    long startTimeMs = random.nextInt(100);
+                    ScheduledRecording r = ScheduledRecording.buildFrom(old)
+                            .setStartTimeMs(startTimeMs)
+                            .setEndTimeMs(startTimeMs + random.nextInt(30)).build();
+                    index.remove(old);
+                    index.add(r);
+                    schedules.set(schedules.indexOf(old), r);
+                }
+            }
+            List<ScheduledRecording> all = new ArrayList<>();
+            index.getAll(all);
+            MoreAsserts.assertContentsInAnyOrder(all, schedules.toArray());
+            for (int i = 0; i < 10; ++i) {
+                long lower = random.nextInt(140) - 10;
+                Range<Long> period = new Range<>(lower, lower + random.nextInt(40));
+                List<ScheduledRecording> expected = new ArrayList<>();
+                for (ScheduledRecording r : schedules) {
+                    if (r.isOverLapping(period)) {
+                        expected.add(r);
+                    }
+                }
+                List<ScheduledRecording> actual = new ArrayList<>();
+                index.getOverlapping(period, actual);
+                MoreAsserts.assertContentsInAnyOrder("period=" + period, actual,
+                        expected.toArray());
+            }
+        }
+    }
+
     private void assertNextStartTime(List<ScheduledRecording> scheduledRecordings, long startTime,
             long expected) {
         assertEquals("getNextScheduledStartTimeAfter()", expected,
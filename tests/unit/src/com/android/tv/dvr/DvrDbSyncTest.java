@@ -33,6 +33,9 @@ import com.android.tv.data.Program;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 /**
  * Tests for {@link DvrScheduleManager}
  */
@@ -65,7 +68,7 @@ public class DvrDbSyncTest extends AndroidTestCase {
 
     public void testHandleUpdateProgram_null() {
         addSchedule(BASE_PROGRAM_ID, BASE_SCHEDULE);
-        mDbSync.handleUpdateProgram(null, BASE_PROGRAM_ID);
+        handleUpdateProgram(null, BASE_PROGRAM_ID);
         verify(mDataManager).removeScheduledRecording(BASE_SCHEDULE);
     }
 
@@ -75,7 +78,7 @@ public class DvrDbSyncTest extends AndroidTestCase {
         long endTimeMs = BASE_END_TIME_MS + 1;
         Program program = new Program.Builder(BASE_PROGRAM).setStartTimeUtcMillis(startTimeMs)
                 .setEndTimeUtcMillis(endTimeMs).build();
-        mDbSync.handleUpdateProgram(program, BASE_PROGRAM_ID);
+        handleUpdateProgram(program, BASE_PROGRAM_ID);
         assertUpdateScheduleCalled(program);
     }
 
@@ -85,7 +88,7 @@ public class DvrDbSyncTest extends AndroidTestCase {
         long startTimeMs = BASE_START_TIME_MS + 1;
         Program program = new Program.Builder(BASE_PROGRAM).setStartTimeUtcMillis(startTimeMs)
                 .build();
-        mDbSync.handleUpdateProgram(program, BASE_PROGRAM_ID);
+        handleUpdateProgram(program, BASE_PROGRAM_ID);
         verify(mDataManager, never()).updateScheduledRecording(anyObject());
     }
 
@@ -95,7 +98,7 @@ public class DvrDbSyncTest extends AndroidTestCase {
         String episodeNumber = BASE_EPISODE_NUMBER + "1";
         Program program = new Program.Builder(BASE_PROGRAM).setSeasonNumber(seasonNumber)
                 .setEpisodeNumber(episodeNumber).build();
-        mDbSync.handleUpdateProgram(program, BASE_PROGRAM_ID);
+        handleUpdateProgram(program, BASE_PROGRAM_ID);
         assertUpdateScheduleCalled(program);
     }
 
@@ -106,10 +109,38 @@ public class DvrDbSyncTest extends AndroidTestCase {
         String episodeNumber = BASE_EPISODE_NUMBER + "1";
         Program program = new Program.Builder(BASE_PROGRAM).setSeasonNumber(seasonNumber)
                 .setEpisodeNumber(episodeNumber).build();
-        mDbSync.handleUpdateProgram(program, BASE_PROGRAM_ID);
+        handleUpdateProgram(program, BASE_PROGRAM_ID);
         verify(mDataManager, never()).updateScheduledRecording(anyObject());
     }
 
+    public void testHandleUpdatePrograms_batch() {
+        long programId2 = BASE_PROGRAM_ID + 1;
+        long programId3 = BASE_PROGRAM_ID + 2;
+        ScheduledRecording schedule2 = ScheduledRecording.builder(INPUT_ID,
+                new Program.Builder(BASE_PROGRAM).setId(programId2).build()).build();
+        ScheduledRecording schedule3 = ScheduledRecording.builder(INPUT_ID,
+                new Program.Builder(BASE_PROGRAM).setId(programId3).build()).build();
+        addSchedule(BASE_PROGRAM_ID, BASE_SCHEDULE);
+        addSchedule(programId2, schedule2);
+        addSchedule(programId3, schedule3);
+        Program program = new Program.Builder(BASE_PROGRAM)
+                .setEndTimeUtcMillis(BASE_END_TIME_MS + 1).build();
+        Program program2 = new Program.Builder(BASE_PROGRAM).setId(programId2)
+                .setEndTimeUtcMillis(BASE_END_TIME_MS + 1).build();
+        mDbSync.handleUpdatePrograms(Arrays.asList(BASE_PROGRAM_ID, programId2, programId3),
+                Arrays.asList(program2, program));
+        verify(mDataManager).updateScheduledRecording(
+                eq(ScheduledRecording.builder(INPUT_ID, program).build()),
+                eq(ScheduledRecording.builder(INPUT_ID, program2).build()));
+        verify(mDataManager).removeScheduledRecording(schedule3);
+    }
+
+    private void handleUpdateProgram(Program program, long programId) {
+        mDbSync.handleUpdatePrograms(Collections.singletonList(programId),
+                program == null ? Collections.<Program>emptyList()
+                        : Collections.singletonList(program));
+    }
+
     private void addSchedule(long programId, ScheduledRecording schedule) {
         when(mDataManager.getScheduledRecordingForProgramId(programId)).thenReturn(schedule);
     }
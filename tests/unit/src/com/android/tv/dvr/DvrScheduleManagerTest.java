@@ -20,15 +20,21 @@ import android.support.test.filters.SmallTest;
 import android.test.MoreAsserts;
 import android.util.Range;
 
+import com.android.tv.testing.Utils;
 import com.android.tv.testing.dvr.RecordingTestUtils;
+import com.android.tv.util.CompositeComparator;
 
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 /**
  * Tests for {@link DvrScheduleManager}
@@ -631,4 +637,161 @@ public class DvrScheduleManagerTest extends TestCase {
         assertNull(conflictsInfo.get(schedules.get(9)));
         assertTrue(conflictsInfo.get(schedules.get(10)));
     }
-}
\ No newline at end of file
+
+    public void testGetConflictingSchedulesInfo_sameAsListSimulation() {
+        Random random = Utils.createTestRandom();
+        for (int round = 0; round < 500; ++round) {
+            List<ScheduledRecording> schedules = new ArrayList<>();
+            int scheduleCount = random.nextInt(60);
+            for (int i = 0; i < scheduleCount; ++i) {
+                long startTimeMs = random.nextInt(100) * 10L;
+                long endTimeMs = startTimeMs + (random.nextInt(20) + 1) * 10L;
+                // A few priorities only, to have recordings with the same priority.
+                schedules.add(RecordingTestUtils.createTestRecordingWithIdAndPriorityAndPeriod(
+                        i + 1, random.nextInt(10), random.nextInt(5), startTimeMs, endTimeMs));
+            }
+            for (int tunerCount = 0; tunerCount <= 4; ++tunerCount) {
+                assertEquals("round=" + round + " tunerCount=" + tunerCount,
+                        getConflictingSchedulesInfoBySimulation(schedules, tunerCount),
+                        DvrScheduleManager.getConflictingSchedulesInfo(schedules, tunerCount));
+            }
+        }
+    }
+
+    public void testGetOverlappingGroups() {
+        List<ScheduledRecording> schedules = new ArrayList<>();
+        schedules.add(RecordingTestUtils.createTestRecordingWithIdAndPriorityAndPeriod(1, 1, 1,
+                0L, 100L));
+        schedules.add(RecordingTestUtils.createTestRecordingWithIdAndPriorityAndPeriod(2, 2, 1,
+                50L, 150L));
+        schedules.add(RecordingTestUtils.createTestRecordingWithIdAndPriorityAndPeriod(3, 3, 1,
+                200L, 300L));
+        schedules.add(RecordingTestUtils.createTestRecordingWithIdAndPriorityAndPeriod(4, 4, 1,
+                400L, 500L));
+        List<Range<Long>> groupPeriods = new ArrayList<>();
+        assertEquals(schedules.subList(0, 2), DvrScheduleManager.getOverlappingGroups(schedules,
+                Collections.singletonList(new Range<>(120L, 130L)), groupPeriods));
+        assertEquals(Collections.singletonList(new Range<>(0L, 150L)), groupPeriods);
+
+        groupPeriods.clear();
+        assertEquals(Arrays.asList(schedules.get(2), schedules.get(3)),
+                DvrScheduleManager.getOverlappingGroups(schedules, Arrays.asList(
+                        new Range<>(250L, 260L), new Range<>(450L, 460L)), groupPeriods));
+        assertEquals(Arrays.asList(new Range<>(200L, 300L), new Range<>(400L, 500L)),
+                groupPeriods);
+
+        groupPeriods.clear();
+        MoreAsserts.assertEmpty(DvrScheduleManager.getOverlappingGroups(schedules,
+                Collections.singletonList(new Range<>(160L, 190L)), groupPeriods));
+        MoreAsserts.assertEmpty(groupPeriods);
+    }
+
+    public void testGetConflictingSchedulesInfo_overlappingGroupsOnly() {
+        Random random = Utils.createTestRandom();
+        for (int round = 0; round < 500; ++round) {
+            List<ScheduledRecording> schedules = new ArrayList<>();
+            int scheduleCount = random.nextInt(60) + 1;
+            for (int i = 0; i < scheduleCount; ++i) {
+                long startTimeMs = random.nextInt(300) * 10L;
+                long endTimeMs = startTimeMs + (random.nextInt(20) + 1) * 10L;
+                schedules.add(RecordingTestUtils.createTestRecordingWithIdAndPriorityAndPeriod(
+                        i + 1, random.nextInt(10), random.nextInt(5), startTimeMs, endTimeMs));
+            }
+            Collections.sort(schedules, ScheduledRecording.START_TIME_COMPARATOR);
+            int tunerCount = random.nextInt(3) + 1;
+            Map<ScheduledRecording, Boolean> conflicts =
+                    DvrScheduleManager.getConflictingSchedulesInfo(schedules, tunerCount);
+            // Removes a schedule and recomputes the conflicts around it only.
+            ScheduledRecording removed = schedules.remove(random.nextInt(scheduleCount));
+            conflicts.remove(removed);
+            List<Range<Long>> periods = new ArrayList<>();
+            periods.add(new Range<>(removed.getStartTimeMs(), removed.getEndTimeMs()));
+            List<ScheduledRecording> groups = DvrScheduleManager.getOverlappingGroups(schedules,
+                    new ArrayList<>(periods), periods);
+            for (Iterator<ScheduledRecording> iter = conflicts.keySet().iterator();
+                    iter.hasNext(); ) {
+                ScheduledRecording schedule = iter.next();
+                for (Range<Long> period : periods) {
+                    if (period.getLower() <= schedule.getEndTimeMs()
+                            && schedule.getStartTimeMs() <= period.getUpper()) {
+                        iter.remove();
+                        break;
+                    }
+                }
+            }
+            conflicts.putAll(DvrScheduleManager.getConflictingSchedulesInfo(groups, tunerCount));
+            assertEquals("round=" + round, DvrScheduleManager.getConflictingSchedulesInfo(
+                    schedules, tunerCount), conflicts);
+        }
+    }
+
+    private static final Comparator<ScheduledRecording> CANDIDATE_COMPARATOR =
+            new CompositeComparator<>(
+                    ScheduledRecording.PRIORITY_COMPARATOR,
+                    ScheduledRecording.END_TIME_COMPARATOR,
+                    ScheduledRecording.ID_COMPARATOR);
+
+    /**
+     * The reference simulation of {@link InputTaskScheduler} on a sorted list, which is compared
+     * with {@link DvrScheduleManager#getConflictingSchedulesInfo}.
+     */
+    private static Map<ScheduledRecording, Boolean> getConflictingSchedulesInfoBySimulation(
+            List<ScheduledRecording> schedules, int tunerCount) {
+        List<ScheduledRecording> schedulesToCheck = new ArrayList<>(schedules);
+        Collections.sort(schedulesToCheck, InputTaskScheduler.getRecordingOrderComparator());
+        List<ScheduledRecording> recordings = new ArrayList<>();
+        Map<ScheduledRecording, Boolean> conflicts = new HashMap<>();
+        Map<ScheduledRecording, ScheduledRecording> modified2OriginalSchedules = new HashMap<>();
+        while (!schedulesToCheck.isEmpty()) {
+            ScheduledRecording schedule = schedulesToCheck.remove(0);
+            for (Iterator<ScheduledRecording> iter = recordings.iterator(); iter.hasNext(); ) {
+                if (iter.next().getEndTimeMs() <= schedule.getStartTimeMs()) {
+                    iter.remove();
+                }
+            }
+            if (recordings.size() < tunerCount) {
+                recordings.add(schedule);
+                if (modified2OriginalSchedules.containsKey(schedule)) {
+                    conflicts.put(modified2OriginalSchedules.get(schedule), true);
+                }
+                continue;
+            }
+            ScheduledRecording candidate = null;
+            for (ScheduledRecording recording : recordings) {
+                if (schedule.getPriority() > recording.getPriority() && (candidate == null
+                        || CANDIDATE_COMPARATOR.compare(candidate, recording) > 0)) {
+                    candidate = recording;
+                }
+            }
+            if (candidate != null) {
+                if (!modified2OriginalSchedules.containsKey(candidate)) {
+                    conflicts.put(candidate, true);
+                }
+                recordings.remove(candidate);
+                recordings.add(schedule);
+                if (modified2OriginalSchedules.containsKey(schedule)) {
+                    conflicts.put(modified2OriginalSchedules.get(schedule), true);
+                }
+                continue;
+            }
+            if (!modified2OriginalSchedules.containsKey(schedule)) {
+                conflicts.put(schedule, false);
+            }
+            long earliestEndTime = Long.MAX_VALUE;
+            for (ScheduledRecording recording : recordings) {
+                earliestEndTime = Math.min(earliestEndTime, recording.getEndTimeMs());
+            }
+            if (earliestEndTime < schedule.getEndTimeMs()) {
+                ScheduledRecording modifiedSchedule = ScheduledRecording.buildFrom(schedule)
+                        .setStartTimeMs(earliestEndTime).build();
+                modified2OriginalSchedules.put(modifiedSchedule,
+                        modified2OriginalSchedules.getOrDefault(schedule, schedule));
+                int insertPosition = Collections.binarySearch(schedulesToCheck, modifiedSchedule,
+                        ScheduledRecording.START_TIME_THEN_PRIORITY_THEN_ID_COMPARATOR);
+                schedulesToCheck.add(insertPosition >= 0 ? insertPosition : -insertPosition - 1,
+                        modifiedSchedule);
+            }
+        }
+        return conflicts;
+    }
+}
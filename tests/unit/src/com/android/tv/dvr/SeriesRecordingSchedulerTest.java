@@ -44,6 +44,9 @@ public class SeriesRecordingSchedulerTest extends AndroidTestCase {
     private static final String SEASON_NUMBER2 = "SEASON NUMBER2";
     private static final String EPISODE_NUMBER1 = "EPISODE NUMBER1";
     private static final String EPISODE_NUMBER2 = "EPISODE NUMBER2";
+    private static final String INPUT_ID = "input_id";
+    private static final long PROGRAM_ID1 = 1;
+    private static final long PROGRAM_ID2 = 2;
 
     private final SeriesRecording mBaseSeriesRecording = new SeriesRecording.Builder()
             .setTitle(PROGRAM_TITLE).setChannelId(CHANNEL_ID).setSeriesId(SERIES_ID).build();
@@ -95,6 +98,25 @@ public class SeriesRecordingSchedulerTest extends AndroidTestCase {
         MoreAsserts.assertContentsInAnyOrder(result.get(SERIES_RECORDING_ID1), program1, program3);
     }
 
+    public void testPickOneProgramPerEpisode_scheduledFirst() {
+        SeriesRecording seriesRecording = SeriesRecording.buildFrom(mBaseSeriesRecording)
+                .setId(SERIES_RECORDING_ID1).build();
+        mDataManager.addSeriesRecording(seriesRecording);
+        List<Program> programs = new ArrayList<>();
+        Program program1 = new Program.Builder(mBaseProgram).setId(PROGRAM_ID1)
+                .setSeasonNumber(SEASON_NUMBER1).setEpisodeNumber(EPISODE_NUMBER1)
+                .setStartTimeUtcMillis(0).build();
+        programs.add(program1);
+        Program program2 = new Program.Builder(program1).setId(PROGRAM_ID2)
+                .setStartTimeUtcMillis(1).build();
+        programs.add(program2);
+        mDataManager.addScheduledRecording(
+                ScheduledRecording.builder(INPUT_ID, program2).build());
+        LongSparseArray<List<Program>> result = SeriesRecordingScheduler.pickOneProgramPerEpisode(
+                mDataManager, Collections.singletonList(seriesRecording), programs);
+        MoreAsserts.assertContentsInAnyOrder(result.get(SERIES_RECORDING_ID1), program2);
+    }
+
     public void testPickOneProgramPerEpisode_nullEpisode() {
         SeriesRecording seriesRecording = SeriesRecording.buildFrom(mBaseSeriesRecording)
                 .setId(SERIES_RECORDING_ID1).build();
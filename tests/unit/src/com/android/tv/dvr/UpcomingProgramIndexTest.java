@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.dvr;
+
+import android.os.Build;
+import android.support.test.filters.SdkSuppress;
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+
+import com.android.tv.data.Program;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests for {@link UpcomingProgramIndex}
+ */
+@SmallTest
+@SdkSuppress(minSdkVersion = Build.VERSION_CODES.N)
+public class UpcomingProgramIndexTest extends AndroidTestCase {
+    private static final String SERIES_ID1 = "SERIES_ID1";
+    private static final String SERIES_ID2 = "SERIES_ID2";
+    private static final long ONE_DAY_MS = 24 * 60 * 60 * 1000;
+
+    private UpcomingProgramIndex mIndex;
+    private long mStartTimeMs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new UpcomingProgramIndex(getContext());
+        mStartTimeMs = System.currentTimeMillis() + ONE_DAY_MS;
+    }
+
+    public void testGetUpcomingPrograms_bySeriesId() {
+        Program program1 = createProgram(1, SERIES_ID1, mStartTimeMs);
+        Program program2 = createProgram(2, SERIES_ID2, mStartTimeMs);
+        Program program3 = createProgram(3, SERIES_ID1, mStartTimeMs + 1);
+        mIndex.handleProgramsLoaded(Arrays.asList(program1, program2, program3));
+        MoreAsserts.assertContentsInAnyOrder(
+                mIndex.getUpcomingPrograms(Collections.singletonList(SERIES_ID1)),
+                program1, program3);
+        MoreAsserts.assertContentsInAnyOrder(
+                mIndex.getUpcomingPrograms(Arrays.asList(SERIES_ID1, SERIES_ID2)),
+                program1, program2, program3);
+        assertTrue(mIndex.getUpcomingPrograms(Collections.singletonList("NO_SERIES")).isEmpty());
+    }
+
+    public void testGetUpcomingPrograms_startedProgramsDropped() {
+        Program program1 = createProgram(1, SERIES_ID1, mStartTimeMs);
+        Program program2 = createProgram(2, SERIES_ID1, mStartTimeMs + 1);
+        mIndex.handleProgramsLoaded(Arrays.asList(program1, program2));
+        MoreAsserts.assertContentsInAnyOrder(mIndex.getUpcomingPrograms(
+                Collections.singletonList(SERIES_ID1), mStartTimeMs), program2);
+        MoreAsserts.assertContentsInAnyOrder(mIndex.getUpcomingPrograms(
+                Collections.singletonList(SERIES_ID1), mStartTimeMs - 1), program2);
+    }
+
+    public void testHandleProgramsLoaded_replacesIndex() {
+        Program program1 = createProgram(1, SERIES_ID1, mStartTimeMs);
+        Program program2 = createProgram(2, SERIES_ID1, mStartTimeMs);
+        mIndex.handleProgramsLoaded(Collections.singletonList(program1));
+        mIndex.handleProgramsLoaded(Collections.singletonList(program2));
+        MoreAsserts.assertContentsInAnyOrder(
+                mIndex.getUpcomingPrograms(Collections.singletonList(SERIES_ID1)), program2);
+    }
+
+    public void testHandleProgramsUpdated() {
+        Program program1 = createProgram(1, SERIES_ID1, mStartTimeMs);
+        Program program2 = createProgram(2, SERIES_ID1, mStartTimeMs);
+        Program program3 = createProgram(3, SERIES_ID1, mStartTimeMs);
+        mIndex.handleProgramsLoaded(Arrays.asList(program1, program2, program3));
+        // Program 1 moves to another series, program 2 is removed, program 3 is prohibited to
+        // be recorded and program 4 is added.
+        Program newProgram1 = createProgram(1, SERIES_ID2, mStartTimeMs);
+        Program newProgram3 = new Program.Builder(program3).setRecordingProhibited(true).build();
+        Program program4 = createProgram(4, SERIES_ID1, mStartTimeMs);
+        mIndex.handleProgramsUpdated(Arrays.asList(1L, 2L, 3L, 4L),
+                Arrays.asList(newProgram1, newProgram3, program4));
+        MoreAsserts.assertContentsInAnyOrder(
+                mIndex.getUpcomingPrograms(Collections.singletonList(SERIES_ID1)), program4);
+        MoreAsserts.assertContentsInAnyOrder(
+                mIndex.getUpcomingPrograms(Collections.singletonList(SERIES_ID2)), newProgram1);
+    }
+
+    public void testIsUpToDate_notStarted() {
+        assertFalse(mIndex.isUpToDate());
+    }
+
+    private static Program createProgram(long id, String seriesId, long startTimeMs) {
+        return new Program.Builder().setId(id).setSeriesId(seriesId)
+                .setStartTimeUtcMillis(startTimeMs).setEndTimeUtcMillis(startTimeMs + 1).build();
+    }
+}
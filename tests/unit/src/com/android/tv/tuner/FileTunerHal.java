@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A fake tuner device which streams a captured MPEG-2 TS file instead of TV signal. Every tune
+ * request succeeds and plays the file from the start repeatedly, and pid filters are ignored.
+ * <p>
+ * This is used by tests to run the path from a tuner to the players without a tuner device.
+ */
+public class FileTunerHal extends TunerHal {
+    private static final int TS_PACKET_SIZE = 188;
+    // By default, the data is provided at the maximum bitrate of ATSC.
+    private static final long DEFAULT_BYTES_PER_SECOND = 19392658 / 8;
+
+    private final File mFile;
+    private final long mBytesPerSecond;
+    private FileChannel mChannel;
+    private boolean mTuned;
+    private long mStreamStartTimeMs;
+    private long mStreamedBytes;
+
+    /**
+     * Creates a fake tuner device and opens the file.
+     *
+     * @param context context for creating the TunerHal instance
+     * @param file the MPEG-2 TS file to be streamed
+     * @param bytesPerSecond the rate which the file is streamed at, or {@code 0} for no limit
+     * @return the TunerHal instance, or {@code null} if the file cannot be opened
+     */
+    public static TunerHal createInstance(Context context, File file, long bytesPerSecond) {
+        FileTunerHal tunerHal = new FileTunerHal(context, file, bytesPerSecond);
+        return tunerHal.openFirstAvailable() ? tunerHal : null;
+    }
+
+    /**
+     * Creates a fake tuner device which streams the file at the maximum bitrate of ATSC.
+     *
+     * @see #createInstance(Context, File, long)
+     */
+    public static TunerHal createInstance(Context context, File file) {
+        return createInstance(context, file, DEFAULT_BYTES_PER_SECOND);
+    }
+
+    private FileTunerHal(Context context, File file, long bytesPerSecond) {
+        super(context);
+        mFile = file;
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    protected synchronized boolean openFirstAvailable() {
+        try {
+            mChannel = new FileInputStream(mFile).getChannel();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open " + mFile, e);
+            return false;
+        }
+    }
+
+    @Override
+    protected synchronized boolean isDeviceOpen() {
+        return mChannel != null;
+    }
+
+    @Override
+    protected long getDeviceId() {
+        return -1;
+    }
+
+    @Override
+    public synchronized boolean tune(int frequency, @ModulationType String modulation) {
+        if (!isDeviceOpen()) {
+            Log.e(TAG, "There's no available device");
+            return false;
+        }
+        try {
+            mChannel.position(0);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to rewind " + mFile, e);
+            return false;
+        }
+        mTuned = true;
+        mStreamStartTimeMs = System.currentTimeMillis();
+        mStreamedBytes = 0;
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean addPidFilter(int pid, @FilterType int filterType) {
+        return isDeviceOpen() && pid >= 0 && pid <= 0x1fff;
+    }
+
+    @Override
+    public synchronized void stopTune() {
+        mTuned = false;
+        notifyAll();
+    }
+
+    @Override
+    public void setHasPendingTune(boolean hasPendingTune) {
+    }
+
+    @Override
+    public synchronized int readTsStream(byte[] javaBuffer, int javaBufferSize) {
+        return readTsStream(ByteBuffer.wrap(javaBuffer, 0, javaBufferSize));
+    }
+
+    @Override
+    public synchronized int readTsStream(ByteBuffer buffer) {
+        // Blocks as the tuner device does, until the data is due or the read times out.
+        long deadlineMs = System.currentTimeMillis() + READ_TS_STREAM_TIMEOUT_MS;
+        int size = 0;
+        while (isDeviceOpen() && mTuned
+                && (size = getReadableSize(buffer.remaining())) == 0) {
+            long nowMs = System.currentTimeMillis();
+            if (nowMs >= deadlineMs) {
+                return 0;
+            }
+            try {
+                wait(Math.max(Math.min(deadlineMs, getNextPacketTimeMs()) - nowMs, 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+        }
+        if (!isDeviceOpen() || !mTuned) {
+            // Fails without blocking as the tuner device does when no DVR is open.
+            return -1;
+        }
+        ByteBuffer target = buffer.duplicate();
+        target.limit(target.position() + size);
+        try {
+            int bytesRead = mChannel.read(target);
+            if (bytesRead < 0) {
+                // Loops the file as if the broadcast goes on.
+                mChannel.position(0);
+                bytesRead = mChannel.read(target);
+            }
+            if (bytesRead <= 0) {
+                return bytesRead;
+            }
+            mStreamedBytes += bytesRead;
+            buffer.position(buffer.position() + bytesRead);
+            return bytesRead;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + mFile, e);
+            return -1;
+        }
+    }
+
+    // Returns the number of bytes which can be read now without exceeding the stream rate, in
+    // multiples of TS packet size.
+    private int getReadableSize(int maxSize) {
+        long size = maxSize;
+        if (mBytesPerSecond > 0) {
+            long elapsedMs = System.currentTimeMillis() - mStreamStartTimeMs;
+            size = Math.min(size, elapsedMs * mBytesPerSecond / 1000 - mStreamedBytes);
+        }
+        return size <= 0 ? 0 : (int) (size / TS_PACKET_SIZE * TS_PACKET_SIZE);
+    }
+
+    // Returns the time when the next TS packet can be read without exceeding the stream rate.
+    private long getNextPacketTimeMs() {
+        if (mBytesPerSecond <= 0) {
+            return mStreamStartTimeMs;
+        }
+        return mStreamStartTimeMs
+                + (mStreamedBytes + TS_PACKET_SIZE) * 1000 / mBytesPerSecond + 1;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close " + mFile, e);
+            }
+            mChannel = null;
+        }
+        mTuned = false;
+        notifyAll();
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.android.tv.tuner.ChannelScanFileParser.ScanChannel;
+import com.android.tv.tuner.FileTunerHal;
+import com.android.tv.tuner.TunerHal;
+import com.android.tv.tuner.data.PsipData;
+import com.android.tv.tuner.data.TunerChannel;
+import com.android.tv.tuner.exoplayer.buffer.BufferManager;
+import com.android.tv.tuner.exoplayer.buffer.DvrStorageManager;
+import com.android.tv.tuner.source.FileTsStreamer;
+import com.android.tv.tuner.source.TsStreamer;
+import com.android.tv.tuner.source.TunerTsStreamer;
+import com.android.tv.tuner.tvinput.EventDetector;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks the recording path of the tuner with the MPEG-2 TS files in /sdcard/Streams.
+ * <p>
+ * Each file is played by {@link FileTsStreamer} as fast as it's consumed, and the samples are
+ * extracted by {@link ExoPlayerSampleExtractor} and written to the chunk files by
+ * {@link com.android.tv.tuner.exoplayer.buffer.RecordingSampleBuffer}. The packets, samples and
+ * bytes written per second, the allocation rate of the process and the 99th percentile of the
+ * interval between the samples handed over to the buffer are logged for each file. The interval
+ * includes the time to extract a sample, and grows when the buffer holds the extractor back.
+ * The benchmark is skipped when there is no file.
+ * <p>
+ * Each file is also played by {@link TunerTsStreamer} through {@link FileTunerHal}, so that the
+ * tuner reads the packets directly in the ring buffer of the streamer as a tuner device does.
+ * The file is streamed at the maximum bitrate of ATSC there, since a tuner doesn't wait for the
+ * slow readers.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class TsPipelineBenchmark {
+    private static final String TAG = "TsPipelineBenchmark";
+
+    private static final int TS_PACKET_SIZE = 188;
+    private static final long SCAN_TIMEOUT_MS = 10000;
+    private static final long PREPARE_TIMEOUT_MS = 10000;
+    private static final long PREPARE_POLL_INTERVAL_MS = 10;
+    private static final long WARM_UP_TIME_MS = 2000;
+    private static final long MEASURE_TIME_MS = 20000;
+
+    @Test
+    public void testPipelineThroughput() throws Exception {
+        List<ScanChannel> files = new ArrayList<>();
+        FileTsStreamer.addLocalStreamFiles(files);
+        assumeFalse("No stream file to benchmark", files.isEmpty());
+        for (ScanChannel file : files) {
+            TunerChannel channel = detectChannel(file);
+            if (channel == null) {
+                Log.w(TAG, "No channel is detected from " + file.filename);
+                continue;
+            }
+            Result result = measure(new FileTsStreamer(new EmptyEventListener()), channel);
+            Log.i(TAG, file.filename + ": " + result);
+            assertTrue("No sample is extracted from " + file.filename, result.mSamples > 0);
+
+            TunerHal tunerHal =
+                    FileTunerHal.createInstance(getContext(), new File(channel.getFilepath()));
+            assertNotNull("Failed to open " + file.filename, tunerHal);
+            try {
+                result = measure(new TunerTsStreamer(tunerHal, new EmptyEventListener()),
+                        channel);
+            } finally {
+                tunerHal.close();
+            }
+            Log.i(TAG, file.filename + " from tuner: " + result);
+            assertTrue("No sample is extracted from " + file.filename + " from tuner",
+                    result.mSamples > 0);
+        }
+    }
+
+    // Scans the file until the first channel is detected.
+    private TunerChannel detectChannel(ScanChannel file) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final TunerChannel[] detected = new TunerChannel[1];
+        FileTsStreamer streamer = new FileTsStreamer(new EmptyEventListener() {
+            @Override
+            public void onChannelDetected(TunerChannel channel, boolean channelArrivedAtFirstTime) {
+                if (detected[0] == null) {
+                    detected[0] = channel;
+                    latch.countDown();
+                }
+            }
+        });
+        if (!streamer.startStream(file)) {
+            return null;
+        }
+        try {
+            latch.await(SCAN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } finally {
+            streamer.stopStream();
+        }
+        return detected[0];
+    }
+
+    private Result measure(TsStreamer streamer, TunerChannel channel) throws Exception {
+        File storageDir = new File(getContext().getCacheDir(), "pipeline_benchmark");
+        assertTrue(streamer.startStream(channel));
+        CountingDataSource source = new CountingDataSource(streamer.createDataSource());
+        CountingBufferManager bufferManager =
+                new CountingBufferManager(new DvrStorageManager(storageDir, true));
+        ExoPlayerSampleExtractor extractor =
+                new ExoPlayerSampleExtractor(Uri.EMPTY, source, bufferManager, null, true);
+        try {
+            long deadlineMs = SystemClock.elapsedRealtime() + PREPARE_TIMEOUT_MS;
+            while (!extractor.prepare()) {
+                assertTrue("Preparing timed out", SystemClock.elapsedRealtime() < deadlineMs);
+                SystemClock.sleep(PREPARE_POLL_INTERVAL_MS);
+            }
+            SystemClock.sleep(WARM_UP_TIME_MS);
+
+            long startBytesRead = source.mBytesRead.get();
+            long startSamples = bufferManager.getSampleCount();
+            long startBytesWritten = bufferManager.mBytesWritten.get();
+            long startAllocatedBytes = getAllocatedBytes();
+            long startTimeMs = SystemClock.elapsedRealtime();
+            bufferManager.startRecordingIntervals();
+            SystemClock.sleep(MEASURE_TIME_MS);
+            long[] intervalsNs = bufferManager.stopRecordingIntervals();
+            long elapsedMs = SystemClock.elapsedRealtime() - startTimeMs;
+
+            Result result = new Result();
+            result.mPackets = (source.mBytesRead.get() - startBytesRead) / TS_PACKET_SIZE;
+            result.mSamples = bufferManager.getSampleCount() - startSamples;
+            result.mBytesWritten = bufferManager.mBytesWritten.get() - startBytesWritten;
+            result.mAllocatedBytes = getAllocatedBytes() - startAllocatedBytes;
+            result.mElapsedMs = elapsedMs;
+            result.mP99IntervalNs = getPercentile(intervalsNs, 99);
+            return result;
+        } finally {
+            extractor.release();
+            streamer.stopStream();
+            deleteRecursively(storageDir);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    // Returns the total bytes allocated by the process, or -1 if the runtime doesn't provide it.
+    private static long getAllocatedBytes() {
+        String value = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        try {
+            return value == null ? -1 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long getPercentile(long[] values, int percentile) {
+        if (values.length == 0) {
+            return 0;
+        }
+        Arrays.sort(values);
+        return values[Math.min(values.length - 1, values.length * percentile / 100)];
+    }
+
+    private static class Result {
+        private long mPackets;
+        private long mSamples;
+        private long mBytesWritten;
+        private long mAllocatedBytes;
+        private long mElapsedMs;
+        private long mP99IntervalNs;
+
+        private long perSecond(long count) {
+            return mElapsedMs == 0 ? 0 : count * 1000 / mElapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "packets/s=%d samples/s=%d bytes written/s=%d "
+                    + "allocated bytes/s=%d p99 sample interval=%dus", perSecond(mPackets),
+                    perSecond(mSamples), perSecond(mBytesWritten),
+                    mAllocatedBytes < 0 ? -1 : perSecond(mAllocatedBytes), mP99IntervalNs / 1000);
+        }
+    }
+
+    private static class EmptyEventListener implements EventDetector.EventListener {
+        @Override
+        public void onChannelDetected(TunerChannel channel, boolean channelArrivedAtFirstTime) { }
+
+        @Override
+        public void onEventDetected(TunerChannel channel, List<PsipData.EitItem> items) { }
+
+        @Override
+        public void onChannelScanDone() { }
+    }
+
+    private static class CountingDataSource implements DataSource {
+        private final DataSource mDataSource;
+        private final AtomicLong mBytesRead = new AtomicLong();
+
+        private CountingDataSource(DataSource dataSource) {
+            mDataSource = dataSource;
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            return mDataSource.open(dataSpec);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            int bytesRead = mDataSource.read(buffer, offset, readLength);
+            if (bytesRead > 0) {
+                mBytesRead.addAndGet(bytesRead);
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDataSource.close();
+        }
+    }
+
+    // Counts the samples handed over to the buffer and the bytes written. RecordingSampleBuffer
+    // checks the write pressure once for each sample on the extractor thread.
+    private static class CountingBufferManager extends BufferManager {
+        private final AtomicLong mBytesWritten = new AtomicLong();
+        private final AtomicLong mSampleCount = new AtomicLong();
+        private final Object mIntervalLock = new Object();
+        // @GuardedBy("mIntervalLock")
+        private long[] mIntervalsNs;
+        // @GuardedBy("mIntervalLock")
+        private int mIntervalCount;
+        // @GuardedBy("mIntervalLock")
+        private long mLastSampleTimeNs;
+
+        private CountingBufferManager(StorageManager storageManager) {
+            super(storageManager);
+        }
+
+        @Override
+        public void addWriteStat(long size, long timeNs) {
+            mBytesWritten.addAndGet(size);
+            super.addWriteStat(size, timeNs);
+        }
+
+        @Override
+        public int getWritePressure() {
+            long nowNs = SystemClock.elapsedRealtimeNanos();
+            mSampleCount.incrementAndGet();
+            synchronized (mIntervalLock) {
+                if (mIntervalsNs != null) {
+                    if (mLastSampleTimeNs != 0) {
+                        if (mIntervalCount == mIntervalsNs.length) {
+                            mIntervalsNs = Arrays.copyOf(mIntervalsNs, mIntervalCount * 2);
+                        }
+                        mIntervalsNs[mIntervalCount++] = nowNs - mLastSampleTimeNs;
+                    }
+                    mLastSampleTimeNs = nowNs;
+                }
+            }
+            return super.getWritePressure();
+        }
+
+        private long getSampleCount() {
+            return mSampleCount.get();
+        }
+
+        private void startRecordingIntervals() {
+            synchronized (mIntervalLock) {
+                mIntervalsNs = new long[1024];
+                mIntervalCount = 0;
+                mLastSampleTimeNs = 0;
+            }
+        }
+
+        private long[] stopRecordingIntervals() {
+            synchronized (mIntervalLock) {
+                long[] intervalsNs = Arrays.copyOf(mIntervalsNs, mIntervalCount);
+                mIntervalsNs = null;
+                return intervalsNs;
+            }
+        }
+    }
+
+    private static Context getContext() {
+        return InstrumentationRegistry.getTargetContext();
+    }
+}
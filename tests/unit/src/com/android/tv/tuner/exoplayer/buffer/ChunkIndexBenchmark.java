@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.LargeTest;
+import android.util.Log;
+
+import com.android.tv.testing.Utils;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Benchmarks the chunk lookup and eviction of {@link BufferManager} with {@link ChunkIndex},
+ * against the {@link TreeMap} per track which it used before.
+ * <p>
+ * The buffer has the chunks of a multi-hour recording. Each benchmark is warmed up first, and
+ * the average time per operation is logged.
+ */
+@LargeTest
+public class ChunkIndexBenchmark extends TestCase {
+    private static final String TAG = "ChunkIndexBenchmark";
+    private static final int TRACK_COUNT = 4;
+    // Four hours of 500 ms chunks.
+    private static final int CHUNKS_PER_TRACK = 28800;
+    private static final long CHUNK_DURATION_US = RecordingSampleBuffer.CHUNK_DURATION_US;
+    private static final long CHUNK_DURATION_MS = CHUNK_DURATION_US / 1000;
+    private static final int WARM_UP_OPERATIONS = 100000;
+    private static final int MEASURE_OPERATIONS = 1000000;
+
+    public void testLookup() {
+        List<ChunkIndex> indexes = new ArrayList<>();
+        List<TreeMap<Long, SampleChunk>> maps = new ArrayList<>();
+        fillTracks(indexes, maps);
+        long[] positionsUs = createRandomPositions(MEASURE_OPERATIONS);
+
+        long checksum = lookUpByIndex(indexes, positionsUs, WARM_UP_OPERATIONS);
+        long timeNs = System.nanoTime();
+        checksum += lookUpByIndex(indexes, positionsUs, MEASURE_OPERATIONS);
+        long indexTimeNs = System.nanoTime() - timeNs;
+
+        long expectedChecksum = lookUpByTreeMap(maps, positionsUs, WARM_UP_OPERATIONS);
+        timeNs = System.nanoTime();
+        expectedChecksum += lookUpByTreeMap(maps, positionsUs, MEASURE_OPERATIONS);
+        long treeMapTimeNs = System.nanoTime() - timeNs;
+
+        assertEquals(expectedChecksum, checksum);
+        log("lookup", indexTimeNs, treeMapTimeNs);
+    }
+
+    public void testEviction() {
+        List<ChunkIndex> indexes = new ArrayList<>();
+        List<TreeMap<Long, SampleChunk>> maps = new ArrayList<>();
+        fillTracks(indexes, maps);
+        PriorityQueue<ChunkIndex> evictionQueue = new PriorityQueue<>(TRACK_COUNT,
+                new Comparator<ChunkIndex>() {
+                    @Override
+                    public int compare(ChunkIndex lhs, ChunkIndex rhs) {
+                        return Long.compare(lhs.getFirst().getCreatedTimeMs(),
+                                rhs.getFirst().getCreatedTimeMs());
+                    }
+                });
+        evictionQueue.addAll(indexes);
+
+        long checksum = evictByHeap(evictionQueue, WARM_UP_OPERATIONS);
+        long timeNs = System.nanoTime();
+        checksum += evictByHeap(evictionQueue, MEASURE_OPERATIONS);
+        long heapTimeNs = System.nanoTime() - timeNs;
+
+        long expectedChecksum = evictByScan(maps, WARM_UP_OPERATIONS);
+        timeNs = System.nanoTime();
+        expectedChecksum += evictByScan(maps, MEASURE_OPERATIONS);
+        long scanTimeNs = System.nanoTime() - timeNs;
+
+        assertEquals(expectedChecksum, checksum);
+        log("eviction", heapTimeNs, scanTimeNs);
+    }
+
+    private static void fillTracks(List<ChunkIndex> indexes,
+            List<TreeMap<Long, SampleChunk>> maps) {
+        for (int track = 0; track < TRACK_COUNT; ++track) {
+            ChunkIndex index = new ChunkIndex(Integer.toString(track));
+            TreeMap<Long, SampleChunk> map = new TreeMap<>();
+            for (int i = 0; i < CHUNKS_PER_TRACK; ++i) {
+                SampleChunk chunk = createChunk(track, i);
+                index.add(chunk);
+                map.put(chunk.getStartPositionUs(), chunk);
+            }
+            indexes.add(index);
+            maps.add(map);
+        }
+    }
+
+    // The chunks of the tracks are created one after another, as the samples are interleaved.
+    private static SampleChunk createChunk(int track, long chunkNumber) {
+        return new SampleChunk(null, null, chunkNumber * CHUNK_DURATION_US,
+                chunkNumber * CHUNK_DURATION_MS + track, null);
+    }
+
+    private static long[] createRandomPositions(int count) {
+        Random random = Utils.createTestRandom();
+        long[] positionsUs = new long[count];
+        for (int i = 0; i < count; ++i) {
+            positionsUs[i] = (long) (random.nextDouble() * CHUNKS_PER_TRACK * CHUNK_DURATION_US);
+        }
+        return positionsUs;
+    }
+
+    private static long lookUpByIndex(List<ChunkIndex> indexes, long[] positionsUs,
+            int operations) {
+        long checksum = 0;
+        for (int i = 0; i < operations; ++i) {
+            checksum += indexes.get(i % TRACK_COUNT).floor(positionsUs[i % positionsUs.length])
+                    .getStartPositionUs();
+        }
+        return checksum;
+    }
+
+    // Looks up the chunk as BufferManager#getReadFile did with a TreeMap.
+    private static long lookUpByTreeMap(List<TreeMap<Long, SampleChunk>> maps,
+            long[] positionsUs, int operations) {
+        long checksum = 0;
+        for (int i = 0; i < operations; ++i) {
+            TreeMap<Long, SampleChunk> map = maps.get(i % TRACK_COUNT);
+            SortedMap<Long, SampleChunk> headMap =
+                    map.headMap(positionsUs[i % positionsUs.length] + 1);
+            SampleChunk chunk = !headMap.isEmpty() ? headMap.get(headMap.lastKey())
+                    : map.get(map.firstKey());
+            checksum += chunk.getStartPositionUs();
+        }
+        return checksum;
+    }
+
+    // Evicts the earliest chunk and adds a new one to the track, as a full timeshift buffer does.
+    private static long evictByHeap(PriorityQueue<ChunkIndex> evictionQueue, int operations) {
+        long checksum = 0;
+        for (int i = 0; i < operations; ++i) {
+            ChunkIndex index = evictionQueue.poll();
+            SampleChunk evicted = index.removeFirst();
+            checksum += evicted.getCreatedTimeMs();
+            index.add(createChunk(getTrack(evicted), nextChunkNumber(evicted)));
+            evictionQueue.offer(index);
+        }
+        return checksum;
+    }
+
+    // Evicts the earliest chunk as BufferManager#maybeEvictChunk did with a scan of the tracks.
+    private static long evictByScan(List<TreeMap<Long, SampleChunk>> maps, int operations) {
+        long checksum = 0;
+        for (int i = 0; i < operations; ++i) {
+            int earliestTrack = -1;
+            SampleChunk earliestChunk = null;
+            for (int track = 0; track < TRACK_COUNT; ++track) {
+                TreeMap<Long, SampleChunk> map = maps.get(track);
+                if (map.isEmpty()) {
+                    continue;
+                }
+                SampleChunk chunk = map.get(map.firstKey());
+                if (earliestChunk == null
+                        || chunk.getCreatedTimeMs() < earliestChunk.getCreatedTimeMs()) {
+                    earliestTrack = track;
+                    earliestChunk = chunk;
+                }
+            }
+            TreeMap<Long, SampleChunk> map = maps.get(earliestTrack);
+            map.remove(earliestChunk.getStartPositionUs());
+            checksum += earliestChunk.getCreatedTimeMs();
+            SampleChunk chunk = createChunk(earliestTrack, nextChunkNumber(earliestChunk));
+            map.put(chunk.getStartPositionUs(), chunk);
+        }
+        return checksum;
+    }
+
+    private static int getTrack(SampleChunk chunk) {
+        return (int) (chunk.getCreatedTimeMs() % CHUNK_DURATION_MS);
+    }
+
+    private static long nextChunkNumber(SampleChunk evicted) {
+        return evicted.getStartPositionUs() / CHUNK_DURATION_US + CHUNKS_PER_TRACK;
+    }
+
+    private static void log(String name, long newTimeNs, long oldTimeNs) {
+        Log.i(TAG, String.format(Locale.ENGLISH, "%s: ChunkIndex=%dns/op TreeMap=%dns/op", name,
+                newTimeNs / MEASURE_OPERATIONS, oldTimeNs / MEASURE_OPERATIONS));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.testing.Utils;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Tests for {@link ChunkIndex}.
+ */
+@SmallTest
+public class ChunkIndexTest extends TestCase {
+    private static final String TRACK_ID = "track_id";
+
+    public void testEmpty() {
+        ChunkIndex index = new ChunkIndex(TRACK_ID);
+        assertTrue(index.isEmpty());
+        assertNull(index.getFirst());
+        assertNull(index.removeFirst());
+        assertNull(index.floor(0));
+    }
+
+    public void testFloor() {
+        ChunkIndex index = new ChunkIndex(TRACK_ID);
+        SampleChunk chunk10 = createChunk(10);
+        SampleChunk chunk20 = createChunk(20);
+        index.add(chunk10);
+        index.add(chunk20);
+        assertSame(chunk10, index.floor(0));
+        assertSame(chunk10, index.floor(10));
+        assertSame(chunk10, index.floor(19));
+        assertSame(chunk20, index.floor(20));
+        assertSame(chunk20, index.floor(Long.MAX_VALUE));
+    }
+
+    public void testAdd_samePositionReplaces() {
+        ChunkIndex index = new ChunkIndex(TRACK_ID);
+        index.add(createChunk(10));
+        SampleChunk chunk = createChunk(10);
+        index.add(chunk);
+        assertEquals(1, index.size());
+        assertSame(chunk, index.getFirst());
+    }
+
+    public void testAdd_wrapAroundAndGrow() {
+        ChunkIndex index = new ChunkIndex(TRACK_ID);
+        TreeMap<Long, SampleChunk> expected = new TreeMap<>();
+        long positionUs = 0;
+        // Moves the head so that the chunks wrap around the end of the ring before it grows.
+        for (int i = 0; i < 50; ++i) {
+            positionUs += 10;
+            addChunk(index, expected, positionUs);
+        }
+        for (int i = 0; i < 40; ++i) {
+            assertSame(expected.pollFirstEntry().getValue(), index.removeFirst());
+        }
+        for (int i = 0; i < 200; ++i) {
+            positionUs += 10;
+            addChunk(index, expected, positionUs);
+            // Inserts a chunk in the middle as well.
+            addChunk(index, expected, positionUs - 5);
+        }
+        assertSameAs(expected, index);
+    }
+
+    public void testRandomOperations_sameAsTreeMap() {
+        Random random = Utils.createTestRandom();
+        for (int round = 0; round < 500; ++round) {
+            ChunkIndex index = new ChunkIndex(TRACK_ID);
+            TreeMap<Long, SampleChunk> expected = new TreeMap<>();
+            long lastPositionUs = 0;
+            int operationCount = random.nextInt(300);
+            for (int i = 0; i < operationCount; ++i) {
+                int operation = random.nextInt(10);
+                if (operation < 6) {
+                    // Chunks are usually added at the end, as BufferManager does.
+                    lastPositionUs += random.nextInt(3);
+                    addChunk(index, expected, lastPositionUs);
+                } else if (operation < 8) {
+                    addChunk(index, expected, random.nextInt((int) lastPositionUs + 1));
+                } else if (operation < 9) {
+                    Map.Entry<Long, SampleChunk> first = expected.pollFirstEntry();
+                    assertSame(first == null ? null : first.getValue(), index.removeFirst());
+                } else {
+                    long positionUs = random.nextInt((int) lastPositionUs + 2) - 1;
+                    assertSame("floor(" + positionUs + ")", floor(expected, positionUs),
+                            index.floor(positionUs));
+                }
+            }
+            assertSameAs(expected, index);
+        }
+    }
+
+    private static SampleChunk createChunk(long startPositionUs) {
+        return new SampleChunk(null, null, startPositionUs, 0, null);
+    }
+
+    private static void addChunk(ChunkIndex index, TreeMap<Long, SampleChunk> expected,
+            long startPositionUs) {
+        SampleChunk chunk = createChunk(startPositionUs);
+        index.add(chunk);
+        expected.put(startPositionUs, chunk);
+    }
+
+    // Returns the chunk which the former TreeMap based lookup of BufferManager returns.
+    private static SampleChunk floor(TreeMap<Long, SampleChunk> chunks, long positionUs) {
+        if (chunks.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, SampleChunk> entry = chunks.floorEntry(positionUs);
+        return entry == null ? chunks.firstEntry().getValue() : entry.getValue();
+    }
+
+    private static void assertSameAs(TreeMap<Long, SampleChunk> expected, ChunkIndex index) {
+        assertEquals(expected.size(), index.size());
+        assertEquals(expected.isEmpty(), index.isEmpty());
+        int i = 0;
+        for (Map.Entry<Long, SampleChunk> entry : expected.entrySet()) {
+            assertEquals(entry.getKey().longValue(), index.getStartPositionUs(i));
+            assertSame(entry.getValue(), index.get(i));
+            ++i;
+        }
+        assertSame(expected.isEmpty() ? null : expected.firstEntry().getValue(),
+                index.getFirst());
+    }
+}
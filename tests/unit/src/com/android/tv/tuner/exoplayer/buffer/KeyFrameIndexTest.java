@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link KeyFrameIndex}.
+ */
+@SmallTest
+public class KeyFrameIndexTest extends TestCase {
+    private static final long CHUNK_DURATION_US = 500000;
+
+    public void testEmpty() {
+        KeyFrameIndex index = new KeyFrameIndex();
+        assertEquals(0, index.size());
+        assertEquals(-1, index.findKeyFrame(0));
+        assertEquals(-1, index.findKeyFrame(Long.MAX_VALUE));
+        index.trimBefore(Long.MAX_VALUE);
+        assertEquals(0, index.size());
+    }
+
+    public void testAdd() {
+        KeyFrameIndex index = new KeyFrameIndex();
+        index.add(100, 0, 10);
+        index.add(600, CHUNK_DURATION_US, 20);
+        assertEquals(2, index.size());
+        assertKeyFrame(index, 0, 100, 0, 10);
+        assertKeyFrame(index, 1, 600, CHUNK_DURATION_US, 20);
+    }
+
+    public void testAdd_notLaterIgnored() {
+        KeyFrameIndex index = new KeyFrameIndex();
+        index.add(100, 0, 10);
+        index.add(100, 0, 20);
+        index.add(50, 0, 30);
+        assertEquals(1, index.size());
+        assertKeyFrame(index, 0, 100, 0, 10);
+    }
+
+    public void testFindKeyFrame_boundaries() {
+        KeyFrameIndex index = new KeyFrameIndex();
+        index.add(100, 0, 10);
+        index.add(200, 0, 20);
+        index.add(300, 0, 30);
+        // Earlier than the first key frame.
+        assertEquals(-1, index.findKeyFrame(99));
+        // Exactly at the key frames.
+        assertEquals(0, index.findKeyFrame(100));
+        assertEquals(1, index.findKeyFrame(200));
+        assertEquals(2, index.findKeyFrame(300));
+        // Between the key frames, the earlier one is found.
+        assertEquals(0, index.findKeyFrame(199));
+        assertEquals(1, index.findKeyFrame(201));
+        // Later than the last key frame.
+        assertEquals(2, index.findKeyFrame(Long.MAX_VALUE));
+    }
+
+    public void testTrimBefore_withEvictedChunks() {
+        KeyFrameIndex index = new KeyFrameIndex();
+        // Two key frames in each of the chunks 0, 1 and 2.
+        for (int chunk = 0; chunk < 3; ++chunk) {
+            long chunkPositionUs = chunk * CHUNK_DURATION_US;
+            index.add(chunkPositionUs + 100, chunkPositionUs, 10);
+            index.add(chunkPositionUs + 200, chunkPositionUs, 20);
+        }
+        // The chunk 0 is evicted, and the chunk 1 is the earliest one.
+        index.trimBefore(CHUNK_DURATION_US);
+        assertEquals(4, index.size());
+        assertKeyFrame(index, 0, CHUNK_DURATION_US + 100, CHUNK_DURATION_US, 10);
+        // The key frames of an evicted chunk are not found any more.
+        assertEquals(-1, index.findKeyFrame(200));
+        assertEquals(0, index.findKeyFrame(CHUNK_DURATION_US + 150));
+
+        // The index is not changed when the earliest chunk has no key frame removed.
+        index.trimBefore(CHUNK_DURATION_US);
+        assertEquals(4, index.size());
+
+        index.trimBefore(3 * CHUNK_DURATION_US);
+        assertEquals(0, index.size());
+        assertEquals(-1, index.findKeyFrame(Long.MAX_VALUE));
+    }
+
+    public void testAdd_grows() {
+        KeyFrameIndex index = new KeyFrameIndex();
+        for (int i = 0; i < 1000; ++i) {
+            index.add(i * CHUNK_DURATION_US, i * CHUNK_DURATION_US, i);
+        }
+        assertEquals(1000, index.size());
+        for (int i = 0; i < 1000; ++i) {
+            assertKeyFrame(index, i, i * CHUNK_DURATION_US, i * CHUNK_DURATION_US, i);
+        }
+    }
+
+    public void testAdd_afterTrimReusesSpace() {
+        KeyFrameIndex index = new KeyFrameIndex();
+        long timeUs = 0;
+        // Adds and evicts many key frames, one per chunk, so that the index is compacted.
+        for (int i = 0; i < 5000; ++i) {
+            timeUs += CHUNK_DURATION_US;
+            index.add(timeUs, timeUs, i);
+            if (i % 3 == 0) {
+                index.trimBefore(timeUs - 100 * CHUNK_DURATION_US);
+            }
+        }
+        long firstTimeUs = index.getTimeUs(0);
+        for (int i = 0; i < index.size(); ++i) {
+            long expectedTimeUs = firstTimeUs + i * CHUNK_DURATION_US;
+            assertKeyFrame(index, i, expectedTimeUs, expectedTimeUs,
+                    expectedTimeUs / CHUNK_DURATION_US - 1);
+            assertEquals(i, index.findKeyFrame(expectedTimeUs));
+        }
+        assertEquals(timeUs, index.getTimeUs(index.size() - 1));
+    }
+
+    private static void assertKeyFrame(KeyFrameIndex index, int keyFrame, long timeUs,
+            long chunkPositionUs, long offset) {
+        assertEquals(timeUs, index.getTimeUs(keyFrame));
+        assertEquals(chunkPositionUs, index.getChunkPositionUs(keyFrame));
+        assertEquals(offset, index.getOffset(keyFrame));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.media.MediaCodec;
+import android.os.ConditionVariable;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.util.MimeTypes;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests for the key frame only mode of {@link RecordingSampleBuffer}, which is used for trickplay.
+ */
+@MediumTest
+public class RecordingSampleBufferTest extends TestCase {
+    private static final int VIDEO_TRACK = 0;
+    private static final int AUDIO_TRACK = 1;
+    private static final int SAMPLE_COUNT = 200;
+    private static final int SAMPLE_SIZE = 100;
+    private static final long SAMPLE_DURATION_US = 10000;
+    // A video sample out of this many is a key frame.
+    private static final int KEY_FRAME_INTERVAL = 10;
+    private static final long TIMEOUT_MS = 5000;
+    private static final long POLL_INTERVAL_MS = 5;
+
+    private File mBufferDir;
+    private RecordingSampleBuffer mSampleBuffer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBufferDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "recording_sample_buffer_test");
+        mSampleBuffer = new RecordingSampleBuffer(
+                new BufferManager(new DvrStorageManager(mBufferDir, false)), null, true,
+                RecordingSampleBuffer.BUFFER_REASON_LIVE_PLAYBACK);
+        mSampleBuffer.init(Arrays.asList("video", "audio"), Arrays.asList(
+                MediaFormat.createFormatForMimeType(
+                        "video", MimeTypes.VIDEO_H264, MediaFormat.NO_VALUE, 0),
+                MediaFormat.createFormatForMimeType(
+                        "audio", MimeTypes.AUDIO_AC3, MediaFormat.NO_VALUE, 0)));
+        ConditionVariable conditionVariable = new ConditionVariable();
+        for (int i = 0; i < SAMPLE_COUNT; ++i) {
+            long timeUs = i * SAMPLE_DURATION_US;
+            writeSample(VIDEO_TRACK, timeUs, i % KEY_FRAME_INTERVAL == 0, conditionVariable);
+            writeSample(AUDIO_TRACK, timeUs, true, conditionVariable);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSampleBuffer.release();
+        File[] files = mBufferDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mBufferDir.delete();
+        super.tearDown();
+    }
+
+    public void testKeyFrameOnly() throws Exception {
+        mSampleBuffer.selectTrack(AUDIO_TRACK);
+        // Queues some audio samples to be played.
+        long deadlineMs = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (mSampleBuffer.getBufferedPositionUs() < KEY_FRAME_INTERVAL * SAMPLE_DURATION_US) {
+            assertTrue(SystemClock.elapsedRealtime() < deadlineMs);
+            mSampleBuffer.continueBuffering(0);
+            SystemClock.sleep(POLL_INTERVAL_MS);
+        }
+        long lastQueuedAudioTimeUs = mSampleBuffer.getBufferedPositionUs();
+
+        mSampleBuffer.setKeyFrameOnly(true);
+        mSampleBuffer.selectTrack(VIDEO_TRACK);
+        SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        // Only the key frames of the video track are read.
+        long lastTimeUs = -1;
+        for (int i = 0; i < 5; ++i) {
+            readSample(VIDEO_TRACK, sample);
+            assertTrue((sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            assertTrue(sample.timeUs > lastTimeUs);
+            lastTimeUs = sample.timeUs;
+        }
+        // The audio track is not read, though its samples are queued and written.
+        assertEquals(SampleSource.NOTHING_READ, mSampleBuffer.readSample(AUDIO_TRACK, sample));
+        SystemClock.sleep(POLL_INTERVAL_MS * 10);
+        assertEquals(SampleSource.NOTHING_READ, mSampleBuffer.readSample(AUDIO_TRACK, sample));
+
+        mSampleBuffer.setKeyFrameOnly(false);
+        // The queued audio samples were cleared, so the samples after them are read.
+        readSample(AUDIO_TRACK, sample);
+        assertTrue(sample.timeUs > lastQueuedAudioTimeUs);
+        // The video samples between the key frames are read again.
+        boolean nonKeyFrameRead = false;
+        for (int i = 0; i < KEY_FRAME_INTERVAL * 2 && !nonKeyFrameRead; ++i) {
+            readSample(VIDEO_TRACK, sample);
+            nonKeyFrameRead = (sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0;
+        }
+        assertTrue(nonKeyFrameRead);
+    }
+
+    private void writeSample(int index, long timeUs, boolean keyFrame,
+            ConditionVariable conditionVariable) throws IOException {
+        SampleHolder sample = mSampleBuffer.acquireSample(SAMPLE_SIZE);
+        sample.size = SAMPLE_SIZE;
+        sample.timeUs = timeUs;
+        sample.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        sample.data.put(new byte[SAMPLE_SIZE]);
+        mSampleBuffer.writeSample(index, sample, conditionVariable);
+    }
+
+    // Waits until a sample of the track is read.
+    private void readSample(int index, SampleHolder sample) {
+        long deadlineMs = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (mSampleBuffer.readSample(index, sample) != SampleSource.SAMPLE_READ) {
+            assertTrue(SystemClock.elapsedRealtime() < deadlineMs);
+            SystemClock.sleep(POLL_INTERVAL_MS);
+        }
+    }
+}
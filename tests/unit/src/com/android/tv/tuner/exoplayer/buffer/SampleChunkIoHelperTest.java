@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.media.MediaCodec;
+import android.os.ConditionVariable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.util.MimeTypes;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the write-behind of {@link SampleChunkIoHelper}.
+ */
+@MediumTest
+public class SampleChunkIoHelperTest extends TestCase {
+    private static final int VIDEO_TRACK = 0;
+    private static final int AUDIO_TRACK = 1;
+    private static final int SAMPLE_SIZE = 100;
+    private static final long SAMPLE_DURATION_US = 10000;
+    // Same as SampleChunkIoHelper.MAX_PENDING_WRITE_SAMPLES.
+    private static final int MAX_PENDING_WRITE_SAMPLES = 32;
+    private static final long TIMEOUT_MS = 5000;
+    // Enough to see that a condition variable stays closed.
+    private static final long BLOCK_CHECK_MS = 100;
+
+    private final SamplePool mSamplePool = new SamplePool();
+    private final CountDownLatch mWriteStarted = new CountDownLatch(1);
+    private final CountDownLatch mWriteClosed = new CountDownLatch(1);
+    // Blocks the writes of the I/O thread while it is closed.
+    private final ConditionVariable mWriteGate = new ConditionVariable(true);
+    // @GuardedBy("mWrittenSamples")
+    private final List<SampleHolder> mWrittenSamples[] = new List[] {
+            new ArrayList<>(), new ArrayList<>() };
+    // @GuardedBy("mWrittenSamples")
+    private final List<Long> mWrittenTimesUs[] = new List[] {
+            new ArrayList<>(), new ArrayList<>() };
+
+    private File mBufferDir;
+    private SampleChunkIoHelper mIoHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBufferDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "sample_chunk_io_helper_test");
+        BufferManager bufferManager = new BufferManager(new DvrStorageManager(mBufferDir, false),
+                new TestSampleChunkCreator());
+        mIoHelper = new SampleChunkIoHelper(Arrays.asList("video", "audio"),
+                Arrays.asList(
+                        MediaFormat.createFormatForMimeType(
+                                "video", MimeTypes.VIDEO_H264, MediaFormat.NO_VALUE, 0),
+                        MediaFormat.createFormatForMimeType(
+                                "audio", MimeTypes.AUDIO_AC3, MediaFormat.NO_VALUE, 0)),
+                RecordingSampleBuffer.BUFFER_REASON_LIVE_PLAYBACK, bufferManager, mSamplePool,
+                new SampleChunkIoHelper.IoCallback() {
+                    @Override
+                    public void onIoReachedEos() {
+                        mWriteClosed.countDown();
+                    }
+                });
+        mIoHelper.init();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWriteGate.open();
+        if (mIoHelper != null) {
+            mIoHelper.release();
+        }
+        File[] files = mBufferDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mBufferDir.delete();
+        super.tearDown();
+    }
+
+    public void testWriteSample_writtenInOrderWithoutCopy() throws Exception {
+        ConditionVariable conditionVariable = new ConditionVariable();
+        List<SampleHolder> videoSamples = new ArrayList<>();
+        List<SampleHolder> audioSamples = new ArrayList<>();
+        // More samples than a batch, across a few chunks.
+        for (int i = 0; i < 100; ++i) {
+            long timeUs = i * SAMPLE_DURATION_US;
+            SampleHolder sample = createSample(timeUs, i % 10 == 0);
+            videoSamples.add(sample);
+            writeSample(VIDEO_TRACK, sample, conditionVariable);
+            sample = createSample(timeUs, true);
+            audioSamples.add(sample);
+            writeSample(AUDIO_TRACK, sample, conditionVariable);
+        }
+        mIoHelper.closeWrite();
+        assertTrue(mWriteClosed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertWritten(VIDEO_TRACK, videoSamples);
+        assertWritten(AUDIO_TRACK, audioSamples);
+    }
+
+    public void testCloseWrite_flushesPendingSamples() throws Exception {
+        ConditionVariable conditionVariable = new ConditionVariable();
+        mWriteGate.close();
+        writeSample(VIDEO_TRACK, createSample(0, true), conditionVariable);
+        assertTrue(mWriteStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 1; i < 10; ++i) {
+            writeSample(VIDEO_TRACK, createSample(i * SAMPLE_DURATION_US, false),
+                    conditionVariable);
+        }
+        mIoHelper.closeWrite();
+        mWriteGate.open();
+        assertTrue(mWriteClosed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(10, getWrittenCount(VIDEO_TRACK));
+    }
+
+    public void testRelease_flushesPendingSamples() throws Exception {
+        ConditionVariable conditionVariable = new ConditionVariable();
+        mWriteGate.close();
+        writeSample(VIDEO_TRACK, createSample(0, true), conditionVariable);
+        assertTrue(mWriteStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 1; i < 10; ++i) {
+            writeSample(VIDEO_TRACK, createSample(i * SAMPLE_DURATION_US, false),
+                    conditionVariable);
+        }
+        Thread releaseThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mIoHelper.release();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        releaseThread.start();
+        // Waits until the release is requested and waited for, ahead of the pending writes.
+        long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+        while (releaseThread.getState() != Thread.State.WAITING) {
+            assertTrue(System.currentTimeMillis() < deadlineMs);
+            Thread.sleep(1);
+        }
+        mWriteGate.open();
+        releaseThread.join(TIMEOUT_MS);
+        assertFalse(releaseThread.isAlive());
+        mIoHelper = null;
+        assertEquals(10, getWrittenCount(VIDEO_TRACK));
+    }
+
+    public void testWriteSample_blocksWriterWhenTooManyPending() throws Exception {
+        ConditionVariable conditionVariable = new ConditionVariable();
+        mWriteGate.close();
+        mIoHelper.writeSample(VIDEO_TRACK, createSample(0, true), conditionVariable);
+        assertTrue(mWriteStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // The first sample is being written, and the others are pending.
+        for (int i = 1; i < MAX_PENDING_WRITE_SAMPLES; ++i) {
+            mIoHelper.writeSample(VIDEO_TRACK, createSample(i * SAMPLE_DURATION_US, false),
+                    conditionVariable);
+            assertTrue(conditionVariable.block(BLOCK_CHECK_MS));
+        }
+        mIoHelper.writeSample(VIDEO_TRACK,
+                createSample(MAX_PENDING_WRITE_SAMPLES * SAMPLE_DURATION_US, false),
+                conditionVariable);
+        assertFalse(conditionVariable.block(BLOCK_CHECK_MS));
+
+        // The writer is unblocked once the pending samples are written.
+        mWriteGate.open();
+        assertTrue(conditionVariable.block(TIMEOUT_MS));
+        mIoHelper.closeWrite();
+        assertTrue(mWriteClosed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(MAX_PENDING_WRITE_SAMPLES + 1, getWrittenCount(VIDEO_TRACK));
+    }
+
+    // Writes a sample as RecordingSampleBuffer does, waiting until the writer is unblocked.
+    private void writeSample(int index, SampleHolder sample, ConditionVariable conditionVariable)
+            throws IOException {
+        mIoHelper.writeSample(index, sample, conditionVariable);
+        assertTrue(conditionVariable.block(TIMEOUT_MS));
+    }
+
+    private SampleHolder createSample(long timeUs, boolean keyFrame) {
+        SampleHolder sample = mSamplePool.acquireSample(SAMPLE_SIZE);
+        sample.size = SAMPLE_SIZE;
+        sample.timeUs = timeUs;
+        sample.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        for (int i = 0; i < SAMPLE_SIZE; ++i) {
+            sample.data.put((byte) timeUs);
+        }
+        return sample;
+    }
+
+    private void assertWritten(int index, List<SampleHolder> samples) {
+        synchronized (mWrittenSamples) {
+            assertEquals(samples.size(), mWrittenSamples[index].size());
+            for (int i = 0; i < samples.size(); ++i) {
+                // The samples are written as they are handed over.
+                assertSame(samples.get(i), mWrittenSamples[index].get(i));
+                assertEquals(i * SAMPLE_DURATION_US, (long) mWrittenTimesUs[index].get(i));
+            }
+        }
+    }
+
+    private int getWrittenCount(int index) {
+        synchronized (mWrittenSamples) {
+            return mWrittenSamples[index].size();
+        }
+    }
+
+    private class TestSampleChunkCreator extends SampleChunk.SampleChunkCreator {
+        @Override
+        SampleChunk createSampleChunk(SamplePool samplePool, File file, long startPositionUs,
+                SampleChunk.ChunkCallback chunkCallback) {
+            return new TestSampleChunk(samplePool, file, startPositionUs, chunkCallback);
+        }
+    }
+
+    // Records the samples written to the chunk.
+    private class TestSampleChunk extends SampleChunk {
+        private final int mIndex;
+
+        private TestSampleChunk(SamplePool samplePool, File file, long startPositionUs,
+                ChunkCallback chunkCallback) {
+            super(samplePool, file, startPositionUs, System.currentTimeMillis(), chunkCallback);
+            mIndex = file.getName().startsWith("video") ? VIDEO_TRACK : AUDIO_TRACK;
+        }
+
+        @Override
+        protected void write(List<SampleHolder> samples, IoState state) throws IOException {
+            mWriteStarted.countDown();
+            mWriteGate.block();
+            synchronized (mWrittenSamples) {
+                for (SampleHolder sample : samples) {
+                    mWrittenSamples[mIndex].add(sample);
+                    mWrittenTimesUs[mIndex].add(sample.timeUs);
+                    assertEquals((byte) sample.timeUs, sample.data.get(0));
+                }
+            }
+            super.write(samples, state);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.content.ComponentCallbacks2;
+import android.support.test.filters.SmallTest;
+
+import com.google.android.exoplayer.SampleHolder;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link SamplePool}.
+ */
+@SmallTest
+public class SamplePoolTest extends TestCase {
+    private static final int LARGE_SAMPLE_SIZE = 1 << SamplePool.LARGE_SIZE_CLASS;
+
+    private SamplePool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new SamplePool();
+    }
+
+    public void testAcquire_allocatesPowerOfTwoCapacity() {
+        SampleHolder sample = mPool.acquireSample(1000);
+        assertEquals(1024, sample.data.capacity());
+        assertEquals(0, mPool.getHitCount());
+        assertEquals(1, mPool.getMissCount());
+        assertEquals(1024, mPool.getAllocatedBytes());
+    }
+
+    public void testAcquire_reusesReleasedSample() {
+        SampleHolder sample = mPool.acquireSample(1000);
+        mPool.releaseSample(sample);
+        assertEquals(1024, mPool.getRetainedBytes());
+        assertSame(sample, mPool.acquireSample(600));
+        assertEquals(1, mPool.getHitCount());
+        assertEquals(1, mPool.getMissCount());
+        assertEquals(1024, mPool.getAllocatedBytes());
+        assertEquals(0, mPool.getRetainedBytes());
+    }
+
+    public void testAcquire_fromLargerSizeClass() {
+        SampleHolder sample = mPool.acquireSample(1024);
+        mPool.releaseSample(sample);
+        // 1024 bytes is two size classes larger than 256 bytes.
+        assertSame(sample, mPool.acquireSample(256));
+        assertEquals(1, mPool.getHitCount());
+    }
+
+    public void testAcquire_notFromMuchLargerSizeClass() {
+        SampleHolder sample = mPool.acquireSample(1024);
+        mPool.releaseSample(sample);
+        // 1024 bytes is three size classes larger than 128 bytes.
+        assertNotSame(sample, mPool.acquireSample(128));
+        assertEquals(0, mPool.getHitCount());
+        assertEquals(2, mPool.getMissCount());
+        assertEquals(1024 + 128, mPool.getAllocatedBytes());
+    }
+
+    public void testAcquire_notFromSmallerSizeClass() {
+        mPool.releaseSample(mPool.acquireSample(1024));
+        SampleHolder sample = mPool.acquireSample(1025);
+        assertEquals(2048, sample.data.capacity());
+        assertEquals(0, mPool.getHitCount());
+    }
+
+    public void testRelease_boundedByBytes() {
+        int sampleSize = 1024 * 1024;
+        int retainedCount = (int) (SamplePool.MAX_RETAINED_BYTES / sampleSize);
+        releaseSamples(acquireSamples(sampleSize, retainedCount + 4));
+        assertEquals(SamplePool.MAX_RETAINED_BYTES, mPool.getRetainedBytes());
+        acquireSamples(sampleSize, retainedCount + 4);
+        assertEquals(retainedCount, mPool.getHitCount());
+        assertEquals(0, mPool.getRetainedBytes());
+    }
+
+    public void testRelease_boundedByCount() {
+        releaseSamples(acquireSamples(16, SamplePool.MAX_RETAINED_SAMPLES_PER_SIZE_CLASS + 10));
+        assertEquals(SamplePool.MAX_RETAINED_SAMPLES_PER_SIZE_CLASS * 16,
+                mPool.getRetainedBytes());
+    }
+
+    public void testTrim_moderateReleasesLargeSamplesOnly() {
+        SampleHolder smallSample = mPool.acquireSample(1024);
+        mPool.releaseSample(smallSample);
+        mPool.releaseSample(mPool.acquireSample(LARGE_SAMPLE_SIZE));
+        mPool.performTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(1024, mPool.getRetainedBytes());
+        assertSame(smallSample, mPool.acquireSample(1024));
+    }
+
+    public void testTrim_criticalReleasesAllSamples() {
+        mPool.releaseSample(mPool.acquireSample(1024));
+        mPool.releaseSample(mPool.acquireSample(LARGE_SAMPLE_SIZE));
+        mPool.performTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertEquals(0, mPool.getRetainedBytes());
+
+        mPool.releaseSample(mPool.acquireSample(1024));
+        mPool.performTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, mPool.getRetainedBytes());
+    }
+
+    public void testTrimAllPools() {
+        SamplePool otherPool = new SamplePool();
+        mPool.releaseSample(mPool.acquireSample(1024));
+        otherPool.releaseSample(otherPool.acquireSample(1024));
+        SamplePool.trimAllPools(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, mPool.getRetainedBytes());
+        assertEquals(0, otherPool.getRetainedBytes());
+    }
+
+    private List<SampleHolder> acquireSamples(int size, int count) {
+        List<SampleHolder> samples = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            samples.add(mPool.acquireSample(size));
+        }
+        return samples;
+    }
+
+    private void releaseSamples(List<SampleHolder> samples) {
+        for (SampleHolder sample : samples) {
+            mPool.releaseSample(sample);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import static com.android.tv.tuner.exoplayer.buffer.WriteThroughputGovernor.WRITE_PRESSURE_HIGH;
+import static com.android.tv.tuner.exoplayer.buffer.WriteThroughputGovernor.WRITE_PRESSURE_MODERATE;
+import static com.android.tv.tuner.exoplayer.buffer.WriteThroughputGovernor.WRITE_PRESSURE_NONE;
+
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Tests for {@link WriteThroughputGovernor}.
+ */
+@SmallTest
+public class WriteThroughputGovernorTest extends TestCase {
+    // The amount of writes which updates the average.
+    private static final int UPDATE_SIZE = 1024 * 1024;
+
+    private WriteThroughputGovernor mGovernor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mGovernor = new WriteThroughputGovernor();
+    }
+
+    public void testInitialState() {
+        assertEquals(WRITE_PRESSURE_NONE, mGovernor.getWritePressure());
+        assertEquals(-1.0f, mGovernor.getAverageMbps());
+    }
+
+    public void testAddWrite_smallWritesIgnored() {
+        for (int i = 0; i < 1000; ++i) {
+            mGovernor.addWrite(1024, 1000000);
+        }
+        assertEquals(WRITE_PRESSURE_NONE, mGovernor.getWritePressure());
+        assertEquals(-1.0f, mGovernor.getAverageMbps());
+    }
+
+    public void testAddWrite_averageUpdatedPerMegabyte() {
+        mGovernor.addWrite(UPDATE_SIZE / 2, getTimeNs(UPDATE_SIZE / 2, 1.0f));
+        assertEquals(-1.0f, mGovernor.getAverageMbps());
+        mGovernor.addWrite(UPDATE_SIZE / 2, getTimeNs(UPDATE_SIZE / 2, 1.0f));
+        assertEquals(1.0f, mGovernor.getAverageMbps(), 0.01f);
+        assertEquals(WRITE_PRESSURE_HIGH, mGovernor.getWritePressure());
+    }
+
+    public void testAddWrite_fastStorage() {
+        addWrites(20.0f, 1);
+        assertEquals(WRITE_PRESSURE_NONE, mGovernor.getWritePressure());
+    }
+
+    public void testAddWrite_moderatePressure() {
+        addWrites(5.0f, 1);
+        assertEquals(WRITE_PRESSURE_MODERATE, mGovernor.getWritePressure());
+    }
+
+    public void testAddWrite_highPressure() {
+        addWrites(2.0f, 1);
+        assertEquals(WRITE_PRESSURE_HIGH, mGovernor.getWritePressure());
+    }
+
+    public void testAddWrite_pressureRaisedGradually() {
+        addWrites(20.0f, 1);
+        // A single slow write doesn't raise the pressure.
+        addWrites(1.0f, 1);
+        assertEquals(WRITE_PRESSURE_NONE, mGovernor.getWritePressure());
+        addWrites(1.0f, 4);
+        assertEquals(WRITE_PRESSURE_MODERATE, mGovernor.getWritePressure());
+        addWrites(1.0f, 10);
+        assertEquals(WRITE_PRESSURE_HIGH, mGovernor.getWritePressure());
+    }
+
+    public void testAddWrite_recovery() {
+        addWrites(2.0f, 1);
+        assertEquals(WRITE_PRESSURE_HIGH, mGovernor.getWritePressure());
+        // 2.0 -> 6.5MBps, which is over the moderate threshold but within the relief ratio.
+        addWrites(20.0f, 1);
+        assertEquals(WRITE_PRESSURE_MODERATE, mGovernor.getWritePressure());
+        // 6.5 -> 9.875MBps
+        addWrites(20.0f, 1);
+        assertEquals(WRITE_PRESSURE_NONE, mGovernor.getWritePressure());
+    }
+
+    public void testAddWrite_highPressureKeptWithinReliefRatio() {
+        addWrites(2.0f, 1);
+        // 2.0 -> 2.75 -> 3.3125MBps, which is over the high threshold.
+        addWrites(5.0f, 2);
+        assertEquals(WRITE_PRESSURE_HIGH, mGovernor.getWritePressure());
+        addWrites(5.0f, 20);
+        assertEquals(WRITE_PRESSURE_MODERATE, mGovernor.getWritePressure());
+    }
+
+    public void testAddWrite_moderatePressureKeptWithinReliefRatio() {
+        addWrites(5.0f, 1);
+        addWrites(8.0f, 20);
+        assertEquals(WRITE_PRESSURE_MODERATE, mGovernor.getWritePressure());
+        addWrites(20.0f, 20);
+        assertEquals(WRITE_PRESSURE_NONE, mGovernor.getWritePressure());
+    }
+
+    public void testForStorage_sameDeviceShared() {
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        WriteThroughputGovernor governor = WriteThroughputGovernor.forStorage(dir);
+        assertSame(governor, WriteThroughputGovernor.forStorage(dir));
+        assertSame(governor, WriteThroughputGovernor.forStorage(new File(dir, "not/created")));
+    }
+
+    private void addWrites(float mbps, int updateCount) {
+        for (int i = 0; i < updateCount; ++i) {
+            mGovernor.addWrite(UPDATE_SIZE, getTimeNs(UPDATE_SIZE, mbps));
+        }
+    }
+
+    private static long getTimeNs(long size, float mbps) {
+        return (long) (size * 1000 / mbps);
+    }
+}
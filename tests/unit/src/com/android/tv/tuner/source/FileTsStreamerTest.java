@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.testing.FakeClock;
+import com.android.tv.tuner.source.FileTsStreamer.StreamProvider;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link FileTsStreamer.StreamProvider}.
+ */
+@SmallTest
+public class FileTsStreamerTest extends TestCase {
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int PID = 0x100;
+    private static final int OTHER_PID = 0x101;
+    private static final long PCR_BASE_MAX = 1L << 33;
+    private static final int NO_PCR = -1;
+
+    private File mFile;
+    private FakeClock mClock;
+    private StreamProvider mProvider;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("stream", ".ts");
+        mClock = FakeClock.createWithTimeOne();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mProvider != null) {
+            mProvider.close();
+        }
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testRead_pidFilter() throws IOException {
+        writeFile(createPacket(PID, NO_PCR, 0), createPacket(PID, NO_PCR, 1),
+                createPacket(OTHER_PID, NO_PCR, 2), createPacket(PID, NO_PCR, 3));
+        openProvider(false);
+        assertPackets(read(3), 0, 1, 3);
+    }
+
+    public void testRead_resyncAfterLostSyncBytes() throws IOException {
+        writeFile(new byte[3], createPacket(PID, NO_PCR, 0), new byte[5],
+                createPacket(PID, NO_PCR, 1));
+        openProvider(false);
+        assertPackets(read(3), 0, 1, 0);
+    }
+
+    public void testRead_loop() throws IOException {
+        writeFile(createPacket(PID, NO_PCR, 0), createPacket(PID, NO_PCR, 1));
+        openProvider(false);
+        assertPackets(read(5), 0, 1, 0, 1, 0);
+        assertPackets(read(2), 1, 0);
+    }
+
+    public void testRead_noPacketInFilter() throws IOException {
+        writeFile(createPacket(OTHER_PID, NO_PCR, 0), createPacket(OTHER_PID, NO_PCR, 1));
+        openProvider(false);
+        assertEquals(-1, mProvider.read(ByteBuffer.allocate(TS_PACKET_SIZE)));
+    }
+
+    public void testRead_tooShortFile() throws IOException {
+        writeFile(new byte[TS_PACKET_SIZE - 1]);
+        openProvider(false);
+        assertFalse(mProvider.isReady());
+    }
+
+    public void testRead_pacedByPcr() throws IOException {
+        writeFile(createPacket(PID, 0, 0), createPacket(PID, NO_PCR, 1),
+                createPacket(PID, 45000, 2), createPacket(PID, NO_PCR, 3));
+        openProvider(true);
+        assertPackets(read(10), 0, 1);
+        assertPackets(read(10));
+        mClock.increment(TimeUnit.MILLISECONDS, 499);
+        assertPackets(read(10));
+        mClock.increment(TimeUnit.MILLISECONDS);
+        // The PCR restarts after the loop.
+        assertPackets(read(10), 2, 3, 0, 1);
+    }
+
+    public void testRead_notPacedWithoutPcr() throws IOException {
+        writeFile(createPacket(PID, 0, 0), createPacket(PID, 45000, 1));
+        openProvider(false);
+        assertPackets(read(2), 0, 1);
+    }
+
+    public void testRead_pcrDiscontinuity() throws IOException {
+        writeFile(createPacket(PID, 0, 0), createPacket(PID, 10 * 90000, 1),
+                createPacket(PID, 90000, 2), createPacket(PID, 90000 + 45000, 3));
+        openProvider(true);
+        // Both the forward and the backward jumps restart the pacing.
+        assertPackets(read(10), 0, 1, 2);
+        mClock.increment(TimeUnit.MILLISECONDS, 500);
+        assertPackets(read(1), 3);
+    }
+
+    public void testRead_pcrWrapAround() throws IOException {
+        writeFile(createPacket(PID, PCR_BASE_MAX - 4500, 0), createPacket(PID, 40500, 1));
+        openProvider(true);
+        assertPackets(read(10), 0);
+        mClock.increment(TimeUnit.MILLISECONDS, 499);
+        assertPackets(read(10));
+        mClock.increment(TimeUnit.MILLISECONDS);
+        assertPackets(read(1), 1);
+    }
+
+    private void openProvider(boolean pacedByPcr) {
+        mProvider = new StreamProvider(mFile.getAbsolutePath(), pacedByPcr, mClock);
+        mProvider.addPidFilter(PID);
+    }
+
+    private ByteBuffer read(int maxPackets) {
+        ByteBuffer output = ByteBuffer.allocate(maxPackets * TS_PACKET_SIZE);
+        int bytesRead = mProvider.read(output);
+        assertEquals(output.position(), bytesRead);
+        output.flip();
+        return output;
+    }
+
+    private static void assertPackets(ByteBuffer output, int... ids) {
+        assertEquals(ids.length * TS_PACKET_SIZE, output.remaining());
+        for (int i = 0; i < ids.length; ++i) {
+            int pos = output.position() + i * TS_PACKET_SIZE;
+            assertEquals(0x47, output.get(pos));
+            assertEquals("packet " + i, ids[i], output.get(pos + TS_PACKET_SIZE - 1));
+        }
+    }
+
+    private void writeFile(byte[]... chunks) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (byte[] chunk : chunks) {
+            data.write(chunk);
+        }
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(data.toByteArray());
+        }
+    }
+
+    // Creates a packet whose last byte is the id. The PCR is carried when it's not NO_PCR.
+    private static byte[] createPacket(int pid, long pcr, int id) {
+        byte[] packet = new byte[TS_PACKET_SIZE];
+        packet[0] = 0x47;
+        packet[1] = (byte) ((pid >> 8) & 0x1f);
+        packet[2] = (byte) pid;
+        if (pcr == NO_PCR) {
+            // Payload only
+            packet[3] = 0x10;
+        } else {
+            // Adaptation field with PCR, followed by payload
+            packet[3] = 0x30;
+            packet[4] = 7;
+            packet[5] = 0x10;
+            packet[6] = (byte) (pcr >> 25);
+            packet[7] = (byte) (pcr >> 17);
+            packet[8] = (byte) (pcr >> 9);
+            packet[9] = (byte) (pcr >> 1);
+            packet[10] = (byte) (((pcr & 1) << 7) | 0x7e);
+        }
+        packet[TS_PACKET_SIZE - 1] = (byte) id;
+        return packet;
+    }
+}
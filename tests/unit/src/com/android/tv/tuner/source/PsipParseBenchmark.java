@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import android.os.Debug;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.android.tv.tuner.ChannelScanFileParser.ScanChannel;
+import com.android.tv.tuner.data.PsipData;
+import com.android.tv.tuner.data.TunerChannel;
+import com.android.tv.tuner.source.FileTsStreamer.StreamProvider;
+import com.android.tv.tuner.ts.TsParser;
+import com.android.tv.tuner.tvinput.EventDetector;
+import com.android.tv.tuner.tvinput.FileSourceEventDetector;
+import com.android.tv.util.Clock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Benchmarks the parsing of PSIP tables with the MPEG-2 TS files in /sdcard/Streams.
+ * <p>
+ * The head of each file is loaded to the memory and fed to {@link FileSourceEventDetector} as
+ * {@link FileTsStreamer} does, a window at a time, with all the programs of the multiplex
+ * detected. Since the file isn't read during the measurement, the time is spent on skipping
+ * the audio and video packets and parsing the PSIP sections. The packets parsed per second and
+ * the allocation rate of the process are logged for each file. The benchmark is skipped when
+ * there is no file.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class PsipParseBenchmark {
+    private static final String TAG = "PsipParseBenchmark";
+
+    private static final int TS_PACKET_SIZE = 188;
+    // Same as FileTsStreamer.FILE_DIR.
+    private static final File FILE_DIR =
+            new File(Environment.getExternalStorageDirectory(), "Streams");
+    private static final int MAX_LOAD_SIZE = TS_PACKET_SIZE * 256 * 1024; // ~47MB
+    // Same as FileTsStreamer.READ_BUFFER_SIZE.
+    private static final int FEED_SIZE = TS_PACKET_SIZE * 10 * 10;
+    private static final int WARM_UP_COUNT = 2;
+    private static final int MEASURE_COUNT = 10;
+
+    @Test
+    public void testParseThroughput() throws Exception {
+        List<ScanChannel> files = new ArrayList<>();
+        FileTsStreamer.addLocalStreamFiles(files);
+        assumeFalse("No stream file to benchmark", files.isEmpty());
+        for (ScanChannel file : files) {
+            String filepath = new File(FILE_DIR, file.filename).getAbsolutePath();
+            ByteBuffer data = load(filepath);
+            if (data == null) {
+                Log.w(TAG, "Failed to load " + file.filename);
+                continue;
+            }
+            StreamProvider provider = new StreamProvider(filepath, false, Clock.SYSTEM);
+            try {
+                for (int i = 0; i < WARM_UP_COUNT; ++i) {
+                    parse(provider, data, new CountingEventListener());
+                }
+                CountingEventListener listener = new CountingEventListener();
+                long startAllocatedBytes = getAllocatedBytes();
+                long startTimeNs = SystemClock.elapsedRealtimeNanos();
+                for (int i = 0; i < MEASURE_COUNT; ++i) {
+                    parse(provider, data, listener);
+                }
+                long elapsedNs = SystemClock.elapsedRealtimeNanos() - startTimeNs;
+                long allocatedBytes = getAllocatedBytes() - startAllocatedBytes;
+
+                long packets = (long) MEASURE_COUNT * (data.limit() / TS_PACKET_SIZE);
+                Log.i(TAG, file.filename + ": " + String.format(Locale.ENGLISH,
+                        "packets/s=%d allocated bytes/packet=%d channels=%d events=%d",
+                        packets * 1000000000 / Math.max(elapsedNs, 1),
+                        startAllocatedBytes < 0 ? -1 : allocatedBytes / packets,
+                        listener.mChannels / MEASURE_COUNT, listener.mEvents / MEASURE_COUNT));
+                assertTrue("No channel is detected from " + file.filename,
+                        listener.mChannels > 0);
+            } finally {
+                provider.close();
+            }
+        }
+    }
+
+    // Feeds the data from the start with a new detector, which starts with no section parsed.
+    // The filter is set up as FileTsStreamer does for a scan.
+    private static void parse(StreamProvider provider, ByteBuffer data,
+            EventDetector.EventListener listener) {
+        FileSourceEventDetector detector = new FileSourceEventDetector(listener);
+        detector.start(provider, FileSourceEventDetector.ALL_PROGRAM_NUMBERS);
+        provider.addPidFilter(TsParser.ATSC_SI_BASE_PID);
+        provider.addPidFilter(TsParser.PAT_PID);
+        ByteBuffer window = data.duplicate();
+        for (int position = 0; position < data.limit(); position += FEED_SIZE) {
+            window.limit(Math.min(position + FEED_SIZE, data.limit()));
+            window.position(position);
+            detector.feedTSStream(window);
+        }
+    }
+
+    // Loads the head of the file in multiples of TS packet size, or returns null on failure.
+    private static ByteBuffer load(String filepath) {
+        try (FileChannel channel = new FileInputStream(filepath).getChannel()) {
+            long size = Math.min(channel.size(), MAX_LOAD_SIZE);
+            ByteBuffer data = ByteBuffer.allocateDirect(
+                    (int) (size / TS_PACKET_SIZE * TS_PACKET_SIZE));
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0) {
+                    return null;
+                }
+            }
+            data.flip();
+            return data.limit() > 0 ? data : null;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + filepath, e);
+            return null;
+        }
+    }
+
+    // Returns the total bytes allocated by the process, or -1 if the runtime doesn't provide it.
+    private static long getAllocatedBytes() {
+        String value = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        try {
+            return value == null ? -1 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class CountingEventListener implements EventDetector.EventListener {
+        private int mChannels;
+        private int mEvents;
+
+        @Override
+        public void onChannelDetected(TunerChannel channel, boolean channelArrivedAtFirstTime) {
+            if (channelArrivedAtFirstTime) {
+                ++mChannels;
+            }
+        }
+
+        @Override
+        public void onEventDetected(TunerChannel channel, List<PsipData.EitItem> items) {
+            mEvents += items.size();
+        }
+
+        @Override
+        public void onChannelScanDone() { }
+    }
+}
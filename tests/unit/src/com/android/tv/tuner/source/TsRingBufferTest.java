@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link TsRingBuffer}.
+ */
+@SmallTest
+public class TsRingBufferTest extends TestCase {
+    private static final int CAPACITY = 10;
+    private static final long WAIT_TIMEOUT_MS = 5000;
+
+    public void testRead() {
+        TsRingBuffer buffer = new TsRingBuffer(CAPACITY);
+        buffer.write(createData(0, 6), 0, 6);
+        assertEquals(6, buffer.getWritePosition());
+        byte[] data = new byte[4];
+        assertEquals(4, buffer.read(2, data, 0, 4, 0));
+        assertTrue(Arrays.equals(createData(2, 4), data));
+        assertEquals(6, buffer.getLastReadPosition());
+    }
+
+    public void testRead_wrapAround() {
+        TsRingBuffer buffer = new TsRingBuffer(CAPACITY);
+        buffer.write(createData(0, 7), 0, 7);
+        assertEquals(7, buffer.read(0, new byte[7], 0, 7, 0));
+        buffer.write(createData(7, 7), 0, 7);
+        byte[] data = new byte[7];
+        assertEquals(7, buffer.read(7, data, 0, 7, 0));
+        assertTrue(Arrays.equals(createData(7, 7), data));
+    }
+
+    public void testRead_overwritten() {
+        TsRingBuffer buffer = new TsRingBuffer(CAPACITY);
+        buffer.write(createData(0, 7), 0, 7);
+        buffer.write(createData(7, 7), 0, 7);
+        assertEquals(TsRingBuffer.READ_OVERWRITTEN, buffer.read(0, new byte[4], 0, 4, 0));
+        assertEquals(TsRingBuffer.READ_OVERWRITTEN, buffer.read(3, new byte[4], 0, 4, 0));
+        assertEquals(4, buffer.read(4, new byte[4], 0, 4, 0));
+    }
+
+    public void testRead_reservedSlotIsOverwritten() {
+        TsRingBuffer buffer = new TsRingBuffer(CAPACITY, true);
+        buffer.write(createData(0, CAPACITY), 0, CAPACITY);
+        // The slot is regarded as being overwritten before anything is committed.
+        buffer.obtainWriteSlot(4);
+        assertEquals(TsRingBuffer.READ_OVERWRITTEN, buffer.read(0, new byte[4], 0, 4, 0));
+        assertEquals(TsRingBuffer.READ_OVERWRITTEN, buffer.read(2, new byte[4], 0, 4, 0));
+        assertEquals(6, buffer.read(4, new byte[6], 0, 6, 0));
+    }
+
+    public void testRead_timedOut() {
+        TsRingBuffer buffer = new TsRingBuffer(CAPACITY);
+        buffer.write(createData(0, 4), 0, 4);
+        assertEquals(TsRingBuffer.READ_TIMED_OUT, buffer.read(0, new byte[5], 0, 5, 10));
+    }
+
+    public void testRead_closed() {
+        TsRingBuffer buffer = new TsRingBuffer(CAPACITY);
+        buffer.write(createData(0, 4), 0, 4);
+        buffer.close();
+        assertTrue(buffer.isClosed());
+        assertEquals(TsRingBuffer.READ_CLOSED, buffer.read(0, new byte[4], 0, 4, 0));
+        buffer.reset();
+        assertFalse(buffer.isClosed());
+        assertEquals(0, buffer.getWritePosition());
+    }
+
+    public void testRead_wakeUpByWrite() throws InterruptedException {
+        final TsRingBuffer buffer = new TsRingBuffer(CAPACITY);
+        final byte[] data = new byte[4];
+        final AtomicInteger result = new AtomicInteger();
+        Thread reader = startThread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(buffer.read(0, data, 0, 4, WAIT_TIMEOUT_MS));
+            }
+        });
+        buffer.write(createData(0, 4), 0, 4);
+        reader.join(WAIT_TIMEOUT_MS);
+        assertFalse(reader.isAlive());
+        assertEquals(4, result.get());
+        assertTrue(Arrays.equals(createData(0, 4), data));
+    }
+
+    public void testRead_wakeUpByClose() throws InterruptedException {
+        final TsRingBuffer buffer = new TsRingBuffer(CAPACITY);
+        final AtomicInteger result = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread reader = startThread(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                result.set(buffer.read(0, new byte[4], 0, 4, WAIT_TIMEOUT_MS * 10));
+            }
+        });
+        assertTrue(started.await(WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        buffer.close();
+        reader.join(WAIT_TIMEOUT_MS);
+        assertFalse(reader.isAlive());
+        assertEquals(TsRingBuffer.READ_CLOSED, result.get());
+    }
+
+    public void testWaitForSpace() {
+        TsRingBuffer buffer = new TsRingBuffer(CAPACITY);
+        buffer.write(createData(0, 6), 0, 6);
+        assertTrue(buffer.waitForSpace(4));
+    }
+
+    public void testWaitForSpace_wakeUpByRead() throws InterruptedException {
+        final TsRingBuffer buffer = new TsRingBuffer(CAPACITY);
+        buffer.write(createData(0, 8), 0, 8);
+        final AtomicBoolean result = new AtomicBoolean();
+        Thread writer = startThread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(buffer.waitForSpace(4));
+            }
+        });
+        assertEquals(4, buffer.read(0, new byte[4], 0, 4, 0));
+        writer.join(WAIT_TIMEOUT_MS);
+        assertFalse(writer.isAlive());
+        assertTrue(result.get());
+    }
+
+    public void testWaitForSpace_wakeUpByClose() throws InterruptedException {
+        final TsRingBuffer buffer = new TsRingBuffer(CAPACITY);
+        buffer.write(createData(0, 8), 0, 8);
+        final AtomicBoolean result = new AtomicBoolean(true);
+        Thread writer = startThread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(buffer.waitForSpace(4));
+            }
+        });
+        buffer.close();
+        writer.join(WAIT_TIMEOUT_MS);
+        assertFalse(writer.isAlive());
+        assertFalse(result.get());
+    }
+
+    public void testObtainWriteSlot() {
+        TsRingBuffer buffer = new TsRingBuffer(CAPACITY, true);
+        buffer.write(createData(0, 6), 0, 6);
+        assertEquals(6, buffer.read(0, new byte[6], 0, 6, 0));
+        // The slot doesn't wrap around the end of the buffer.
+        ByteBuffer slot = buffer.obtainWriteSlot(8);
+        assertTrue(slot.isDirect());
+        assertEquals(0, slot.position());
+        assertEquals(4, slot.limit());
+        slot.put(createData(6, 3));
+        // Nothing is readable before the commit.
+        assertEquals(TsRingBuffer.READ_TIMED_OUT, buffer.read(6, new byte[3], 0, 3, 0));
+        buffer.commitWrite(3);
+        assertEquals(9, buffer.getWritePosition());
+        byte[] data = new byte[3];
+        assertEquals(3, buffer.read(6, data, 0, 3, 0));
+        assertTrue(Arrays.equals(createData(6, 3), data));
+
+        slot = buffer.obtainWriteSlot(8);
+        assertEquals(1, slot.limit());
+        slot.put(createData(9, 1));
+        buffer.commitWrite(1);
+        slot = buffer.obtainWriteSlot(8);
+        assertEquals(8, slot.limit());
+        slot.put(createData(10, 2));
+        buffer.commitWrite(2);
+        data = new byte[3];
+        assertEquals(3, buffer.read(9, data, 0, 3, 0));
+        assertTrue(Arrays.equals(createData(9, 3), data));
+    }
+
+    private static Thread startThread(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        return thread;
+    }
+
+    private static byte[] createData(int start, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte) (start + i);
+        }
+        return data;
+    }
+}
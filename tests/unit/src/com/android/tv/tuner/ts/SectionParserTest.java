@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.tuner.data.PsiData.PatItem;
+import com.android.tv.tuner.data.PsiData.PmtItem;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import com.android.tv.tuner.data.PsipData.EttItem;
+import com.android.tv.tuner.data.PsipData.MgtItem;
+import com.android.tv.tuner.data.PsipData.VctItem;
+import com.android.tv.tuner.util.ByteArrayBuffer;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link SectionParser}.
+ */
+@SmallTest
+public class SectionParserTest extends TestCase {
+    private static final int[] PROGRAMS = {0, 0x10, 3, 0x30, 4, 0x40};
+    private static final int PROGRAM_NUMBER = 3;
+    private static final int PCR_PID = 0x31;
+    private static final int[] STREAMS = {0x02, 0x31, 0x81, 0x34, 0x81, 0x35};
+
+    public void testParseSection_unalignedOffset_sameAsCopiedSection() {
+        byte[][] sections = {
+                TsTestUtils.createPat(0, 0, 0, PROGRAMS),
+                TsTestUtils.createPmt(PROGRAM_NUMBER, 0, PCR_PID, STREAMS)};
+        for (byte[] section : sections) {
+            for (int offset = 1; offset < 8; ++offset) {
+                // A section used to be copied to its own array before it was parsed.
+                RecordingListener copiedListener = new RecordingListener();
+                new SectionParser(copiedListener).parseSection(
+                        Arrays.copyOf(section, section.length), 0, section.length);
+                RecordingListener inPlaceListener = new RecordingListener();
+                new SectionParser(inPlaceListener).parseSection(
+                        TsTestUtils.placeAt(section, offset), offset, section.length);
+                assertEquals(1, copiedListener.mResults.size());
+                assertEquals(copiedListener.mResults, inPlaceListener.mResults);
+            }
+        }
+    }
+
+    public void testParseSection_pat() {
+        RecordingListener listener = new RecordingListener();
+        byte[] pat = TsTestUtils.createPat(0, 0, 0, PROGRAMS);
+        new SectionParser(listener).parseSection(TsTestUtils.placeAt(pat, 5), 5, pat.length);
+        assertEquals(Arrays.asList(toString(new PatItem(0, 0x10), new PatItem(3, 0x30),
+                new PatItem(4, 0x40))), listener.mResults);
+    }
+
+    public void testParseSection_pmt() {
+        RecordingListener listener = new RecordingListener();
+        byte[] pmt = TsTestUtils.createPmt(PROGRAM_NUMBER, 0, PCR_PID, STREAMS);
+        new SectionParser(listener).parseSection(TsTestUtils.placeAt(pmt, 3), 3, pmt.length);
+        assertEquals(PROGRAM_NUMBER, listener.mProgramNumber);
+        List<PmtItem> items = listener.mPmtItems;
+        assertEquals(4, items.size());
+        for (int i = 0; i < STREAMS.length / 2; ++i) {
+            assertEquals(STREAMS[i * 2], items.get(i).getStreamType());
+            assertEquals(STREAMS[i * 2 + 1], items.get(i).getEsPid());
+        }
+        assertEquals(PmtItem.ES_PID_PCR, items.get(3).getStreamType());
+        assertEquals(PCR_PID, items.get(3).getEsPid());
+    }
+
+    public void testParseSection_badCrc() {
+        RecordingListener listener = new RecordingListener();
+        SectionParser parser = new SectionParser(listener);
+        byte[] pat = TsTestUtils.createPat(0, 0, 0, PROGRAMS);
+        byte[] broken = TsTestUtils.placeAt(pat, 7);
+        broken[7 + 9] ^= 0x01;
+        parser.parseSection(broken, 7, pat.length);
+        assertEquals(0, listener.mResults.size());
+        // The broken section is not mistaken for the valid one.
+        parser.parseSection(pat, 0, pat.length);
+        assertEquals(1, listener.mResults.size());
+    }
+
+    public void testParseSection_repeatedSectionParsedOnce() {
+        RecordingListener listener = new RecordingListener();
+        SectionParser parser = new SectionParser(listener);
+        byte[] pat = TsTestUtils.createPat(0, 0, 0, PROGRAMS);
+        parser.parseSection(pat, 0, pat.length);
+        parser.parseSection(TsTestUtils.placeAt(pat, 1), 1, pat.length);
+        assertEquals(1, listener.mResults.size());
+        byte[] newPat = TsTestUtils.createPat(1, 0, 0, 3, 0x30);
+        parser.parseSection(newPat, 0, newPat.length);
+        assertEquals(2, listener.mResults.size());
+        assertEquals(toString(new PatItem(3, 0x30)), listener.mResults.get(1));
+    }
+
+    public void testParseSections_consecutiveSections() {
+        RecordingListener listener = new RecordingListener();
+        byte[] pat0 = TsTestUtils.createPat(0, 0, 1, 0, 0x10);
+        byte[] pat1 = TsTestUtils.createPat(0, 1, 1, 3, 0x30, 4, 0x40);
+        ByteArrayBuffer data = new ByteArrayBuffer(0);
+        data.append(pat0, 0, pat0.length);
+        data.append(pat1, 0, pat1.length);
+        data.append(0xff);
+        new SectionParser(listener).parseSections(data);
+        assertEquals(Arrays.asList(toString(new PatItem(0, 0x10)),
+                toString(new PatItem(3, 0x30), new PatItem(4, 0x40))), listener.mResults);
+        // The stuffing byte clears the data.
+        assertEquals(0, data.length());
+    }
+
+    public void testParseSections_sectionSplitAcrossCalls() {
+        RecordingListener listener = new RecordingListener();
+        SectionParser parser = new SectionParser(listener);
+        byte[] pmt = TsTestUtils.createPmt(PROGRAM_NUMBER, 0, PCR_PID, STREAMS);
+        ByteArrayBuffer data = new ByteArrayBuffer(0);
+        for (int i = 0; i < pmt.length - 1; ++i) {
+            data.append(pmt[i]);
+            parser.parseSections(data);
+        }
+        assertEquals(0, listener.mResults.size());
+        data.append(pmt[pmt.length - 1]);
+        parser.parseSections(data);
+        assertEquals(1, listener.mResults.size());
+    }
+
+    private static String toString(Object... items) {
+        return Arrays.asList(items).toString();
+    }
+
+    private static class RecordingListener implements SectionParser.OutputListener {
+        private final List<String> mResults = new ArrayList<>();
+        private int mProgramNumber;
+        private List<PmtItem> mPmtItems;
+
+        @Override
+        public void onPatParsed(List<PatItem> items) {
+            mResults.add(items.toString());
+        }
+
+        @Override
+        public void onPmtParsed(int programNumber, List<PmtItem> items) {
+            mResults.add(programNumber + ":" + items);
+            mProgramNumber = programNumber;
+            mPmtItems = items;
+        }
+
+        @Override
+        public void onMgtParsed(List<MgtItem> items) {
+            mResults.add(items.toString());
+        }
+
+        @Override
+        public void onVctParsed(List<VctItem> items, int sectionNumber, int lastSectionNumber) {
+            mResults.add(items.toString());
+        }
+
+        @Override
+        public void onEitParsed(int sourceId, List<EitItem> items) {
+            mResults.add(sourceId + ":" + items);
+        }
+
+        @Override
+        public void onEttParsed(int sourceId, List<EttItem> descriptions) {
+            mResults.add(sourceId + ":" + descriptions);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.tuner.data.PsiData.PatItem;
+import com.android.tv.tuner.data.PsiData.PmtItem;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import com.android.tv.tuner.data.PsipData.VctItem;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link TsParser}.
+ */
+@SmallTest
+public class TsParserTest extends TestCase {
+    // The first PAT section is long enough to be split across two packets.
+    private static final int FIRST_SECTION_PROGRAM_COUNT = 60;
+
+    private byte[] mFirstPat;
+    private byte[] mSecondPat;
+    private List<String> mExpectedPats;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        int[] programs = new int[FIRST_SECTION_PROGRAM_COUNT * 2];
+        List<PatItem> firstItems = new ArrayList<>();
+        for (int i = 0; i < FIRST_SECTION_PROGRAM_COUNT; ++i) {
+            programs[i * 2] = i + 1;
+            programs[i * 2 + 1] = 0x100 + i;
+            firstItems.add(new PatItem(i + 1, 0x100 + i));
+        }
+        mFirstPat = TsTestUtils.createPat(0, 0, 1, programs);
+        mSecondPat = TsTestUtils.createPat(0, 1, 1, 100, 0x200);
+        mExpectedPats = Arrays.asList(firstItems.toString(),
+                Arrays.asList(new PatItem(100, 0x200)).toString());
+    }
+
+    public void testFeedTSData_sectionsSplitAcrossPackets() {
+        byte[] packets = TsTestUtils.packetize(TsParser.PAT_PID, 0, mFirstPat, mSecondPat);
+        assertEquals(2, packets.length / TsTestUtils.TS_PACKET_SIZE);
+        for (int offset = 0; offset < 8; ++offset) {
+            RecordingListener listener = new RecordingListener();
+            byte[] data = TsTestUtils.placeAt(packets, offset);
+            // The length is the end of the data in the buffer.
+            new TsParser(listener).feedTSData(data, offset, offset + packets.length);
+            assertEquals("offset " + offset, mExpectedPats, listener.mPats);
+        }
+    }
+
+    public void testFeedTSData_byteBufferSectionsSplitAcrossPackets() {
+        byte[] packets = TsTestUtils.packetize(TsParser.PAT_PID, 0, mFirstPat, mSecondPat);
+        for (int offset = 0; offset < 8; ++offset) {
+            for (boolean direct : new boolean[] {false, true}) {
+                byte[] data = TsTestUtils.placeAt(packets, offset);
+                ByteBuffer buffer =
+                        direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+                buffer.put(data);
+                buffer.position(offset);
+                buffer.limit(offset + packets.length);
+                RecordingListener listener = new RecordingListener();
+                new TsParser(listener).feedTSData(buffer);
+                assertEquals("offset " + offset, mExpectedPats, listener.mPats);
+                assertEquals(offset, buffer.position());
+            }
+        }
+    }
+
+    public void testFeedTSData_packetByPacket() {
+        byte[] packets = TsTestUtils.packetize(TsParser.PAT_PID, 0, mFirstPat, mSecondPat);
+        RecordingListener listener = new RecordingListener();
+        TsParser parser = new TsParser(listener);
+        for (int pos = 0; pos < packets.length; pos += TsTestUtils.TS_PACKET_SIZE) {
+            byte[] packet = TsTestUtils.placeAt(
+                    Arrays.copyOfRange(packets, pos, pos + TsTestUtils.TS_PACKET_SIZE), 3);
+            parser.feedTSData(packet, 3, 3 + TsTestUtils.TS_PACKET_SIZE);
+        }
+        assertEquals(mExpectedPats, listener.mPats);
+    }
+
+    public void testFeedTSData_continuityErrorDropsSplitSection() {
+        byte[] packets = TsTestUtils.packetize(TsParser.PAT_PID, 0, mFirstPat, mSecondPat);
+        // Skips a continuity counter at the second packet, which has the end of the first
+        // section and the start of the second section.
+        packets[TsTestUtils.TS_PACKET_SIZE + 3] = (byte) (0x10 | 2);
+        RecordingListener listener = new RecordingListener();
+        new TsParser(listener).feedTSData(packets, 0, packets.length);
+        assertEquals(mExpectedPats.subList(1, 2), listener.mPats);
+    }
+
+    private static class RecordingListener implements TsParser.TsOutputListener {
+        private final List<String> mPats = new ArrayList<>();
+
+        @Override
+        public void onPatDetected(List<PatItem> items) {
+            mPats.add(items.toString());
+        }
+
+        @Override
+        public void onEitPidDetected(int pid) { }
+
+        @Override
+        public void onVctItemParsed(VctItem channel, List<PmtItem> pmtItems) { }
+
+        @Override
+        public void onEitItemParsed(VctItem channel, List<EitItem> items,
+                List<EitItem> changedItems) { }
+
+        @Override
+        public void onEttPidDetected(int pid) { }
+
+        @Override
+        public void onAllVctItemsParsed() { }
+
+        @Override
+        public void onAllPmtItemsParsed() { }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds PSI sections and TS packets for the tests of the TS parsers.
+ */
+final class TsTestUtils {
+    static final int TS_PACKET_SIZE = 188;
+    static final byte TABLE_ID_PAT = 0x00;
+    static final byte TABLE_ID_PMT = 0x02;
+
+    private static final int TS_PAYLOAD_SIZE = TS_PACKET_SIZE - 4;
+
+    /**
+     * Creates a PAT section which maps program numbers to PMT PIDs.
+     *
+     * @param programs pairs of a program number and its PMT PID
+     */
+    static byte[] createPat(int version, int sectionNumber, int lastSectionNumber,
+            int... programs) {
+        byte[] body = new byte[programs.length * 2];
+        for (int i = 0; i < programs.length; i += 2) {
+            body[i * 2] = (byte) (programs[i] >> 8);
+            body[i * 2 + 1] = (byte) programs[i];
+            body[i * 2 + 2] = (byte) (0xe0 | (programs[i + 1] >> 8));
+            body[i * 2 + 3] = (byte) programs[i + 1];
+        }
+        return createSection(TABLE_ID_PAT, 1, version, sectionNumber, lastSectionNumber, body);
+    }
+
+    /**
+     * Creates a PMT section of elementary streams without descriptors.
+     *
+     * @param streams pairs of a stream type and its elementary PID
+     */
+    static byte[] createPmt(int programNumber, int version, int pcrPid, int... streams) {
+        byte[] body = new byte[4 + streams.length / 2 * 5];
+        body[0] = (byte) (0xe0 | (pcrPid >> 8));
+        body[1] = (byte) pcrPid;
+        body[2] = (byte) 0xf0;
+        body[3] = 0;
+        for (int i = 0; i < streams.length; i += 2) {
+            int pos = 4 + i / 2 * 5;
+            body[pos] = (byte) streams[i];
+            body[pos + 1] = (byte) (0xe0 | (streams[i + 1] >> 8));
+            body[pos + 2] = (byte) streams[i + 1];
+            body[pos + 3] = (byte) 0xf0;
+            body[pos + 4] = 0;
+        }
+        return createSection(TABLE_ID_PMT, programNumber, version, 0, 0, body);
+    }
+
+    /**
+     * Creates a section with the long syntax, current_next_indicator on and a valid CRC_32.
+     */
+    static byte[] createSection(byte tableId, int extension, int version, int sectionNumber,
+            int lastSectionNumber, byte[] body) {
+        int sectionLength = 5 + body.length + 4;
+        byte[] section = new byte[3 + sectionLength];
+        section[0] = tableId;
+        section[1] = (byte) (0xb0 | (sectionLength >> 8));
+        section[2] = (byte) sectionLength;
+        section[3] = (byte) (extension >> 8);
+        section[4] = (byte) extension;
+        section[5] = (byte) (0xc1 | ((version & 0x1f) << 1));
+        section[6] = (byte) sectionNumber;
+        section[7] = (byte) lastSectionNumber;
+        System.arraycopy(body, 0, section, 8, body.length);
+        int crc = computeCrc(section, section.length - 4);
+        section[section.length - 4] = (byte) (crc >> 24);
+        section[section.length - 3] = (byte) (crc >> 16);
+        section[section.length - 2] = (byte) (crc >> 8);
+        section[section.length - 1] = (byte) crc;
+        return section;
+    }
+
+    /**
+     * Packetizes the sections on a PID. A packet which has the start of a section has the
+     * payload_unit_start_indicator and the pointer field, so the sections are split across and
+     * packed in the packets as a multiplexer does. The last packet is padded with stuffing bytes.
+     *
+     * @return the TS packets
+     */
+    static byte[] packetize(int pid, int firstContinuityCounter, byte[]... sections) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        List<Integer> sectionStarts = new ArrayList<>();
+        for (byte[] section : sections) {
+            sectionStarts.add(data.size());
+            data.write(section, 0, section.length);
+        }
+        byte[] stream = data.toByteArray();
+        ByteArrayOutputStream packets = new ByteArrayOutputStream();
+        int continuityCounter = firstContinuityCounter;
+        int pos = 0;
+        while (pos < stream.length) {
+            int sectionStart = -1;
+            for (int start : sectionStarts) {
+                if (start >= pos && start < pos + TS_PAYLOAD_SIZE - 1) {
+                    sectionStart = start;
+                    break;
+                }
+            }
+            byte[] packet = new byte[TS_PACKET_SIZE];
+            Arrays.fill(packet, (byte) 0xff);
+            packet[0] = 0x47;
+            packet[1] = (byte) ((sectionStart >= 0 ? 0x40 : 0) | ((pid >> 8) & 0x1f));
+            packet[2] = (byte) pid;
+            packet[3] = (byte) (0x10 | (continuityCounter & 0x0f));
+            int payloadPos = 4;
+            if (sectionStart >= 0) {
+                packet[payloadPos++] = (byte) (sectionStart - pos);
+            }
+            int length = Math.min(TS_PACKET_SIZE - payloadPos, stream.length - pos);
+            System.arraycopy(stream, pos, packet, payloadPos, length);
+            packets.write(packet, 0, packet.length);
+            pos += length;
+            ++continuityCounter;
+        }
+        return packets.toByteArray();
+    }
+
+    /**
+     * Returns a copy of the data placed at the offset of a larger array, with garbage around it.
+     */
+    static byte[] placeAt(byte[] data, int offset) {
+        byte[] buffer = new byte[offset + data.length + 3];
+        Arrays.fill(buffer, (byte) 0x5a);
+        System.arraycopy(data, 0, buffer, offset, data.length);
+        return buffer;
+    }
+
+    // MPEG-2 CRC_32, computed bit by bit independently of SectionParser.
+    private static int computeCrc(byte[] data, int length) {
+        int crc = 0xffffffff;
+        for (int i = 0; i < length; ++i) {
+            crc ^= (data[i] & 0xff) << 24;
+            for (int bit = 0; bit < 8; ++bit) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+        }
+        return crc;
+    }
+
+    private TsTestUtils() { }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.tvinput;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.media.tv.TvContract;
+import android.net.Uri;
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import com.android.tv.tuner.data.PsiData;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import com.android.tv.tuner.data.TunerChannel;
+import com.android.tv.tuner.util.ConvertUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the per-channel program index of {@link ChannelDataManager}.
+ */
+@SmallTest
+public class ChannelDataManagerTest extends AndroidTestCase {
+    private static final long WAIT_TIME_OUT_MS = 1000L;
+    private static final long CHANNEL_ID = 1;
+    private static final int HOUR_IN_SECOND = 3600;
+
+    private FakeTvProvider mTvProvider;
+    private ChannelDataManager mChannelDataManager;
+    private TestProgramInfoListener mListener;
+    private TunerChannel mChannel;
+    // The start time of the programs in GPS time, which is an hour later than now.
+    private long mBaseTime;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mChannel = new TunerChannel(1, Collections.<PsiData.PmtItem>emptyList());
+        mTvProvider = new FakeTvProvider(getContext(), mChannel);
+        final MockContentResolver contentResolver = new MockContentResolver();
+        contentResolver.addProvider(TvContract.AUTHORITY, mTvProvider);
+        mChannelDataManager = new ChannelDataManager(new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return contentResolver;
+            }
+        });
+        mListener = new TestProgramInfoListener();
+        mChannelDataManager.setListener(mListener);
+        mBaseTime = ConvertUtils.convertUnixEpochToGPSTime(
+                System.currentTimeMillis() / 1000 + HOUR_IN_SECOND);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mChannelDataManager.release();
+        super.tearDown();
+    }
+
+    public void testInsert() throws Exception {
+        writeEvents(createItem(1, "A", 0, 1), createItem(2, "B", 1, 1));
+        assertEquals(2, mTvProvider.mInsertCount);
+        assertPrograms("A", "B");
+    }
+
+    public void testUpdate_onlyChangedProgramWritten() throws Exception {
+        writeEvents(createItem(1, "A", 0, 1), createItem(2, "B", 1, 1),
+                createItem(3, "C", 2, 1));
+        writeEvents(createItem(1, "A", 0, 1), createItem(2, "B2", 1, 1),
+                createItem(3, "C", 2, 1));
+        assertEquals(3, mTvProvider.mInsertCount);
+        assertEquals(1, mTvProvider.mUpdateCount);
+        assertEquals(0, mTvProvider.mDeleteCount);
+        assertPrograms("A", "B2", "C");
+    }
+
+    public void testUpdate_programInsertedBeforeIsUpdated() throws Exception {
+        writeEvents(createItem(1, "A", 0, 1));
+        // The index has the program id of the inserted program.
+        writeEvents(createItem(1, "A2", 0, 2));
+        assertEquals(1, mTvProvider.mInsertCount);
+        assertEquals(1, mTvProvider.mUpdateCount);
+        assertPrograms("A2");
+    }
+
+    public void testSameEvents_nothingWrittenAndNotQueriedAgain() throws Exception {
+        writeEvents(createItem(1, "A", 0, 1), createItem(2, "B", 1, 1));
+        int queryCount = mTvProvider.mProgramQueryCount;
+        writeEvents(createItem(1, "A", 0, 1), createItem(2, "B", 1, 1));
+        assertEquals(2, mTvProvider.mInsertCount);
+        assertEquals(0, mTvProvider.mUpdateCount);
+        // The programs are queried only by the test, not for the second events.
+        assertEquals(queryCount + 1, mTvProvider.mProgramQueryCount);
+    }
+
+    public void testDelete_replacedByOverlappingProgram() throws Exception {
+        writeEvents(createItem(1, "A", 0, 1), createItem(2, "B", 1, 1));
+        // The event 2 is replaced by the event 3 in the same time slot.
+        writeEvents(createItem(1, "A", 0, 1), createItem(3, "C", 1, 1));
+        assertEquals(3, mTvProvider.mInsertCount);
+        assertEquals(1, mTvProvider.mDeleteCount);
+        assertPrograms("A", "C");
+    }
+
+    public void testDelete_partiallyOverlappingProgram() throws Exception {
+        writeEvents(createItem(1, "A", 0, 2));
+        // The new event overlaps with the end of the event 1.
+        writeEvents(createItem(2, "B", 1, 2));
+        assertEquals(1, mTvProvider.mDeleteCount);
+        assertPrograms("B");
+    }
+
+    public void testDelete_notOverlappingProgramKept() throws Exception {
+        writeEvents(createItem(1, "A", 0, 1), createItem(2, "B", 1, 1));
+        // The events cover a later time span only.
+        writeEvents(createItem(3, "C", 2, 1));
+        assertEquals(0, mTvProvider.mDeleteCount);
+        assertPrograms("A", "B", "C");
+    }
+
+    public void testOutsidePrograms_overlappingEventsNotInserted() throws Exception {
+        // A program which is not from EIT, e.g. from an external EPG.
+        mTvProvider.addProgram(createItem(0, "Outside", 2, 2));
+        writeEvents(
+                // Ends before the outside program.
+                createItem(1, "A", 0, 2),
+                // Overlaps with the start of the outside program.
+                createItem(2, "B", 1, 2),
+                // Starts at the same time.
+                createItem(3, "C", 2, 1),
+                // Overlaps with the end of the outside program.
+                createItem(4, "D", 3, 2),
+                // Starts after the outside program.
+                createItem(5, "E", 4, 1));
+        assertEquals(2, mTvProvider.mInsertCount);
+        assertEquals(0, mTvProvider.mUpdateCount);
+        assertEquals(0, mTvProvider.mDeleteCount);
+        assertPrograms("A", "Outside", "E");
+    }
+
+    private EitItem createItem(int eventId, String title, int startHour, int lengthInHour) {
+        return new EitItem(0, eventId, title, mBaseTime + startHour * HOUR_IN_SECOND,
+                lengthInHour * HOUR_IN_SECOND, null, null, null, null, null, null);
+    }
+
+    // Writes the events, and waits until they are written.
+    private void writeEvents(EitItem... items) throws Exception {
+        mChannelDataManager.notifyEventDetected(mChannel, Arrays.asList(items));
+        mChannelDataManager.flushPendingEvents();
+        queryPrograms();
+    }
+
+    private List<EitItem> queryPrograms() throws Exception {
+        mListener.reset();
+        // The request is handled after the events.
+        mChannelDataManager.requestProgramsData(mChannel);
+        assertTrue(mListener.mProgramsLatch.await(WAIT_TIME_OUT_MS, TimeUnit.MILLISECONDS));
+        return mListener.mPrograms;
+    }
+
+    private void assertPrograms(String... titles) throws Exception {
+        List<EitItem> programs = queryPrograms();
+        List<String> actualTitles = new ArrayList<>();
+        for (EitItem program : programs) {
+            actualTitles.add(program.getTitleText());
+        }
+        assertEquals(Arrays.asList(titles), actualTitles);
+    }
+
+    private static class TestProgramInfoListener
+            implements ChannelDataManager.ProgramInfoListener {
+        private CountDownLatch mProgramsLatch;
+        private List<EitItem> mPrograms;
+
+        private void reset() {
+            mProgramsLatch = new CountDownLatch(1);
+            mPrograms = null;
+        }
+
+        @Override
+        public void onRequestProgramsResponse(TunerChannel channel, List<EitItem> programs) {
+            mPrograms = programs;
+            mProgramsLatch.countDown();
+        }
+
+        @Override
+        public void onProgramsArrived(TunerChannel channel, List<EitItem> programs) { }
+
+        @Override
+        public void onChannelArrived(TunerChannel channel) { }
+
+        @Override
+        public void onRescanNeeded() { }
+    }
+
+    // Keeps the programs of a channel in memory. The programs are returned in the order of the
+    // start time.
+    private static class FakeTvProvider extends MockContentProvider {
+        private static final String PATH_CHANNEL = "channel";
+
+        private final TunerChannel mChannel;
+        private final Map<Long, ContentValues> mPrograms = new TreeMap<>();
+        private long mNextProgramId = 1;
+        private int mProgramQueryCount;
+        private int mInsertCount;
+        private int mUpdateCount;
+        private int mDeleteCount;
+
+        private FakeTvProvider(Context context, TunerChannel channel) {
+            super(context);
+            mChannel = channel;
+        }
+
+        private synchronized void addProgram(EitItem item) {
+            ContentValues values = new ContentValues();
+            values.put(TvContract.Programs.COLUMN_CHANNEL_ID, CHANNEL_ID);
+            values.put(TvContract.Programs.COLUMN_TITLE, item.getTitleText());
+            values.put(TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS,
+                    item.getStartTimeUtcMillis());
+            values.put(TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS, item.getEndTimeUtcMillis());
+            values.put(TvContract.Programs.COLUMN_VERSION_NUMBER, item.getEventId());
+            mPrograms.put(mNextProgramId++, values);
+        }
+
+        @Override
+        public synchronized Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            MatrixCursor cursor = new MatrixCursor(projection);
+            if (PATH_CHANNEL.equals(uri.getPathSegments().get(0))) {
+                cursor.addRow(new Object[] {CHANNEL_ID, mChannel.toByteArray(), null});
+                return cursor;
+            }
+            ++mProgramQueryCount;
+            List<Map.Entry<Long, ContentValues>> programs = new ArrayList<>(mPrograms.entrySet());
+            Collections.sort(programs, new Comparator<Map.Entry<Long, ContentValues>>() {
+                @Override
+                public int compare(Map.Entry<Long, ContentValues> lhs,
+                        Map.Entry<Long, ContentValues> rhs) {
+                    return Long.compare(getStartTime(lhs.getValue()), getStartTime(rhs.getValue()));
+                }
+            });
+            for (Map.Entry<Long, ContentValues> program : programs) {
+                Object[] row = new Object[projection.length];
+                for (int i = 0; i < projection.length; ++i) {
+                    row[i] = TvContract.Programs._ID.equals(projection[i])
+                            ? program.getKey() : program.getValue().get(projection[i]);
+                }
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+
+        @Override
+        public synchronized Uri insert(Uri uri, ContentValues values) {
+            ++mInsertCount;
+            long programId = mNextProgramId++;
+            mPrograms.put(programId, new ContentValues(values));
+            return ContentUris.withAppendedId(TvContract.Programs.CONTENT_URI, programId);
+        }
+
+        @Override
+        public synchronized int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            ++mUpdateCount;
+            ContentValues program = mPrograms.get(ContentUris.parseId(uri));
+            if (program == null) {
+                return 0;
+            }
+            program.putAll(values);
+            return 1;
+        }
+
+        @Override
+        public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+            ++mDeleteCount;
+            return mPrograms.remove(ContentUris.parseId(uri)) == null ? 0 : 1;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < operations.size(); ++i) {
+                results[i] = operations.get(i).apply(this, results, i);
+            }
+            return results;
+        }
+
+        private static long getStartTime(ContentValues values) {
+            return values.getAsLong(TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS);
+        }
+    }
+}